@@ -0,0 +1,89 @@
+package redis;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Several clients on lists at once. "sameKey" has producers and consumers on one list,
+// all serialized on its shard's lock, as with a hot job queue; "ownKeys" runs the same
+// push/pop pairs with each thread on a key of its own, which spreads over the shards.
+// The gap between the two is what the shared lock costs.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContendedListBenchmark {
+    private static final int PREFILL = 100_000;
+
+    // The one list every group thread works on, filled deep enough that the consumers
+    // rarely find it empty.
+    @State(Scope.Group)
+    public static class Queue {
+        RespCommand rpush;
+        RespCommand lpop;
+
+        @Setup
+        public void setup() {
+            String key = "queue:" + System.nanoTime();
+            rpush = Requests.command("RPUSH", key, "job");
+            lpop = Requests.command("LPOP", key);
+            Requests.Client client = new Requests.Client();
+            for (int i = 0; i < PREFILL; i++) {
+                client.run(rpush);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class OwnKey {
+        final Requests.Client client = new Requests.Client();
+        RespCommand rpush;
+        RespCommand lpop;
+
+        @Setup
+        public void setup() {
+            String key = "own:" + Thread.currentThread().threadId() + ":" + System.nanoTime();
+            rpush = Requests.command("RPUSH", key, "job");
+            lpop = Requests.command("LPOP", key);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        final Requests.Client client = new Requests.Client();
+    }
+
+    @Benchmark
+    @Group("sameKey")
+    @GroupThreads(2)
+    public long produce(Queue queue, Client client) {
+        return client.client.run(queue.rpush);
+    }
+
+    @Benchmark
+    @Group("sameKey")
+    @GroupThreads(2)
+    public long consume(Queue queue, Client client) {
+        return client.client.run(queue.lpop);
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(2)
+    public long ownKeys(OwnKey own) {
+        return own.client.run(own.rpush) + own.client.run(own.lpop);
+    }
+}
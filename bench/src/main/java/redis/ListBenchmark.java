@@ -0,0 +1,86 @@
+package redis;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// List commands through dispatch on one list of `size` elements, so the cost of the
+// chunked encoding can be followed as lists grow: pushes and pops at the ends should not
+// depend on size, ranges in the middle only on how many chunks are skipped.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListBenchmark {
+    @Param({"16", "1024", "65536"})
+    int size;
+
+    @Param({"16"})
+    int valueSize;
+
+    private final Requests.Client client = new Requests.Client();
+    private RespCommand rpush;
+    private RespCommand lpop;
+    private RespCommand lrangeHead;
+    private RespCommand lrangeMiddle;
+    private RespCommand lrangeAll;
+    private RespCommand lindexMiddle;
+
+    @Setup
+    public void setup() {
+        String key = "list:" + size;
+        String value = Requests.value(valueSize);
+        String[] batch = new String[2 + Math.min(size, 1024)];
+        batch[0] = "RPUSH";
+        batch[1] = key;
+        Arrays.fill(batch, 2, batch.length, value);
+        for (int n = 0; n < size; n += batch.length - 2) {
+            client.run(Requests.command(Arrays.copyOf(batch, 2 + Math.min(batch.length - 2, size - n))));
+        }
+        rpush = Requests.command("RPUSH", key, value);
+        lpop = Requests.command("LPOP", key);
+        int middle = size / 2;
+        lrangeHead = Requests.command("LRANGE", key, "0", "99");
+        lrangeMiddle = Requests.command("LRANGE", key, Integer.toString(middle), Integer.toString(middle + 99));
+        lrangeAll = Requests.command("LRANGE", key, "0", "-1");
+        lindexMiddle = Requests.command("LINDEX", key, Integer.toString(middle));
+    }
+
+    // one of each, so the list keeps its size
+    @Benchmark
+    public long rpushLpop() {
+        return client.run(rpush) + client.run(lpop);
+    }
+
+    @Benchmark
+    public long lrangeHead() {
+        return client.run(lrangeHead);
+    }
+
+    @Benchmark
+    public long lrangeMiddle() {
+        return client.run(lrangeMiddle);
+    }
+
+    @Benchmark
+    public long lrangeAll() {
+        return client.run(lrangeAll);
+    }
+
+    @Benchmark
+    public long lindexMiddle() {
+        return client.run(lindexMiddle);
+    }
+}
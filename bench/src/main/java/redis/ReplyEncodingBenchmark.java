@@ -0,0 +1,74 @@
+package redis;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Reply encoding into a client's OutputBuffer, including handing the chunks back on
+// flush, for the reply shapes the hot commands produce.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplyEncodingBenchmark {
+    @Param({"16", "1024"})
+    int valueSize;
+
+    private final OutputBuffer out = new OutputBuffer(OutputStream.nullOutputStream());
+    private byte[] value;
+    private long counter;
+
+    @Setup
+    public void setup() {
+        value = Requests.value(valueSize).getBytes();
+    }
+
+    // GET
+    @Benchmark
+    public long bulk() throws IOException {
+        RespWriter.bulk(out, value);
+        return drain();
+    }
+
+    // RPUSH, INCR; past the shared small integers
+    @Benchmark
+    public long integer() throws IOException {
+        RespWriter.integer(out, 100_000 + (counter++ & 0xffff));
+        return drain();
+    }
+
+    // LRANGE key 0 99
+    @Benchmark
+    public long array100() throws IOException {
+        RespWriter.arrayHeader(out, 100);
+        for (int i = 0; i < 100; i++) {
+            RespWriter.bulk(out, value);
+        }
+        return drain();
+    }
+
+    @Benchmark
+    public long error() throws IOException {
+        RespWriter.error(out, "ERR wrong number of arguments for 'get' command");
+        return drain();
+    }
+
+    private long drain() throws IOException {
+        long size = out.size();
+        out.flush();
+        return size;
+    }
+}
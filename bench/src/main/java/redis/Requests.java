@@ -0,0 +1,57 @@
+package redis;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Shared setup for the benchmarks: requests built the way they arrive off the wire, and
+// a client whose replies go nowhere.
+final class Requests {
+    private Requests() {
+    }
+
+    static byte[] encode(String... argv) {
+        StringBuilder request = new StringBuilder().append('*').append(argv.length).append("\r\n");
+        for (String arg : argv) {
+            request.append('$').append(arg.length()).append("\r\n").append(arg).append("\r\n");
+        }
+        return request.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // A parsed request that owns its bytes, so it can be dispatched over and over.
+    static RespCommand command(String... argv) {
+        RespParser parser = new RespParser();
+        try {
+            if (!parser.parse(ByteBuffer.wrap(encode(argv)))) {
+                throw new IllegalStateException("incomplete request");
+            }
+        } catch (ProtocolException e) {
+            throw new IllegalStateException(e);
+        }
+        return parser.command().copy();
+    }
+
+    static String value(int size) {
+        return "x".repeat(size);
+    }
+
+    // A connected client as far as dispatch is concerned; replies are discarded on flush.
+    static final class Client {
+        final ClientHandler handler = new ClientHandler((Socket) null);
+        final OutputBuffer out = new OutputBuffer(OutputStream.nullOutputStream());
+
+        long run(RespCommand cmd) {
+            try {
+                handler.dispatch(cmd, out);
+                long size = out.size();
+                out.flush();
+                return size;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
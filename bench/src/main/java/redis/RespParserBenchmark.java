@@ -0,0 +1,80 @@
+package redis;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Request decoding, per command, over a read buffer holding a pipeline of them as a busy
+// client sends it. "split" feeds the same bytes in 1 KB reads, so frames straddle reads
+// and the parser resumes partial ones.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RespParserBenchmark {
+    private static final int PIPELINE = 100;
+
+    @Param({"16", "1024"})
+    int valueSize;
+
+    private final RespParser parser = new RespParser();
+    private ByteBuffer pipeline;
+    private ByteBuffer window;
+
+    @Setup
+    public void setup() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        String value = Requests.value(valueSize);
+        for (int i = 0; i < PIPELINE; i++) {
+            byte[] request = i % 2 == 0
+                    ? Requests.encode("SET", "key:" + i, value)
+                    : Requests.encode("GET", "key:" + i);
+            bytes.writeBytes(request);
+        }
+        pipeline = ByteBuffer.wrap(bytes.toByteArray());
+        window = ByteBuffer.allocate(pipeline.capacity());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE)
+    public void whole(Blackhole bh) throws ProtocolException {
+        pipeline.position(0);
+        while (parser.parse(pipeline)) {
+            bh.consume(parser.command().length(parser.command().argc() - 1));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE)
+    public void split(Blackhole bh) throws ProtocolException {
+        byte[] src = pipeline.array();
+        // write mode, as after a read
+        window.clear();
+        for (int read = 0; read < src.length; ) {
+            int n = Math.min(1024, src.length - read);
+            window.put(src, read, n);
+            read += n;
+            window.flip();
+            while (parser.parse(window)) {
+                bh.consume(parser.command().length(parser.command().argc() - 1));
+            }
+            window.compact();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package redis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The pause a background save costs writers: the first write to a shard after its
+// snapshot copies the dict's slot arrays (Dict.unshare), O(capacity) under the shard
+// lock. firstWrite pays that copy on every invocation, write is the same SET without a
+// snapshot. Run with -prof gc to see the copy's allocation too.
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SnapshotBenchmark {
+    // One shard holding `keys` keys.
+    @State(Scope.Thread)
+    public static class Loaded {
+        @Param({"1000", "100000", "1000000"})
+        int keys;
+
+        final Shard shard = new Shard(0);
+        byte[] key;
+        StringObject value;
+
+        @Setup
+        public void setup() {
+            byte[] bytes = Requests.value(16).getBytes(StandardCharsets.UTF_8);
+            shard.lock.lock();
+            try {
+                for (int i = 0; i < keys; i++) {
+                    shard.put(("key:" + i).getBytes(StandardCharsets.UTF_8), new StringObject(bytes));
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+            key = "key:0".getBytes(StandardCharsets.UTF_8);
+            value = new StringObject(bytes);
+        }
+    }
+
+    // The same shard while a save of it is running. A subclass rather than a second
+    // state: JMH hands a helper method its own instance of a state it depends on.
+    public static class Snapshotted extends Loaded {
+        @Setup(Level.Invocation)
+        public void snapshot() {
+            shard.lock.lock();
+            try {
+                shard.snapshot();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void release() {
+            shard.lock.lock();
+            try {
+                shard.releaseSnapshot();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    @Benchmark
+    public Shard firstWrite(Snapshotted snapshotted) {
+        return write(snapshotted);
+    }
+
+    @Benchmark
+    public Shard write(Loaded loaded) {
+        Shard shard = loaded.shard;
+        shard.lock.lock();
+        try {
+            shard.put(loaded.key, loaded.value);
+        } finally {
+            shard.lock.unlock();
+        }
+        return shard;
+    }
+}
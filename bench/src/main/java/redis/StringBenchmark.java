@@ -0,0 +1,77 @@
+package redis;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// GET and SET through dispatch, as a client runs them: command lookup, the shard lock,
+// the dict and the reply. Keys cycle through a pre-filled keyspace of `keys` entries.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StringBenchmark {
+    @Param({"1000", "100000"})
+    int keys;
+
+    @Param({"16", "1024"})
+    int valueSize;
+
+    // where the values' bytes live, see SlabAllocator
+    @Param({"heap", "offheap"})
+    String storage;
+
+    private final Requests.Client client = new Requests.Client();
+    private RespCommand[] gets;
+    private RespCommand[] misses;
+    private RespCommand[] sets;
+    private int next;
+
+    @Setup
+    public void setup() {
+        SlabAllocator.enabled = storage.equals("offheap");
+        String value = Requests.value(valueSize);
+        gets = new RespCommand[keys];
+        misses = new RespCommand[keys];
+        sets = new RespCommand[keys];
+        for (int i = 0; i < keys; i++) {
+            sets[i] = Requests.command("SET", "key:" + i, value);
+            gets[i] = Requests.command("GET", "key:" + i);
+            misses[i] = Requests.command("GET", "missing:" + i);
+            client.run(sets[i]);
+        }
+    }
+
+    @Benchmark
+    public long get() {
+        return client.run(gets[advance()]);
+    }
+
+    @Benchmark
+    public long getMiss() {
+        return client.run(misses[advance()]);
+    }
+
+    // overwrites, so the keyspace stays the same size
+    @Benchmark
+    public long set() {
+        return client.run(sets[advance()]);
+    }
+
+    private int advance() {
+        int i = next;
+        next = i + 1 == keys ? 0 : i + 1;
+        return i;
+    }
+}
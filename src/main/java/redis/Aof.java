@@ -0,0 +1,482 @@
+package redis;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Append-only file: the propagated commands (see Propagation), replayed at startup.
+// Appending only copies the command into a shared buffer. A single writer thread drains
+// it: whatever every connection appended while one write+fsync was under way goes out
+// in the next one (group commit). With appendfsync always, replies to writes are held
+// back until that fsync (see Connection).
+// BGREWRITEAOF bounds the file. The dataset is snapshotted as for BGSAVE and written as
+// an RDB preamble; what was logged since the snapshot is then copied from the live file
+// behind it, and the writer thread swaps the files between two batches.
+final class Aof {
+    enum Fsync {
+        ALWAYS("always"),
+        EVERYSEC("everysec"),
+        NO("no");
+
+        final String configName;
+
+        Fsync(String configName) {
+            this.configName = configName;
+        }
+
+        static Fsync parse(String name) {
+            for (Fsync fsync : values()) {
+                if (fsync.configName.equalsIgnoreCase(name)) {
+                    return fsync;
+                }
+            }
+            throw new IllegalArgumentException("unknown appendfsync " + name);
+        }
+    }
+
+    static volatile boolean enabled;
+    static volatile String filename = "appendonly.aof";
+    static volatile Fsync fsync = Fsync.EVERYSEC;
+    // rewrite once the file has grown this much past its size after the last rewrite
+    static volatile int autoRewritePercentage = 100;
+    static volatile long autoRewriteMinSize = 64L * 1024 * 1024;
+
+    private static final int INITIAL_BUFFER = 64 * 1024;
+    private static final long FSYNC_INTERVAL_MS = 1000;
+    // a rewrite hands the rest of the catching up to the writer once this little is left
+    private static final long CATCH_UP_BYTES = 1024 * 1024;
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    // A finished rewrite waiting for the writer to append the last of the live file and
+    // take the new file over.
+    private static final class Rewrite {
+        final FileChannel channel;
+        final Path temp;
+        // logical offset up to which the live file has been copied
+        final long copied;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Rewrite(FileChannel channel, Path temp, long copied) {
+            this.channel = channel;
+            this.temp = temp;
+            this.copied = copied;
+        }
+    }
+
+    // set once the file is open; until then (and while replaying) nothing is fed
+    private static volatile boolean active;
+
+    // Guards the fields up to `pendingRewrite`. Offsets are logical: bytes fed since
+    // startup, independent of which file they ended up in. A ReentrantLock rather than a
+    // monitor, so virtual client threads queueing on it do not pin their carriers.
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Condition writerWakeup = lock.newCondition();
+    private static byte[] buffer = new byte[INITIAL_BUFFER];
+    private static int buffered;
+    private static byte[] spare = new byte[INITIAL_BUFFER];
+    private static long appended;
+    // completed by the fsync covering `buffer`, created when somebody waits for it
+    private static CompletableFuture<Void> nextSync;
+    // completed by the fsync of the batch being written
+    private static CompletableFuture<Void> inFlight;
+    private static boolean writerIdle;
+    private static Rewrite pendingRewrite;
+
+    // Writer thread state. channel and fileDelta only change when a rewrite completes,
+    // the rewrite thread reads them while catching up.
+    private static volatile long written;
+    private static volatile FileChannel channel;
+    // file position minus logical offset for the current file
+    private static volatile long fileDelta;
+    private static boolean unsynced;
+    private static long lastFsync;
+    private static volatile long rewriteBaseSize;
+    // whether the last rewrite went through, for INFO
+    static volatile boolean lastRewriteOk = true;
+
+    private Aof() {
+    }
+
+    static Path file() {
+        return Paths.get(Rdb.dir, filename);
+    }
+
+    static boolean syncsAlways() {
+        return active && fsync == Fsync.ALWAYS;
+    }
+
+    // The file's size as the writer has it, and as of the last rewrite.
+    static long currentSize() {
+        return written + fileDelta;
+    }
+
+    static long baseSize() {
+        return rewriteBaseSize;
+    }
+
+    static boolean isActive() {
+        return active;
+    }
+
+    static void append(byte[] src, int length) {
+        if (!active) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (buffered + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, buffered + length));
+            }
+            System.arraycopy(src, 0, buffer, buffered, length);
+            buffered += length;
+            appended += length;
+            if (writerIdle) {
+                writerWakeup.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Completes once everything appended so far is on disk.
+    static CompletableFuture<Void> durable() {
+        lock.lock();
+        try {
+            if (buffered > 0) {
+                if (nextSync == null) {
+                    nextSync = new CompletableFuture<>();
+                }
+                return nextSync;
+            }
+            return inFlight != null ? inFlight : DONE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // --- startup
+
+    // Replays the file, after its RDB preamble if it has one. -1 when there is no file
+    // yet, otherwise the number of keys loaded.
+    static long load() throws IOException {
+        Path path = file();
+        if (!Files.exists(path)) {
+            return -1;
+        }
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer magic = ByteBuffer.allocate(5);
+            in.read(magic, 0);
+            if (Arrays.equals(magic.array(), ascii("REDIS"))) {
+                RdbLoader.load(in);
+            }
+            replay(in);
+        }
+        return Keyspace.keyCount();
+    }
+
+    // Opens the file for appending and starts the writer. Must run after loading.
+    static void start() throws IOException {
+        // readable too: a rewrite copies its tail out of it
+        channel = FileChannel.open(file(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        fileDelta = channel.size();
+        rewriteBaseSize = channel.size();
+        lastFsync = System.currentTimeMillis();
+        active = true;
+        Thread thread = new Thread(Aof::runWriter, "aof-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Runs the logged commands through a client of its own. A torn last command, left by
+    // a crash in the middle of a write, is cut off as Redis' aof-load-truncated does, and
+    // so is a MULTI whose EXEC never made it.
+    private static void replay(FileChannel in) throws IOException {
+        ClientHandler client = ClientHandler.forReplay();
+        OutputBuffer replies = new OutputBuffer(OutputStream.nullOutputStream());
+        RespParser parser = new RespParser();
+        ByteBuffer buf = ByteBuffer.allocate(INITIAL_BUFFER);
+        long end = in.position();
+        // where the last command outside a MULTI ... EXEC block ends
+        long complete = end;
+        while (true) {
+            if (!buf.hasRemaining()) {
+                buf = ClientHandler.grow(buf, parser.frameBytesNeeded());
+            }
+            int n = in.read(buf);
+            if (n < 0) {
+                break;
+            }
+            end += n;
+            buf.flip();
+            try {
+                while (parser.parse(buf)) {
+                    client.dispatch(parser.command(), replies);
+                    replies.flush();
+                    if (!client.inTransaction()) {
+                        complete = end - buf.remaining();
+                    }
+                }
+            } catch (ProtocolException e) {
+                throw new IOException("Bad file format reading the append only file: " + e.getMessage());
+            }
+            buf.compact();
+        }
+        if (client.inTransaction()) {
+            Log.warning("AOF ends inside a MULTI/EXEC block, truncating the last " + (end - complete) + " bytes");
+            in.truncate(complete);
+        } else if (buf.position() > 0) {
+            Log.warning("AOF ends with an incomplete command, truncating the last " + buf.position() + " bytes");
+            in.truncate(end - buf.position());
+        }
+    }
+
+    // --- rewriting
+
+    // BGREWRITEAOF. null when started, otherwise why it could not.
+    static String rewrite() {
+        if (!active) {
+            return "ERR append only file is disabled";
+        }
+        String busy = Keyspace.claimSnapshot("aof rewrite");
+        if (busy != null) {
+            return busy.equals("aof rewrite") ? "ERR Background append only file rewriting already in progress"
+                    : "ERR Background save in progress, try BGREWRITEAOF again later";
+        }
+        long[] base = new long[1];
+        Dict.Snapshot[] snapshots = Keyspace.snapshot(() -> {
+            lock.lock();
+            try {
+                base[0] = appended;
+            } finally {
+                lock.unlock();
+            }
+        });
+        Thread thread = new Thread(() -> runRewrite(snapshots, base[0]), "aof-rewrite");
+        thread.start();
+        return null;
+    }
+
+    private static void runRewrite(Dict.Snapshot[] snapshots, long base) {
+        Path temp = file().resolveSibling("temp-rewriteaof-" + ProcessHandle.current().pid() + ".aof");
+        FileChannel out = null;
+        try {
+            out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Rdb.write(out, snapshots);
+            // clients kept writing meanwhile; most of that is copied here, off the writer
+            long copied = base;
+            while (written - copied > CATCH_UP_BYTES) {
+                long upTo = written;
+                copy(copied, upTo, out);
+                copied = upTo;
+            }
+            Rewrite rewrite = new Rewrite(out, temp, copied);
+            lock.lock();
+            try {
+                pendingRewrite = rewrite;
+                writerWakeup.signal();
+            } finally {
+                lock.unlock();
+            }
+            rewrite.done.join();
+            lastRewriteOk = true;
+            Log.notice("Background AOF rewrite finished successfully");
+        } catch (Exception e) {
+            lastRewriteOk = false;
+            Log.warning("Background AOF rewrite error: " + e.getMessage());
+            try {
+                if (out != null) {
+                    out.close();
+                }
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {}
+        } finally {
+            Keyspace.unclaimSnapshot();
+        }
+    }
+
+    // Appends the logical range [from, to) of the live file to out.
+    private static void copy(long from, long to, FileChannel out) throws IOException {
+        FileChannel live = channel;
+        long position = from + fileDelta;
+        long end = to + fileDelta;
+        while (position < end) {
+            position += live.transferTo(position, end - position, out);
+        }
+    }
+
+    // Writer thread: the tail of the live file joins the new one, which replaces it.
+    private static void finishRewrite(Rewrite rewrite) {
+        try {
+            copy(rewrite.copied, written, rewrite.channel);
+            // an unforced file must not replace the live one, which holds everything the
+            // fsyncs so far vouched for; the rewrite fails and the live file stays
+            if (!force(rewrite.channel, "the rewritten AOF")) {
+                throw new IOException("fsync of the rewritten AOF failed");
+            }
+            Files.move(rewrite.temp, file(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            rewrite.done.completeExceptionally(e);
+            return;
+        }
+        FileChannel old = channel;
+        try {
+            fileDelta = rewrite.channel.position() - written;
+            rewriteBaseSize = rewrite.channel.position();
+            channel = rewrite.channel;
+            old.close();
+        } catch (IOException ignored) {
+            // the old file is gone either way
+        }
+        rewrite.done.complete(null);
+    }
+
+    // --- writer
+
+    private static void runWriter() {
+        while (true) {
+            byte[] batch;
+            int length;
+            CompletableFuture<Void> sync;
+            Rewrite rewrite;
+            lock.lock();
+            try {
+                try {
+                    while (buffered == 0 && pendingRewrite == null && !fsyncDue()) {
+                        writerIdle = true;
+                        if (unsynced) {
+                            writerWakeup.await(Math.max(1, lastFsync + FSYNC_INTERVAL_MS - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                        } else {
+                            writerWakeup.await();
+                        }
+                        writerIdle = false;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                batch = buffer;
+                length = buffered;
+                buffer = spare;
+                spare = batch;
+                buffered = 0;
+                sync = nextSync != null ? nextSync : length > 0 ? new CompletableFuture<>() : null;
+                nextSync = null;
+                inFlight = sync;
+                rewrite = pendingRewrite;
+                pendingRewrite = null;
+            } finally {
+                lock.unlock();
+            }
+            if (length > 0) {
+                long started = System.nanoTime();
+                writeFully(batch, length);
+                LatencyMonitor.sample("aof-write", (System.nanoTime() - started) / 1_000_000);
+                written += length;
+                unsynced = true;
+            }
+            if (unsynced && (fsync == Fsync.ALWAYS || fsyncDue()) && !fsync() && fsync == Fsync.ALWAYS) {
+                // As Redis does: the replies waiting on this fsync must never go out, and
+                // retrying would leave them hanging with the data's fate unknown.
+                Log.warning("Can't persist AOF for fsync error when the AOF fsync policy is 'always'. Exiting...");
+                if (sync != null) {
+                    sync.completeExceptionally(new IOException("AOF fsync failed"));
+                }
+                System.exit(1);
+            }
+            lock.lock();
+            try {
+                inFlight = null;
+                if (spare.length > 16 * INITIAL_BUFFER) {
+                    // let a burst's buffer go
+                    spare = new byte[INITIAL_BUFFER];
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (sync != null) {
+                sync.complete(null);
+            }
+            if (rewrite != null) {
+                finishRewrite(rewrite);
+            }
+            maybeRewrite();
+        }
+    }
+
+    private static boolean fsyncDue() {
+        return unsynced && fsync == Fsync.EVERYSEC && System.currentTimeMillis() - lastFsync >= FSYNC_INTERVAL_MS;
+    }
+
+    // A failed write is retried until it goes through; meanwhile appends keep buffering,
+    // and with appendfsync always the clients keep waiting.
+    private static void writeFully(byte[] batch, int length) {
+        ByteBuffer src = ByteBuffer.wrap(batch, 0, length);
+        while (src.hasRemaining()) {
+            try {
+                channel.write(src);
+            } catch (IOException e) {
+                Log.warning("Error writing to the AOF, retrying: " + e.getMessage());
+                sleepQuietly(FSYNC_INTERVAL_MS);
+            }
+        }
+    }
+
+    // False when the fsync failed; the data stays unsynced and everysec tries again on
+    // its next round.
+    private static boolean fsync() {
+        long started = System.nanoTime();
+        boolean synced = force(channel, "the AOF");
+        if (synced) {
+            unsynced = false;
+        }
+        LatencyMonitor.sample("aof-fsync", (System.nanoTime() - started) / 1_000_000);
+        lastFsync = System.currentTimeMillis();
+        return synced;
+    }
+
+    private static boolean force(FileChannel target, String what) {
+        try {
+            target.force(false);
+            return true;
+        } catch (IOException e) {
+            Log.warning("Error syncing " + what + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void maybeRewrite() {
+        long size = written + fileDelta;
+        if (autoRewritePercentage > 0 && size >= autoRewriteMinSize
+                && size - rewriteBaseSize >= rewriteBaseSize * autoRewritePercentage / 100) {
+            if (rewrite() == null) {
+                Log.notice("Starting automatic rewriting of AOF on " + (size - rewriteBaseSize) * 100 / Math.max(1, rewriteBaseSize) + "% growth");
+            }
+        }
+    }
+
+    private static void sleepQuietly(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
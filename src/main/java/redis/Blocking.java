@@ -0,0 +1,437 @@
+package redis;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Blocking list commands (BLPOP, BRPOP, BLMOVE) and stream reads (XREAD, XREADGROUP
+// with BLOCK) without a thread per blocked client. A blocked command is a Waiter
+// registered in the blockedClients of every key it waits on. Pushes and XADDs hand
+// elements straight to the waiters of their key, oldest first, and one shared timing
+// wheel times out the rest; the waiting client just stops reading input until its reply
+// is ready.
+final class Blocking {
+    private static final long TIMER_TICK_MS = 10;
+
+    // One blocked command. It stays registered until exactly one party claims it: a push
+    // serving it, the timer, or the client disconnecting.
+    static final class Waiter {
+        final byte[][] keys;
+        final boolean popLeft;
+        // BLMOVE only: where the popped element goes
+        final byte[] destination;
+        final boolean pushLeft;
+        // XREAD/XREADGROUP only: what to read once entries arrive
+        final StreamRead stream;
+        // completed with the reply once claimed
+        final CompletableFuture<Consumer<OutputBuffer>> result = new CompletableFuture<>();
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        // its entry in `timeouts`, guarded by timeoutsLock
+        private TimingWheel.Entry<Waiter> timeout;
+
+        Waiter(byte[][] keys, boolean popLeft, byte[] destination, boolean pushLeft) {
+            this.keys = keys;
+            this.popLeft = popLeft;
+            this.destination = destination;
+            this.pushLeft = pushLeft;
+            this.stream = null;
+        }
+
+        Waiter(byte[][] keys, StreamRead stream) {
+            this.keys = keys;
+            this.popLeft = false;
+            this.destination = null;
+            this.pushLeft = false;
+            this.stream = stream;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        // What it replies when it times out: a null bulk for BLMOVE, as Redis, and a null
+        // array for BLPOP/BRPOP and XREAD.
+        byte[] timeoutReply() {
+            return destination != null ? RespWriter.NULL_BULK : RespWriter.NULL_ARRAY;
+        }
+
+        boolean isClaimed() {
+            return claimed.get();
+        }
+
+        void reply(Consumer<OutputBuffer> reply) {
+            result.complete(reply);
+        }
+
+        void replyServed(byte[] key, byte[] element) {
+            if (destination != null) {
+                reply(out -> RespWriter.bulk(out, element));
+            } else {
+                reply(out -> {
+                    RespWriter.arrayHeader(out, 2);
+                    RespWriter.bulk(out, key);
+                    RespWriter.bulk(out, element);
+                });
+            }
+        }
+    }
+
+    // A blocked stream read: entries after `after[i]` of keys[i], or with a group the
+    // entries new to it, at most count of them unless count is 0.
+    static final class StreamRead {
+        final StreamId[] after;
+        final long count;
+        // XREADGROUP only
+        final byte[] group;
+        final byte[] consumer;
+        final boolean noack;
+
+        StreamRead(StreamId[] after, long count, byte[] group, byte[] consumer, boolean noack) {
+            this.after = after;
+            this.count = count;
+            this.group = group;
+            this.consumer = consumer;
+            this.noack = noack;
+        }
+    }
+
+    // An element handed to a waiter under the shard lock, replied to after unlocking; a
+    // served stream read has its reply ready instead.
+    static final class Delivery {
+        final Waiter waiter;
+        final byte[] key;
+        final byte[] element;
+        final Consumer<OutputBuffer> reply;
+
+        Delivery(Waiter waiter, byte[] key, byte[] element) {
+            this.waiter = waiter;
+            this.key = key;
+            this.element = element;
+            this.reply = null;
+        }
+
+        Delivery(Waiter waiter, Consumer<OutputBuffer> reply) {
+            this.waiter = waiter;
+            this.key = null;
+            this.element = null;
+            this.reply = reply;
+        }
+    }
+
+    // Deadlines of waiters with a timeout. A waiter served or cancelled early has its entry
+    // taken out, so the timer thread goes back to sleep once no timeout is pending.
+    private static final TimingWheel<Waiter> timeouts = new TimingWheel<>(TIMER_TICK_MS, System.currentTimeMillis());
+    private static final ReentrantLock timeoutsLock = new ReentrantLock();
+    private static final Condition timeoutsAdded = timeoutsLock.newCondition();
+
+    // Deliveries this thread holds back, see holdDeliveries().
+    private static final ThreadLocal<List<Delivery>> held = new ThreadLocal<>();
+
+    private Blocking() {
+    }
+
+    // An EXEC keeps its shard locks from one command to the next, so until
+    // releaseDeliveries() the deliver() calls of its commands only collect, and it
+    // delivers the lot once unlocked.
+    static void holdDeliveries() {
+        held.set(new ArrayList<>());
+    }
+
+    static List<Delivery> releaseDeliveries() {
+        List<Delivery> deliveries = held.get();
+        held.remove();
+        return deliveries;
+    }
+
+    static void startTimer() {
+        Thread thread = new Thread(Blocking::runTimer, "blocking-timeouts");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Registers waiter on key, whose list the caller just found empty under the shard lock.
+    static void block(Shard shard, byte[] key, Waiter waiter) {
+        // a waiter served through an earlier key is not registered any further
+        if (!waiter.isClaimed()) {
+            shard.blockedClients.computeIfAbsent(ByteBuffer.wrap(key), k -> new LinkedHashSet<>()).add(waiter);
+        }
+    }
+
+    static void scheduleTimeout(Waiter waiter, long deadline) {
+        timeoutsLock.lock();
+        try {
+            // served before it got here: deliver() had no entry to take out, so add none
+            if (waiter.isClaimed()) {
+                return;
+            }
+            waiter.timeout = timeouts.add(deadline, waiter);
+            timeoutsAdded.signal();
+        } finally {
+            timeoutsLock.unlock();
+        }
+    }
+
+    // Takes a claimed waiter's deadline off the timer wheel.
+    private static void cancelTimeout(Waiter waiter) {
+        timeoutsLock.lock();
+        try {
+            if (waiter.timeout != null) {
+                timeouts.cancel(waiter.timeout);
+                waiter.timeout = null;
+            }
+        } finally {
+            timeoutsLock.unlock();
+        }
+    }
+
+    // The client went away while blocked.
+    static void cancel(Waiter waiter) {
+        if (waiter.claim()) {
+            cancelTimeout(waiter);
+            unblock(waiter);
+            // nothing will complete it now; this settles blocked_clients
+            waiter.result.cancel(false);
+        }
+    }
+
+    // Removes a claimed waiter from the keys it is still registered on. Takes the shard
+    // locks one at a time, so it must be called without holding any.
+    static void unblock(Waiter waiter) {
+        for (byte[] key : waiter.keys) {
+            Shard shard = Keyspace.shard(key);
+            ByteBuffer name = ByteBuffer.wrap(key);
+            shard.lock.lock();
+            try {
+                LinkedHashSet<Waiter> waiters = shard.blockedClients.get(name);
+                if (waiters != null && waiters.remove(waiter) && waiters.isEmpty()) {
+                    shard.blockedClients.remove(name);
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    // Hands elements of the list stored at key to the clients blocked on it, oldest first,
+    // for as long as both last. Requires the shard lock. Served waiters are added to
+    // deliveries (allocated on demand) for deliver() once the lock is released.
+    static List<Delivery> serve(Shard shard, byte[] key, ListObject list, List<Delivery> deliveries) {
+        if (shard.blockedClients.isEmpty()) {
+            return deliveries;
+        }
+        ByteBuffer name = ByteBuffer.wrap(key);
+        LinkedHashSet<Waiter> waiters = shard.blockedClients.get(name);
+        if (waiters == null) {
+            return deliveries;
+        }
+        Iterator<Waiter> it = waiters.iterator();
+        while (it.hasNext() && !list.isEmpty()) {
+            Waiter waiter = it.next();
+            if (waiter.stream != null) {
+                // an XREAD from before the key was created; it waits for a stream
+                continue;
+            }
+            it.remove();
+            if (!waiter.claim()) {
+                // timed out or disconnected meanwhile
+                continue;
+            }
+            byte[] element = waiter.popLeft ? list.pollFirst() : list.pollLast();
+            // the waiter's pop is logged here, the BLMOVE push where it happens
+            Propagation.feed(waiter.popLeft ? Propagation.LPOP : Propagation.RPOP, key);
+            if (deliveries == null) {
+                deliveries = new ArrayList<>();
+            }
+            deliveries.add(new Delivery(waiter, key, element));
+        }
+        if (waiters.isEmpty()) {
+            shard.blockedClients.remove(name);
+        }
+        if (list.isEmpty()) {
+            shard.delete(key);
+        }
+        return deliveries;
+    }
+
+    // Serves the stream reads blocked on key, which just got entries appended, with
+    // whatever is new to each. Requires the shard lock, like serve() for lists; a group
+    // read takes its entries into the group's pending list right here.
+    static List<Delivery> serve(Shard shard, byte[] key, StreamObject stream, List<Delivery> deliveries) {
+        if (shard.blockedClients.isEmpty()) {
+            return deliveries;
+        }
+        ByteBuffer name = ByteBuffer.wrap(key);
+        LinkedHashSet<Waiter> waiters = shard.blockedClients.get(name);
+        if (waiters == null) {
+            return deliveries;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<Waiter> it = waiters.iterator();
+        while (it.hasNext()) {
+            Waiter waiter = it.next();
+            StreamRead read = waiter.stream;
+            if (read == null) {
+                continue;
+            }
+            StreamObject.Group group = null;
+            StreamId after;
+            if (read.group != null) {
+                group = stream.group(read.group);
+                after = group == null ? null : group.lastDelivered;
+            } else {
+                after = read.after[indexOf(waiter.keys, key)];
+            }
+            // nothing new for this one yet; a dropped group is reported below
+            if (after != null && stream.lastId().compareTo(after) <= 0) {
+                continue;
+            }
+            it.remove();
+            if (!waiter.claim()) {
+                continue;
+            }
+            Consumer<OutputBuffer> reply;
+            if (read.group != null && group == null) {
+                String error = "NOGROUP the consumer group this client was blocked on no longer exists";
+                reply = out -> RespWriter.error(out, error);
+            } else {
+                List<StreamObject.Entry> entries;
+                if (group != null) {
+                    entries = stream.readGroup(key, group, read.consumer, read.count, read.noack, now);
+                } else {
+                    entries = stream.range(after.next(), StreamId.MAX, read.count);
+                }
+                reply = out -> {
+                    RespWriter.arrayHeader(out, 1);
+                    RespWriter.arrayHeader(out, 2);
+                    RespWriter.bulk(out, key);
+                    RespWriter.streamEntries(out, entries);
+                };
+            }
+            if (deliveries == null) {
+                deliveries = new ArrayList<>();
+            }
+            deliveries.add(new Delivery(waiter, reply));
+        }
+        if (waiters.isEmpty()) {
+            shard.blockedClients.remove(name);
+        }
+        return deliveries;
+    }
+
+    private static int indexOf(byte[][] keys, byte[] key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (Arrays.equals(keys[i], key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Replies to served waiters. Must run without any shard lock held: a BLMOVE still has
+    // to put its element into the destination, which can serve more waiters in turn.
+    static void deliver(List<Delivery> deliveries) {
+        if (deliveries == null) {
+            return;
+        }
+        List<Delivery> holding = held.get();
+        if (holding != null) {
+            holding.addAll(deliveries);
+            return;
+        }
+        // the list grows while we walk it
+        for (int i = 0; i < deliveries.size(); i++) {
+            Delivery delivery = deliveries.get(i);
+            Waiter waiter = delivery.waiter;
+            cancelTimeout(waiter);
+            if (waiter.keys.length > 1) {
+                unblock(waiter);
+            }
+            if (delivery.reply != null) {
+                waiter.reply(delivery.reply);
+                continue;
+            }
+            if (waiter.destination != null && !moveToDestination(delivery, deliveries)) {
+                waiter.reply(out -> out.write(RespWriter.ERR_WRONGTYPE));
+                continue;
+            }
+            waiter.replyServed(delivery.key, delivery.element);
+        }
+    }
+
+    // Second half of a BLMOVE served by a push: the element left the source under the
+    // source lock and now enters the destination. Should the destination meanwhile hold
+    // another type, the element goes back where it came from and false is returned.
+    private static boolean moveToDestination(Delivery delivery, List<Delivery> deliveries) {
+        Waiter waiter = delivery.waiter;
+        if (push(waiter.destination, delivery.element, waiter.pushLeft, deliveries)) {
+            return true;
+        }
+        push(delivery.key, delivery.element, waiter.popLeft, deliveries);
+        return false;
+    }
+
+    private static boolean push(byte[] key, byte[] element, boolean left, List<Delivery> deliveries) {
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            ListObject list = shard.listForWrite(key, System.currentTimeMillis());
+            if (list == null) {
+                return false;
+            }
+            if (left) {
+                list.addFirst(element);
+            } else {
+                list.addLast(element);
+            }
+            Propagation.feed(left ? Propagation.LPUSH : Propagation.RPUSH, key, element);
+            serve(shard, key, list, deliveries);
+            return true;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    private static void runTimer() {
+        List<Waiter> expired = new ArrayList<>();
+        while (true) {
+            try {
+                timeoutsLock.lock();
+                try {
+                    while (timeouts.size() == 0) {
+                        timeoutsAdded.await();
+                    }
+                } finally {
+                    timeoutsLock.unlock();
+                }
+                Thread.sleep(TIMER_TICK_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            timeoutsLock.lock();
+            try {
+                timeouts.advance(System.currentTimeMillis(), Integer.MAX_VALUE, waiter -> {
+                    waiter.timeout = null;
+                    expired.add(waiter);
+                });
+            } finally {
+                timeoutsLock.unlock();
+            }
+            for (Waiter waiter : expired) {
+                if (waiter.claim()) {
+                    unblock(waiter);
+                    byte[] reply = waiter.timeoutReply();
+                    waiter.reply(out -> out.write(reply));
+                }
+            }
+            expired.clear();
+        }
+    }
+}
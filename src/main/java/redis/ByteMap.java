@@ -0,0 +1,201 @@
+package redis;
+
+import java.util.Arrays;
+
+// The hash table of large hashes, sets and sorted sets: byte[] keys with an optional
+// byte[] value (hashes) or double score (sorted sets) each, in parallel arrays with
+// linear probing. Deletion shifts the rest of a probe chain back instead of leaving a
+// tombstone, so a table that churns never fills up with dead slots. An entry costs its
+// key and a slot in each array, against a HashMap's node, wrapper key and boxed score.
+// Slots are exposed so callers can iterate (keyAt is null for an empty slot) and update
+// in place; any add or remove may move entries around.
+// Not thread-safe, the shard lock guards it.
+final class ByteMap {
+    private static final int MIN_CAPACITY = 16;
+
+    private byte[][] keys;
+    private int[] hashes;
+    private byte[][] values;
+    private double[] scores;
+    private int size;
+    private int mask;
+    // key and value bytes, with their array headers
+    private long payload;
+
+    ByteMap(boolean withValues, boolean withScores, int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expected) {
+            capacity <<= 1;
+        }
+        allocate(capacity, withValues, withScores);
+    }
+
+    private ByteMap(ByteMap from) {
+        keys = from.keys.clone();
+        hashes = from.hashes.clone();
+        values = from.values == null ? null : from.values.clone();
+        scores = from.scores == null ? null : from.scores.clone();
+        size = from.size;
+        mask = from.mask;
+        payload = from.payload;
+    }
+
+    // Copies the table, not the keys and values, which are never modified in place.
+    ByteMap copy() {
+        return new ByteMap(this);
+    }
+
+    private void allocate(int capacity, boolean withValues, boolean withScores) {
+        keys = new byte[capacity][];
+        hashes = new int[capacity];
+        values = withValues ? new byte[capacity][] : null;
+        scores = withScores ? new double[capacity] : null;
+        mask = capacity - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return keys.length;
+    }
+
+    byte[] keyAt(int slot) {
+        return keys[slot];
+    }
+
+    byte[] valueAt(int slot) {
+        return values[slot];
+    }
+
+    double scoreAt(int slot) {
+        return scores[slot];
+    }
+
+    void setValue(int slot, byte[] value) {
+        payload += value.length - values[slot].length;
+        values[slot] = value;
+    }
+
+    void setScore(int slot, double score) {
+        scores[slot] = score;
+    }
+
+    // The slot holding key, -1 when absent.
+    int slot(byte[] key) {
+        int h = Dict.hash(key);
+        for (int i = h & mask; keys[i] != null; i = (i + 1) & mask) {
+            if (hashes[i] == h && Arrays.equals(keys[i], key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Adds a key that is not in the table yet and returns its slot, where the caller
+    // puts the value or score.
+    int add(byte[] key) {
+        if (size + 1 > keys.length * 3 / 4) {
+            resize(keys.length * 2);
+        }
+        int h = Dict.hash(key);
+        int i = h & mask;
+        while (keys[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        hashes[i] = h;
+        size++;
+        payload += 16 + key.length;
+        return i;
+    }
+
+    // Adds a key with its value, or replaces the value. Whether the key is new.
+    boolean put(byte[] key, byte[] value) {
+        int slot = slot(key);
+        if (slot >= 0) {
+            setValue(slot, value);
+            return false;
+        }
+        slot = add(key);
+        values[slot] = value;
+        payload += 16 + value.length;
+        return true;
+    }
+
+    boolean remove(byte[] key) {
+        int slot = slot(key);
+        if (slot < 0) {
+            return false;
+        }
+        removeAt(slot);
+        return true;
+    }
+
+    void removeAt(int slot) {
+        payload -= 16 + keys[slot].length;
+        if (values != null) {
+            payload -= 16 + values[slot].length;
+        }
+        size--;
+        // pull later members of the probe chain back over the hole, unless that would
+        // move one in front of its home slot
+        int hole = slot;
+        for (int i = (slot + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+            int home = hashes[i] & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                move(i, hole);
+                hole = i;
+            }
+        }
+        keys[hole] = null;
+        if (values != null) {
+            values[hole] = null;
+        }
+        if (keys.length > MIN_CAPACITY && size < keys.length / 8) {
+            resize(keys.length / 2);
+        }
+    }
+
+    private void move(int from, int to) {
+        keys[to] = keys[from];
+        hashes[to] = hashes[from];
+        if (values != null) {
+            values[to] = values[from];
+        }
+        if (scores != null) {
+            scores[to] = scores[from];
+        }
+    }
+
+    private void resize(int capacity) {
+        byte[][] oldKeys = keys;
+        int[] oldHashes = hashes;
+        byte[][] oldValues = values;
+        double[] oldScores = scores;
+        allocate(capacity, oldValues != null, oldScores != null);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == null) {
+                continue;
+            }
+            int i = oldHashes[j] & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            hashes[i] = oldHashes[j];
+            if (values != null) {
+                values[i] = oldValues[j];
+            }
+            if (scores != null) {
+                scores[i] = oldScores[j];
+            }
+        }
+    }
+
+    long footprint() {
+        long slot = 8 + 4 + (values != null ? 8 : 0) + (scores != null ? 8 : 0);
+        return 40 + 4 * 16 + keys.length * slot + payload;
+    }
+}
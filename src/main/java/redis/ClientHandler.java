@@ -0,0 +1,4044 @@
+package redis;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+class ClientHandler implements Runnable {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private Socket socket;
+    // Set when this handler serves a Connection of the NIO server instead of owning a thread.
+    private Connection connection;
+    
+    public ClientHandler(Socket socket) {
+        this.socket = socket;
+    }
+
+    ClientHandler(Connection connection) {
+        this.connection = connection;
+    }
+
+    // The client AOF commands are replayed through at startup.
+    static ClientHandler forReplay() {
+        ClientHandler client = new ClientHandler((Socket) null);
+        client.replaying = true;
+        return client;
+    }
+
+    // Applies writes already accepted elsewhere: the AOF at startup, or on a replica its
+    // leader's stream. Exempt from maxmemory and from the replica's read-only rule.
+    private boolean replaying;
+    // Cluster mode: ASKING was sent, the next command may use a slot being imported.
+    private boolean asking;
+    // MULTI: the commands queued for EXEC, null outside a transaction, and whether one
+    // of them was refused, which makes EXEC discard them all.
+    private List<RespCommand> queued;
+    private boolean queueRejected;
+    // Set while EXEC runs them; blocking commands then reply at once, as if timed out.
+    private boolean executing;
+    // WATCH: the watched keys and their versions at the time.
+    private final List<Watch> watching = new ArrayList<>();
+    // Set once this client turned out to be a replica (PSYNC).
+    private Replication.Replica replica;
+    private int replicaListeningPort;
+    // A write command ran since the replies were last flushed; with appendfsync always
+    // they wait for the AOF first.
+    boolean wroteSinceFlush;
+
+    // The blocked command of a suspended NIO connection, dropped on disconnect.
+    private volatile Blocking.Waiter blocked;
+    // Thread-per-connection: how long the current command sat blocked.
+    private long waitedNanos;
+    // since when the unsent output has been over the soft limit, -1 while it is not
+    private long overSoftLimitSince = -1;
+    // Pub/Sub: the channels and patterns this client subscribed to, and how many in all,
+    // which the loop thread reads for the output limit.
+    private final Set<ByteBuffer> subscribedChannels = new LinkedHashSet<>();
+    private final Set<ByteBuffer> subscribedPatterns = new LinkedHashSet<>();
+    private volatile int subscriptions;
+    // Thread-per-connection: the client's output, which a publisher's thread writes
+    // messages to, holding outputLock as the client's own thread does while it answers.
+    // Messages that find the lock taken are queued in `pushed` for whoever holds it.
+    private OutputBuffer threadOutput;
+    private final ReentrantLock outputLock = new ReentrantLock();
+    private final Queue<byte[]> pushed = new ConcurrentLinkedQueue<>();
+
+    private static final class Watch {
+        final Shard shard;
+        final byte[] key;
+        final Shard.Watched watched;
+        final long version;
+
+        Watch(Shard shard, byte[] key, Shard.Watched watched) {
+            this.shard = shard;
+            this.key = key;
+            this.watched = watched;
+            this.version = watched.version;
+        }
+    }
+
+    // Whether a MULTI is waiting for its EXEC, which a log replay must not end in.
+    boolean inTransaction() {
+        return queued != null;
+    }
+
+    void connectionClosed() {
+        Stats.clientDisconnected();
+        unwatchAll();
+        if (replica != null) {
+            Replication.detach(replica);
+        }
+        Blocking.Waiter waiter = blocked;
+        if (waiter != null) {
+            Blocking.cancel(waiter);
+            blocked = null;
+        }
+        for (ByteBuffer channel : subscribedChannels) {
+            PubSub.unsubscribe(channel.array(), this);
+        }
+        for (ByteBuffer pattern : subscribedPatterns) {
+            PubSub.punsubscribe(pattern.array(), this);
+        }
+    }
+
+    // A message published to one of our channels or patterns, from the publisher's
+    // thread. Shared with the other subscribers, see PubSub.
+    void push(byte[] message) {
+        if (connection != null) {
+            connection.push(message);
+            return;
+        }
+        // Never waits for the lock: the publisher may be an EXEC holding shard locks,
+        // and our own thread may hold outputLock while it waits for one of them.
+        pushed.add(message);
+        drainPushed();
+    }
+
+    // Writes the queued messages, unless outputLock is taken: its holder calls this
+    // again once it lets go.
+    private void drainPushed() {
+        while (!pushed.isEmpty() && outputLock.tryLock()) {
+            try {
+                byte[] message;
+                while ((message = pushed.poll()) != null) {
+                    threadOutput.writeShared(message);
+                }
+                threadOutput.flush();
+            } catch (IOException e) {
+                // our own thread finds out about the socket soon enough
+            } finally {
+                outputLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        Stats.clientConnected();
+        try (
+            InputStream inputStream = socket.getInputStream();
+            OutputStream socketOutput = socket.getOutputStream();
+        ) {
+            // counted here rather than in OutputBuffer, whose sink is not always a client
+            OutputBuffer outputStream = new OutputBuffer(new FilterOutputStream(socketOutput) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    Stats.netOutputBytes.add(len);
+                }
+            });
+            threadOutput = outputStream;
+            RespParser parser = new RespParser();
+            ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            reading:
+            while (true) {
+                if (!in.hasRemaining()) {
+                    in = grow(in, parser.frameBytesNeeded());
+                }
+                int n = inputStream.read(in.array(), in.arrayOffset() + in.position(), in.remaining());
+                if (n < 0) {
+                    break;
+                }
+                in.position(in.position() + n);
+                Stats.netInputBytes.add(n);
+                in.flip();
+                // published messages wait in `pushed` meanwhile
+                outputLock.lock();
+                try {
+                    // Answer everything that is already buffered with a single write.
+                    while (parser.parse(in)) {
+                        dispatch(parser.command(), outputStream);
+                        // the flush blocks on a slow reader, so only one reply can
+                        // overshoot: a huge one
+                        if (overOutputLimit(outputStream.size())) {
+                            break reading;
+                        }
+                        if (outputStream.size() >= Connection.FLUSH_THRESHOLD) {
+                            awaitAof();
+                            outputStream.flush();
+                        }
+                    }
+                    awaitAof();
+                    outputStream.flush();
+                } catch (ProtocolException e) {
+                    RespWriter.error(outputStream, "ERR Protocol error: " + e.getMessage());
+                    outputStream.flush();
+                    break;
+                } finally {
+                    outputLock.unlock();
+                }
+                drainPushed();
+                in.compact();
+            }
+        } catch (Exception e) {
+            Log.verbose("Error handling client: " + e);
+            if (Log.enabled(Log.DEBUG)) {
+                e.printStackTrace();
+            }
+        }
+        connectionClosed();
+    }
+
+    // Whether `pending` unsent bytes of output put this client past its
+    // client-output-buffer-limit, in which case it has to be disconnected; that is logged
+    // and counted here. Called by whichever thread owns the output.
+    boolean overOutputLimit(long pending) {
+        OutputLimits.Kind kind = replica != null ? OutputLimits.Kind.REPLICA
+                : subscriptions > 0 ? OutputLimits.Kind.PUBSUB : OutputLimits.Kind.NORMAL;
+        OutputLimits.Limit limit = OutputLimits.of(kind);
+        boolean over = false;
+        if (limit.hard > 0 && pending >= limit.hard) {
+            over = true;
+        } else if (limit.soft > 0 && pending >= limit.soft) {
+            long now = System.currentTimeMillis();
+            if (overSoftLimitSince < 0) {
+                overSoftLimitSince = now;
+            }
+            over = now - overSoftLimitSince > limit.softSeconds * 1000L;
+        } else {
+            overSoftLimitSince = -1;
+        }
+        if (over) {
+            Log.warning("Client " + peerAddress() + " closed for overcoming of output buffer limits.");
+            Stats.outputLimitDisconnections.increment();
+        }
+        return over;
+    }
+
+    // appendfsync always in thread-per-connection mode: the thread waits for the fsync.
+    private void awaitAof() {
+        if (wroteSinceFlush && Aof.syncsAlways()) {
+            Aof.durable().join();
+        }
+        wroteSinceFlush = false;
+    }
+
+    // Enlarges a full read buffer (in write mode), straight to the size of a large bulk
+    // argument when the parser already knows it.
+    static ByteBuffer grow(ByteBuffer in, int needed) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(in.capacity() * 2, needed));
+        in.flip();
+        bigger.put(in);
+        return bigger;
+    }
+
+    void dispatch(RespCommand cmd, OutputBuffer outputStream) throws IOException {
+        CommandType command = CommandType.lookup(cmd);
+        if (command == null) {
+            if (queued != null) {
+                queueRejected = true;
+            }
+            outputStream.write(RespWriter.ERR_UNKNOWN_COMMAND);
+            return;
+        }
+        if (!command.arityMatches(cmd.argc())) {
+            rejected(command);
+            RespWriter.error(outputStream, "ERR wrong number of arguments for '" + command.lowerName + "' command");
+            return;
+        }
+        if (queued != null && command.has(CommandType.Flags.NO_MULTI)) {
+            rejected(command);
+            RespWriter.error(outputStream, "ERR Command not allowed inside a transaction");
+            return;
+        }
+        if (subscriptions > 0 && !command.has(CommandType.Flags.PUBSUB_CONTEXT)) {
+            rejected(command);
+            RespWriter.error(outputStream, "ERR Can't execute '" + command.lowerName
+                    + "': only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING are allowed in this context");
+            return;
+        }
+        // ASKING only holds for the command right after it
+        boolean askingNow = asking;
+        asking = false;
+        if (Cluster.enabled && !replaying) {
+            String redirect = Cluster.redirect(command, cmd, askingNow);
+            if (redirect != null) {
+                rejected(command);
+                RespWriter.error(outputStream, redirect);
+                return;
+            }
+        }
+        if (command.has(CommandType.Flags.WRITE)) {
+            if (MasterLink.isReplica() && !replaying) {
+                rejected(command);
+                outputStream.write(RespWriter.ERR_READONLY);
+                return;
+            }
+            wroteSinceFlush = true;
+        }
+        // a replayed log is loaded whole, as Redis ignores maxmemory while loading
+        if (command.has(CommandType.Flags.DENYOOM) && !replaying && !Eviction.freeMemoryIfNeeded()) {
+            rejected(command);
+            outputStream.write(RespWriter.ERR_OOM);
+            return;
+        }
+        // Between MULTI and EXEC, commands that passed the checks above wait for EXEC,
+        // which does not check them again.
+        if (queued != null && command != CommandType.EXEC && command != CommandType.DISCARD
+                && command != CommandType.MULTI && command != CommandType.WATCH) {
+            queued.add(cmd.copy());
+            outputStream.write(RespWriter.QUEUED);
+            return;
+        }
+        execute(command, cmd, outputStream);
+    }
+
+    private void rejected(CommandType command) {
+        CommandStats.rejected(command);
+        if (queued != null) {
+            queueRejected = true;
+        }
+    }
+
+    private void execute(CommandType command, RespCommand cmd, OutputBuffer outputStream) throws IOException {
+        long started = System.nanoTime();
+        switch (command) {
+            case PING:
+                if (subscriptions > 0) {
+                    // a subscriber's replies are arrays, like the messages around them
+                    RespWriter.arrayHeader(outputStream, 2);
+                    RespWriter.bulk(outputStream, "pong");
+                    RespWriter.bulk(outputStream, cmd.argc() > 1 ? cmd.bytes(1) : new byte[0]);
+                    break;
+                }
+                // PING takes no arguments, so we can ignore the 'args' list
+                outputStream.write(RespWriter.PONG);
+                break;
+            case ECHO:
+                handleEcho(outputStream, cmd);
+                break;
+            case SET:
+                handleSet(outputStream, cmd);
+                break;
+            case GET:
+                handleGet(outputStream, cmd);
+                break;
+            case MGET:
+                handleMget(outputStream, cmd);
+                break;
+            case MSET:
+                handleMset(outputStream, cmd);
+                break;
+            case RPUSH:
+                handleRpush(outputStream, cmd);
+                break;
+            case LPUSH:
+                handleLpush(outputStream, cmd);
+                break;
+            case LRANGE:
+                handleLrange(outputStream, cmd);
+                break;
+            case LLEN:
+                handleLlen(outputStream, cmd);
+                break;
+            case LPOP:
+                handlePop(outputStream, cmd, true);
+                break;
+            case RPOP:
+                handlePop(outputStream, cmd, false);
+                break;
+            case LINDEX:
+                handleLindex(outputStream, cmd);
+                break;
+            case LSET:
+                handleLset(outputStream, cmd);
+                break;
+            case LINSERT:
+                handleLinsert(outputStream, cmd);
+                break;
+            case LREM:
+                handleLrem(outputStream, cmd);
+                break;
+            case LTRIM:
+                handleLtrim(outputStream, cmd);
+                break;
+            case BLPOP:
+                handleBlockingPop(outputStream, cmd, true);
+                break;
+            case BRPOP:
+                handleBlockingPop(outputStream, cmd, false);
+                break;
+            case LMOVE:
+                handleLmove(outputStream, cmd, false);
+                break;
+            case BLMOVE:
+                handleLmove(outputStream, cmd, true);
+                break;
+            case HSET:
+                handleHset(outputStream, cmd);
+                break;
+            case HGET:
+                handleHget(outputStream, cmd);
+                break;
+            case HGETALL:
+                handleHgetall(outputStream, cmd);
+                break;
+            case HINCRBY:
+                handleHincrby(outputStream, cmd);
+                break;
+            case HDEL:
+                handleHdel(outputStream, cmd);
+                break;
+            case HLEN:
+                handleHlen(outputStream, cmd);
+                break;
+            case SADD:
+                handleSadd(outputStream, cmd);
+                break;
+            case SREM:
+                handleSrem(outputStream, cmd);
+                break;
+            case SISMEMBER:
+                handleSismember(outputStream, cmd);
+                break;
+            case SMEMBERS:
+                handleSmembers(outputStream, cmd);
+                break;
+            case SINTER:
+                handleSinter(outputStream, cmd);
+                break;
+            case SCARD:
+                handleScard(outputStream, cmd);
+                break;
+            case ZADD:
+                handleZadd(outputStream, cmd);
+                break;
+            case ZRANGE:
+                handleZrange(outputStream, cmd, false);
+                break;
+            case ZRANGEBYSCORE:
+                handleZrange(outputStream, cmd, true);
+                break;
+            case ZRANK:
+                handleZrank(outputStream, cmd);
+                break;
+            case ZREM:
+                handleZrem(outputStream, cmd);
+                break;
+            case ZCARD:
+                handleZcard(outputStream, cmd);
+                break;
+            case ZSCORE:
+                handleZscore(outputStream, cmd);
+                break;
+            case XADD:
+                handleXadd(outputStream, cmd);
+                break;
+            case XLEN:
+                handleXlen(outputStream, cmd);
+                break;
+            case XRANGE:
+                handleXrange(outputStream, cmd, false);
+                break;
+            case XREVRANGE:
+                handleXrange(outputStream, cmd, true);
+                break;
+            case XTRIM:
+                handleXtrim(outputStream, cmd);
+                break;
+            case XREAD:
+                handleXread(outputStream, cmd, false);
+                break;
+            case XREADGROUP:
+                handleXread(outputStream, cmd, true);
+                break;
+            case XGROUP:
+                handleXgroup(outputStream, cmd);
+                break;
+            case XACK:
+                handleXack(outputStream, cmd);
+                break;
+            case XPENDING:
+                handleXpending(outputStream, cmd);
+                break;
+            case XCLAIM:
+                handleXclaim(outputStream, cmd);
+                break;
+            case TYPE:
+                handleType(outputStream, cmd);
+                break;
+            case OBJECT:
+                handleObject(outputStream, cmd);
+                break;
+            case DEL:
+                handleDel(outputStream, cmd);
+                break;
+            case EXISTS:
+                handleExists(outputStream, cmd);
+                break;
+            case EXPIRE:
+                handleExpire(outputStream, cmd, true, false);
+                break;
+            case PEXPIRE:
+                handleExpire(outputStream, cmd, false, false);
+                break;
+            case EXPIREAT:
+                handleExpire(outputStream, cmd, true, true);
+                break;
+            case PEXPIREAT:
+                handleExpire(outputStream, cmd, false, true);
+                break;
+            case TTL:
+                handleTtl(outputStream, cmd, true);
+                break;
+            case PTTL:
+                handleTtl(outputStream, cmd, false);
+                break;
+            case PERSIST:
+                handlePersist(outputStream, cmd);
+                break;
+            case DUMP:
+                handleDump(outputStream, cmd);
+                break;
+            case RESTORE:
+            case RESTORE_ASKING:
+                handleRestore(outputStream, cmd);
+                break;
+            case MIGRATE:
+                handleMigrate(outputStream, cmd);
+                break;
+            case SAVE:
+                handleSave(outputStream);
+                break;
+            case BGSAVE:
+                handleBgsave(outputStream);
+                break;
+            case BGREWRITEAOF:
+                handleBgrewriteaof(outputStream);
+                break;
+            case LASTSAVE:
+                RespWriter.integer(outputStream, Rdb.lastSave);
+                break;
+            case CONFIG:
+                handleConfig(outputStream, cmd);
+                break;
+            case REPLCONF:
+                handleReplconf(outputStream, cmd);
+                break;
+            case PSYNC:
+                handlePsync(outputStream, cmd);
+                break;
+            case ROLE:
+                handleRole(outputStream);
+                break;
+            case INFO:
+                handleInfo(outputStream, cmd);
+                break;
+            case LATENCY:
+                handleLatency(outputStream, cmd);
+                break;
+            case SLOWLOG:
+                handleSlowlog(outputStream, cmd);
+                break;
+            case SUBSCRIBE:
+                handleSubscribe(outputStream, cmd, false);
+                break;
+            case PSUBSCRIBE:
+                handleSubscribe(outputStream, cmd, true);
+                break;
+            case UNSUBSCRIBE:
+                handleUnsubscribe(outputStream, cmd, false);
+                break;
+            case PUNSUBSCRIBE:
+                handleUnsubscribe(outputStream, cmd, true);
+                break;
+            case PUBLISH:
+                handlePublish(outputStream, cmd);
+                break;
+            case MULTI:
+                handleMulti(outputStream);
+                break;
+            case EXEC:
+                handleExec(outputStream);
+                break;
+            case DISCARD:
+                handleDiscard(outputStream);
+                break;
+            case WATCH:
+                handleWatch(outputStream, cmd);
+                break;
+            case UNWATCH:
+                unwatchAll();
+                outputStream.write(RespWriter.OK);
+                break;
+            case CLUSTER:
+                Cluster.command(outputStream, cmd);
+                break;
+            case ASKING:
+                if (!Cluster.enabled) {
+                    RespWriter.error(outputStream, "ERR This instance has cluster support disabled");
+                    break;
+                }
+                asking = true;
+                outputStream.write(RespWriter.OK);
+                break;
+        }
+        // a thread-per-connection client blocked in BLPOP waited inside the switch; as in
+        // Redis that is not execution time
+        long elapsed = System.nanoTime() - started - waitedNanos;
+        waitedNanos = 0;
+        Stats.commandsProcessed.increment();
+        CommandStats.record(command, elapsed);
+        if (SlowLog.isSlow(elapsed)) {
+            SlowLog.add(cmd, elapsed, peerAddress());
+        }
+        LatencyMonitor.sample("command", elapsed / 1_000_000);
+    }
+
+    // "ip:port" as SLOWLOG shows the client; empty for the replay client.
+    private String peerAddress() {
+        if (connection != null) {
+            return connection.remoteAddress();
+        }
+        if (socket != null && socket.getRemoteSocketAddress() instanceof InetSocketAddress address) {
+            return address.getAddress().getHostAddress() + ":" + address.getPort();
+        }
+        return "";
+    }
+
+    private static void writeKeyValue(OutputBuffer outputStream, byte[] key, byte[] value) {
+        RespWriter.arrayHeader(outputStream, 2);
+        RespWriter.bulk(outputStream, key);
+        RespWriter.bulk(outputStream, value);
+    }
+
+    private void handleEcho(OutputBuffer outputStream, RespCommand cmd) {
+        // bulk rather than simple string so the argument may contain CR/LF
+        RespWriter.bulk(outputStream, cmd.array(), cmd.offset(1), cmd.length(1));
+    }
+
+    private void handleSet(OutputBuffer outputStream, RespCommand cmd) {
+        long now = System.currentTimeMillis();
+        long expireAt = -1;
+        boolean keepTtl = false, nx = false, xx = false;
+        for (int i = 3; i < cmd.argc(); i++) {
+            if (cmd.is(i, "NX") && !xx) {
+                nx = true;
+            } else if (cmd.is(i, "XX") && !nx) {
+                xx = true;
+            } else if (cmd.is(i, "KEEPTTL") && expireAt < 0) {
+                keepTtl = true;
+            } else if (!keepTtl && expireAt < 0 && i + 1 < cmd.argc()
+                    && (cmd.is(i, "EX") || cmd.is(i, "PX") || cmd.is(i, "EXAT") || cmd.is(i, "PXAT"))) {
+                expireAt = parseDeadline(cmd, i, now, "set");
+                if (expireAt == PARSE_NOT_INTEGER) {
+                    outputStream.write(RespWriter.ERR_NOT_INTEGER);
+                    return;
+                }
+                if (expireAt == PARSE_OUT_OF_RANGE || expireAt <= 0) {
+                    RespWriter.error(outputStream, "ERR invalid expire time in 'set' command");
+                    return;
+                }
+                i++;
+            } else {
+                outputStream.write(RespWriter.ERR_SYNTAX);
+                return;
+            }
+        }
+
+        byte[] key = cmd.bytes(1);
+        byte[] value = cmd.bytes(2);
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            shard.expireIfNeeded(key, now);
+            if ((nx || xx) && shard.exists(key) == nx) {
+                outputStream.write(RespWriter.NULL_BULK);
+                return;
+            }
+            // SET replaces a key of any type
+            shard.put(key, StringObject.of(shard, value));
+            if (expireAt >= 0) {
+                shard.setExpire(key, expireAt);
+                // logged with the absolute deadline, so a replay does not extend it
+                Propagation.feed(Propagation.SET, key, value, Propagation.PXAT, Propagation.decimal(expireAt));
+            } else if (!keepTtl) {
+                shard.persist(key);
+                Propagation.feed(Propagation.SET, key, value);
+            } else {
+                Propagation.feed(Propagation.SET, key, value, Propagation.KEEPTTL);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        outputStream.write(RespWriter.OK);
+    }
+
+    private static final long PARSE_NOT_INTEGER = Long.MIN_VALUE;
+    private static final long PARSE_OUT_OF_RANGE = Long.MIN_VALUE + 1;
+
+    // Turns "EX 10" / "PX 100" / "EXAT ts" / "PXAT ms-ts" at position i into an absolute
+    // unix-ms deadline.
+    private static long parseDeadline(RespCommand cmd, int i, long now, String command) {
+        long n;
+        try {
+            n = cmd.longValue(i + 1);
+        } catch (NumberFormatException e) {
+            return PARSE_NOT_INTEGER;
+        }
+        boolean seconds = cmd.is(i, "EX") || cmd.is(i, "EXAT");
+        boolean absolute = cmd.is(i, "EXAT") || cmd.is(i, "PXAT");
+        if (seconds && (n > Long.MAX_VALUE / 1000 || n < Long.MIN_VALUE / 1000)) {
+            return PARSE_OUT_OF_RANGE;
+        }
+        long ms = seconds ? n * 1000 : n;
+        if (!absolute && ms <= 0) {
+            return PARSE_OUT_OF_RANGE;
+        }
+        if (!absolute && ms > Long.MAX_VALUE - now) {
+            return PARSE_OUT_OF_RANGE;
+        }
+        return absolute ? ms : now + ms;
+    }
+
+    private void handleGet(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        Shard shard = Keyspace.shard(key);
+        RedisObject value;
+        shard.lock.lock();
+        try {
+            value = shard.lookup(key, System.currentTimeMillis());
+            // an off-heap block may be reused as soon as the lock is released
+            if (value instanceof StringObject && ((StringObject) value).offHeap()) {
+                ((StringObject) value).writeBulk(outputStream);
+                return;
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        if (value instanceof StringObject) {
+            ((StringObject) value).writeBulk(outputStream);
+        } else if (value != null) {
+            outputStream.write(RespWriter.ERR_WRONGTYPE);
+        } else {
+            outputStream.write(RespWriter.NULL_BULK);
+        }
+    }
+
+    // The arguments from `from` on, every `step`-th.
+    private static byte[][] arguments(RespCommand cmd, int from, int step) {
+        byte[][] args = new byte[(cmd.argc() - from + step - 1) / step][];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = cmd.bytes(from + i * step);
+        }
+        return args;
+    }
+
+    // MGET key [key ...]. The shards of the keys are locked together, each once however
+    // many of the keys it holds, and the values are read at one point in time.
+    private void handleMget(OutputBuffer outputStream, RespCommand cmd) {
+        byte[][] keys = arguments(cmd, 1, 1);
+        StringObject[] values = new StringObject[keys.length];
+        Shard[] locked = Keyspace.lockAll(keys);
+        try {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < keys.length; i++) {
+                // not a string is nil here, rather than WRONGTYPE
+                if (Keyspace.shard(keys[i]).lookup(keys[i], now) instanceof StringObject value) {
+                    // an off-heap block may be reused as soon as the locks are released
+                    values[i] = value.offHeap() ? new StringObject(value.bytes()) : value;
+                }
+            }
+        } finally {
+            Keyspace.unlockAll(locked);
+        }
+        RespWriter.arrayHeader(outputStream, values.length);
+        for (StringObject value : values) {
+            if (value != null) {
+                value.writeBulk(outputStream);
+            } else {
+                outputStream.write(RespWriter.NULL_BULK);
+            }
+        }
+    }
+
+    // MSET key value [key value ...]: all or nothing, with every shard involved locked
+    // once, and logged as one command.
+    private void handleMset(OutputBuffer outputStream, RespCommand cmd) {
+        if (cmd.argc() % 2 == 0) {
+            RespWriter.error(outputStream, "ERR wrong number of arguments for 'mset' command");
+            return;
+        }
+        byte[][] keys = arguments(cmd, 1, 2);
+        Shard[] locked = Keyspace.lockAll(keys);
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                Shard shard = Keyspace.shard(keys[i]);
+                shard.put(keys[i], StringObject.of(shard, cmd.bytes(2 + 2 * i)));
+                shard.persist(keys[i]);
+            }
+            Propagation.feed(cmd);
+        } finally {
+            Keyspace.unlockAll(locked);
+        }
+        outputStream.write(RespWriter.OK);
+    }
+
+    // EXPIRE/PEXPIRE: relative TTL, EXPIREAT/PEXPIREAT: unix time. A deadline that has
+    // already passed deletes the key right away.
+    private void handleExpire(OutputBuffer outputStream, RespCommand cmd, boolean seconds, boolean absolute) {
+        long now = System.currentTimeMillis();
+        long n;
+        try {
+            n = cmd.longValue(2);
+        } catch (NumberFormatException e) {
+            outputStream.write(RespWriter.ERR_NOT_INTEGER);
+            return;
+        }
+        if (seconds && (n > Long.MAX_VALUE / 1000 || n < Long.MIN_VALUE / 1000)
+                || !absolute && Math.abs(seconds ? n * 1000 : n) > Long.MAX_VALUE - now) {
+            RespWriter.error(outputStream, "ERR invalid expire time in '" + cmd.string(0).toLowerCase() + "' command");
+            return;
+        }
+        long at = (absolute ? 0 : now) + (seconds ? n * 1000 : n);
+        byte[] key = cmd.bytes(1);
+        Shard shard = Keyspace.shard(key);
+        boolean set;
+        shard.lock.lock();
+        try {
+            shard.expireIfNeeded(key, now);
+            set = shard.exists(key);
+            if (set) {
+                if (at <= now) {
+                    shard.delete(key);
+                    Propagation.feed(Propagation.DEL, key);
+                } else {
+                    shard.setExpire(key, at);
+                    Propagation.feed(Propagation.PEXPIREAT, key, Propagation.decimal(at));
+                }
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, set ? 1 : 0);
+    }
+
+    // TTL/PTTL: -2 for a missing key, -1 for a key without TTL.
+    private void handleTtl(OutputBuffer outputStream, RespCommand cmd, boolean seconds) {
+        long now = System.currentTimeMillis();
+        byte[] key = cmd.bytes(1);
+        Shard shard = Keyspace.shard(key);
+        long ttl;
+        shard.lock.lock();
+        try {
+            shard.expireIfNeeded(key, now);
+            if (!shard.exists(key)) {
+                ttl = -2;
+            } else {
+                long at = shard.expireAt(key);
+                ttl = at < 0 ? -1 : Math.max(0, at - now);
+                if (at >= 0 && seconds) {
+                    ttl = (ttl + 500) / 1000;
+                }
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, ttl);
+    }
+
+    private void handlePersist(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        Shard shard = Keyspace.shard(key);
+        boolean removed;
+        shard.lock.lock();
+        try {
+            shard.expireIfNeeded(key, System.currentTimeMillis());
+            removed = shard.persist(key);
+            if (removed) {
+                Propagation.feed(cmd);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, removed ? 1 : 0);
+    }
+
+    // DEL key [key ...], with each shard locked once for all of its keys. Logged as
+    // sent once anything went: the keys that were not there are no-ops to a replay.
+    private void handleDel(OutputBuffer outputStream, RespCommand cmd) {
+        byte[][] keys = arguments(cmd, 1, 1);
+        int deleted = 0;
+        Shard[] locked = Keyspace.lockAll(keys);
+        try {
+            long now = System.currentTimeMillis();
+            for (byte[] key : keys) {
+                Shard shard = Keyspace.shard(key);
+                shard.expireIfNeeded(key, now);
+                if (shard.delete(key)) {
+                    deleted++;
+                }
+            }
+            if (deleted > 0) {
+                Propagation.feed(cmd);
+            }
+        } finally {
+            Keyspace.unlockAll(locked);
+        }
+        RespWriter.integer(outputStream, deleted);
+    }
+
+    // EXISTS key [key ...]: how many of the keys exist, a key given twice counting twice.
+    private void handleExists(OutputBuffer outputStream, RespCommand cmd) {
+        byte[][] keys = arguments(cmd, 1, 1);
+        int found = 0;
+        Shard[] locked = Keyspace.lockAll(keys);
+        try {
+            long now = System.currentTimeMillis();
+            for (byte[] key : keys) {
+                Shard shard = Keyspace.shard(key);
+                shard.expireIfNeeded(key, now);
+                if (shard.exists(key)) {
+                    found++;
+                }
+            }
+        } finally {
+            Keyspace.unlockAll(locked);
+        }
+        RespWriter.integer(outputStream, found);
+    }
+
+    private void handleSave(OutputBuffer outputStream) {
+        String error;
+        try {
+            error = Rdb.save();
+        } catch (IOException e) {
+            error = "ERR " + e.getMessage();
+        }
+        if (error != null) {
+            RespWriter.error(outputStream, error);
+        } else {
+            outputStream.write(RespWriter.OK);
+        }
+    }
+
+    private void handleBgsave(OutputBuffer outputStream) {
+        String error = Rdb.backgroundSave();
+        if (error != null) {
+            RespWriter.error(outputStream, error);
+        } else {
+            RespWriter.simple(outputStream, "Background saving started");
+        }
+    }
+
+    private void handleBgrewriteaof(OutputBuffer outputStream) {
+        String error = Aof.rewrite();
+        if (error != null) {
+            RespWriter.error(outputStream, error);
+        } else {
+            RespWriter.simple(outputStream, "Background append only file rewriting started");
+        }
+    }
+
+    // CONFIG GET for exact parameter names, CONFIG SET for the few that can change at
+    // runtime, and CONFIG RESETSTAT.
+    private void handleConfig(OutputBuffer outputStream, RespCommand cmd) {
+        String sub = cmd.string(1);
+        if (sub.equalsIgnoreCase("set") && cmd.argc() >= 4 && cmd.argc() % 2 == 0) {
+            handleConfigSet(outputStream, cmd);
+            return;
+        }
+        if (sub.equalsIgnoreCase("resetstat") && cmd.argc() == 2) {
+            Stats.reset();
+            CommandStats.reset();
+            outputStream.write(RespWriter.OK);
+            return;
+        }
+        if (!sub.equalsIgnoreCase("get") || cmd.argc() < 3) {
+            RespWriter.error(outputStream, "ERR unknown subcommand or wrong number of arguments for '" + sub + "'");
+            return;
+        }
+        List<String> reply = new ArrayList<>();
+        for (int i = 2; i < cmd.argc(); i++) {
+            String name = cmd.string(i).toLowerCase();
+            String value = configValue(name);
+            if (value != null) {
+                reply.add(name);
+                reply.add(value);
+            }
+        }
+        RespWriter.arrayHeader(outputStream, reply.size());
+        for (String s : reply) {
+            RespWriter.bulk(outputStream, s);
+        }
+    }
+
+    // All pairs are checked before any is applied, so a bad one changes nothing.
+    private void handleConfigSet(OutputBuffer outputStream, RespCommand cmd) {
+        List<Runnable> updates = new ArrayList<>();
+        for (int i = 2; i < cmd.argc(); i += 2) {
+            String name = cmd.string(i).toLowerCase();
+            String value = cmd.string(i + 1);
+            Runnable update;
+            try {
+                update = configUpdate(name, value);
+            } catch (IllegalArgumentException e) {
+                update = null;
+            }
+            if (update == null) {
+                RespWriter.error(outputStream, "ERR CONFIG SET failed (possibly related to argument '" + name + "')");
+                return;
+            }
+            updates.add(update);
+        }
+        updates.forEach(Runnable::run);
+        outputStream.write(RespWriter.OK);
+    }
+
+    // null for a parameter that cannot be set, or a bad value
+    private static Runnable configUpdate(String name, String value) {
+        switch (name) {
+            case "loglevel": {
+                int level = Log.parseLevel(value);
+                return level < 0 ? null : () -> Log.level = level;
+            }
+            case "slowlog-log-slower-than": {
+                long micros = Long.parseLong(value);
+                return () -> SlowLog.slowerThanMicros = micros;
+            }
+            case "slowlog-max-len": {
+                int len = Integer.parseInt(value);
+                return len < 0 ? null : () -> SlowLog.maxLen = len;
+            }
+            case "latency-monitor-threshold": {
+                long ms = Long.parseLong(value);
+                return ms < 0 ? null : () -> LatencyMonitor.thresholdMs = ms;
+            }
+            case "client-output-buffer-limit": {
+                OutputLimits.Limit[] limits = OutputLimits.parse(value);
+                return () -> OutputLimits.set(limits);
+            }
+            case "hash-max-listpack-entries":
+            case "hash-max-ziplist-entries": {
+                int n = Integer.parseInt(value);
+                return n < 0 ? null : () -> HashObject.maxListpackEntries = n;
+            }
+            case "hash-max-listpack-value":
+            case "hash-max-ziplist-value": {
+                int n = Integer.parseInt(value);
+                return n < 0 ? null : () -> HashObject.maxListpackValue = n;
+            }
+            case "set-max-intset-entries": {
+                int n = Integer.parseInt(value);
+                return n < 0 ? null : () -> SetObject.maxIntsetEntries = n;
+            }
+            case "set-max-listpack-entries": {
+                int n = Integer.parseInt(value);
+                return n < 0 ? null : () -> SetObject.maxListpackEntries = n;
+            }
+            case "set-max-listpack-value": {
+                int n = Integer.parseInt(value);
+                return n < 0 ? null : () -> SetObject.maxListpackValue = n;
+            }
+            case "zset-max-listpack-entries":
+            case "zset-max-ziplist-entries": {
+                int n = Integer.parseInt(value);
+                return n < 0 ? null : () -> ZSetObject.maxListpackEntries = n;
+            }
+            case "zset-max-listpack-value":
+            case "zset-max-ziplist-value": {
+                int n = Integer.parseInt(value);
+                return n < 0 ? null : () -> ZSetObject.maxListpackValue = n;
+            }
+            case "stream-node-max-entries": {
+                int n = Integer.parseInt(value);
+                return n < 0 ? null : () -> StreamObject.maxNodeEntries = n;
+            }
+            case "stream-node-max-bytes": {
+                int n = Integer.parseInt(value);
+                return n < 0 ? null : () -> StreamObject.maxNodeBytes = n;
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static String configValue(String name) {
+        switch (name) {
+            case "loglevel":
+                return Log.levelName();
+            case "slowlog-log-slower-than":
+                return Long.toString(SlowLog.slowerThanMicros);
+            case "slowlog-max-len":
+                return Integer.toString(SlowLog.maxLen);
+            case "latency-monitor-threshold":
+                return Long.toString(LatencyMonitor.thresholdMs);
+            case "client-output-buffer-limit":
+                return OutputLimits.configValue();
+            case "hash-max-listpack-entries":
+                return Integer.toString(HashObject.maxListpackEntries);
+            case "hash-max-listpack-value":
+                return Integer.toString(HashObject.maxListpackValue);
+            case "set-max-intset-entries":
+                return Integer.toString(SetObject.maxIntsetEntries);
+            case "set-max-listpack-entries":
+                return Integer.toString(SetObject.maxListpackEntries);
+            case "set-max-listpack-value":
+                return Integer.toString(SetObject.maxListpackValue);
+            case "zset-max-listpack-entries":
+                return Integer.toString(ZSetObject.maxListpackEntries);
+            case "zset-max-listpack-value":
+                return Integer.toString(ZSetObject.maxListpackValue);
+            case "stream-node-max-entries":
+                return Integer.toString(StreamObject.maxNodeEntries);
+            case "stream-node-max-bytes":
+                return Integer.toString(StreamObject.maxNodeBytes);
+            case "dir":
+                return Rdb.dir;
+            case "dbfilename":
+                return Rdb.dbfilename;
+            case "maxmemory":
+                return Long.toString(Eviction.maxMemory);
+            case "maxmemory-policy":
+                return Eviction.policy.configName;
+            case "maxmemory-samples":
+                return Integer.toString(Eviction.samples);
+            case "appendonly":
+                return Aof.enabled ? "yes" : "no";
+            case "appendfilename":
+                return Aof.filename;
+            case "appendfsync":
+                return Aof.fsync.configName;
+            case "auto-aof-rewrite-percentage":
+                return Integer.toString(Aof.autoRewritePercentage);
+            case "auto-aof-rewrite-min-size":
+                return Long.toString(Aof.autoRewriteMinSize);
+            case "repl-backlog-size":
+                return Long.toString(Replication.backlogSize);
+            case "replicaof":
+                return MasterLink.isReplica() ? MasterLink.host + " " + MasterLink.port : "";
+            case "cluster-enabled":
+                return Cluster.enabled ? "yes" : "no";
+            case "cluster-config-file":
+                return Cluster.configFile;
+            case "cluster-announce-ip":
+                return Cluster.announceIp;
+            case "cluster-node-timeout":
+                return Long.toString(Cluster.nodeTimeoutMs);
+            default:
+                return null;
+        }
+    }
+
+    // The replica half of the handshake, and ACK <offset> once it is streaming, which
+    // gets no reply. GETACK is answered by MasterLink on the replica.
+    private void handleReplconf(OutputBuffer outputStream, RespCommand cmd) {
+        if (cmd.argc() == 3 && cmd.is(1, "ACK")) {
+            if (replica != null) {
+                try {
+                    replica.acked = cmd.longValue(2);
+                } catch (NumberFormatException ignored) {}
+            }
+            return;
+        }
+        if (cmd.argc() % 2 == 0) {
+            outputStream.write(RespWriter.ERR_SYNTAX);
+            return;
+        }
+        for (int i = 1; i < cmd.argc(); i += 2) {
+            if (cmd.is(i, "LISTENING-PORT")) {
+                long port;
+                try {
+                    port = cmd.longValue(i + 1);
+                } catch (NumberFormatException e) {
+                    port = -1;
+                }
+                if (port <= 0 || port > 65535) {
+                    RespWriter.error(outputStream, "ERR invalid listening-port");
+                    return;
+                }
+                replicaListeningPort = (int) port;
+            }
+            // capa and the rest: this leader only speaks psync2 anyway
+        }
+        outputStream.write(RespWriter.OK);
+    }
+
+    // From here on the connection carries the replication stream; the reply is the
+    // first thing Replication sends down it.
+    private void handlePsync(OutputBuffer outputStream, RespCommand cmd) throws IOException {
+        if (replaying || replica != null) {
+            RespWriter.error(outputStream, "ERR PSYNC not allowed here");
+            return;
+        }
+        long requested;
+        try {
+            requested = cmd.longValue(2);
+        } catch (NumberFormatException e) {
+            requested = -1;
+        }
+        Replication.Link link;
+        String host;
+        if (connection != null) {
+            link = connection.replicaLink();
+            host = connection.remoteHost();
+        } else {
+            link = socketLink();
+            host = socket.getInetAddress().getHostAddress();
+        }
+        replica = Replication.attach(link, host, replicaListeningPort, cmd.string(1), requested);
+    }
+
+    // Thread-per-connection mode: the replica's thread writes to the socket directly,
+    // this one only reads its ACKs.
+    private Replication.Link socketLink() throws IOException {
+        OutputStream raw = socket.getOutputStream();
+        return new Replication.Link() {
+            @Override
+            public void send(byte[] data, int length) throws IOException {
+                raw.write(data, 0, length);
+                raw.flush();
+            }
+
+            @Override
+            public void close() {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+        };
+    }
+
+    private void handleRole(OutputBuffer outputStream) {
+        if (MasterLink.isReplica()) {
+            RespWriter.arrayHeader(outputStream, 5);
+            RespWriter.bulk(outputStream, "slave");
+            RespWriter.bulk(outputStream, MasterLink.host);
+            RespWriter.integer(outputStream, MasterLink.port);
+            RespWriter.bulk(outputStream, MasterLink.state());
+            RespWriter.integer(outputStream, MasterLink.offset());
+            return;
+        }
+        List<Replication.Replica> replicas = Replication.replicas();
+        RespWriter.arrayHeader(outputStream, 3);
+        RespWriter.bulk(outputStream, "master");
+        RespWriter.integer(outputStream, Replication.offset());
+        RespWriter.arrayHeader(outputStream, replicas.size());
+        for (Replication.Replica r : replicas) {
+            RespWriter.arrayHeader(outputStream, 3);
+            RespWriter.bulk(outputStream, r.host);
+            RespWriter.bulk(outputStream, Integer.toString(r.port));
+            RespWriter.bulk(outputStream, Long.toString(r.acked));
+        }
+    }
+
+    private void handleInfo(OutputBuffer outputStream, RespCommand cmd) {
+        List<String> sections = new ArrayList<>();
+        for (int i = 1; i < cmd.argc(); i++) {
+            sections.add(cmd.string(i).toLowerCase());
+        }
+        RespWriter.bulk(outputStream, Info.render(sections));
+    }
+
+    // LATENCY LATEST | HISTORY event | RESET [event ...] | HISTOGRAM [command ...]
+    private void handleLatency(OutputBuffer outputStream, RespCommand cmd) {
+        String sub = cmd.string(1);
+        if (sub.equalsIgnoreCase("latest") && cmd.argc() == 2) {
+            LatencyMonitor.latest(outputStream);
+        } else if (sub.equalsIgnoreCase("history") && cmd.argc() == 3) {
+            LatencyMonitor.history(outputStream, cmd.string(2));
+        } else if (sub.equalsIgnoreCase("reset")) {
+            List<String> events = new ArrayList<>();
+            for (int i = 2; i < cmd.argc(); i++) {
+                events.add(cmd.string(i));
+            }
+            RespWriter.integer(outputStream, LatencyMonitor.reset(events));
+        } else if (sub.equalsIgnoreCase("histogram")) {
+            List<CommandType> commands = new ArrayList<>();
+            for (CommandType command : CommandType.values()) {
+                for (int i = 2; i < cmd.argc(); i++) {
+                    if (cmd.is(i, command.wireName)) {
+                        commands.add(command);
+                        break;
+                    }
+                }
+            }
+            handleLatencyHistogram(outputStream, commands.isEmpty() ? List.of(CommandType.values()) : commands);
+        } else {
+            RespWriter.error(outputStream, "ERR unknown subcommand or wrong number of arguments for '" + sub + "'");
+        }
+    }
+
+    // As Redis replies it: per command that ran, its calls and the cumulative count at
+    // each power-of-two bound in microseconds, for the bounds where the count grows.
+    private static void handleLatencyHistogram(OutputBuffer outputStream, List<CommandType> commands) {
+        List<CommandType> ran = new ArrayList<>();
+        List<LatencyHistogram> histograms = new ArrayList<>();
+        for (CommandType command : commands) {
+            LatencyHistogram h = CommandStats.histogram(command);
+            if (h.count() > 0) {
+                ran.add(command);
+                histograms.add(h);
+            }
+        }
+        RespWriter.arrayHeader(outputStream, 2 * ran.size());
+        for (int i = 0; i < ran.size(); i++) {
+            LatencyHistogram h = histograms.get(i);
+            List<long[]> buckets = new ArrayList<>();
+            long previous = 0;
+            for (long micros = 1; previous < h.count(); micros <<= 1) {
+                long cumulative = h.countAtOrBelow(micros * 1000);
+                if (cumulative > previous) {
+                    buckets.add(new long[] {micros, cumulative});
+                    previous = cumulative;
+                }
+            }
+            RespWriter.bulk(outputStream, ran.get(i).lowerName);
+            RespWriter.arrayHeader(outputStream, 4);
+            RespWriter.bulk(outputStream, "calls");
+            RespWriter.integer(outputStream, h.count());
+            RespWriter.bulk(outputStream, "histogram_usec");
+            RespWriter.arrayHeader(outputStream, 2 * buckets.size());
+            for (long[] bucket : buckets) {
+                RespWriter.integer(outputStream, bucket[0]);
+                RespWriter.integer(outputStream, bucket[1]);
+            }
+        }
+    }
+
+    // SLOWLOG GET [count] | LEN | RESET
+    private void handleSlowlog(OutputBuffer outputStream, RespCommand cmd) {
+        String sub = cmd.string(1);
+        if (sub.equalsIgnoreCase("get") && cmd.argc() <= 3) {
+            long count = 10;
+            if (cmd.argc() == 3) {
+                try {
+                    count = cmd.longValue(2);
+                } catch (NumberFormatException e) {
+                    count = -2;
+                }
+                if (count < -1) {
+                    RespWriter.error(outputStream, "ERR count should be greater than or equal to -1");
+                    return;
+                }
+            }
+            SlowLog.get(outputStream, count);
+        } else if (sub.equalsIgnoreCase("len") && cmd.argc() == 2) {
+            RespWriter.integer(outputStream, SlowLog.length());
+        } else if (sub.equalsIgnoreCase("reset") && cmd.argc() == 2) {
+            SlowLog.reset();
+            outputStream.write(RespWriter.OK);
+        } else {
+            RespWriter.error(outputStream, "ERR unknown subcommand or wrong number of arguments for '" + sub + "'");
+        }
+    }
+
+    private void handleLpush(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] firstKey = cmd.bytes(1);
+        int res = 0;
+        List<Blocking.Delivery> deliveries;
+
+        Shard shard = Keyspace.shard(firstKey);
+        shard.lock.lock();
+        try {
+            ListObject queue = shard.listForWrite(firstKey, System.currentTimeMillis());
+            if (queue == null) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            for (int i = 2; i < cmd.argc(); i++) {
+                queue.addFirst(cmd.array(), cmd.offset(i), cmd.length(i));
+            }
+            res = queue.size();
+            Propagation.feed(cmd);
+            // the reply counts the pushed length, waiters are served after
+            deliveries = Blocking.serve(shard, firstKey, queue, null);
+        } finally {
+            shard.lock.unlock();
+        }
+        Blocking.deliver(deliveries);
+
+        RespWriter.integer(outputStream, res);
+    }
+
+    private void handleLrange(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        
+        long start, end;
+        try {
+            start = cmd.longValue(2);
+            end = cmd.longValue(3);
+        } catch (NumberFormatException e) {
+            outputStream.write(RespWriter.ERR_NOT_INTEGER);
+            return;
+        }
+        
+        // The elements live packed inside the list's chunks, so copying them out would
+        // cost as much as encoding them: the reply is written while the lock is held.
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject value = shard.lookup(key, System.currentTimeMillis());
+            if (value != null && !(value instanceof ListObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            ListObject queue = (ListObject) value;
+            if (queue == null || queue.isEmpty()) {
+                outputStream.write(RespWriter.EMPTY_ARRAY);
+                return;
+            }
+            int size = queue.size();
+            // Handle negative indices
+            if (start < 0) start = size + start;
+            if (start < 0) start = 0;
+            if (end < 0) end = size + end;
+            if (end < 0) end = 0;
+            start = Math.max(0, start);
+            end = Math.min(size - 1, end);
+
+            if (start > end) {
+                outputStream.write(RespWriter.EMPTY_ARRAY);
+                return;
+            }
+            // both within the list now, so they fit an int
+            int from = (int) start;
+            int to = (int) end;
+            RespWriter.arrayHeader(outputStream, to - from + 1);
+            queue.forEach(from, to, (buf, offset, length) -> RespWriter.bulk(outputStream, buf, offset, length));
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    private void handleLlen(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        Shard shard = Keyspace.shard(key);
+        int len;
+        shard.lock.lock();
+        try {
+            RedisObject value = shard.lookup(key, System.currentTimeMillis());
+            if (value != null && !(value instanceof ListObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            len = (value == null) ? 0 : ((ListObject) value).size();
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, len);
+    }
+
+    // LPOP/RPOP key [count]
+    private void handlePop(OutputBuffer outputStream, RespCommand cmd, boolean left) {
+        byte[] key = cmd.bytes(1);
+        long count = 1;
+        if (cmd.argc() > 2) {
+            try {
+                count = cmd.longValue(2);
+            } catch (NumberFormatException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                outputStream.write(RespWriter.ERR_NOT_INTEGER);
+                return;
+            }
+        }
+        byte[][] popped = null;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject value = shard.lookupForWrite(key, System.currentTimeMillis());
+            if (value != null && !(value instanceof ListObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            ListObject queue = (ListObject) value;
+            if (queue != null && !queue.isEmpty()) {
+                int n = (int) Math.min(count, queue.size());
+                popped = new byte[n][];
+                for (int i = 0; i < n; i++) {
+                    popped[i] = left ? queue.pollFirst() : queue.pollLast();
+                }
+                if (n > 0) {
+                    Propagation.feed(cmd);
+                }
+                if (queue.isEmpty()) {
+                    shard.delete(key);
+                }
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+
+        if (popped == null) {
+            outputStream.write(RespWriter.NULL_BULK);
+        } else if (popped.length == 1) {
+            RespWriter.bulk(outputStream, popped[0]);
+        } else {
+            RespWriter.arrayHeader(outputStream, popped.length);
+            for (byte[] val : popped) {
+                RespWriter.bulk(outputStream, val);
+            }
+        }
+    }
+
+    private void handleLindex(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        long index;
+        try {
+            index = cmd.longValue(2);
+        } catch (NumberFormatException e) {
+            outputStream.write(RespWriter.ERR_NOT_INTEGER);
+            return;
+        }
+        byte[] element = null;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject value = shard.lookup(key, System.currentTimeMillis());
+            if (value != null && !(value instanceof ListObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            ListObject queue = (ListObject) value;
+            if (queue != null) {
+                if (index < 0) {
+                    index += queue.size();
+                }
+                if (index >= 0 && index < queue.size()) {
+                    element = queue.get((int) index);
+                }
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        if (element == null) {
+            outputStream.write(RespWriter.NULL_BULK);
+        } else {
+            RespWriter.bulk(outputStream, element);
+        }
+    }
+
+    private void handleLset(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        long index;
+        try {
+            index = cmd.longValue(2);
+        } catch (NumberFormatException e) {
+            outputStream.write(RespWriter.ERR_NOT_INTEGER);
+            return;
+        }
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject value = shard.lookupForWrite(key, System.currentTimeMillis());
+            if (value == null) {
+                RespWriter.error(outputStream, "ERR no such key");
+                return;
+            }
+            if (!(value instanceof ListObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            ListObject queue = (ListObject) value;
+            if (index < 0) {
+                index += queue.size();
+            }
+            if (index < 0 || index >= queue.size()) {
+                RespWriter.error(outputStream, "ERR index out of range");
+                return;
+            }
+            queue.set((int) index, cmd.bytes(3));
+            Propagation.feed(cmd);
+        } finally {
+            shard.lock.unlock();
+        }
+        outputStream.write(RespWriter.OK);
+    }
+
+    // LINSERT key BEFORE|AFTER pivot element
+    private void handleLinsert(OutputBuffer outputStream, RespCommand cmd) {
+        boolean before = cmd.is(2, "BEFORE");
+        if (!before && !cmd.is(2, "AFTER")) {
+            outputStream.write(RespWriter.ERR_SYNTAX);
+            return;
+        }
+        byte[] key = cmd.bytes(1);
+        int res;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject value = shard.lookupForWrite(key, System.currentTimeMillis());
+            if (value != null && !(value instanceof ListObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            res = value == null ? 0 : ((ListObject) value).insert(cmd.bytes(3), cmd.bytes(4), before);
+            if (res > 0) {
+                Propagation.feed(cmd);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, res);
+    }
+
+    // LREM key count element
+    private void handleLrem(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        long count;
+        try {
+            count = cmd.longValue(2);
+        } catch (NumberFormatException e) {
+            outputStream.write(RespWriter.ERR_NOT_INTEGER);
+            return;
+        }
+        int removed = 0;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject value = shard.lookupForWrite(key, System.currentTimeMillis());
+            if (value != null && !(value instanceof ListObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            ListObject queue = (ListObject) value;
+            if (queue != null) {
+                int limit = (int) Math.max(-Integer.MAX_VALUE, Math.min(Integer.MAX_VALUE, count));
+                removed = queue.remove(limit, cmd.bytes(3));
+                if (removed > 0) {
+                    Propagation.feed(cmd);
+                }
+                if (queue.isEmpty()) {
+                    shard.delete(key);
+                }
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, removed);
+    }
+
+    // LTRIM key start stop
+    private void handleLtrim(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        long start, end;
+        try {
+            start = cmd.longValue(2);
+            end = cmd.longValue(3);
+        } catch (NumberFormatException e) {
+            outputStream.write(RespWriter.ERR_NOT_INTEGER);
+            return;
+        }
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject value = shard.lookupForWrite(key, System.currentTimeMillis());
+            if (value != null && !(value instanceof ListObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            ListObject queue = (ListObject) value;
+            if (queue != null) {
+                int size = queue.size();
+                if (start < 0) start = Math.max(0, size + start);
+                if (end < 0) end = size + end;
+                end = Math.min(size - 1, end);
+                if (start > end) {
+                    shard.delete(key);
+                } else {
+                    queue.trim((int) start, (int) end);
+                }
+                Propagation.feed(cmd);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        outputStream.write(RespWriter.OK);
+    }
+
+    // BLPOP/BRPOP key [key ...] timeout: pops from the first non-empty key, otherwise
+    // waits on all of them.
+    private void handleBlockingPop(OutputBuffer outputStream, RespCommand cmd, boolean left) throws IOException {
+        double timeout = parseTimeout(outputStream, cmd, cmd.argc() - 1);
+        if (timeout < 0) {
+            return;
+        }
+        byte[][] keys = new byte[cmd.argc() - 2][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = cmd.bytes(i + 1);
+        }
+
+        long now = System.currentTimeMillis();
+        Blocking.Waiter waiter = null;
+        for (byte[] key : keys) {
+            RedisObject value;
+            byte[] element = null;
+            Shard shard = Keyspace.shard(key);
+            shard.lock.lock();
+            try {
+                value = shard.lookupForWrite(key, now);
+                if (value == null) {
+                    if (executing) {
+                        continue;
+                    }
+                    // registered before the lock is dropped, so no push can slip past us
+                    if (waiter == null) {
+                        waiter = new Blocking.Waiter(keys, left, null, false);
+                    }
+                    Blocking.block(shard, key, waiter);
+                    continue;
+                }
+                if (waiter != null && !waiter.claim()) {
+                    // already served through an earlier key, that reply is on its way
+                    break;
+                }
+                if (value instanceof ListObject) {
+                    ListObject queue = (ListObject) value;
+                    element = left ? queue.pollFirst() : queue.pollLast();
+                    // logged as the pop it turned out to be
+                    Propagation.feed(left ? Propagation.LPOP : Propagation.RPOP, key);
+                    if (queue.isEmpty()) {
+                        shard.delete(key);
+                    }
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+            if (waiter != null) {
+                Blocking.unblock(waiter);
+            }
+            if (element == null) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+            } else {
+                writeKeyValue(outputStream, key, element);
+            }
+            return;
+        }
+        if (waiter != null) {
+            awaitReply(outputStream, waiter, timeout);
+        } else {
+            // inside EXEC, where nothing could push meanwhile: timed out right away
+            outputStream.write(RespWriter.NULL_ARRAY);
+        }
+    }
+
+    // LMOVE/BLMOVE source destination LEFT|RIGHT LEFT|RIGHT [timeout]
+    private void handleLmove(OutputBuffer outputStream, RespCommand cmd, boolean blocking) throws IOException {
+        boolean fromLeft = cmd.is(3, "LEFT");
+        boolean toLeft = cmd.is(4, "LEFT");
+        if (!fromLeft && !cmd.is(3, "RIGHT") || !toLeft && !cmd.is(4, "RIGHT")) {
+            outputStream.write(RespWriter.ERR_SYNTAX);
+            return;
+        }
+        double timeout = 0;
+        if (blocking) {
+            timeout = parseTimeout(outputStream, cmd, 5);
+            if (timeout < 0) {
+                return;
+            }
+        }
+        byte[] source = cmd.bytes(1);
+        byte[] destination = cmd.bytes(2);
+        Blocking.Waiter waiter = blocking && !executing ? new Blocking.Waiter(new byte[][] {source}, fromLeft, destination, toLeft) : null;
+        byte[] element = move(source, destination, fromLeft, toLeft, waiter);
+        if (element == WRONG_TYPE) {
+            outputStream.write(RespWriter.ERR_WRONGTYPE);
+        } else if (element != null) {
+            RespWriter.bulk(outputStream, element);
+        } else if (waiter != null) {
+            awaitReply(outputStream, waiter, timeout);
+        } else {
+            outputStream.write(RespWriter.NULL_BULK);
+        }
+    }
+
+    private static final byte[] WRONG_TYPE = new byte[0];
+
+    // Moves one element between two lists with both shards locked, so nobody sees it in
+    // neither list. null when the source is empty; the waiter, if any, is then registered
+    // on the source before its lock is dropped.
+    private static byte[] move(byte[] source, byte[] destination, boolean fromLeft, boolean toLeft, Blocking.Waiter waiter) {
+        long now = System.currentTimeMillis();
+        Shard from = Keyspace.shard(source);
+        Shard to = Keyspace.shard(destination);
+        byte[] element;
+        List<Blocking.Delivery> deliveries;
+        Keyspace.lockPair(from, to);
+        try {
+            RedisObject value = from.lookupForWrite(source, now);
+            if (value == null) {
+                if (waiter != null) {
+                    Blocking.block(from, source, waiter);
+                }
+                return null;
+            }
+            RedisObject target = to.lookupForWrite(destination, now);
+            if (!(value instanceof ListObject) || target != null && !(target instanceof ListObject)) {
+                return WRONG_TYPE;
+            }
+            ListObject list = (ListObject) value;
+            element = fromLeft ? list.pollFirst() : list.pollLast();
+            if (list.isEmpty()) {
+                from.delete(source);
+            }
+            ListObject dest = to.listForWrite(destination, now);
+            if (toLeft) {
+                dest.addFirst(element);
+            } else {
+                dest.addLast(element);
+            }
+            Propagation.feed(Propagation.LMOVE, source, destination, fromLeft ? Propagation.LEFT : Propagation.RIGHT, toLeft ? Propagation.LEFT : Propagation.RIGHT);
+            deliveries = Blocking.serve(to, destination, dest, null);
+        } finally {
+            Keyspace.unlockPair(from, to);
+        }
+        Blocking.deliver(deliveries);
+        return element;
+    }
+
+    // Seconds as a float, 0 meaning forever. -1 once an error has been written.
+    private static double parseTimeout(OutputBuffer outputStream, RespCommand cmd, int i) {
+        double timeout;
+        try {
+            timeout = cmd.doubleValue(i);
+        } catch (NumberFormatException e) {
+            timeout = Double.NaN;
+        }
+        if (Double.isNaN(timeout) || Double.isInfinite(timeout)) {
+            outputStream.write(RespWriter.ERR_INVALID_TIMEOUT);
+            return -1;
+        }
+        if (timeout < 0) {
+            RespWriter.error(outputStream, "ERR timeout is negative");
+            return -1;
+        }
+        return timeout;
+    }
+
+    // Waits for a registered waiter to be served or to time out. The NIO connection only
+    // stops reading until the reply is handed to its loop; in thread-per-connection mode
+    // the connection's own thread waits, as it has nothing else to do.
+    private void awaitReply(OutputBuffer outputStream, Blocking.Waiter waiter, double timeout) throws IOException {
+        Stats.blockedClients.increment();
+        waiter.result.whenComplete((reply, failure) -> Stats.blockedClients.decrement());
+        if (timeout > 0) {
+            Blocking.scheduleTimeout(waiter, System.currentTimeMillis() + (long) Math.ceil(timeout * 1000));
+        }
+        if (connection != null) {
+            blocked = waiter;
+            connection.suspend();
+            waiter.result.thenAccept(reply -> {
+                blocked = null;
+                connection.resume(reply);
+            });
+            return;
+        }
+        // Replies to requests pipelined ahead of this one must not wait for the pop.
+        outputStream.flush();
+        long waitStarted = System.nanoTime();
+        try {
+            waiter.result.get().accept(outputStream);
+        } catch (InterruptedException | ExecutionException | CancellationException e) {
+            Blocking.cancel(waiter);
+            outputStream.write(waiter.timeoutReply());
+        }
+        waitedNanos += System.nanoTime() - waitStarted;
+    }
+
+    private void handleRpush(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] firstKey = cmd.bytes(1);
+        int res = 0;
+        List<Blocking.Delivery> deliveries;
+
+        Shard shard = Keyspace.shard(firstKey);
+        shard.lock.lock();
+        try {
+            ListObject queue = shard.listForWrite(firstKey, System.currentTimeMillis());
+            if (queue == null) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            for (int i = 2; i < cmd.argc(); i++) {
+                queue.addLast(cmd.array(), cmd.offset(i), cmd.length(i));
+            }
+            res = queue.size();
+            Propagation.feed(cmd);
+            // the reply counts the pushed length, waiters are served after
+            deliveries = Blocking.serve(shard, firstKey, queue, null);
+        } finally {
+            shard.lock.unlock();
+        }
+        Blocking.deliver(deliveries);
+
+        RespWriter.integer(outputStream, res);
+    }
+    // --- hashes
+
+    // HSET key field value [field value ...]
+    private void handleHset(OutputBuffer outputStream, RespCommand cmd) {
+        if (cmd.argc() % 2 != 0) {
+            RespWriter.error(outputStream, "ERR wrong number of arguments for 'hset' command");
+            return;
+        }
+        byte[] key = cmd.bytes(1);
+        int added = 0;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            HashObject hash = shard.hashForWrite(key, System.currentTimeMillis());
+            if (hash == null) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            for (int i = 2; i < cmd.argc(); i += 2) {
+                if (hash.set(cmd.bytes(i), cmd.bytes(i + 1))) {
+                    added++;
+                }
+            }
+            Propagation.feed(cmd);
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, added);
+    }
+
+    private void handleHget(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        byte[] value = null;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof HashObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            if (found != null) {
+                value = ((HashObject) found).get(cmd.bytes(2));
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        if (value == null) {
+            outputStream.write(RespWriter.NULL_BULK);
+        } else {
+            RespWriter.bulk(outputStream, value);
+        }
+    }
+
+    // Written under the lock, like LRANGE.
+    private void handleHgetall(OutputBuffer outputStream, RespCommand cmd) throws IOException {
+        byte[] key = cmd.bytes(1);
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof HashObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            if (found == null) {
+                outputStream.write(RespWriter.EMPTY_ARRAY);
+                return;
+            }
+            HashObject hash = (HashObject) found;
+            RespWriter.arrayHeader(outputStream, 2 * hash.size());
+            hash.forEach((field, value) -> {
+                RespWriter.bulk(outputStream, field);
+                RespWriter.bulk(outputStream, value);
+            });
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // HINCRBY key field increment
+    private void handleHincrby(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        byte[] field = cmd.bytes(2);
+        long increment;
+        try {
+            increment = cmd.longValue(3);
+        } catch (NumberFormatException e) {
+            outputStream.write(RespWriter.ERR_NOT_INTEGER);
+            return;
+        }
+        long result;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            // checked before hashForWrite would create the key
+            RedisObject found = shard.lookupForWrite(key, now);
+            if (found != null && !(found instanceof HashObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            byte[] current = found == null ? null : ((HashObject) found).get(field);
+            long value = 0;
+            if (current != null) {
+                String s = new String(current, StandardCharsets.US_ASCII);
+                try {
+                    value = Long.parseLong(s);
+                } catch (NumberFormatException e) {
+                    s = null;
+                }
+                // only the canonical form, as Redis' string2ll: no '+', no leading zeros
+                if (s == null || !Long.toString(value).equals(s)) {
+                    RespWriter.error(outputStream, "ERR hash value is not an integer");
+                    return;
+                }
+            }
+            try {
+                result = Math.addExact(value, increment);
+            } catch (ArithmeticException e) {
+                RespWriter.error(outputStream, "ERR increment or decrement would overflow");
+                return;
+            }
+            shard.hashForWrite(key, now).set(field, Long.toString(result).getBytes(StandardCharsets.US_ASCII));
+            Propagation.feed(cmd);
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, result);
+    }
+
+    // HDEL key field [field ...]
+    private void handleHdel(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        int deleted = 0;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookupForWrite(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof HashObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            HashObject hash = (HashObject) found;
+            if (hash != null) {
+                for (int i = 2; i < cmd.argc(); i++) {
+                    if (hash.delete(cmd.bytes(i))) {
+                        deleted++;
+                    }
+                }
+                if (deleted > 0) {
+                    Propagation.feed(cmd);
+                }
+                if (hash.isEmpty()) {
+                    shard.delete(key);
+                }
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, deleted);
+    }
+
+    private void handleHlen(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        int len;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof HashObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            len = found == null ? 0 : ((HashObject) found).size();
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, len);
+    }
+
+    // --- sets
+
+    // SADD key member [member ...]
+    private void handleSadd(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        int added = 0;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            SetObject set = shard.setForWrite(key, System.currentTimeMillis());
+            if (set == null) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            for (int i = 2; i < cmd.argc(); i++) {
+                if (set.add(cmd.bytes(i))) {
+                    added++;
+                }
+            }
+            if (added > 0) {
+                Propagation.feed(cmd);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, added);
+    }
+
+    // SREM key member [member ...]
+    private void handleSrem(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        int removed = 0;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookupForWrite(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof SetObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            SetObject set = (SetObject) found;
+            if (set != null) {
+                for (int i = 2; i < cmd.argc(); i++) {
+                    if (set.remove(cmd.bytes(i))) {
+                        removed++;
+                    }
+                }
+                if (removed > 0) {
+                    Propagation.feed(cmd);
+                }
+                if (set.isEmpty()) {
+                    shard.delete(key);
+                }
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, removed);
+    }
+
+    private void handleSismember(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        boolean member;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof SetObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            member = found != null && ((SetObject) found).contains(cmd.bytes(2));
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, member ? 1 : 0);
+    }
+
+    private void handleScard(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        int len;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof SetObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            len = found == null ? 0 : ((SetObject) found).size();
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, len);
+    }
+
+    // Written under the lock, like LRANGE.
+    private void handleSmembers(OutputBuffer outputStream, RespCommand cmd) throws IOException {
+        byte[] key = cmd.bytes(1);
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof SetObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            if (found == null) {
+                outputStream.write(RespWriter.EMPTY_ARRAY);
+                return;
+            }
+            SetObject set = (SetObject) found;
+            RespWriter.arrayHeader(outputStream, set.size());
+            set.forEach(member -> RespWriter.bulk(outputStream, member));
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // SINTER key [key ...]: the members of the smallest set that all the others have.
+    // The keys' shards are locked together so the result is one point in time.
+    private void handleSinter(OutputBuffer outputStream, RespCommand cmd) throws IOException {
+        byte[][] keys = new byte[cmd.argc() - 1][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = cmd.bytes(i + 1);
+        }
+        List<byte[]> result = new ArrayList<>();
+        Shard[] locked = Keyspace.lockAll(keys);
+        try {
+            long now = System.currentTimeMillis();
+            SetObject[] sets = new SetObject[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                RedisObject found = Keyspace.shard(keys[i]).lookup(keys[i], now);
+                if (found == null) {
+                    // a missing key is an empty set, and so is the intersection
+                    outputStream.write(RespWriter.EMPTY_ARRAY);
+                    return;
+                }
+                if (!(found instanceof SetObject)) {
+                    outputStream.write(RespWriter.ERR_WRONGTYPE);
+                    return;
+                }
+                sets[i] = (SetObject) found;
+            }
+            Arrays.sort(sets, Comparator.comparingInt(SetObject::size));
+            sets[0].forEach(member -> {
+                for (int i = 1; i < sets.length; i++) {
+                    if (!sets[i].contains(member)) {
+                        return;
+                    }
+                }
+                result.add(member);
+            });
+        } finally {
+            Keyspace.unlockAll(locked);
+        }
+        RespWriter.arrayHeader(outputStream, result.size());
+        for (byte[] member : result) {
+            RespWriter.bulk(outputStream, member);
+        }
+    }
+
+    // --- sorted sets
+
+    // ZADD key [NX|XX] [GT|LT] [CH] [INCR] score member [score member ...]
+    private void handleZadd(OutputBuffer outputStream, RespCommand cmd) {
+        boolean nx = false, xx = false, gt = false, lt = false, ch = false, incr = false;
+        int i = 2;
+        for (; i < cmd.argc(); i++) {
+            if (cmd.is(i, "NX")) {
+                nx = true;
+            } else if (cmd.is(i, "XX")) {
+                xx = true;
+            } else if (cmd.is(i, "GT")) {
+                gt = true;
+            } else if (cmd.is(i, "LT")) {
+                lt = true;
+            } else if (cmd.is(i, "CH")) {
+                ch = true;
+            } else if (cmd.is(i, "INCR")) {
+                incr = true;
+            } else {
+                break;
+            }
+        }
+        int pairs = (cmd.argc() - i) / 2;
+        if ((cmd.argc() - i) % 2 != 0 || pairs == 0) {
+            outputStream.write(RespWriter.ERR_SYNTAX);
+            return;
+        }
+        if (nx && xx) {
+            RespWriter.error(outputStream, "ERR XX and NX options at the same time are not compatible");
+            return;
+        }
+        if ((gt && lt) || (nx && (gt || lt))) {
+            RespWriter.error(outputStream, "ERR GT, LT, and/or NX options at the same time are not compatible");
+            return;
+        }
+        if (incr && pairs > 1) {
+            RespWriter.error(outputStream, "ERR INCR option supports a single increment-element pair");
+            return;
+        }
+        double[] scores = new double[pairs];
+        for (int p = 0; p < pairs; p++) {
+            try {
+                scores[p] = cmd.scoreValue(i + 2 * p);
+            } catch (NumberFormatException e) {
+                outputStream.write(RespWriter.ERR_NOT_FLOAT);
+                return;
+            }
+        }
+        byte[] key = cmd.bytes(1);
+        int added = 0;
+        int changed = 0;
+        // INCR's reply, NaN when the member was left alone
+        double result = Double.NaN;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            RedisObject found = shard.lookupForWrite(key, now);
+            if (found != null && !(found instanceof ZSetObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            ZSetObject zset = (ZSetObject) found;
+            if (zset == null && !xx) {
+                zset = shard.zsetForWrite(key, now);
+            }
+            for (int p = 0; p < pairs && zset != null; p++) {
+                byte[] member = cmd.bytes(i + 2 * p + 1);
+                double score = scores[p];
+                double current = zset.score(member);
+                if (Double.isNaN(current)) {
+                    if (xx) {
+                        continue;
+                    }
+                    zset.add(member, score);
+                    added++;
+                    result = score;
+                    continue;
+                }
+                if (nx) {
+                    continue;
+                }
+                if (incr) {
+                    score += current;
+                    if (Double.isNaN(score)) {
+                        RespWriter.error(outputStream, "ERR resulting score is not a number (NaN)");
+                        return;
+                    }
+                }
+                if ((gt && score <= current) || (lt && score >= current)) {
+                    continue;
+                }
+                result = score;
+                if (score != current) {
+                    zset.add(member, score);
+                    changed++;
+                }
+            }
+            if (added + changed > 0) {
+                Propagation.feed(cmd);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        if (!incr) {
+            RespWriter.integer(outputStream, ch ? added + changed : added);
+        } else if (Double.isNaN(result)) {
+            outputStream.write(RespWriter.NULL_BULK);
+        } else {
+            RespWriter.score(outputStream, result);
+        }
+    }
+
+    // ZRANGE key start stop [BYSCORE] [REV] [LIMIT offset count] [WITHSCORES], and
+    // ZRANGEBYSCORE key min max [WITHSCORES] [LIMIT offset count]. By index or by score,
+    // both come down to a span of ranks, which the skiplist finds in O(log n); the
+    // reply is written under the lock, like LRANGE.
+    private void handleZrange(OutputBuffer outputStream, RespCommand cmd, boolean byScoreCommand) throws IOException {
+        boolean byScore = byScoreCommand;
+        boolean reverse = false;
+        boolean withScores = false;
+        boolean limited = false;
+        long offset = 0;
+        long count = -1;
+        for (int i = 4; i < cmd.argc(); i++) {
+            if (cmd.is(i, "WITHSCORES")) {
+                withScores = true;
+            } else if (cmd.is(i, "BYSCORE") && !byScoreCommand) {
+                byScore = true;
+            } else if (cmd.is(i, "REV") && !byScoreCommand) {
+                reverse = true;
+            } else if (cmd.is(i, "LIMIT") && i + 2 < cmd.argc()) {
+                try {
+                    offset = cmd.longValue(i + 1);
+                    count = cmd.longValue(i + 2);
+                } catch (NumberFormatException e) {
+                    outputStream.write(RespWriter.ERR_NOT_INTEGER);
+                    return;
+                }
+                limited = true;
+                i += 2;
+            } else {
+                outputStream.write(RespWriter.ERR_SYNTAX);
+                return;
+            }
+        }
+        if (limited && !byScore) {
+            RespWriter.error(outputStream, "ERR syntax error, LIMIT is only supported in combination with either BYSCORE or BYLEX");
+            return;
+        }
+        long start = 0;
+        long end = 0;
+        double min = 0;
+        double max = 0;
+        boolean minExclusive = false;
+        boolean maxExclusive = false;
+        if (byScore) {
+            // ZRANGE ... BYSCORE REV takes max before min, like ZREVRANGEBYSCORE
+            int minArg = reverse ? 3 : 2;
+            int maxArg = reverse ? 2 : 3;
+            minExclusive = cmd.length(minArg) > 0 && cmd.array()[cmd.offset(minArg)] == '(';
+            maxExclusive = cmd.length(maxArg) > 0 && cmd.array()[cmd.offset(maxArg)] == '(';
+            try {
+                min = parseScoreBound(cmd, minArg, minExclusive);
+                max = parseScoreBound(cmd, maxArg, maxExclusive);
+            } catch (NumberFormatException e) {
+                RespWriter.error(outputStream, "ERR min or max is not a float");
+                return;
+            }
+        } else {
+            try {
+                start = cmd.longValue(2);
+                end = cmd.longValue(3);
+            } catch (NumberFormatException e) {
+                outputStream.write(RespWriter.ERR_NOT_INTEGER);
+                return;
+            }
+        }
+        byte[] key = cmd.bytes(1);
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof ZSetObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            if (found == null) {
+                outputStream.write(RespWriter.EMPTY_ARRAY);
+                return;
+            }
+            ZSetObject zset = (ZSetObject) found;
+            int size = zset.size();
+            if (byScore) {
+                long first = zset.firstRankAtLeast(min, minExclusive);
+                long last = zset.lastRankAtMost(max, maxExclusive);
+                if (reverse) {
+                    long from = size - 1 - last;
+                    last = size - 1 - first;
+                    first = from;
+                }
+                if (offset < 0) {
+                    first = last + 1;
+                } else {
+                    first += offset;
+                }
+                if (count >= 0) {
+                    last = Math.min(last, first + count - 1);
+                }
+                start = first;
+                end = last;
+            } else {
+                if (start < 0) start += size;
+                if (end < 0) end += size;
+                if (start < 0) start = 0;
+                if (end >= size) end = size - 1;
+            }
+            if (start > end || start >= size) {
+                outputStream.write(RespWriter.EMPTY_ARRAY);
+                return;
+            }
+            boolean scores = withScores;
+            RespWriter.arrayHeader(outputStream, (int) (end - start + 1) * (scores ? 2 : 1));
+            zset.range((int) start, (int) end, reverse, (member, score) -> {
+                RespWriter.bulk(outputStream, member);
+                if (scores) {
+                    RespWriter.score(outputStream, score);
+                }
+            });
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // A ZRANGEBYSCORE bound: a score, with a '(' in front when exclusive.
+    private static double parseScoreBound(RespCommand cmd, int i, boolean exclusive) {
+        if (!exclusive) {
+            return cmd.scoreValue(i);
+        }
+        String s = cmd.string(i).substring(1);
+        if (s.equalsIgnoreCase("inf") || s.equalsIgnoreCase("+inf")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (s.equalsIgnoreCase("-inf")) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        double value = Double.parseDouble(s);
+        if (Double.isNaN(value) || !s.equals(s.trim())) {
+            throw new NumberFormatException(s);
+        }
+        return value;
+    }
+
+    // ZRANK key member [WITHSCORE]
+    private void handleZrank(OutputBuffer outputStream, RespCommand cmd) {
+        boolean withScore = cmd.argc() == 4 && cmd.is(3, "WITHSCORE");
+        if (cmd.argc() > 3 && !withScore) {
+            outputStream.write(RespWriter.ERR_SYNTAX);
+            return;
+        }
+        byte[] key = cmd.bytes(1);
+        byte[] member = cmd.bytes(2);
+        long rank = -1;
+        double score = 0;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof ZSetObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            if (found != null) {
+                ZSetObject zset = (ZSetObject) found;
+                rank = zset.rank(member);
+                score = zset.score(member);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        if (rank < 0) {
+            outputStream.write(withScore ? RespWriter.NULL_ARRAY : RespWriter.NULL_BULK);
+        } else if (withScore) {
+            RespWriter.arrayHeader(outputStream, 2);
+            RespWriter.integer(outputStream, rank);
+            RespWriter.score(outputStream, score);
+        } else {
+            RespWriter.integer(outputStream, rank);
+        }
+    }
+
+    // ZREM key member [member ...]
+    private void handleZrem(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        int removed = 0;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookupForWrite(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof ZSetObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            ZSetObject zset = (ZSetObject) found;
+            if (zset != null) {
+                for (int i = 2; i < cmd.argc(); i++) {
+                    if (zset.remove(cmd.bytes(i))) {
+                        removed++;
+                    }
+                }
+                if (removed > 0) {
+                    Propagation.feed(cmd);
+                }
+                if (zset.isEmpty()) {
+                    shard.delete(key);
+                }
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, removed);
+    }
+
+    private void handleZcard(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        int len;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof ZSetObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            len = found == null ? 0 : ((ZSetObject) found).size();
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, len);
+    }
+
+    private void handleZscore(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        double score = Double.NaN;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof ZSetObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            if (found != null) {
+                score = ((ZSetObject) found).score(cmd.bytes(2));
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        if (Double.isNaN(score)) {
+            outputStream.write(RespWriter.NULL_BULK);
+        } else {
+            RespWriter.score(outputStream, score);
+        }
+    }
+
+    // --- streams
+
+    private static final String ERR_INVALID_STREAM_ID = "ERR Invalid stream ID specified as stream command argument";
+
+    // XADD key [NOMKSTREAM] [MAXLEN [=|~] threshold] *|ms-*|id field value [field value ...]
+    // Propagated with the ID it got, and a trim as the exact XTRIM it amounted to.
+    private void handleXadd(OutputBuffer outputStream, RespCommand cmd) {
+        boolean noMkStream = false;
+        long maxLen = -1;
+        boolean approximate = false;
+        int i = 2;
+        for (; i < cmd.argc(); i++) {
+            if (cmd.is(i, "NOMKSTREAM")) {
+                noMkStream = true;
+            } else if (cmd.is(i, "MAXLEN") && i + 1 < cmd.argc()) {
+                if (cmd.is(i + 1, "~") || cmd.is(i + 1, "=")) {
+                    approximate = cmd.is(++i, "~");
+                }
+                maxLen = parseMaxLen(outputStream, cmd, ++i);
+                if (maxLen < 0) {
+                    return;
+                }
+            } else {
+                break;
+            }
+        }
+        int pairs = cmd.argc() - i - 1;
+        if (pairs <= 0 || pairs % 2 != 0) {
+            RespWriter.error(outputStream, "ERR wrong number of arguments for 'xadd' command");
+            return;
+        }
+        // null for "*"; an ID with seq -1 standing for "ms-*"
+        StreamId requested = null;
+        boolean autoSeq = false;
+        if (!cmd.is(i, "*")) {
+            byte[] arg = cmd.bytes(i);
+            autoSeq = arg.length > 2 && arg[arg.length - 1] == '*' && arg[arg.length - 2] == '-';
+            requested = StreamId.parse(autoSeq ? Arrays.copyOf(arg, arg.length - 2) : arg, 0);
+            if (requested == null) {
+                RespWriter.error(outputStream, ERR_INVALID_STREAM_ID);
+                return;
+            }
+            if (!autoSeq && requested.equals(StreamId.MIN)) {
+                RespWriter.error(outputStream, "ERR The ID specified in XADD must be greater than 0-0");
+                return;
+            }
+        }
+        byte[][] fields = new byte[pairs][];
+        for (int k = 0; k < pairs; k++) {
+            fields[k] = cmd.bytes(i + 1 + k);
+        }
+
+        byte[] key = cmd.bytes(1);
+        long now = System.currentTimeMillis();
+        StreamId id;
+        List<Blocking.Delivery> deliveries;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookupForWrite(key, now);
+            if (found != null && !(found instanceof StreamObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            if (found == null && noMkStream) {
+                outputStream.write(RespWriter.NULL_BULK);
+                return;
+            }
+            StreamObject stream = (StreamObject) found;
+            StreamId last = stream == null ? StreamId.MIN : stream.lastId();
+            if (requested == null) {
+                id = Long.compareUnsigned(now, last.ms) > 0 ? new StreamId(now, 0) : last.next();
+            } else if (autoSeq) {
+                int c = Long.compareUnsigned(requested.ms, last.ms);
+                id = c > 0 ? requested : c == 0 ? last.next() : null;
+                if (id != null && id.ms != requested.ms) {
+                    id = null;
+                }
+            } else {
+                id = requested.compareTo(last) > 0 ? requested : null;
+            }
+            if (id == null) {
+                if (requested == null || autoSeq && requested.ms == last.ms && last.seq == -1) {
+                    RespWriter.error(outputStream, "ERR The stream has exhausted the last possible ID, unable to add more items");
+                } else {
+                    RespWriter.error(outputStream, "ERR The ID specified in XADD is equal or smaller than the target stream top item");
+                }
+                return;
+            }
+            if (stream == null) {
+                stream = shard.streamForWrite(key, now);
+            }
+            stream.append(id, fields);
+            byte[][] argv = new byte[3 + pairs][];
+            argv[0] = Propagation.XADD;
+            argv[1] = key;
+            argv[2] = id.toBytes();
+            System.arraycopy(fields, 0, argv, 3, pairs);
+            Propagation.feed(argv);
+            if (maxLen >= 0 && stream.trim(maxLen, approximate) > 0) {
+                Propagation.feed(Propagation.XTRIM, key, Propagation.MAXLEN, Propagation.decimal(stream.length()));
+            }
+            deliveries = Blocking.serve(shard, key, stream, null);
+        } finally {
+            shard.lock.unlock();
+        }
+        Blocking.deliver(deliveries);
+        RespWriter.bulk(outputStream, id.toBytes());
+    }
+
+    // The threshold of MAXLEN at i, -1 once an error has been written.
+    private static long parseMaxLen(OutputBuffer outputStream, RespCommand cmd, int i) {
+        if (i >= cmd.argc()) {
+            outputStream.write(RespWriter.ERR_SYNTAX);
+            return -1;
+        }
+        long maxLen;
+        try {
+            maxLen = cmd.longValue(i);
+        } catch (NumberFormatException e) {
+            outputStream.write(RespWriter.ERR_NOT_INTEGER);
+            return -1;
+        }
+        if (maxLen < 0) {
+            RespWriter.error(outputStream, "ERR The MAXLEN argument must be >= 0.");
+        }
+        return maxLen;
+    }
+
+    // XTRIM key MAXLEN [=|~] threshold. Propagated as the exact trim it amounted to.
+    private void handleXtrim(OutputBuffer outputStream, RespCommand cmd) {
+        if (!cmd.is(2, "MAXLEN")) {
+            outputStream.write(RespWriter.ERR_SYNTAX);
+            return;
+        }
+        int i = 3;
+        boolean approximate = false;
+        if (cmd.is(i, "~") || cmd.is(i, "=")) {
+            approximate = cmd.is(i++, "~");
+        }
+        if (i + 1 != cmd.argc()) {
+            outputStream.write(RespWriter.ERR_SYNTAX);
+            return;
+        }
+        long maxLen = parseMaxLen(outputStream, cmd, i);
+        if (maxLen < 0) {
+            return;
+        }
+        byte[] key = cmd.bytes(1);
+        long removed = 0;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookupForWrite(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof StreamObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            if (found != null) {
+                StreamObject stream = (StreamObject) found;
+                removed = stream.trim(maxLen, approximate);
+                if (removed > 0) {
+                    Propagation.feed(Propagation.XTRIM, key, Propagation.MAXLEN, Propagation.decimal(stream.length()));
+                }
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, removed);
+    }
+
+    private void handleXlen(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        long len;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof StreamObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            len = found == null ? 0 : ((StreamObject) found).length();
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, len);
+    }
+
+    // A bound of XRANGE and XPENDING: "-", "+", an ID, a bare ms (seq 0 for a start, the
+    // highest for an end), or either exclusive with a leading "(". null when invalid or
+    // an exclusive bound has nothing beyond it.
+    private static StreamId parseRangeBound(RespCommand cmd, int i, boolean start) {
+        if (cmd.is(i, "-")) {
+            return StreamId.MIN;
+        }
+        if (cmd.is(i, "+")) {
+            return StreamId.MAX;
+        }
+        byte[] arg = cmd.bytes(i);
+        boolean exclusive = arg.length > 1 && arg[0] == '(';
+        StreamId id = StreamId.parse(exclusive ? Arrays.copyOfRange(arg, 1, arg.length) : arg, start ? 0 : -1);
+        if (id == null || !exclusive) {
+            return id;
+        }
+        return start ? id.next() : id.previous();
+    }
+
+    // XRANGE key start end [COUNT count], XREVRANGE key end start [COUNT count]. The range
+    // starts from the block the tree finds for its first bound, however long the stream.
+    private void handleXrange(OutputBuffer outputStream, RespCommand cmd, boolean reverse) {
+        StreamId start = parseRangeBound(cmd, reverse ? 3 : 2, true);
+        StreamId end = parseRangeBound(cmd, reverse ? 2 : 3, false);
+        if (start == null || end == null) {
+            RespWriter.error(outputStream, ERR_INVALID_STREAM_ID);
+            return;
+        }
+        long count = -1;
+        if (cmd.argc() == 6 && cmd.is(4, "COUNT")) {
+            try {
+                count = Math.max(0, cmd.longValue(5));
+            } catch (NumberFormatException e) {
+                outputStream.write(RespWriter.ERR_NOT_INTEGER);
+                return;
+            }
+        } else if (cmd.argc() != 4) {
+            outputStream.write(RespWriter.ERR_SYNTAX);
+            return;
+        }
+        if (count == 0) {
+            outputStream.write(RespWriter.EMPTY_ARRAY);
+            return;
+        }
+        byte[] key = cmd.bytes(1);
+        List<StreamObject.Entry> entries = List.of();
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof StreamObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            if (found != null) {
+                StreamObject stream = (StreamObject) found;
+                entries = reverse ? stream.reverseRange(end, start, count) : stream.range(start, end, count);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.streamEntries(outputStream, entries);
+    }
+
+    // XREAD [COUNT count] [BLOCK milliseconds] STREAMS key [key ...] id [id ...] and
+    // XREADGROUP GROUP group consumer [COUNT count] [BLOCK milliseconds] [NOACK] STREAMS
+    // key [key ...] id [id ...]. Reads every key with something to return; when none has,
+    // BLOCK waits on all of them like BLPOP, served by the next XADD to any. A group read
+    // of ">" takes the group's new entries, any other ID reads the consumer's history,
+    // which never blocks.
+    private void handleXread(OutputBuffer outputStream, RespCommand cmd, boolean grouped) throws IOException {
+        byte[] groupName = null;
+        byte[] consumerName = null;
+        long count = 0;
+        double timeout = -1;
+        boolean noack = false;
+        int i = 1;
+        if (grouped) {
+            if (!cmd.is(1, "GROUP")) {
+                outputStream.write(RespWriter.ERR_SYNTAX);
+                return;
+            }
+            groupName = cmd.bytes(2);
+            consumerName = cmd.bytes(3);
+            i = 4;
+        }
+        int streamsAt = -1;
+        for (; i < cmd.argc(); i++) {
+            if (cmd.is(i, "STREAMS")) {
+                streamsAt = i;
+                break;
+            } else if (cmd.is(i, "COUNT") && i + 1 < cmd.argc()) {
+                try {
+                    count = Math.max(0, cmd.longValue(++i));
+                } catch (NumberFormatException e) {
+                    outputStream.write(RespWriter.ERR_NOT_INTEGER);
+                    return;
+                }
+            } else if (cmd.is(i, "BLOCK") && i + 1 < cmd.argc()) {
+                long ms;
+                try {
+                    ms = cmd.longValue(++i);
+                } catch (NumberFormatException e) {
+                    outputStream.write(RespWriter.ERR_INVALID_TIMEOUT);
+                    return;
+                }
+                if (ms < 0) {
+                    RespWriter.error(outputStream, "ERR timeout is negative");
+                    return;
+                }
+                timeout = ms / 1000.0;
+            } else if (grouped && cmd.is(i, "NOACK")) {
+                noack = true;
+            } else {
+                outputStream.write(RespWriter.ERR_SYNTAX);
+                return;
+            }
+        }
+        int n = (cmd.argc() - streamsAt - 1) / 2;
+        if (streamsAt < 0 || n == 0 || (cmd.argc() - streamsAt - 1) % 2 != 0) {
+            RespWriter.error(outputStream, "ERR Unbalanced '" + (grouped ? "xreadgroup" : "xread")
+                    + "' list of streams: for each stream key an ID or '" + (grouped ? ">" : "$") + "' must be specified.");
+            return;
+        }
+        byte[][] keys = new byte[n][];
+        // null for "$" (XREAD) or ">" (XREADGROUP), resolved under the lock
+        StreamId[] ids = new StreamId[n];
+        // inside EXEC a BLOCK read is an ordinary one
+        boolean blockable = timeout >= 0 && !executing;
+        for (int k = 0; k < n; k++) {
+            keys[k] = cmd.bytes(streamsAt + 1 + k);
+            int arg = streamsAt + 1 + n + k;
+            if (!cmd.is(arg, grouped ? ">" : "$")) {
+                ids[k] = StreamId.parse(cmd.bytes(arg), 0);
+                if (ids[k] == null) {
+                    RespWriter.error(outputStream, ERR_INVALID_STREAM_ID);
+                    return;
+                }
+                blockable &= !grouped;
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        List<byte[]> readKeys = new ArrayList<>();
+        List<List<StreamObject.Entry>> reads = new ArrayList<>();
+        Blocking.Waiter waiter = null;
+        StreamId[] after = new StreamId[n];
+        String error = null;
+        for (int k = 0; k < n; k++) {
+            byte[] key = keys[k];
+            List<StreamObject.Entry> entries;
+            Shard shard = Keyspace.shard(key);
+            shard.lock.lock();
+            try {
+                RedisObject found = grouped ? shard.lookupForWrite(key, now) : shard.lookup(key, now);
+                StreamObject stream = found instanceof StreamObject ? (StreamObject) found : null;
+                StreamObject.Group group = grouped && stream != null ? stream.group(groupName) : null;
+                if (found != null && stream == null) {
+                    error = "WRONGTYPE Operation against a key holding the wrong kind of value";
+                } else if (grouped && group == null) {
+                    error = "NOGROUP No such key '" + new String(key, StandardCharsets.UTF_8) + "' or consumer group '"
+                            + new String(groupName, StandardCharsets.UTF_8) + "' in XREADGROUP with GROUP option";
+                }
+                boolean ready;
+                if (error != null) {
+                    ready = true;
+                } else if (grouped) {
+                    ready = ids[k] != null || stream.lastId().compareTo(group.lastDelivered) > 0;
+                } else {
+                    after[k] = ids[k] != null ? ids[k] : stream == null ? StreamId.MIN : stream.lastId();
+                    ready = stream != null && stream.lastId().compareTo(after[k]) > 0;
+                }
+                if (!ready) {
+                    if (blockable && reads.isEmpty()) {
+                        // registered before the lock is dropped, so no XADD can slip past us
+                        if (waiter == null) {
+                            waiter = new Blocking.Waiter(keys, new Blocking.StreamRead(after, count, groupName, consumerName, noack));
+                        }
+                        Blocking.block(shard, key, waiter);
+                    }
+                    continue;
+                }
+                if (waiter != null && reads.isEmpty() && !waiter.claim()) {
+                    // already served through an earlier key, that reply (not ours) is on its way
+                    error = null;
+                    break;
+                }
+                if (error != null) {
+                    break;
+                }
+                if (!grouped) {
+                    entries = stream.range(after[k].next(), StreamId.MAX, count);
+                } else if (ids[k] == null) {
+                    entries = stream.readGroup(key, group, consumerName, count, noack, now);
+                } else {
+                    StreamObject.Consumer consumer = stream.consumerFor(key, group, consumerName, now);
+                    entries = stream.readPending(consumer, ids[k], count, now);
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+            readKeys.add(key);
+            reads.add(entries);
+        }
+        if (waiter != null && waiter.isClaimed() && (error != null || !reads.isEmpty())) {
+            // claimed by this call rather than served, so it has no reply of its own
+            Blocking.unblock(waiter);
+            waiter = null;
+        }
+        if (error != null) {
+            RespWriter.error(outputStream, error);
+            return;
+        }
+        if (!reads.isEmpty()) {
+            RespWriter.arrayHeader(outputStream, reads.size());
+            for (int k = 0; k < reads.size(); k++) {
+                RespWriter.arrayHeader(outputStream, 2);
+                RespWriter.bulk(outputStream, readKeys.get(k));
+                RespWriter.streamEntries(outputStream, reads.get(k));
+            }
+        } else if (waiter != null) {
+            awaitReply(outputStream, waiter, timeout);
+        } else {
+            outputStream.write(RespWriter.NULL_ARRAY);
+        }
+    }
+
+    // XACK key group id [id ...]
+    private void handleXack(OutputBuffer outputStream, RespCommand cmd) {
+        StreamId[] ids = new StreamId[cmd.argc() - 3];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = StreamId.parse(cmd.bytes(i + 3), 0);
+            if (ids[i] == null) {
+                RespWriter.error(outputStream, ERR_INVALID_STREAM_ID);
+                return;
+            }
+        }
+        byte[] key = cmd.bytes(1);
+        long acked = 0;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookupForWrite(key, System.currentTimeMillis());
+            if (found != null && !(found instanceof StreamObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            StreamObject stream = (StreamObject) found;
+            StreamObject.Group group = stream == null ? null : stream.group(cmd.bytes(2));
+            if (group != null) {
+                for (StreamId id : ids) {
+                    if (stream.ack(group, id)) {
+                        acked++;
+                    }
+                }
+            }
+            if (acked > 0) {
+                Propagation.feed(cmd);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.integer(outputStream, acked);
+    }
+
+    private static String noGroup(byte[] key, byte[] group) {
+        return "NOGROUP No such key '" + new String(key, StandardCharsets.UTF_8) + "' or consumer group '"
+                + new String(group, StandardCharsets.UTF_8) + "'";
+    }
+
+    // XPENDING key group: the summary of the group's pending entries.
+    // XPENDING key group [IDLE min-idle-time] start end count [consumer]: the entries
+    // themselves, each with its consumer, idle time and delivery count.
+    private void handleXpending(OutputBuffer outputStream, RespCommand cmd) {
+        boolean extended = cmd.argc() > 3;
+        long minIdle = 0;
+        StreamId start = null;
+        StreamId end = null;
+        long count = 0;
+        byte[] consumerName = null;
+        if (extended) {
+            int i = 3;
+            try {
+                if (cmd.is(i, "IDLE") && cmd.argc() > i + 1) {
+                    minIdle = cmd.longValue(i + 1);
+                    i += 2;
+                }
+                if (cmd.argc() < i + 3 || cmd.argc() > i + 4) {
+                    outputStream.write(RespWriter.ERR_SYNTAX);
+                    return;
+                }
+                start = parseRangeBound(cmd, i, true);
+                end = parseRangeBound(cmd, i + 1, false);
+                count = cmd.longValue(i + 2);
+            } catch (NumberFormatException e) {
+                outputStream.write(RespWriter.ERR_NOT_INTEGER);
+                return;
+            }
+            if (start == null || end == null) {
+                RespWriter.error(outputStream, ERR_INVALID_STREAM_ID);
+                return;
+            }
+            if (cmd.argc() == i + 4) {
+                consumerName = cmd.bytes(i + 3);
+            }
+        }
+
+        byte[] key = cmd.bytes(1);
+        byte[] groupName = cmd.bytes(2);
+        long now = System.currentTimeMillis();
+        // summary: count, lowest and highest ID, then each consumer with entries and
+        // how many; extended: the entries
+        long total = 0;
+        StreamId lowest = null;
+        StreamId highest = null;
+        List<byte[]> consumers = new ArrayList<>();
+        List<Long> counts = new ArrayList<>();
+        List<StreamObject.Pending> entries = new ArrayList<>();
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, now);
+            if (found != null && !(found instanceof StreamObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            StreamObject stream = (StreamObject) found;
+            StreamObject.Group group = stream == null ? null : stream.group(groupName);
+            if (group == null) {
+                RespWriter.error(outputStream, noGroup(key, groupName));
+                return;
+            }
+            if (!extended) {
+                total = group.pending.size();
+                if (total > 0) {
+                    lowest = group.pending.first().id;
+                    highest = group.pending.last().id;
+                    for (StreamObject.Consumer consumer : group.consumers.values()) {
+                        if (!consumer.pending.isEmpty()) {
+                            consumers.add(consumer.name);
+                            counts.add((long) consumer.pending.size());
+                        }
+                    }
+                }
+            } else if (count > 0) {
+                RadixTree<StreamObject.Pending> tree = group.pending;
+                if (consumerName != null) {
+                    StreamObject.Consumer consumer = stream.consumer(group, consumerName);
+                    tree = consumer == null ? null : consumer.pending;
+                }
+                StreamObject.Pending p = tree == null ? null : tree.ceiling(start.key());
+                for (; p != null && p.id.compareTo(end) <= 0; p = StreamObject.higher(tree, p.id)) {
+                    if (now - p.deliveryTime < minIdle) {
+                        continue;
+                    }
+                    // copied: the reply is written after unlocking
+                    entries.add(new StreamObject.Pending(p.id, p.consumer, p.deliveryTime, p.deliveryCount));
+                    if (entries.size() == count) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        if (extended) {
+            RespWriter.arrayHeader(outputStream, entries.size());
+            for (int k = 0; k < entries.size(); k++) {
+                StreamObject.Pending p = entries.get(k);
+                RespWriter.arrayHeader(outputStream, 4);
+                RespWriter.bulk(outputStream, p.id.toBytes());
+                RespWriter.bulk(outputStream, p.consumer.name);
+                RespWriter.integer(outputStream, Math.max(0, now - p.deliveryTime));
+                RespWriter.integer(outputStream, p.deliveryCount);
+            }
+            return;
+        }
+        RespWriter.arrayHeader(outputStream, 4);
+        RespWriter.integer(outputStream, total);
+        if (total == 0) {
+            outputStream.write(RespWriter.NULL_BULK);
+            outputStream.write(RespWriter.NULL_BULK);
+            outputStream.write(RespWriter.NULL_ARRAY);
+            return;
+        }
+        RespWriter.bulk(outputStream, lowest.toBytes());
+        RespWriter.bulk(outputStream, highest.toBytes());
+        RespWriter.arrayHeader(outputStream, consumers.size());
+        for (int k = 0; k < consumers.size(); k++) {
+            RespWriter.arrayHeader(outputStream, 2);
+            RespWriter.bulk(outputStream, consumers.get(k));
+            RespWriter.bulk(outputStream, Long.toString(counts.get(k)));
+        }
+    }
+
+    // XCLAIM key group consumer min-idle-time id [id ...] [IDLE ms] [TIME unix-ms]
+    // [RETRYCOUNT count] [FORCE] [JUSTID] [LASTID id]. Each claim is propagated in the
+    // absolute form readGroup uses, so a replay does not depend on the clock.
+    private void handleXclaim(OutputBuffer outputStream, RespCommand cmd) {
+        long minIdle;
+        try {
+            minIdle = Math.max(0, cmd.longValue(4));
+        } catch (NumberFormatException e) {
+            RespWriter.error(outputStream, "ERR Invalid min-idle-time argument for XCLAIM");
+            return;
+        }
+        int i = 5;
+        List<StreamId> ids = new ArrayList<>();
+        for (; i < cmd.argc(); i++) {
+            StreamId id = StreamId.parse(cmd.bytes(i), 0);
+            if (id == null) {
+                break;
+            }
+            ids.add(id);
+        }
+        long now = System.currentTimeMillis();
+        long deliveryTime = -1;
+        long retryCount = -1;
+        boolean force = false;
+        boolean justId = false;
+        StreamId lastId = null;
+        for (; i < cmd.argc(); i++) {
+            boolean more = i + 1 < cmd.argc();
+            try {
+                if (cmd.is(i, "IDLE") && more) {
+                    deliveryTime = now - cmd.longValue(++i);
+                } else if (cmd.is(i, "TIME") && more) {
+                    deliveryTime = cmd.longValue(++i);
+                } else if (cmd.is(i, "RETRYCOUNT") && more) {
+                    retryCount = cmd.longValue(++i);
+                } else if (cmd.is(i, "FORCE")) {
+                    force = true;
+                } else if (cmd.is(i, "JUSTID")) {
+                    justId = true;
+                } else if (cmd.is(i, "LASTID") && more) {
+                    lastId = StreamId.parse(cmd.bytes(++i), 0);
+                    if (lastId == null) {
+                        RespWriter.error(outputStream, ERR_INVALID_STREAM_ID);
+                        return;
+                    }
+                } else {
+                    RespWriter.error(outputStream, "ERR Unrecognized XCLAIM option '" + cmd.string(i) + "'");
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                outputStream.write(RespWriter.ERR_NOT_INTEGER);
+                return;
+            }
+        }
+        if (deliveryTime < 0 || deliveryTime > now) {
+            // in the future or unset: now, as Redis clamps it
+            deliveryTime = now;
+        }
+
+        byte[] key = cmd.bytes(1);
+        byte[] groupName = cmd.bytes(2);
+        List<StreamObject.Entry> claimed = new ArrayList<>();
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookupForWrite(key, now);
+            if (found != null && !(found instanceof StreamObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            StreamObject stream = (StreamObject) found;
+            StreamObject.Group group = stream == null ? null : stream.group(groupName);
+            if (group == null) {
+                RespWriter.error(outputStream, noGroup(key, groupName));
+                return;
+            }
+            if (lastId != null && lastId.compareTo(group.lastDelivered) > 0) {
+                group.lastDelivered = lastId;
+            }
+            StreamObject.Consumer consumer = null;
+            for (StreamId id : ids) {
+                StreamObject.Pending p = group.pending.get(id.key());
+                StreamObject.Entry entry = stream.get(id);
+                if (p == null) {
+                    // FORCE only makes up pending entries for what the stream still has
+                    if (!force || entry == null) {
+                        continue;
+                    }
+                    if (consumer == null) {
+                        consumer = stream.consumerFor(key, group, cmd.bytes(3), now);
+                    }
+                    p = stream.addPending(group, consumer, id, now, 0);
+                } else if (entry == null) {
+                    // trimmed away meanwhile: nothing left to claim
+                    stream.ack(group, id);
+                    Propagation.feed(Propagation.XACK, key, groupName, id.toBytes());
+                    continue;
+                } else if (minIdle > 0 && now - p.deliveryTime < minIdle) {
+                    continue;
+                }
+                if (consumer == null) {
+                    consumer = stream.consumerFor(key, group, cmd.bytes(3), now);
+                }
+                stream.assign(p, consumer);
+                p.deliveryTime = deliveryTime;
+                if (retryCount >= 0) {
+                    p.deliveryCount = retryCount;
+                } else if (!justId) {
+                    p.deliveryCount++;
+                }
+                consumer.seenTime = now;
+                StreamObject.feedClaim(key, group, p);
+                claimed.add(justId ? new StreamObject.Entry(id, null) : entry);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        if (!justId) {
+            RespWriter.streamEntries(outputStream, claimed);
+            return;
+        }
+        RespWriter.arrayHeader(outputStream, claimed.size());
+        for (StreamObject.Entry entry : claimed) {
+            RespWriter.bulk(outputStream, entry.id.toBytes());
+        }
+    }
+
+    // XGROUP CREATE key group id|$ [MKSTREAM], SETID key group id|$, DESTROY key group,
+    // CREATECONSUMER key group consumer, DELCONSUMER key group consumer
+    private void handleXgroup(OutputBuffer outputStream, RespCommand cmd) {
+        boolean create = cmd.is(1, "CREATE");
+        boolean setId = cmd.is(1, "SETID");
+        boolean destroy = cmd.is(1, "DESTROY");
+        boolean createConsumer = cmd.is(1, "CREATECONSUMER");
+        boolean delConsumer = cmd.is(1, "DELCONSUMER");
+        boolean mkStream = create && cmd.argc() == 6 && cmd.is(5, "MKSTREAM");
+        int argc = destroy ? 4 : create && mkStream ? 6 : 5;
+        if (!create && !setId && !destroy && !createConsumer && !delConsumer || cmd.argc() != argc) {
+            RespWriter.error(outputStream, "ERR unknown subcommand or wrong number of arguments for '" + cmd.string(1) + "'");
+            return;
+        }
+        // null for "$"
+        StreamId id = null;
+        if ((create || setId) && !cmd.is(4, "$")) {
+            id = StreamId.parse(cmd.bytes(4), 0);
+            if (id == null) {
+                RespWriter.error(outputStream, ERR_INVALID_STREAM_ID);
+                return;
+            }
+        }
+
+        byte[] key = cmd.bytes(2);
+        byte[] groupName = cmd.bytes(3);
+        long now = System.currentTimeMillis();
+        long result;
+        List<Blocking.Delivery> deliveries = null;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookupForWrite(key, now);
+            if (found != null && !(found instanceof StreamObject)) {
+                outputStream.write(RespWriter.ERR_WRONGTYPE);
+                return;
+            }
+            StreamObject stream = (StreamObject) found;
+            if (stream == null && !mkStream) {
+                RespWriter.error(outputStream, "ERR The XGROUP subcommand requires the key to exist. Note that for CREATE"
+                        + " you may want to use the MKSTREAM option to create an empty stream automatically.");
+                return;
+            }
+            if (create) {
+                if (stream != null && stream.group(groupName) != null) {
+                    RespWriter.error(outputStream, "BUSYGROUP Consumer Group name already exists");
+                    return;
+                }
+                if (stream == null) {
+                    stream = shard.streamForWrite(key, now);
+                }
+                StreamId from = id != null ? id : stream.lastId();
+                stream.createGroup(groupName, from);
+                Propagation.feed(Propagation.XGROUP, Propagation.CREATE, key, groupName, from.toBytes(), Propagation.MKSTREAM);
+                outputStream.write(RespWriter.OK);
+                return;
+            }
+            StreamObject.Group group = stream.group(groupName);
+            if (group == null && !destroy) {
+                RespWriter.error(outputStream, "NOGROUP No such consumer group '" + new String(groupName, StandardCharsets.UTF_8)
+                        + "' for key name '" + new String(key, StandardCharsets.UTF_8) + "'");
+                return;
+            }
+            if (setId) {
+                group.lastDelivered = id != null ? id : stream.lastId();
+                Propagation.feed(Propagation.XGROUP, Propagation.SETID, key, groupName, group.lastDelivered.toBytes());
+                outputStream.write(RespWriter.OK);
+                return;
+            }
+            if (destroy) {
+                result = stream.destroyGroup(groupName) ? 1 : 0;
+                if (result > 0) {
+                    // its blocked readers get their NOGROUP error
+                    deliveries = Blocking.serve(shard, key, stream, null);
+                }
+            } else if (createConsumer) {
+                boolean[] created = {false};
+                stream.consumer(group, cmd.bytes(4), now, created);
+                result = created[0] ? 1 : 0;
+            } else {
+                result = stream.deleteConsumer(group, cmd.bytes(4));
+            }
+            if (result >= 0 && !(createConsumer && result == 0)) {
+                Propagation.feed(cmd);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        Blocking.deliver(deliveries);
+        RespWriter.integer(outputStream, Math.max(0, result));
+    }
+
+    // --- transactions
+
+    // MULTI: the commands up to EXEC are only checked and queued, taking no lock.
+    private void handleMulti(OutputBuffer outputStream) {
+        if (queued != null) {
+            RespWriter.error(outputStream, "ERR MULTI calls can not be nested");
+            return;
+        }
+        queued = new ArrayList<>();
+        queueRejected = false;
+        outputStream.write(RespWriter.OK);
+    }
+
+    private void handleDiscard(OutputBuffer outputStream) {
+        if (queued == null) {
+            RespWriter.error(outputStream, "ERR DISCARD without MULTI");
+            return;
+        }
+        queued = null;
+        unwatchAll();
+        outputStream.write(RespWriter.OK);
+    }
+
+    // EXEC: runs the queued commands with the shards of all their keys (and of the
+    // watched ones) locked from the first to the last, each shard once, so nobody sees
+    // the transaction half done. A command without keys may reach any shard, INFO or
+    // SAVE do, and then every shard is locked. The commands lock their keys again as
+    // usual, which costs a hold count: the locks are reentrant. Unless a watched key
+    // changed since WATCH, which makes the reply nil and runs nothing.
+    private void handleExec(OutputBuffer outputStream) throws IOException {
+        if (queued == null) {
+            RespWriter.error(outputStream, "ERR EXEC without MULTI");
+            return;
+        }
+        List<RespCommand> commands = queued;
+        queued = null;
+        if (queueRejected) {
+            unwatchAll();
+            RespWriter.error(outputStream, "EXECABORT Transaction discarded because of previous errors.");
+            return;
+        }
+        CommandType[] types = new CommandType[commands.size()];
+        List<byte[]> keys = new ArrayList<>();
+        boolean everyShard = false;
+        boolean denyOom = false;
+        for (int i = 0; i < types.length; i++) {
+            RespCommand command = commands.get(i);
+            types[i] = CommandType.lookup(command);
+            int[] positions = types[i].keyPositions(command);
+            everyShard |= positions.length == 0;
+            for (int position : positions) {
+                keys.add(command.bytes(position));
+            }
+            denyOom |= types[i].has(CommandType.Flags.DENYOOM);
+        }
+        for (Watch watch : watching) {
+            keys.add(watch.key);
+        }
+        // evicting takes shard locks of its own, so it cannot wait for the commands
+        if (denyOom && !replaying && !Eviction.freeMemoryIfNeeded()) {
+            unwatchAll();
+            RespWriter.error(outputStream, "EXECABORT Transaction discarded because of: OOM command not allowed when used memory > 'maxmemory'.");
+            return;
+        }
+        boolean changed = false;
+        List<Blocking.Delivery> deliveries = null;
+        Shard[] locked = everyShard ? Keyspace.lockAll() : Keyspace.lockAll(keys.toArray(new byte[0][]));
+        try {
+            long now = System.currentTimeMillis();
+            for (Watch watch : watching) {
+                // a watched key that expired meanwhile changed too
+                watch.shard.expireIfNeeded(watch.key, now);
+                changed |= watch.watched.version != watch.version;
+            }
+            if (!changed) {
+                // what the commands hand to blocked clients and to the AOF and replicas
+                // waits for the end, the former until the locks are released
+                Blocking.holdDeliveries();
+                Propagation.beginTransaction();
+                executing = true;
+                try {
+                    RespWriter.arrayHeader(outputStream, commands.size());
+                    for (int i = 0; i < types.length; i++) {
+                        execute(types[i], commands.get(i), outputStream);
+                    }
+                } finally {
+                    executing = false;
+                    Propagation.endTransaction();
+                    deliveries = Blocking.releaseDeliveries();
+                }
+            }
+        } finally {
+            Keyspace.unlockAll(locked);
+        }
+        Blocking.deliver(deliveries);
+        unwatchAll();
+        if (changed) {
+            outputStream.write(RespWriter.NULL_ARRAY);
+        }
+    }
+
+    // WATCH key [key ...]: EXEC fails should any of them change before it, which is
+    // noticed through the key's version in its shard. Nothing stays locked meanwhile.
+    private void handleWatch(OutputBuffer outputStream, RespCommand cmd) {
+        if (queued != null) {
+            RespWriter.error(outputStream, "ERR WATCH inside MULTI is not allowed");
+            return;
+        }
+        byte[][] keys = arguments(cmd, 1, 1);
+        Shard[] locked = Keyspace.lockAll(keys);
+        try {
+            long now = System.currentTimeMillis();
+            for (byte[] key : keys) {
+                Shard shard = Keyspace.shard(key);
+                // one already expired goes now, rather than fail the EXEC by going later
+                shard.expireIfNeeded(key, now);
+                watching.add(new Watch(shard, key, shard.watch(key)));
+            }
+        } finally {
+            Keyspace.unlockAll(locked);
+        }
+        outputStream.write(RespWriter.OK);
+    }
+
+    // UNWATCH, and the end of every transaction.
+    private void unwatchAll() {
+        for (Watch watch : watching) {
+            watch.shard.lock.lock();
+            try {
+                watch.shard.unwatch(watch.key, watch.watched);
+            } finally {
+                watch.shard.lock.unlock();
+            }
+        }
+        watching.clear();
+    }
+
+    // --- pub/sub
+
+    // SUBSCRIBE channel [channel ...], PSUBSCRIBE pattern [pattern ...]: one confirmation
+    // per argument, with the number of subscriptions the client then has.
+    private void handleSubscribe(OutputBuffer outputStream, RespCommand cmd, boolean pattern) {
+        Set<ByteBuffer> subscribed = pattern ? subscribedPatterns : subscribedChannels;
+        for (int i = 1; i < cmd.argc(); i++) {
+            byte[] name = cmd.bytes(i);
+            if (subscribed.add(ByteBuffer.wrap(name))) {
+                if (pattern) {
+                    PubSub.psubscribe(name, this);
+                } else {
+                    PubSub.subscribe(name, this);
+                }
+                subscriptions++;
+            }
+            writeSubscription(outputStream, pattern ? "psubscribe" : "subscribe", name);
+        }
+    }
+
+    // UNSUBSCRIBE [channel ...], PUNSUBSCRIBE [pattern ...]: without arguments, from all.
+    private void handleUnsubscribe(OutputBuffer outputStream, RespCommand cmd, boolean pattern) {
+        Set<ByteBuffer> subscribed = pattern ? subscribedPatterns : subscribedChannels;
+        String kind = pattern ? "punsubscribe" : "unsubscribe";
+        List<byte[]> names = new ArrayList<>();
+        if (cmd.argc() == 1) {
+            for (ByteBuffer name : subscribed) {
+                names.add(name.array());
+            }
+            if (names.isEmpty()) {
+                writeSubscription(outputStream, kind, null);
+                return;
+            }
+        }
+        for (int i = 1; i < cmd.argc(); i++) {
+            names.add(cmd.bytes(i));
+        }
+        for (byte[] name : names) {
+            if (subscribed.remove(ByteBuffer.wrap(name))) {
+                if (pattern) {
+                    PubSub.punsubscribe(name, this);
+                } else {
+                    PubSub.unsubscribe(name, this);
+                }
+                subscriptions--;
+            }
+            writeSubscription(outputStream, kind, name);
+        }
+    }
+
+    private void writeSubscription(OutputBuffer outputStream, String kind, byte[] name) {
+        RespWriter.arrayHeader(outputStream, 3);
+        RespWriter.bulk(outputStream, kind);
+        if (name == null) {
+            outputStream.write(RespWriter.NULL_BULK);
+        } else {
+            RespWriter.bulk(outputStream, name);
+        }
+        RespWriter.integer(outputStream, subscriptions);
+    }
+
+    // PUBLISH channel message. Replicas get it too, for their own subscribers, but the
+    // AOF does not: it changes nothing.
+    private void handlePublish(OutputBuffer outputStream, RespCommand cmd) {
+        long receivers = PubSub.publish(cmd.bytes(1), cmd.bytes(2));
+        Propagation.feedReplicas(cmd);
+        RespWriter.integer(outputStream, receivers);
+    }
+
+    // --- keys
+
+    private void handleType(OutputBuffer outputStream, RespCommand cmd) {
+        byte[] key = cmd.bytes(1);
+        String type;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, System.currentTimeMillis());
+            if (found == null) {
+                type = "none";
+            } else if (found instanceof StringObject) {
+                type = "string";
+            } else if (found instanceof ListObject) {
+                type = "list";
+            } else if (found instanceof HashObject) {
+                type = "hash";
+            } else if (found instanceof SetObject) {
+                type = "set";
+            } else if (found instanceof ZSetObject) {
+                type = "zset";
+            } else {
+                type = "stream";
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.simple(outputStream, type);
+    }
+
+    // OBJECT ENCODING key, the Redis name of how the value is stored.
+    private void handleObject(OutputBuffer outputStream, RespCommand cmd) {
+        if (!cmd.is(1, "ENCODING") || cmd.argc() != 3) {
+            RespWriter.error(outputStream, "ERR unknown subcommand or wrong number of arguments for '" + cmd.string(1) + "'");
+            return;
+        }
+        byte[] key = cmd.bytes(2);
+        String encoding = null;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject found = shard.lookup(key, System.currentTimeMillis());
+            if (found instanceof StringObject) {
+                StringObject value = (StringObject) found;
+                if (value.length() <= 20 && SetObject.parseInt(value.bytes()) != Long.MIN_VALUE) {
+                    encoding = "int";
+                } else {
+                    encoding = value.length() <= 44 ? "embstr" : "raw";
+                }
+            } else if (found instanceof ListObject) {
+                encoding = "quicklist";
+            } else if (found instanceof HashObject) {
+                encoding = ((HashObject) found).encoding();
+            } else if (found instanceof SetObject) {
+                encoding = ((SetObject) found).encoding();
+            } else if (found instanceof ZSetObject) {
+                encoding = ((ZSetObject) found).encoding();
+            } else if (found instanceof StreamObject) {
+                encoding = "stream";
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        if (encoding == null) {
+            outputStream.write(RespWriter.NULL_BULK);
+        } else {
+            RespWriter.bulk(outputStream, encoding);
+        }
+    }
+
+    private void handleDump(OutputBuffer outputStream, RespCommand cmd) throws IOException {
+        byte[] key = cmd.bytes(1);
+        byte[] payload = null;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            RedisObject value = shard.lookup(key, System.currentTimeMillis());
+            if (value != null) {
+                payload = Rdb.dump(value);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        if (payload == null) {
+            outputStream.write(RespWriter.NULL_BULK);
+        } else {
+            RespWriter.bulk(outputStream, payload);
+        }
+    }
+
+    // RESTORE key ttl payload [REPLACE] [ABSTTL] [IDLETIME seconds] [FREQ frequency], and
+    // RESTORE-ASKING, which MIGRATE sends in cluster mode. The idle time and frequency are
+    // accepted but not kept. Propagated with an absolute deadline.
+    private void handleRestore(OutputBuffer outputStream, RespCommand cmd) {
+        long now = System.currentTimeMillis();
+        long ttl;
+        boolean replace = false, absolute = false;
+        try {
+            ttl = cmd.longValue(2);
+            for (int i = 4; i < cmd.argc(); i++) {
+                if (cmd.is(i, "REPLACE")) {
+                    replace = true;
+                } else if (cmd.is(i, "ABSTTL")) {
+                    absolute = true;
+                } else if ((cmd.is(i, "IDLETIME") || cmd.is(i, "FREQ")) && i + 1 < cmd.argc()) {
+                    if (cmd.longValue(++i) < 0) {
+                        RespWriter.error(outputStream, "ERR Invalid " + cmd.string(i - 1).toUpperCase() + " value, must be >= 0");
+                        return;
+                    }
+                } else {
+                    outputStream.write(RespWriter.ERR_SYNTAX);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            outputStream.write(RespWriter.ERR_NOT_INTEGER);
+            return;
+        }
+        if (ttl < 0 || !absolute && ttl > Long.MAX_VALUE - now) {
+            RespWriter.error(outputStream, "ERR Invalid TTL value, must be >= 0");
+            return;
+        }
+        byte[] payload = cmd.bytes(3);
+        Object value = RdbLoader.decode(payload);
+        if (value == null) {
+            RespWriter.error(outputStream, "ERR DUMP payload version or checksum are wrong");
+            return;
+        }
+        long expireAt = ttl == 0 ? -1 : absolute ? ttl : now + ttl;
+        byte[] key = cmd.bytes(1);
+        List<Blocking.Delivery> deliveries = null;
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            shard.expireIfNeeded(key, now);
+            boolean replaced = false;
+            if (shard.exists(key)) {
+                if (!replace) {
+                    RespWriter.error(outputStream, "BUSYKEY Target key name already exists.");
+                    return;
+                }
+                // the new value must not inherit the old TTL
+                replaced = shard.delete(key);
+            }
+            if (expireAt >= 0 && expireAt <= now) {
+                // dead on arrival: only the replaced key goes
+                if (replaced) {
+                    Propagation.feed(Propagation.DEL, key);
+                }
+            } else {
+                RdbLoader.store(shard, key, value, expireAt);
+                Propagation.feed(Propagation.RESTORE, key, Propagation.decimal(Math.max(expireAt, 0)), payload,
+                        Propagation.REPLACE, Propagation.ABSTTL);
+                RedisObject stored = shard.lookupForWrite(key, now);
+                if (stored instanceof ListObject) {
+                    deliveries = Blocking.serve(shard, key, (ListObject) stored, null);
+                } else if (stored instanceof StreamObject) {
+                    deliveries = Blocking.serve(shard, key, (StreamObject) stored, null);
+                }
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        if (deliveries != null) {
+            Blocking.deliver(deliveries);
+        }
+        outputStream.write(RespWriter.OK);
+    }
+
+    // MIGRATE host port key|"" destination-db timeout [COPY] [REPLACE] [KEYS key ...]:
+    // sends the keys to another server as RESTORE commands (RESTORE-ASKING in cluster
+    // mode, which an importing node takes) in one pipeline and deletes each one the target
+    // accepted. The keys stay locked for the round trip, as Redis blocks for it, so
+    // nothing changes them in between. There is one database here, so destination-db is
+    // not sent, and no AUTH.
+    private void handleMigrate(OutputBuffer outputStream, RespCommand cmd) {
+        long port;
+        long timeout;
+        try {
+            port = cmd.longValue(2);
+            cmd.longValue(4);
+            timeout = cmd.longValue(5);
+        } catch (NumberFormatException e) {
+            outputStream.write(RespWriter.ERR_NOT_INTEGER);
+            return;
+        }
+        boolean copy = false, replace = false;
+        for (int i = 6; i < cmd.argc(); i++) {
+            if (cmd.is(i, "COPY")) {
+                copy = true;
+            } else if (cmd.is(i, "REPLACE")) {
+                replace = true;
+            } else if (cmd.is(i, "KEYS")) {
+                if (cmd.length(3) != 0) {
+                    RespWriter.error(outputStream, "ERR When using MIGRATE KEYS option, the key argument must be set to the empty string");
+                    return;
+                }
+                break;
+            } else {
+                outputStream.write(RespWriter.ERR_SYNTAX);
+                return;
+            }
+        }
+        if (port <= 0 || port > 65535) {
+            RespWriter.error(outputStream, "ERR Invalid port");
+            return;
+        }
+        int[] positions = CommandType.MIGRATE.keyPositions(cmd);
+        byte[][] keys = new byte[positions.length][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = cmd.bytes(positions[i]);
+        }
+        int millis = (int) Math.max(1, Math.min(timeout <= 0 ? 1000 : timeout, Integer.MAX_VALUE));
+        byte[] restore = (Cluster.enabled ? CommandType.RESTORE_ASKING : CommandType.RESTORE).wireName.getBytes(StandardCharsets.US_ASCII);
+        String error = null;
+        boolean found = false;
+        long now = System.currentTimeMillis();
+        Shard[] locked = Keyspace.lockAll(keys);
+        try {
+            List<byte[]> present = new ArrayList<>();
+            List<RedisObject> values = new ArrayList<>();
+            for (byte[] key : keys) {
+                RedisObject value = Keyspace.shard(key).lookup(key, now);
+                if (value != null) {
+                    present.add(key);
+                    values.add(value);
+                }
+            }
+            found = !present.isEmpty();
+            if (found) {
+                try (Socket target = new Socket()) {
+                    target.connect(new InetSocketAddress(cmd.string(1), (int) port), millis);
+                    target.setSoTimeout(millis);
+                    target.setTcpNoDelay(true);
+                    OutputBuffer request = new OutputBuffer(target.getOutputStream());
+                    for (int i = 0; i < present.size(); i++) {
+                        byte[] key = present.get(i);
+                        long expireAt = Keyspace.shard(key).expireAt(key);
+                        RespWriter.arrayHeader(request, replace ? 5 : 4);
+                        RespWriter.bulk(request, restore);
+                        RespWriter.bulk(request, key);
+                        RespWriter.bulk(request, Long.toString(expireAt < 0 ? 0 : Math.max(1, expireAt - now)));
+                        RespWriter.bulk(request, Rdb.dump(values.get(i)));
+                        if (replace) {
+                            RespWriter.bulk(request, "REPLACE");
+                        }
+                    }
+                    request.flush();
+                    InputStream in = target.getInputStream();
+                    ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
+                    for (byte[] key : present) {
+                        String reply = MasterLink.readLine(in, buf);
+                        if (reply.startsWith("-")) {
+                            if (error == null) {
+                                error = "ERR Target instance replied with error: " + reply.substring(1);
+                            }
+                        } else if (!copy) {
+                            Keyspace.shard(key).delete(key);
+                            Propagation.feed(Propagation.DEL, key);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = "IOERR error or timeout talking to target instance: " + e.getMessage();
+                    }
+                }
+            }
+        } finally {
+            Keyspace.unlockAll(locked);
+        }
+        if (!found) {
+            RespWriter.simple(outputStream, "NOKEY");
+        } else if (error != null) {
+            RespWriter.error(outputStream, error);
+        } else {
+            outputStream.write(RespWriter.OK);
+        }
+    }
+
+    // private void handleRpush(BufferedReader in, OutputStream outputStream, int argVar) throws IOException {
+    //     String line;
+    //     String key = null;
+    //     List<String> values = new ArrayList<>();
+    //     int totalSize;
+
+    //     // Parse key and all values
+    //     while (argVar > 0 && (line = in.readLine()) != null) {
+    //         if (line.startsWith("*") || line.startsWith("$")) continue;
+
+    //         if (key == null) {
+    //             key = line;
+    //         } else {
+    //             values.add(line);
+    //         }
+    //         argVar--;
+    //     }
+
+    //     lock.lock();
+    //     try {
+    //         Deque<String> queue = rmap.computeIfAbsent(key, k -> new ArrayDeque<>());
+    //         // Add values to the list
+    //         for (String val : values) {
+    //             queue.addLast(val);
+    //         }
+    //         // Total size is the remaining elements in the list
+    //         totalSize = queue.size();
+    //         // Serve blocked clients first
+    //         Deque<CompletableFuture<String>> blockedQueue = blockedClients.get(key);
+    //         while (blockedQueue != null && !blockedQueue.isEmpty() && !queue.isEmpty()) {
+    //             CompletableFuture<String> clientFuture = blockedQueue.pollFirst();
+    //             String element = queue.pollFirst(); // give earliest element
+    //             if (clientFuture != null && element != null) {
+    //                 clientFuture.complete(element);
+    //             }
+    //         }
+
+    //         // Clean up empty blocked queue
+    //         if (blockedQueue != null && blockedQueue.isEmpty()) {
+    //             blockedClients.remove(key);
+    //         }
+
+            
+    //     } finally {
+    //         lock.unlock();
+    //     }
+
+    //     // Respond to RPUSH client
+    //     try {
+    //         outputStream.write((":" + totalSize + "\r\n").getBytes());
+    //         outputStream.flush();
+    //     } catch (IOException ignored) {}
+    // }
+    // private void handleBlpop(BufferedReader in, OutputStream outputStream) throws IOException {
+    //     String line;
+    //     String key = null;
+    //     double timeout = 0;
+        
+    //     // Parse key and timeout
+    //     while ((line = in.readLine()) != null) {
+    //         if (line.startsWith("*") || line.startsWith("$")) continue;
+
+    //         if (key == null) {
+    //             key = line;
+    //         } else {
+    //             try {
+    //                 timeout = Double.parseDouble(line);
+    //                 break;
+    //             } catch (NumberFormatException e) {
+    //                 outputStream.write("-ERR invalid timeout\r\n".getBytes());
+    //                 outputStream.flush();
+    //                 return;
+    //             }
+    //         }
+    //     }
+
+    //     final CompletableFuture<String> future = new CompletableFuture<>();
+
+    //     boolean servedImmediately = false;
+
+    //     lock.lock();
+    //     try {
+    //         Deque<String> queue = rmap.get(key);
+    //         if (queue != null && !queue.isEmpty()) {
+    //             // Serve immediately
+    //             servedImmediately = true;
+    //             String val = queue.pollFirst();
+    //             outputStream.write(("*2\r\n$" + key.length() + "\r\n" + key +
+    //                                 "\r\n$" + val.length() + "\r\n" + val + "\r\n").getBytes());
+    //             outputStream.flush();
+    //         } else {
+    //             // No element, add to blocked clients
+    //             blockedClients.computeIfAbsent(key, k -> new ArrayDeque<>()).add(future);
+    //         }
+    //     } finally {
+    //         lock.unlock();
+    //     }
+
+    //     if (servedImmediately) return; // Already served, no need to wait
+
+    //     // Handle future completion asynchronously
+    //     final String blpopKey = key;
+    //     future.thenAccept(value -> {
+    //         try {
+    //             outputStream.write(("*2\r\n$" + blpopKey.length() + "\r\n" + blpopKey +
+    //                                 "\r\n$" + value.length() + "\r\n" + value + "\r\n").getBytes());
+    //             outputStream.flush();
+    //         } catch (IOException ignored) {}
+    //     });
+
+    //     // Handle timeout if specified
+    //     if (timeout > 0) {
+    //         CompletableFuture.delayedExecutor((long)(timeout * 1000), TimeUnit.MILLISECONDS)
+    //                         .execute(() -> {
+    //             if (!future.isDone()) {
+    //                 future.completeExceptionally(new TimeoutException());
+    //             }
+    //         });
+    //         final String blpopKey2 = key;
+    //         future.exceptionally(ex -> {
+    //             if (ex instanceof TimeoutException) {
+    //                 lock.lock();
+                    
+    //                 try {
+    //                     Deque<CompletableFuture<String>> blockedQueue = blockedClients.get(blpopKey2);
+    //                     if (blockedQueue != null) {
+    //                         blockedQueue.remove(future);
+    //                         if (blockedQueue.isEmpty()) blockedClients.remove(blpopKey2);
+    //                     }
+    //                 } finally {
+    //                     lock.unlock();
+    //                 }
+
+    //                 try {
+    //                     outputStream.write("$-1\r\n".getBytes());
+    //                     outputStream.flush();
+    //                 } catch (IOException ignored) {}
+    //             }
+    //             return null;
+    //         });
+    //     }
+    // }
+
+}
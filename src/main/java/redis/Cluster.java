@@ -0,0 +1,1061 @@
+package redis;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Cluster mode (--cluster-enabled yes). The keyspace is cut into 16384 hash slots, the
+// CRC16 of the key (or of its {hash tag}) modulo 16384, and each slot is served by one
+// node. A command whose keys live elsewhere is answered with -MOVED slot host:port, so
+// cluster-aware clients learn the layout and go straight to the right node next time.
+// A slot moves between nodes while both stay online, as in Redis: the target is marked
+// IMPORTING and the source MIGRATING, MIGRATE carries the slot's keys over in batches,
+// and meanwhile the source answers for a key it no longer has with -ASK, a one-off
+// redirect the client follows with ASKING. SETSLOT NODE then hands the slot over.
+// Nodes learn about each other by gossip: every node regularly sends each peer its view
+// (every node it knows, with the slots it serves) and gets the peer's back. There is no
+// separate bus port, the exchange is CLUSTER GOSSIP on the client port. A node's record
+// is only ever changed by the node itself, which bumps its sequence number each time, so
+// the newest copy wins wherever it came from; rival claims on a slot are settled by
+// config epoch. There are no replicas and no failover.
+final class Cluster {
+    static final int SLOTS = 16384;
+
+    // set by Main before the server starts
+    static volatile boolean enabled;
+    static volatile String configFile = "nodes.conf";
+    // the address this node gives other nodes, and clients in redirects
+    static volatile String announceIp = "127.0.0.1";
+    // a peer that has not answered for this long is flagged fail?
+    static volatile long nodeTimeoutMs = 15000;
+
+    private static final long GOSSIP_INTERVAL_MS = 100;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // CRC-16/XMODEM, the variant Redis Cluster hashes keys with
+    private static final int[] CRC16 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC16[i] = crc & 0xffff;
+        }
+    }
+
+    // Mutable fields are guarded by `lock`, except the gossip thread's link.
+    static final class Node {
+        // a random placeholder while `handshake`
+        String id;
+        final String host;
+        final int port;
+        long configEpoch;
+        // version of the node's record, bumped by the node itself; -1 until heard of
+        long seq = -1;
+        // the slots it serves, always in step with `owners`
+        final BitSet slots = new BitSet(SLOTS);
+        // met but not heard from yet
+        boolean handshake;
+        // when the unanswered ping went out, 0 when there is none
+        volatile long pingSent;
+        volatile long pongReceived = System.currentTimeMillis();
+        volatile boolean linked;
+        // the gossip thread's connection to the node
+        private Socket socket;
+        private ByteBuffer buf;
+
+        Node(String id, String host, int port) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }
+
+        String address() {
+            return host + ":" + port;
+        }
+    }
+
+    // A lock rather than the class monitor: client threads save the config file and
+    // take shard locks while holding it, which would pin a virtual thread's carrier.
+    private static final ReentrantLock lock = new ReentrantLock();
+    // signalled when a local change should be gossiped at once
+    private static final Condition wakeup = lock.newCondition();
+    private static final Map<String, Node> nodes = new LinkedHashMap<>();
+    private static Node myself;
+    private static long currentEpoch;
+    private static long messagesSent;
+    private static long messagesReceived;
+    // read on every command without the lock
+    private static final AtomicReferenceArray<Node> owners = new AtomicReferenceArray<>(SLOTS);
+    private static final AtomicReferenceArray<Node> migratingTo = new AtomicReferenceArray<>(SLOTS);
+    private static final AtomicReferenceArray<Node> importingFrom = new AtomicReferenceArray<>(SLOTS);
+    private static boolean wakeRequested;
+
+    private Cluster() {
+    }
+
+    // The key's hash slot. With a non-empty {tag} only the tag is hashed, so keys sharing
+    // it share a slot and can be used together.
+    static int slot(byte[] key) {
+        return slot(key, 0, key.length);
+    }
+
+    static int slot(byte[] array, int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        for (int i = start; i < end; i++) {
+            if (array[i] == '{') {
+                for (int j = i + 1; j < end; j++) {
+                    if (array[j] == '}') {
+                        if (j > i + 1) {
+                            start = i + 1;
+                            end = j;
+                        }
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc = ((crc << 8) & 0xffff) ^ CRC16[((crc >>> 8) ^ array[i]) & 0xff];
+        }
+        return crc & (SLOTS - 1);
+    }
+
+    // Loads this node's identity and view from the config file, or makes up a new one,
+    // and starts gossiping. Runs before the server accepts connections.
+    static void start(int port) throws IOException {
+        lock.lock();
+        try {
+            Path file = configPath();
+            if (Files.exists(file)) {
+                load(Files.readAllLines(file, StandardCharsets.US_ASCII), port);
+            }
+            if (myself == null) {
+                myself = new Node(randomId(), announceIp, port);
+                nodes.put(myself.id, myself);
+                Log.notice("No cluster configuration found, I'm " + myself.id);
+            } else {
+                Log.notice("Node configuration loaded, I'm " + myself.id);
+            }
+            // never below what the node sent before a restart
+            myself.seq = System.currentTimeMillis();
+            save();
+        } finally {
+            lock.unlock();
+        }
+        Thread thread = new Thread(Cluster::run, "cluster-gossip");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // null when this node serves the command, otherwise the error to reply with: the
+    // keys span slots, their slot is unassigned or elsewhere (MOVED), or it is being
+    // migrated and they are gone already (ASK).
+    static String redirect(CommandType command, RespCommand cmd, boolean asking) {
+        int[] positions = command.keyPositions(cmd);
+        if (positions.length == 0) {
+            return null;
+        }
+        int slot = -1;
+        for (int position : positions) {
+            int s = slot(cmd.array(), cmd.offset(position), cmd.length(position));
+            if (slot >= 0 && s != slot) {
+                return "CROSSSLOT Keys in request don't hash to the same slot";
+            }
+            slot = s;
+        }
+        Node owner = owners.get(slot);
+        Node importing = importingFrom.get(slot);
+        Node migrating = migratingTo.get(slot);
+        // MIGRATE runs where it is sent while the slot is open, so a missing key is NOKEY
+        if (command == CommandType.MIGRATE && (importing != null || migrating != null)) {
+            return null;
+        }
+        if (owner != myself) {
+            if (importing != null && (asking || command.has(CommandType.Flags.ASKING))) {
+                return null;
+            }
+            if (owner == null) {
+                return "CLUSTERDOWN Hash slot not served";
+            }
+            return "MOVED " + slot + " " + owner.address();
+        }
+        if (migrating == null) {
+            return null;
+        }
+        int missing = 0;
+        long now = System.currentTimeMillis();
+        for (int position : positions) {
+            byte[] key = cmd.bytes(position);
+            Shard shard = Keyspace.shard(key);
+            shard.lock.lock();
+            try {
+                shard.expireIfNeeded(key, now);
+                if (!shard.exists(key)) {
+                    missing++;
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        if (missing == 0) {
+            return null;
+        }
+        if (missing < positions.length) {
+            return "TRYAGAIN Multiple keys request during rehashing of slot";
+        }
+        return "ASK " + slot + " " + migrating.address();
+    }
+
+    // CLUSTER <subcommand> ...
+    static void command(OutputBuffer out, RespCommand cmd) {
+        if (!enabled) {
+            RespWriter.error(out, "ERR This instance has cluster support disabled");
+            return;
+        }
+        String sub = cmd.string(1).toLowerCase();
+        int argc = cmd.argc();
+        switch (sub) {
+            case "info":
+                RespWriter.bulk(out, info());
+                return;
+            case "myid":
+                lock.lock();
+                try {
+                    RespWriter.bulk(out, myself.id);
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            case "nodes":
+                RespWriter.bulk(out, describe(false));
+                return;
+            case "slots":
+                slots(out);
+                return;
+            case "shards":
+                shards(out);
+                return;
+            case "keyslot":
+                if (argc == 3) {
+                    RespWriter.integer(out, slot(cmd.bytes(2)));
+                    return;
+                }
+                break;
+            case "countkeysinslot":
+                if (argc == 3) {
+                    int slot = parseSlot(cmd, 2);
+                    if (slot < 0) {
+                        RespWriter.error(out, "ERR Invalid slot");
+                        return;
+                    }
+                    Shard shard = Keyspace.shardOfSlot(slot);
+                    shard.lock.lock();
+                    try {
+                        RespWriter.integer(out, shard.countKeysInSlot(slot));
+                    } finally {
+                        shard.lock.unlock();
+                    }
+                    return;
+                }
+                break;
+            case "getkeysinslot":
+                if (argc == 4) {
+                    getKeysInSlot(out, cmd);
+                    return;
+                }
+                break;
+            case "meet":
+                if (argc == 4 || argc == 5) {
+                    meet(out, cmd);
+                    return;
+                }
+                break;
+            case "addslots":
+            case "delslots":
+            case "addslotsrange":
+            case "delslotsrange":
+                if (argc >= 3 && (!sub.endsWith("range") || argc % 2 == 0)) {
+                    changeSlots(out, cmd, sub.startsWith("add"), sub.endsWith("range"));
+                    return;
+                }
+                break;
+            case "setslot":
+                if (argc >= 4) {
+                    setSlot(out, cmd);
+                    return;
+                }
+                break;
+            case "saveconfig":
+                if (argc == 2) {
+                    lock.lock();
+                    try {
+                        save();
+                    } finally {
+                        lock.unlock();
+                    }
+                    out.write(RespWriter.OK);
+                    return;
+                }
+                break;
+            case "gossip":
+                if (argc == 3) {
+                    RespWriter.bulk(out, receive(cmd.string(2)));
+                    return;
+                }
+                break;
+            default:
+                RespWriter.error(out, "ERR unknown subcommand '" + cmd.string(1) + "'. Try CLUSTER HELP.");
+                return;
+        }
+        RespWriter.error(out, "ERR unknown subcommand or wrong number of arguments for '" + cmd.string(1) + "'");
+    }
+
+    private static String info() {
+        int assigned = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (owners.get(slot) != null) {
+                assigned++;
+            }
+        }
+        StringBuilder info = new StringBuilder();
+        lock.lock();
+        try {
+            int serving = 0;
+            for (Node node : nodes.values()) {
+                if (!node.slots.isEmpty()) {
+                    serving++;
+                }
+            }
+            info.append("cluster_enabled:1\r\n");
+            info.append("cluster_state:").append(assigned == SLOTS ? "ok" : "fail").append("\r\n");
+            info.append("cluster_slots_assigned:").append(assigned).append("\r\n");
+            info.append("cluster_slots_ok:").append(assigned).append("\r\n");
+            info.append("cluster_slots_pfail:0\r\n");
+            info.append("cluster_slots_fail:0\r\n");
+            info.append("cluster_known_nodes:").append(nodes.size()).append("\r\n");
+            info.append("cluster_size:").append(serving).append("\r\n");
+            info.append("cluster_current_epoch:").append(currentEpoch).append("\r\n");
+            info.append("cluster_my_epoch:").append(myself.configEpoch).append("\r\n");
+            info.append("cluster_stats_messages_sent:").append(messagesSent).append("\r\n");
+            info.append("cluster_stats_messages_received:").append(messagesReceived).append("\r\n");
+        } finally {
+            lock.unlock();
+        }
+        return info.toString();
+    }
+
+    // CLUSTER NODES, one line per node as Redis prints them; with vars, nodes.conf.
+    private static String describe(boolean vars) {
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            StringBuilder text = new StringBuilder();
+            for (Node node : nodes.values()) {
+                if (vars && node.handshake) {
+                    continue;
+                }
+                String flags;
+                if (node == myself) {
+                    flags = "myself,master";
+                } else if (node.handshake) {
+                    flags = "handshake";
+                } else {
+                    flags = node.pingSent != 0 && now - node.pingSent > nodeTimeoutMs ? "master,fail?" : "master";
+                }
+                // the port is given as the cluster bus port too: gossip goes over it
+                text.append(node.id).append(' ').append(node.address()).append('@').append(node.port)
+                        .append(' ').append(flags).append(" - ")
+                        .append(node == myself ? 0 : node.pingSent).append(' ')
+                        .append(node == myself ? 0 : node.pongReceived).append(' ')
+                        .append(node.configEpoch).append(' ')
+                        .append(node == myself || node.linked ? "connected" : "disconnected");
+                for (int[] range : ranges(node.slots)) {
+                    text.append(' ').append(range[0]);
+                    if (range[1] > range[0]) {
+                        text.append('-').append(range[1]);
+                    }
+                }
+                if (node == myself) {
+                    for (int slot = 0; slot < SLOTS; slot++) {
+                        Node to = migratingTo.get(slot);
+                        Node from = importingFrom.get(slot);
+                        if (to != null) {
+                            text.append(" [").append(slot).append("->-").append(to.id).append(']');
+                        }
+                        if (from != null) {
+                            text.append(" [").append(slot).append("-<-").append(from.id).append(']');
+                        }
+                    }
+                }
+                text.append('\n');
+            }
+            if (vars) {
+                text.append("vars currentEpoch ").append(currentEpoch).append(" lastVoteEpoch 0\n");
+            }
+            return text.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // [start, end] runs of consecutive set bits
+    private static List<int[]> ranges(BitSet slots) {
+        List<int[]> ranges = new ArrayList<>();
+        for (int start = slots.nextSetBit(0); start >= 0; ) {
+            int end = slots.nextClearBit(start) - 1;
+            ranges.add(new int[] {start, end});
+            start = slots.nextSetBit(end + 1);
+        }
+        return ranges;
+    }
+
+    private static void slots(OutputBuffer out) {
+        lock.lock();
+        try {
+            List<int[]> ranges = new ArrayList<>();
+            List<Node> servers = new ArrayList<>();
+            for (Node node : nodes.values()) {
+                for (int[] range : ranges(node.slots)) {
+                    ranges.add(range);
+                    servers.add(node);
+                }
+            }
+            RespWriter.arrayHeader(out, ranges.size());
+            for (int i = 0; i < ranges.size(); i++) {
+                Node node = servers.get(i);
+                RespWriter.arrayHeader(out, 3);
+                RespWriter.integer(out, ranges.get(i)[0]);
+                RespWriter.integer(out, ranges.get(i)[1]);
+                RespWriter.arrayHeader(out, 3);
+                RespWriter.bulk(out, node.host);
+                RespWriter.integer(out, node.port);
+                RespWriter.bulk(out, node.id);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // One shard per node, each a primary on its own.
+    private static void shards(OutputBuffer out) {
+        lock.lock();
+        try {
+            List<Node> known = new ArrayList<>();
+            for (Node node : nodes.values()) {
+                if (!node.handshake) {
+                    known.add(node);
+                }
+            }
+            long now = System.currentTimeMillis();
+            RespWriter.arrayHeader(out, known.size());
+            for (Node node : known) {
+                List<int[]> ranges = ranges(node.slots);
+                RespWriter.arrayHeader(out, 4);
+                RespWriter.bulk(out, "slots");
+                RespWriter.arrayHeader(out, 2 * ranges.size());
+                for (int[] range : ranges) {
+                    RespWriter.integer(out, range[0]);
+                    RespWriter.integer(out, range[1]);
+                }
+                RespWriter.bulk(out, "nodes");
+                RespWriter.arrayHeader(out, 1);
+                RespWriter.arrayHeader(out, 14);
+                RespWriter.bulk(out, "id");
+                RespWriter.bulk(out, node.id);
+                RespWriter.bulk(out, "port");
+                RespWriter.integer(out, node.port);
+                RespWriter.bulk(out, "ip");
+                RespWriter.bulk(out, node.host);
+                RespWriter.bulk(out, "endpoint");
+                RespWriter.bulk(out, node.host);
+                RespWriter.bulk(out, "role");
+                RespWriter.bulk(out, "master");
+                RespWriter.bulk(out, "replication-offset");
+                RespWriter.integer(out, node == myself ? Replication.offset() : 0);
+                RespWriter.bulk(out, "health");
+                boolean failing = node != myself && node.pingSent != 0 && now - node.pingSent > nodeTimeoutMs;
+                RespWriter.bulk(out, failing ? "fail" : "online");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void getKeysInSlot(OutputBuffer out, RespCommand cmd) {
+        int slot = parseSlot(cmd, 2);
+        long count;
+        try {
+            count = cmd.longValue(3);
+        } catch (NumberFormatException e) {
+            count = -1;
+        }
+        if (slot < 0) {
+            RespWriter.error(out, "ERR Invalid slot");
+            return;
+        }
+        if (count < 0) {
+            RespWriter.error(out, "ERR Invalid number of keys");
+            return;
+        }
+        Shard shard = Keyspace.shardOfSlot(slot);
+        List<byte[]> keys;
+        shard.lock.lock();
+        try {
+            keys = shard.keysInSlot(slot, (int) Math.min(count, Integer.MAX_VALUE));
+        } finally {
+            shard.lock.unlock();
+        }
+        RespWriter.arrayHeader(out, keys.size());
+        for (byte[] key : keys) {
+            RespWriter.bulk(out, key);
+        }
+    }
+
+    // CLUSTER MEET host port: the node is added in handshake state, and the gossip
+    // thread learns its real id from its first reply.
+    private static void meet(OutputBuffer out, RespCommand cmd) {
+        String host = cmd.string(2);
+        long port;
+        try {
+            port = cmd.longValue(3);
+        } catch (NumberFormatException e) {
+            port = -1;
+        }
+        if (port <= 0 || port > 65535) {
+            RespWriter.error(out, "ERR Invalid node address specified: " + host + ":" + cmd.string(3));
+            return;
+        }
+        lock.lock();
+        try {
+            Node node = new Node(randomId(), host, (int) port);
+            node.handshake = true;
+            nodes.put(node.id, node);
+        } finally {
+            lock.unlock();
+        }
+        wake();
+        out.write(RespWriter.OK);
+    }
+
+    // ADDSLOTS / DELSLOTS slot..., and the RANGE forms with start end pairs. All or
+    // nothing: one bad slot fails the whole command.
+    private static void changeSlots(OutputBuffer out, RespCommand cmd, boolean add, boolean ranges) {
+        BitSet requested = new BitSet(SLOTS);
+        for (int i = 2; i < cmd.argc(); i += ranges ? 2 : 1) {
+            int start = parseSlot(cmd, i);
+            int end = ranges ? parseSlot(cmd, i + 1) : start;
+            if (start < 0 || end < 0) {
+                RespWriter.error(out, "ERR Invalid or out of range slot");
+                return;
+            }
+            if (end < start) {
+                RespWriter.error(out, "ERR start slot number " + start + " is greater than end slot number " + end);
+                return;
+            }
+            for (int slot = start; slot <= end; slot++) {
+                if (requested.get(slot)) {
+                    RespWriter.error(out, "ERR Slot " + slot + " specified multiple times");
+                    return;
+                }
+                requested.set(slot);
+            }
+        }
+        lock.lock();
+        try {
+            for (int slot = requested.nextSetBit(0); slot >= 0; slot = requested.nextSetBit(slot + 1)) {
+                if (add && owners.get(slot) != null) {
+                    RespWriter.error(out, "ERR Slot " + slot + " is already busy");
+                    return;
+                }
+                if (!add && owners.get(slot) == null) {
+                    RespWriter.error(out, "ERR Slot " + slot + " is already unassigned");
+                    return;
+                }
+            }
+            for (int slot = requested.nextSetBit(0); slot >= 0; slot = requested.nextSetBit(slot + 1)) {
+                assign(slot, add ? myself : null);
+                if (add) {
+                    importingFrom.set(slot, null);
+                }
+            }
+            save();
+        } finally {
+            lock.unlock();
+        }
+        wake();
+        out.write(RespWriter.OK);
+    }
+
+    // SETSLOT slot IMPORTING node | MIGRATING node | STABLE | NODE node
+    private static void setSlot(OutputBuffer out, RespCommand cmd) {
+        int slot = parseSlot(cmd, 2);
+        if (slot < 0) {
+            RespWriter.error(out, "ERR Invalid or out of range slot");
+            return;
+        }
+        String action = cmd.string(3).toLowerCase();
+        boolean stable = action.equals("stable");
+        if (stable != (cmd.argc() == 4) || cmd.argc() > 5
+                || !stable && !action.equals("importing") && !action.equals("migrating") && !action.equals("node")) {
+            RespWriter.error(out, "ERR Invalid CLUSTER SETSLOT action or number of arguments. Try CLUSTER HELP");
+            return;
+        }
+        lock.lock();
+        try {
+            Node node = stable ? null : nodes.get(cmd.string(4));
+            if (!stable && (node == null || node.handshake)) {
+                RespWriter.error(out, "ERR I don't know about node " + cmd.string(4));
+                return;
+            }
+            switch (action) {
+                case "migrating":
+                    if (owners.get(slot) != myself) {
+                        RespWriter.error(out, "ERR I'm not the owner of hash slot " + slot);
+                        return;
+                    }
+                    if (node == myself) {
+                        RespWriter.error(out, "ERR Can't MIGRATE to myself");
+                        return;
+                    }
+                    migratingTo.set(slot, node);
+                    break;
+                case "importing":
+                    if (owners.get(slot) == myself) {
+                        RespWriter.error(out, "ERR I'm already the owner of hash slot " + slot);
+                        return;
+                    }
+                    if (node == myself) {
+                        RespWriter.error(out, "ERR Can't IMPORT from myself");
+                        return;
+                    }
+                    importingFrom.set(slot, node);
+                    break;
+                case "stable":
+                    migratingTo.set(slot, null);
+                    importingFrom.set(slot, null);
+                    break;
+                default:
+                    if (owners.get(slot) == myself && node != myself && countKeysInSlot(slot) > 0) {
+                        RespWriter.error(out, "ERR Can't assign hashslot " + slot
+                                + " to a different node while I still hold keys for this hash slot.");
+                        return;
+                    }
+                    if (node == myself && importingFrom.get(slot) != null) {
+                        // the claim has to beat the old owner's everywhere
+                        myself.configEpoch = ++currentEpoch;
+                        Log.notice("configEpoch set to " + myself.configEpoch + " after importing slot " + slot);
+                    }
+                    migratingTo.set(slot, null);
+                    importingFrom.set(slot, null);
+                    assign(slot, node);
+                    break;
+            }
+            save();
+        } finally {
+            lock.unlock();
+        }
+        wake();
+        out.write(RespWriter.OK);
+    }
+
+    private static int countKeysInSlot(int slot) {
+        Shard shard = Keyspace.shardOfSlot(slot);
+        shard.lock.lock();
+        try {
+            return shard.countKeysInSlot(slot);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // -1 unless argument i is a slot number
+    private static int parseSlot(RespCommand cmd, int i) {
+        try {
+            long slot = cmd.longValue(i);
+            return slot >= 0 && slot < SLOTS ? (int) slot : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Must hold `lock`. The previous owner, if any, loses the slot.
+    private static void assign(int slot, Node node) {
+        Node previous = owners.get(slot);
+        if (previous == node) {
+            return;
+        }
+        if (previous != null) {
+            previous.slots.clear(slot);
+        }
+        if (node != null) {
+            node.slots.set(slot);
+        }
+        owners.set(slot, node);
+        if (myself != null && (previous == myself || node == myself)) {
+            myself.seq = Math.max(myself.seq + 1, System.currentTimeMillis());
+        }
+    }
+
+    // --- gossip
+
+    // One line per node known: id host port configEpoch seq slots, the slots as
+    // comma-separated ranges or "-". This node's own line comes first.
+    private static String gossip() {
+        StringBuilder text = new StringBuilder();
+        record(text, myself);
+        for (Node node : nodes.values()) {
+            if (node != myself && !node.handshake && node.seq >= 0) {
+                record(text, node);
+            }
+        }
+        return text.toString();
+    }
+
+    private static void record(StringBuilder text, Node node) {
+        text.append(node.id).append(' ').append(node.host).append(' ').append(node.port).append(' ')
+                .append(node.configEpoch).append(' ').append(node.seq).append(' ');
+        List<int[]> ranges = ranges(node.slots);
+        if (ranges.isEmpty()) {
+            text.append('-');
+        }
+        for (int i = 0; i < ranges.size(); i++) {
+            int[] range = ranges.get(i);
+            text.append(i > 0 ? "," : "").append(range[0]).append('-').append(range[1]);
+        }
+        text.append('\n');
+    }
+
+    // CLUSTER GOSSIP from a peer: take in its view, answer with ours.
+    private static String receive(String text) {
+        lock.lock();
+        try {
+            messagesReceived++;
+            String sender = text.substring(0, Math.max(0, text.indexOf(' ')));
+            merge(text, null);
+            Node node = nodes.get(sender);
+            if (node != null) {
+                node.pongReceived = System.currentTimeMillis();
+            }
+            return gossip();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Applies a peer's view; `via` is the peer when the gossip thread asked it, null when
+    // it asked us. Must hold `lock`.
+    private static void merge(String text, Node via) {
+        String[] lines = text.split("\n");
+        boolean changed = false;
+        for (int i = 0; i < lines.length; i++) {
+            String[] fields = lines[i].split(" ");
+            if (fields.length != 6) {
+                continue;
+            }
+            if (i == 0) {
+                changed |= introduced(fields, via);
+            }
+            changed |= apply(fields);
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    // The peer's own record: a node met by address gets its real id, and a pending
+    // handshake with a node that reached us first is dropped.
+    private static boolean introduced(String[] fields, Node via) {
+        String id = fields[0];
+        boolean changed = false;
+        if (via != null && via.handshake) {
+            nodes.remove(via.id);
+            if (nodes.containsKey(id) || id.equals(myself.id)) {
+                disconnect(via);
+            } else {
+                via.id = id;
+                via.handshake = false;
+                nodes.put(id, via);
+            }
+            changed = true;
+        }
+        List<Node> met = new ArrayList<>();
+        for (Node node : nodes.values()) {
+            if (node.handshake && node.host.equals(fields[1]) && Integer.toString(node.port).equals(fields[2])) {
+                met.add(node);
+            }
+        }
+        for (Node node : met) {
+            nodes.remove(node.id);
+            disconnect(node);
+            changed = true;
+        }
+        return changed;
+    }
+
+    // One node's record, if newer than what we have.
+    private static boolean apply(String[] fields) {
+        String id = fields[0];
+        if (id.equals(myself.id)) {
+            return false;
+        }
+        long seq;
+        long epoch;
+        int port;
+        try {
+            port = Integer.parseInt(fields[2]);
+            epoch = Long.parseLong(fields[3]);
+            seq = Long.parseLong(fields[4]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        Node node = nodes.get(id);
+        if (node == null) {
+            node = new Node(id, fields[1], port);
+            nodes.put(id, node);
+            Log.notice("Discovered node " + id + " at " + node.address());
+        } else if (seq <= node.seq) {
+            return false;
+        }
+        node.seq = seq;
+        node.configEpoch = epoch;
+        currentEpoch = Math.max(currentEpoch, epoch);
+        if (!fields[5].equals("-")) {
+            for (String range : fields[5].split(",")) {
+                int dash = range.indexOf('-');
+                int start = Integer.parseInt(range.substring(0, dash));
+                int end = Integer.parseInt(range.substring(dash + 1));
+                for (int slot = Math.max(0, start); slot <= end && slot < SLOTS; slot++) {
+                    claim(node, slot);
+                }
+            }
+        }
+        return true;
+    }
+
+    // A claim wins over the current owner's if its config epoch is higher, or equal and
+    // its node id smaller, so that every node settles on the same owner.
+    private static void claim(Node node, int slot) {
+        Node owner = owners.get(slot);
+        if (owner == node) {
+            return;
+        }
+        if (owner != null && (node.configEpoch < owner.configEpoch
+                || node.configEpoch == owner.configEpoch && node.id.compareTo(owner.id) > 0)) {
+            return;
+        }
+        if (owner == myself) {
+            Log.notice("Slot " + slot + " is now served by " + node.id);
+            migratingTo.set(slot, null);
+        }
+        assign(slot, node);
+    }
+
+    private static void run() {
+        while (true) {
+            List<Node> peers;
+            lock.lock();
+            try {
+                peers = new ArrayList<>(nodes.values());
+            } finally {
+                lock.unlock();
+            }
+            for (Node node : peers) {
+                if (node != myself) {
+                    exchange(node);
+                }
+            }
+            lock.lock();
+            try {
+                if (!wakeRequested) {
+                    wakeup.await(GOSSIP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                }
+                wakeRequested = false;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Gossips now rather than at the next interval, after a local change.
+    private static void wake() {
+        lock.lock();
+        try {
+            wakeRequested = true;
+            wakeup.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // One round trip with a peer over the gossip thread's connection to it.
+    private static void exchange(Node node) {
+        String message;
+        lock.lock();
+        try {
+            if (nodes.get(node.id) != node) {
+                disconnect(node);
+                return;
+            }
+            message = gossip();
+        } finally {
+            lock.unlock();
+        }
+        if (node.pingSent == 0) {
+            node.pingSent = System.currentTimeMillis();
+        }
+        try {
+            if (node.socket == null) {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress(node.host, node.port), CONNECT_TIMEOUT_MS);
+                socket.setSoTimeout((int) Math.min(nodeTimeoutMs, Integer.MAX_VALUE));
+                socket.setTcpNoDelay(true);
+                node.socket = socket;
+                node.buf = ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
+                node.linked = true;
+            }
+            MasterLink.send(node.socket.getOutputStream(), "CLUSTER", "GOSSIP", message);
+            String reply = MasterLink.readLine(node.socket.getInputStream(), node.buf);
+            if (!reply.startsWith("$")) {
+                throw new ProtocolException("unexpected gossip reply: " + reply);
+            }
+            int length = Integer.parseInt(reply.substring(1));
+            byte[] view = MasterLink.readFully(node.socket.getInputStream(), node.buf, length + 2);
+            lock.lock();
+            try {
+                messagesSent++;
+                messagesReceived++;
+                node.pingSent = 0;
+                node.pongReceived = System.currentTimeMillis();
+                merge(new String(view, 0, length, StandardCharsets.US_ASCII), node);
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (node.linked) {
+                Log.verbose("Cluster link to " + node.address() + " failed: " + e.getMessage());
+            }
+            disconnect(node);
+        }
+    }
+
+    private static void disconnect(Node node) {
+        Socket socket = node.socket;
+        node.socket = null;
+        node.linked = false;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    // --- nodes.conf
+
+    private static Path configPath() {
+        return Paths.get(Rdb.dir, configFile);
+    }
+
+    // Writes the config file, as Redis does after every change, through a temporary file
+    // so a crash leaves the old one. Must hold `lock`.
+    private static void save() {
+        Path file = configPath();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp-" + ProcessHandle.current().pid());
+        try {
+            Files.write(temp, describe(true).getBytes(StandardCharsets.US_ASCII));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.warning("Could not save the cluster configuration: " + e.getMessage());
+        }
+    }
+
+    // Reads back what save() wrote: CLUSTER NODES lines, then the vars line.
+    private static void load(List<String> lines, int port) throws IOException {
+        Map<Node, String[]> parsed = new HashMap<>();
+        for (String line : lines) {
+            String[] fields = line.trim().split(" ");
+            if (fields[0].equals("vars")) {
+                for (int i = 1; i + 1 < fields.length; i += 2) {
+                    if (fields[i].equals("currentEpoch")) {
+                        currentEpoch = Long.parseLong(fields[i + 1]);
+                    }
+                }
+                continue;
+            }
+            if (fields.length < 8) {
+                continue;
+            }
+            String address = fields[1].split("@")[0];
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IOException("bad address in " + configFile + ": " + fields[1]);
+            }
+            boolean self = fields[2].contains("myself");
+            Node node = self ? new Node(fields[0], announceIp, port)
+                    : new Node(fields[0], address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            node.configEpoch = Long.parseLong(fields[6]);
+            nodes.put(node.id, node);
+            parsed.put(node, fields);
+            if (self) {
+                myself = node;
+            }
+        }
+        for (Map.Entry<Node, String[]> entry : parsed.entrySet()) {
+            String[] fields = entry.getValue();
+            for (int i = 8; i < fields.length; i++) {
+                String slots = fields[i];
+                if (slots.startsWith("[")) {
+                    // [slot->-id] migrating, [slot-<-id] importing
+                    boolean out = slots.contains("->-");
+                    String[] parts = slots.substring(1, slots.length() - 1).split(out ? "->-" : "-<-");
+                    Node other = nodes.get(parts[1]);
+                    if (other != null) {
+                        (out ? migratingTo : importingFrom).set(Integer.parseInt(parts[0]), other);
+                    }
+                    continue;
+                }
+                int dash = slots.indexOf('-');
+                int start = Integer.parseInt(dash < 0 ? slots : slots.substring(0, dash));
+                int end = dash < 0 ? start : Integer.parseInt(slots.substring(dash + 1));
+                for (int slot = start; slot <= end; slot++) {
+                    assign(slot, entry.getKey());
+                }
+            }
+        }
+    }
+
+    private static String randomId() {
+        byte[] bytes = new byte[20];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder id = new StringBuilder();
+        for (byte b : bytes) {
+            id.append(String.format("%02x", b & 0xff));
+        }
+        return id.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package redis;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Single-writer command execution (--exec-threads N). The event loops keep the protocol
+// work: reading, parsing and writing sockets. Parsed commands are handed through a
+// lock-free ring to one of N executor threads, which run them and append the replies.
+// Each shard belongs to one executor (shard index modulo N) and a command runs on the
+// executor owning the shard of its first argument, the key of every data command, so a
+// shard is only touched by its owner: its lock is still taken, but only contended by
+// the rare commands spanning shards and the background jobs (expiry sweep, snapshots).
+// With one executor every command runs on the same thread, as in Redis with io-threads.
+final class CommandExecutor implements Runnable {
+    private static final int RING_CAPACITY = 64 * 1024;
+    // empty polls before the executor parks; a busy server never gets that far
+    private static final int SPINS = 1000;
+
+    private static CommandExecutor[] executors = new CommandExecutor[0];
+
+    private final MpscRing<Runnable> ring = new MpscRing<>(RING_CAPACITY);
+    private final Thread thread;
+    private volatile boolean parked;
+
+    private CommandExecutor(int index) {
+        thread = new Thread(this, "executor-" + index);
+        thread.setDaemon(true);
+    }
+
+    // Must run before the server accepts connections.
+    static void start(int count) {
+        CommandExecutor[] created = new CommandExecutor[count];
+        for (int i = 0; i < count; i++) {
+            created[i] = new CommandExecutor(i);
+            created[i].thread.start();
+        }
+        executors = created;
+    }
+
+    static boolean enabled() {
+        return executors.length > 0;
+    }
+
+    // The executor a command runs on. Commands without arguments go anywhere.
+    static int route(RespCommand cmd) {
+        if (cmd.argc() < 2) {
+            return 0;
+        }
+        return Keyspace.shard(cmd.bytes(1)).index % executors.length;
+    }
+
+    static void submit(int executor, Runnable batch) {
+        executors[executor].offer(batch);
+    }
+
+    private void offer(Runnable batch) {
+        // every connection has at most one batch in flight, so this only spins with
+        // more connections than slots
+        while (!ring.offer(batch)) {
+            Thread.onSpinWait();
+        }
+        if (parked) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        int idle = 0;
+        while (true) {
+            Runnable batch = ring.poll();
+            if (batch != null) {
+                idle = 0;
+                batch.run();
+                continue;
+            }
+            if (++idle < SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+            parked = true;
+            // a producer that missed the flag published before we re-check
+            if (ring.isEmpty()) {
+                LockSupport.park(this);
+            }
+            parked = false;
+            idle = 0;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package redis;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Per-command calls and latency for INFO commandstats/latencystats and LATENCY
+// HISTOGRAM, recorded around every dispatch. Each command's histogram is striped, one
+// stripe per thread that runs commands at once (see configure): a thread always records
+// into its own stripe, behind that stripe's own lock, so recording is two uncontended
+// atomics. Stripes are only allocated for commands that ran; readers merge them.
+final class CommandStats {
+    // a histogram is ~30 KB, so a command costs that many of them at most
+    private static final int MAX_STRIPES = 64;
+    // 1.6% precision, as Redis' two significant digits near enough
+    private static final int PRECISION_BITS = 7;
+
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final LatencyHistogram histogram = new LatencyHistogram(PRECISION_BITS);
+    }
+
+    private static final CommandType[] COMMANDS = CommandType.values();
+    private static int stripeCount = Runtime.getRuntime().availableProcessors();
+    private static AtomicReferenceArray<Stripe> stripes = new AtomicReferenceArray<>(COMMANDS.length * stripeCount);
+    // Stripes are handed out in turn as threads first record, so the first stripeCount
+    // threads each get one of their own whatever their ids.
+    private static final AtomicInteger nextStripe = new AtomicInteger();
+    private static final ThreadLocal<Integer> stripeOf =
+            ThreadLocal.withInitial(() -> nextStripe.getAndIncrement() % stripeCount);
+    // refused before running: arity, READONLY, OOM
+    private static final LongAdder[] rejected = new LongAdder[COMMANDS.length];
+
+    static {
+        for (int i = 0; i < rejected.length; i++) {
+            rejected[i] = new LongAdder();
+        }
+    }
+
+    private CommandStats() {
+    }
+
+    // How many threads run commands at once: the event loops or the executors in nio
+    // mode, about the cores otherwise. Must run before the server accepts connections.
+    static void configure(int recorders) {
+        stripeCount = Math.max(1, Math.min(MAX_STRIPES, recorders));
+        stripes = new AtomicReferenceArray<>(COMMANDS.length * stripeCount);
+    }
+
+    static void record(CommandType command, long nanos) {
+        int i = command.ordinal() * stripeCount + stripeOf.get();
+        Stripe stripe = stripes.get(i);
+        if (stripe == null) {
+            stripes.compareAndSet(i, null, new Stripe());
+            stripe = stripes.get(i);
+        }
+        stripe.lock.lock();
+        try {
+            stripe.histogram.record(nanos);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    static void rejected(CommandType command) {
+        rejected[command.ordinal()].increment();
+    }
+
+    static long rejectedCalls(CommandType command) {
+        return rejected[command.ordinal()].sum();
+    }
+
+    // The command's latencies in nanoseconds, all stripes merged.
+    static LatencyHistogram histogram(CommandType command) {
+        LatencyHistogram merged = new LatencyHistogram(PRECISION_BITS);
+        for (int i = command.ordinal() * stripeCount, end = i + stripeCount; i < end; i++) {
+            Stripe stripe = stripes.get(i);
+            if (stripe != null) {
+                stripe.lock.lock();
+                try {
+                    merged.add(stripe.histogram);
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+        }
+        return merged;
+    }
+
+    // CONFIG RESETSTAT
+    static void reset() {
+        for (int i = 0; i < stripes.length(); i++) {
+            Stripe stripe = stripes.get(i);
+            if (stripe != null) {
+                stripe.lock.lock();
+                try {
+                    stripe.histogram.reset();
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+        }
+        for (LongAdder adder : rejected) {
+            adder.reset();
+        }
+    }
+}
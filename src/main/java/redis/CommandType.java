@@ -0,0 +1,220 @@
+package redis;
+
+import java.util.Arrays;
+
+// Command table. arity follows the Redis convention: a positive number is the exact
+// argument count including the command name, a negative one is the minimum. Flags are
+// the subset of Redis' command flags this server acts on. firstKey, lastKey and step say
+// where the keys are, as in COMMAND INFO: lastKey -1 is the last argument, -2 the one
+// before; 0 for commands without keys. Cluster mode routes on them.
+enum CommandType {
+    PING(-1, Flags.PUBSUB_CONTEXT),
+    ECHO(2),
+    SET(-3, Flags.WRITE | Flags.DENYOOM, 1, 1, 1),
+    GET(2, 0, 1, 1, 1),
+    MGET(-2, 0, 1, -1, 1),
+    MSET(-3, Flags.WRITE | Flags.DENYOOM, 1, -1, 2),
+    RPUSH(-3, Flags.WRITE | Flags.DENYOOM, 1, 1, 1),
+    LPUSH(-3, Flags.WRITE | Flags.DENYOOM, 1, 1, 1),
+    LRANGE(4, 0, 1, 1, 1),
+    LLEN(2, 0, 1, 1, 1),
+    LPOP(-2, Flags.WRITE, 1, 1, 1),
+    RPOP(-2, Flags.WRITE, 1, 1, 1),
+    LINDEX(3, 0, 1, 1, 1),
+    LSET(4, Flags.WRITE | Flags.DENYOOM, 1, 1, 1),
+    LINSERT(5, Flags.WRITE | Flags.DENYOOM, 1, 1, 1),
+    LREM(4, Flags.WRITE, 1, 1, 1),
+    LTRIM(4, Flags.WRITE, 1, 1, 1),
+    BLPOP(-3, Flags.WRITE, 1, -2, 1),
+    BRPOP(-3, Flags.WRITE, 1, -2, 1),
+    LMOVE(5, Flags.WRITE | Flags.DENYOOM, 1, 2, 1),
+    BLMOVE(6, Flags.WRITE | Flags.DENYOOM, 1, 2, 1),
+    HSET(-4, Flags.WRITE | Flags.DENYOOM, 1, 1, 1),
+    HGET(3, 0, 1, 1, 1),
+    HGETALL(2, 0, 1, 1, 1),
+    HINCRBY(4, Flags.WRITE | Flags.DENYOOM, 1, 1, 1),
+    HDEL(-3, Flags.WRITE, 1, 1, 1),
+    HLEN(2, 0, 1, 1, 1),
+    SADD(-3, Flags.WRITE | Flags.DENYOOM, 1, 1, 1),
+    SREM(-3, Flags.WRITE, 1, 1, 1),
+    SISMEMBER(3, 0, 1, 1, 1),
+    SMEMBERS(2, 0, 1, 1, 1),
+    SINTER(-2, 0, 1, -1, 1),
+    SCARD(2, 0, 1, 1, 1),
+    ZADD(-4, Flags.WRITE | Flags.DENYOOM, 1, 1, 1),
+    ZRANGE(-4, 0, 1, 1, 1),
+    ZRANGEBYSCORE(-4, 0, 1, 1, 1),
+    ZRANK(-3, 0, 1, 1, 1),
+    ZREM(-3, Flags.WRITE, 1, 1, 1),
+    ZCARD(2, 0, 1, 1, 1),
+    ZSCORE(3, 0, 1, 1, 1),
+    XADD(-5, Flags.WRITE | Flags.DENYOOM, 1, 1, 1),
+    XLEN(2, 0, 1, 1, 1),
+    XRANGE(-4, 0, 1, 1, 1),
+    XREVRANGE(-4, 0, 1, 1, 1),
+    XTRIM(-4, Flags.WRITE, 1, 1, 1),
+    // the keys are the first half of what follows STREAMS; see keyPositions
+    XREAD(-4),
+    XREADGROUP(-7, Flags.WRITE),
+    XGROUP(-2, Flags.WRITE | Flags.DENYOOM, 2, 2, 1),
+    XACK(-4, Flags.WRITE, 1, 1, 1),
+    XPENDING(-3, 0, 1, 1, 1),
+    XCLAIM(-6, Flags.WRITE, 1, 1, 1),
+    TYPE(2, 0, 1, 1, 1),
+    OBJECT(-2, 0, 2, 2, 1),
+    DEL(-2, Flags.WRITE, 1, -1, 1),
+    EXISTS(-2, 0, 1, -1, 1),
+    EXPIRE(3, Flags.WRITE, 1, 1, 1),
+    PEXPIRE(3, Flags.WRITE, 1, 1, 1),
+    EXPIREAT(3, Flags.WRITE, 1, 1, 1),
+    PEXPIREAT(3, Flags.WRITE, 1, 1, 1),
+    TTL(2, 0, 1, 1, 1),
+    PTTL(2, 0, 1, 1, 1),
+    PERSIST(2, Flags.WRITE, 1, 1, 1),
+    DUMP(2, 0, 1, 1, 1),
+    RESTORE(-4, Flags.WRITE | Flags.DENYOOM, 1, 1, 1),
+    RESTORE_ASKING(-4, Flags.WRITE | Flags.DENYOOM | Flags.ASKING, 1, 1, 1),
+    // the keys are the third argument, or after KEYS when that is empty; see keyPositions
+    MIGRATE(-6, Flags.WRITE, 3, 3, 1),
+    SAVE(1),
+    BGSAVE(1),
+    BGREWRITEAOF(1),
+    LASTSAVE(1),
+    CONFIG(-2),
+    REPLCONF(-1),
+    PSYNC(-3, Flags.NO_MULTI),
+    ROLE(1),
+    INFO(-1),
+    LATENCY(-2),
+    SLOWLOG(-2),
+    SUBSCRIBE(-2, Flags.PUBSUB_CONTEXT),
+    UNSUBSCRIBE(-1, Flags.PUBSUB_CONTEXT),
+    PSUBSCRIBE(-2, Flags.PUBSUB_CONTEXT),
+    PUNSUBSCRIBE(-1, Flags.PUBSUB_CONTEXT),
+    PUBLISH(3),
+    MULTI(1),
+    EXEC(1),
+    DISCARD(1),
+    WATCH(-2, 0, 1, -1, 1),
+    UNWATCH(1),
+    CLUSTER(-2),
+    ASKING(1);
+
+    static final class Flags {
+        // modifies the dataset
+        static final int WRITE = 1;
+        // may grow memory use, refused while over maxmemory
+        static final int DENYOOM = 1 << 1;
+        // served for an importing slot as if ASKING had been sent first
+        static final int ASKING = 1 << 2;
+        // allowed while the client is subscribed to channels or patterns
+        static final int PUBSUB_CONTEXT = 1 << 3;
+        // refused between MULTI and EXEC
+        static final int NO_MULTI = 1 << 4;
+    }
+
+    private static final int MAX_NAME = 32;
+    // names bucketed by length so a lookup is a handful of byte compares, no String built
+    private static final CommandType[][] BY_LENGTH = new CommandType[MAX_NAME + 1][];
+
+    static {
+        for (CommandType type : values()) {
+            int n = type.wireName.length();
+            CommandType[] bucket = BY_LENGTH[n];
+            CommandType[] grown = bucket == null ? new CommandType[1] : Arrays.copyOf(bucket, bucket.length + 1);
+            grown[grown.length - 1] = type;
+            BY_LENGTH[n] = grown;
+        }
+    }
+
+    final int arity;
+    final int flags;
+    final int firstKey;
+    final int lastKey;
+    final int step;
+    // the name on the wire, with '-' where Java needs '_'
+    final String wireName;
+    final String lowerName;
+
+    CommandType(int arity) {
+        this(arity, 0);
+    }
+
+    CommandType(int arity, int flags) {
+        this(arity, flags, 0, 0, 0);
+    }
+
+    CommandType(int arity, int flags, int firstKey, int lastKey, int step) {
+        this.arity = arity;
+        this.flags = flags;
+        this.firstKey = firstKey;
+        this.lastKey = lastKey;
+        this.step = step;
+        this.wireName = name().replace('_', '-');
+        this.lowerName = wireName.toLowerCase();
+    }
+
+    boolean has(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    boolean arityMatches(int argc) {
+        return arity >= 0 ? argc == arity : argc >= -arity;
+    }
+
+    // Indexes of the key arguments of a command of this type that passed the arity
+    // check; empty for commands without keys.
+    int[] keyPositions(RespCommand command) {
+        int argc = command.argc();
+        if (this == MIGRATE) {
+            if (command.length(3) > 0) {
+                return new int[] {3};
+            }
+            for (int i = 6; i < argc; i++) {
+                if (command.is(i, "KEYS")) {
+                    int[] keys = new int[argc - i - 1];
+                    for (int k = 0; k < keys.length; k++) {
+                        keys[k] = i + 1 + k;
+                    }
+                    return keys;
+                }
+            }
+            return new int[0];
+        }
+        if (this == XREAD || this == XREADGROUP) {
+            // past GROUP group consumer, which could be named STREAMS
+            for (int i = this == XREAD ? 1 : 4; i < argc; i++) {
+                if (command.is(i, "STREAMS")) {
+                    int[] keys = new int[(argc - i - 1) / 2];
+                    for (int k = 0; k < keys.length; k++) {
+                        keys[k] = i + 1 + k;
+                    }
+                    return keys;
+                }
+            }
+            return new int[0];
+        }
+        if (firstKey == 0 || firstKey >= argc) {
+            return new int[0];
+        }
+        int last = lastKey >= 0 ? Math.min(lastKey, argc - 1) : argc + lastKey;
+        int[] keys = new int[Math.max(0, (last - firstKey) / step + 1)];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = firstKey + k * step;
+        }
+        return keys;
+    }
+
+    static CommandType lookup(RespCommand command) {
+        int n = command.length(0);
+        if (n > MAX_NAME || BY_LENGTH[n] == null) {
+            return null;
+        }
+        for (CommandType type : BY_LENGTH[n]) {
+            if (command.is(0, type.wireName)) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
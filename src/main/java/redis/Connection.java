@@ -0,0 +1,462 @@
+package redis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+// Per-socket state for the NIO server. All methods run on the owning EventLoop thread
+// except resume(), which may be called from whichever thread completes a blocked command.
+// With executors (see CommandExecutor) parsed commands are copied out and run elsewhere
+// in batches; while a batch is out, its executor owns `handler` and `out`, and the loop
+// only reads and parses ahead.
+class Connection {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // Replies of a long pipeline are pushed out once this much has piled up, rather than
+    // holding everything until the whole read buffer has been drained.
+    static final int FLUSH_THRESHOLD = 64 * 1024;
+    // Replies the client has not read yet beyond which the connection takes no further
+    // requests, and stops reading, until it has: a client that pipelines without reading
+    // backs up into its own socket instead of into our memory.
+    static final int PAUSE_OUTPUT = 256 * 1024;
+    // Executor mode: commands per batch, and parsed commands waiting before the
+    // connection stops reading.
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_QUEUED = 1024;
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ClientHandler handler;
+    private final RespParser parser = new RespParser();
+    private final OutputBuffer out = new OutputBuffer();
+    private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // true while the socket is full and we wait for OP_WRITE
+    private boolean writePending;
+    // true while PAUSE_OUTPUT is exceeded
+    private boolean inputPaused;
+    // Set while a blocking command (BLPOP) is waiting; no further input is parsed, or
+    // read, until its reply has been queued so replies stay in request order.
+    private boolean suspended;
+    // With appendfsync always: the fsync that replies are held back for, null when none.
+    private CompletableFuture<Void> aofWait;
+    // A replica's link only: completed once the socket took what was handed over.
+    private CompletableFuture<Void> drained;
+    // Executor mode: parsed commands not handed over yet, whether a batch is out, and the
+    // reply of a blocked command that came back while it was.
+    private final ArrayDeque<RespCommand> queued = new ArrayDeque<>();
+    private boolean executing;
+    private Consumer<OutputBuffer> deferredReply;
+    private final List<Runnable> afterBatch = new ArrayList<>();
+    private boolean closed;
+
+    Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.handler = new ClientHandler(this);
+        Stats.clientConnected();
+    }
+
+    void handleRead() {
+        try {
+            if (!in.hasRemaining()) {
+                in = ClientHandler.grow(in, parser.frameBytesNeeded());
+            }
+            int n = channel.read(in);
+            if (n < 0) {
+                close();
+                return;
+            }
+            Stats.netInputBytes.add(n);
+            processInput();
+        } catch (Exception e) {
+            Log.verbose("Error handling client: " + e);
+            close();
+        }
+    }
+
+    void handleWrite() {
+        if (aofWait != null || executing) {
+            // what is queued now includes replies that must wait, or `out` is not ours
+            updateInterest();
+            return;
+        }
+        try {
+            if (out.writeTo(channel)) {
+                writePending = false;
+                updateInterest();
+                if (drained != null) {
+                    drained.complete(null);
+                    drained = null;
+                }
+            }
+            resumeInputIfDrained();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    // Stops reading too, as pauseInput() does, so a client that keeps sending while
+    // blocked backs up into its socket rather than into `in`. With executors this runs on
+    // the executor thread and batchDone() updates the interest set instead.
+    void suspend() {
+        suspended = true;
+        if (!executing) {
+            updateInterest();
+        }
+    }
+
+    // Lets a blocked command write its reply on the loop thread, then picks up any input
+    // that arrived meanwhile.
+    void resume(Consumer<OutputBuffer> reply) {
+        loop.execute(() -> {
+            if (closed) {
+                return;
+            }
+            if (executing) {
+                // served before the executor finished the batch that blocked
+                deferredReply = reply;
+                return;
+            }
+            try {
+                applyReply(reply);
+                processInput();
+            } catch (Exception e) {
+                Log.verbose("Error handling client: " + e);
+                close();
+            }
+        });
+    }
+
+    private void applyReply(Consumer<OutputBuffer> reply) {
+        suspended = false;
+        updateInterest();
+        // the reply of a blocked command follows a write logged on its behalf
+        handler.wroteSinceFlush = true;
+        reply.accept(out);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    String remoteHost() {
+        try {
+            return ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        } catch (IOException e) {
+            return "?";
+        }
+    }
+
+    String remoteAddress() {
+        try {
+            InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
+            return address.getAddress().getHostAddress() + ":" + address.getPort();
+        } catch (IOException e) {
+            return "?";
+        }
+    }
+
+    // Queues a message published to a channel or pattern this client subscribed to. Runs
+    // on the publisher's thread; the message is shared with every other subscriber, so
+    // it is only referenced from `out`, never copied or changed.
+    void push(byte[] message) {
+        loop.execute(() -> {
+            if (executing) {
+                // `out` belongs to the executor until the batch is done
+                afterBatch.add(() -> pushNow(message));
+            } else {
+                pushNow(message);
+            }
+        });
+    }
+
+    private void pushNow(byte[] message) {
+        if (closed) {
+            return;
+        }
+        out.writeShared(message);
+        try {
+            flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    // This connection as the link a replica is fed through (see Replication).
+    Replication.Link replicaLink() {
+        return new Replication.Link() {
+            @Override
+            public void send(byte[] data, int length) throws IOException {
+                sendAndWait(data, length);
+            }
+
+            @Override
+            public void close() {
+                loop.execute(Connection.this::close);
+            }
+        };
+    }
+
+    // Runs on the replica's thread. Hands the bytes to the loop and waits until the socket
+    // took them, so a lagging replica backs up in the replication stream, not in `out`.
+    private void sendAndWait(byte[] data, int length) throws IOException {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        loop.execute(() -> {
+            if (executing) {
+                // an ACK of the replica's is being run; `out` is not ours until it is done
+                afterBatch.add(() -> sendNow(data, length, done));
+            } else {
+                sendNow(data, length, done);
+            }
+        });
+        try {
+            done.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void sendNow(byte[] data, int length, CompletableFuture<Void> done) {
+        if (!closed) {
+            out.write(data, 0, length);
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+        if (closed) {
+            done.completeExceptionally(new IOException("connection closed"));
+        } else if (out.isEmpty()) {
+            done.complete(null);
+        } else {
+            drained = done;
+        }
+    }
+
+    private void processInput() throws IOException {
+        if (CommandExecutor.enabled()) {
+            processOffloaded();
+            return;
+        }
+        in.flip();
+        try {
+            // Drain every complete request already buffered, then answer them all with one write.
+            while (!suspended && !inputPaused && !closed && parser.parse(in)) {
+                handler.dispatch(parser.command(), out);
+                if (out.size() >= FLUSH_THRESHOLD) {
+                    flushDurable();
+                    if (out.size() >= PAUSE_OUTPUT) {
+                        // the socket is full or the replies wait for an fsync; either
+                        // resumes us once they are out
+                        pauseInput();
+                    }
+                }
+            }
+        } catch (ProtocolException e) {
+            RespWriter.error(out, "ERR Protocol error: " + e.getMessage());
+            flush();
+            close();
+            return;
+        }
+        in.compact();
+        flushDurable();
+    }
+
+    // Executor mode: parses ahead into `queued`, even while a batch is out, and hands
+    // the next batch over once the replies of the last one have been flushed.
+    private void processOffloaded() throws IOException {
+        in.flip();
+        try {
+            while (queued.size() < MAX_QUEUED && parser.parse(in)) {
+                queued.add(parser.command().copy());
+            }
+        } catch (ProtocolException e) {
+            if (!executing) {
+                RespWriter.error(out, "ERR Protocol error: " + e.getMessage());
+                flush();
+            }
+            close();
+            return;
+        }
+        in.compact();
+        if (!executing) {
+            flushDurable();
+            submitBatch();
+        }
+        updateInterest();
+    }
+
+    // Hands over the longest run of queued commands bound for the same executor. Stops
+    // behind a blocked command, whose reply has to come first.
+    private void submitBatch() {
+        if (executing || suspended || closed || queued.isEmpty() || inputPaused) {
+            return;
+        }
+        if (out.size() >= PAUSE_OUTPUT) {
+            pauseInput();
+            return;
+        }
+        int executor = CommandExecutor.route(queued.peekFirst());
+        List<RespCommand> batch = new ArrayList<>();
+        batch.add(queued.pollFirst());
+        while (batch.size() < MAX_BATCH && !queued.isEmpty() && CommandExecutor.route(queued.peekFirst()) == executor) {
+            batch.add(queued.pollFirst());
+        }
+        executing = true;
+        CommandExecutor.submit(executor, () -> runBatch(batch));
+    }
+
+    // On the executor thread.
+    private void runBatch(List<RespCommand> batch) {
+        int ran = 0;
+        Exception failure = null;
+        try {
+            // what is left over once the replies pile up past PAUSE_OUTPUT waits for the
+            // client to read them
+            while (ran < batch.size() && !suspended && out.size() < PAUSE_OUTPUT) {
+                handler.dispatch(batch.get(ran++), out);
+            }
+        } catch (Exception e) {
+            failure = e;
+        }
+        int done = ran;
+        Exception error = failure;
+        loop.execute(() -> batchDone(batch, done, error));
+    }
+
+    private void batchDone(List<RespCommand> batch, int ran, Exception failure) {
+        executing = false;
+        if (closed) {
+            return;
+        }
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            // what followed a blocked command, or a backlog of replies, is run later
+            for (int i = batch.size() - 1; i >= ran; i--) {
+                queued.addFirst(batch.get(i));
+            }
+            if (deferredReply != null) {
+                applyReply(deferredReply);
+                deferredReply = null;
+            }
+            for (Runnable task : afterBatch) {
+                task.run();
+            }
+            afterBatch.clear();
+            processOffloaded();
+        } catch (Exception e) {
+            Log.verbose("Error handling client: " + e);
+            close();
+        }
+    }
+
+    // Read interest unless enough parsed commands or unread replies are waiting, or a
+    // blocked command is, write interest while a write is pending that may go out.
+    private void updateInterest() {
+        if (closed) {
+            return;
+        }
+        int ops = queued.size() < MAX_QUEUED && !inputPaused && !suspended ? SelectionKey.OP_READ : 0;
+        if (writePending && aofWait == null && !executing) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    // flush(), except that with appendfsync always replies to writes first wait for the
+    // AOF fsync. The connection keeps reading meanwhile; whatever it adds goes out
+    // with the same flush, so a pipeline costs one wait, not one per command.
+    private void flushDurable() throws IOException {
+        if (handler.wroteSinceFlush && Aof.syncsAlways()) {
+            handler.wroteSinceFlush = false;
+            CompletableFuture<Void> durable = Aof.durable();
+            if (!durable.isDone()) {
+                aofWait = durable;
+                durable.thenRun(() -> loop.execute(() -> {
+                    // fsyncs complete in order, only the latest one releases the replies
+                    if (aofWait != durable || closed) {
+                        return;
+                    }
+                    aofWait = null;
+                    if (executing) {
+                        // flushed when the batch is done
+                        return;
+                    }
+                    updateInterest();
+                    try {
+                        flushDurable();
+                        resumeInputIfDrained();
+                    } catch (IOException e) {
+                        close();
+                    }
+                }));
+                return;
+            }
+        }
+        handler.wroteSinceFlush = false;
+        flush();
+    }
+
+    private void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (handler.overOutputLimit(out.size())) {
+            close();
+            return;
+        }
+        if (out.isEmpty() || writePending || aofWait != null) {
+            return;
+        }
+        if (!out.writeTo(channel)) {
+            writePending = true;
+            updateInterest();
+        }
+    }
+
+    private void pauseInput() {
+        inputPaused = true;
+        updateInterest();
+    }
+
+    // Takes requests again once the client has read enough of what piled up.
+    private void resumeInputIfDrained() throws IOException {
+        if (inputPaused && !closed && out.size() < PAUSE_OUTPUT) {
+            inputPaused = false;
+            updateInterest();
+            processInput();
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        handler.connectionClosed();
+        if (drained != null) {
+            drained.completeExceptionally(new IOException("connection closed"));
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+}
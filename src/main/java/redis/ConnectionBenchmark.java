@@ -0,0 +1,261 @@
+package redis;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// Connection-count benchmark for comparing the I/O modes on the blocking-consumer
+// workload: start the server with --io threads, --io virtual or --io nio and run
+//
+//   java -cp target/classes redis.ConnectionBenchmark --connections 10000,50000,100000 --pid <server pid>
+//
+// For each count it opens that many connections, parks every one of them in BLPOP,
+// serves them all with pipelined RPUSHes from one producer, then does one PING round
+// trip on every connection. It reports connect time, how long after the first push the
+// consumers got their elements (percentiles), PING throughput, and with --pid the
+// server's resident memory and thread count.
+// Everything client-side runs on one selector thread, so the client is not what limits
+// the count. Each end needs a file descriptor per connection (ulimit -n), and against a
+// loopback server the sockets are spread over 127.0.0.x source addresses, since one
+// address only has ~28k ephemeral ports.
+final class ConnectionBenchmark {
+    private static final int PER_SOURCE_ADDRESS = 20000;
+    private static final int CONSUMERS_PER_KEY = 100;
+    private static final int PUSH_PIPELINE = 1000;
+    private static final byte[] PING = "*1\r\n$4\r\nPING\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final String host;
+    private final int port;
+    private final long serverPid;
+
+    private ConnectionBenchmark(String host, int port, long serverPid) {
+        this.host = host;
+        this.port = port;
+        this.serverPid = serverPid;
+    }
+
+    // Per connection: how many lines of its reply are still expected.
+    private static final class Client {
+        final SocketChannel channel;
+        int linesLeft;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = 6379;
+        long pid = -1;
+        int[] counts = {10000, 50000, 100000};
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host":
+                    host = args[++i];
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--pid":
+                    pid = Long.parseLong(args[++i]);
+                    break;
+                case "--connections":
+                    counts = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        ConnectionBenchmark bench = new ConnectionBenchmark(host, port, pid);
+        System.out.printf("%-12s %12s %12s %12s %12s %14s %12s %8s%n", "connections", "connect ms",
+                "pop p50 ms", "pop p99 ms", "pop max ms", "pings/s", "server rss", "threads");
+        for (int count : counts) {
+            bench.run(count);
+        }
+    }
+
+    private void run(int count) throws IOException {
+        Client[] clients = new Client[count];
+        Selector selector = Selector.open();
+        try {
+            long started = System.nanoTime();
+            InetAddress server = InetAddress.getByName(host);
+            for (int i = 0; i < count; i++) {
+                SocketChannel channel = SocketChannel.open();
+                if (server.isLoopbackAddress() && count > PER_SOURCE_ADDRESS) {
+                    byte[] source = {127, 0, 0, (byte) (2 + i / PER_SOURCE_ADDRESS)};
+                    channel.bind(new InetSocketAddress(InetAddress.getByAddress(source), 0));
+                }
+                channel.connect(new InetSocketAddress(server, port));
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.configureBlocking(false);
+                clients[i] = new Client(channel);
+                channel.register(selector, SelectionKey.OP_READ, clients[i]);
+            }
+            long connectMs = (System.nanoTime() - started) / 1_000_000;
+
+            // every connection blocks in BLPOP, then one producer serves them all
+            int keys = Math.max(1, count / CONSUMERS_PER_KEY);
+            String prefix = "bench:" + System.nanoTime() + ":";
+            for (int i = 0; i < count; i++) {
+                send(clients[i], command("BLPOP", prefix + (i % keys), "0"), 5);
+            }
+            // give the server time to register every waiter before pushing
+            drainQuietly(selector, 1000);
+            long[] latencies = new long[count];
+            int[] received = {0};
+            try (SocketChannel producer = SocketChannel.open(new InetSocketAddress(server, port))) {
+                long pushStarted = System.nanoTime();
+                for (int from = 0; from < count; from += PUSH_PIPELINE) {
+                    StringBuilder batch = new StringBuilder();
+                    int n = Math.min(PUSH_PIPELINE, count - from);
+                    for (int i = from; i < from + n; i++) {
+                        batch.append(encode("RPUSH", prefix + (i % keys), Integer.toString(i)));
+                    }
+                    writeFully(producer, batch.toString().getBytes(StandardCharsets.US_ASCII));
+                    readLines(producer, n);
+                    collect(selector, 0, clients, latencies, received, pushStarted);
+                }
+                while (received[0] < count) {
+                    collect(selector, 1000, clients, latencies, received, pushStarted);
+                }
+            }
+            Arrays.sort(latencies);
+
+            // one PING round trip on every connection
+            received[0] = 0;
+            long pingStarted = System.nanoTime();
+            for (Client client : clients) {
+                send(client, PING, 1);
+            }
+            while (received[0] < count) {
+                collect(selector, 1000, clients, null, received, pingStarted);
+            }
+            double pingSeconds = (System.nanoTime() - pingStarted) / 1e9;
+
+            System.out.printf("%-12d %12d %12.1f %12.1f %12.1f %14.0f %12s %8s%n", count, connectMs,
+                    latencies[count / 2] / 1e6, latencies[(int) (count * 0.99)] / 1e6, latencies[count - 1] / 1e6,
+                    count / pingSeconds, serverStatus("VmRSS"), serverStatus("Threads"));
+        } finally {
+            for (Client client : clients) {
+                if (client != null) {
+                    client.channel.close();
+                }
+            }
+            selector.close();
+        }
+    }
+
+    private static void send(Client client, byte[] request, int replyLines) throws IOException {
+        client.linesLeft = replyLines;
+        writeFully(client.channel, request);
+    }
+
+    // Reads whatever replies arrived, counting a client done once all its reply lines
+    // are in. Latency is taken from `since` when given a latency array.
+    private static void collect(Selector selector, long timeoutMs, Client[] clients, long[] latencies, int[] received,
+                                long since) throws IOException {
+        if (timeoutMs == 0) {
+            selector.selectNow();
+        } else {
+            selector.select(timeoutMs);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Client client = (Client) key.attachment();
+            buf.clear();
+            int n = client.channel.read(buf);
+            if (n < 0) {
+                throw new IOException("server closed a connection");
+            }
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n' && --client.linesLeft == 0) {
+                    if (latencies != null) {
+                        latencies[received[0]] = System.nanoTime() - since;
+                    }
+                    received[0]++;
+                }
+            }
+        }
+    }
+
+    private static void drainQuietly(Selector selector, long ms) throws IOException {
+        long until = System.currentTimeMillis() + ms;
+        long left;
+        while ((left = until - System.currentTimeMillis()) > 0) {
+            selector.select(left);
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private static void readLines(SocketChannel channel, int lines) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(16 * 1024);
+        while (lines > 0) {
+            buf.clear();
+            int n = channel.read(buf);
+            if (n < 0) {
+                throw new IOException("server closed the producer connection");
+            }
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') {
+                    lines--;
+                }
+            }
+        }
+    }
+
+    private static void writeFully(SocketChannel channel, byte[] data) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(data);
+        while (src.hasRemaining()) {
+            if (channel.write(src) == 0) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private static byte[] command(String... argv) {
+        return encode(argv).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String encode(String... argv) {
+        StringBuilder request = new StringBuilder().append('*').append(argv.length).append("\r\n");
+        for (String arg : argv) {
+            request.append('$').append(arg.length()).append("\r\n").append(arg).append("\r\n");
+        }
+        return request.toString();
+    }
+
+    // A field of /proc/<pid>/status, "-" when not on Linux or no --pid given.
+    private String serverStatus(String field) {
+        if (serverPid < 0) {
+            return "-";
+        }
+        Path status = Paths.get("/proc", Long.toString(serverPid), "status");
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith(field + ":")) {
+                    return line.substring(field.length() + 1).trim().replace(" kB", "k");
+                }
+            }
+        } catch (IOException e) {
+            // not Linux, or the server is gone
+        }
+        return "-";
+    }
+}
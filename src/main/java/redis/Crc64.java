@@ -0,0 +1,29 @@
+package redis;
+
+// CRC-64/Jones, the checksum Redis appends to RDB files: reflected, polynomial
+// 0xad93d23594c935a9, zero initial value and no final xor. Table-driven, a byte a step.
+final class Crc64 {
+    // the polynomial bit-reversed, for the reflected algorithm
+    private static final long POLY = 0x95ac9329ac4bc9b5L;
+    private static final long[] TABLE = new long[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            long crc = i;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private Crc64() {
+    }
+
+    static long update(long crc, byte[] data, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            crc = TABLE[(int) ((crc ^ data[i]) & 0xff)] ^ (crc >>> 8);
+        }
+        return crc;
+    }
+}
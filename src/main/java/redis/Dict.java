@@ -0,0 +1,442 @@
+package redis;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+// One shard's keyspace: an open-addressing table with linear probing over byte[] keys,
+// laid out as parallel arrays. A key costs its bytes and a few array slots instead of a
+// String, a HashMap node and a boxed TTL; the expiry deadline lives in the slot too, next
+// to the owner's timer wheel entry for it, which is cancelled whenever the deadline
+// changes or the key goes.
+// Resizing never rehashes everything at once. A second table is allocated and every
+// operation moves a few slots across, as Redis' dict does; meanwhile lookups consult
+// both tables, and the old one keeps a tombstone in each vacated slot so the probe
+// chains running through it stay intact.
+// For background saves the tables can be shared with a Snapshot; the first write after
+// that copies them, the way fork() leaves pages shared until one side touches them.
+// Unlike fork()'s pages the copy is all at once: that write pauses the shard for
+// O(capacity), up to 24 bytes a slot: around a millisecond at 100k keys and tens of ms
+// past a million (SnapshotBenchmark in bench measures it). Spreading keys over more
+// shards keeps each pause short.
+// Not thread-safe, the shard lock guards it.
+final class Dict {
+    private static final int MIN_CAPACITY = 16;
+    // occupied slots moved per operation while rehashing
+    private static final int REHASH_STEP = 16;
+    // key, value and timer references, expiry and hash
+    private static final int SLOT_BYTES = 8 + 8 + 8 + 8 + 4;
+    // marks a vacated slot of the table being rehashed away
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    private static final class Table {
+        final byte[][] keys;
+        final RedisObject[] values;
+        // absolute unix-ms deadline, 0 for none
+        final long[] expires;
+        // the wheel entry that fires at `expires`, null for none
+        final TimingWheel.Entry<?>[] timers;
+        final int[] hashes;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new byte[capacity][];
+            values = new RedisObject[capacity];
+            expires = new long[capacity];
+            timers = new TimingWheel.Entry<?>[capacity];
+            hashes = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        // A copy for writing while a Snapshot reads `from`. Only what the snapshot reads
+        // is cloned; it never looks at hashes or timers, so those arrays stay shared.
+        Table(Table from) {
+            keys = from.keys.clone();
+            values = from.values.clone();
+            expires = from.expires.clone();
+            timers = from.timers;
+            hashes = from.hashes;
+            mask = from.mask;
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        long footprint() {
+            return 5 * 16 + (long) keys.length * SLOT_BYTES;
+        }
+    }
+
+    interface EntryVisitor {
+        // expireAt is -1 for keys without a TTL
+        void accept(byte[] key, RedisObject value, long expireAt) throws IOException;
+    }
+
+    // The dict's contents as of snapshot(). Only reads tables the dict no longer writes.
+    static final class Snapshot {
+        private final Table table;
+        private final Table old;
+        final int size;
+        final int expiresCount;
+
+        private Snapshot(Table table, Table old, int size, int expiresCount) {
+            this.table = table;
+            this.old = old;
+            this.size = size;
+            this.expiresCount = expiresCount;
+        }
+
+        void forEach(EntryVisitor visitor) throws IOException {
+            visit(old, visitor);
+            visit(table, visitor);
+        }
+
+        private static void visit(Table t, EntryVisitor visitor) throws IOException {
+            if (t == null) {
+                return;
+            }
+            for (int i = 0; i < t.capacity(); i++) {
+                byte[] key = t.keys[i];
+                if (key != null && key != TOMBSTONE) {
+                    visitor.accept(key, t.values[i], t.expires[i] == 0 ? -1 : t.expires[i]);
+                }
+            }
+        }
+    }
+
+    private final Shard owner;
+    private Table table;
+    // the table being drained into `table`, null when not rehashing
+    private Table old;
+    private int rehashIndex;
+    private int size;
+    private int expiresCount;
+    // the tables are referenced by a Snapshot and must be copied before any write
+    private boolean shared;
+
+    Dict(Shard owner) {
+        this.owner = owner;
+        table = new Table(MIN_CAPACITY);
+        owner.usedMemory += table.footprint();
+    }
+
+    static int hash(byte[] key) {
+        // murmur3's finalizer, so the low bits used for the slot depend on every byte
+        int h = Arrays.hashCode(key);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean hasExpires() {
+        return expiresCount > 0;
+    }
+
+    int expiresCount() {
+        return expiresCount;
+    }
+
+    RedisObject get(byte[] key) {
+        rehashStep();
+        int h = hash(key);
+        int i = find(table, key, h);
+        if (i >= 0) {
+            return table.values[i];
+        }
+        if (old != null && (i = find(old, key, h)) >= 0) {
+            return old.values[i];
+        }
+        return null;
+    }
+
+    // Stores value, returning the one it replaced. An existing key keeps its expiry.
+    RedisObject put(byte[] key, RedisObject value) {
+        unshare();
+        rehashStep();
+        int h = hash(key);
+        Table t = table;
+        int i = find(t, key, h);
+        if (i < 0 && old != null) {
+            t = old;
+            i = find(t, key, h);
+        }
+        if (i >= 0) {
+            RedisObject previous = t.values[i];
+            t.values[i] = value;
+            return previous;
+        }
+        if (old != null && (size + 1) * 4L > table.capacity() * 3L) {
+            // writes outran the rehash; finish it before the new table fills up
+            while (old != null) {
+                rehashStep();
+            }
+        }
+        insert(table, key, value, 0, null, h);
+        size++;
+        if (old == null && size * 4L > table.capacity() * 3L) {
+            startRehash(table.capacity() * 2);
+        }
+        return null;
+    }
+
+    RedisObject remove(byte[] key) {
+        unshare();
+        rehashStep();
+        int h = hash(key);
+        int i = find(table, key, h);
+        RedisObject previous;
+        if (i >= 0) {
+            previous = table.values[i];
+            if (table.expires[i] != 0) {
+                expiresCount--;
+                owner.cancelExpiry(table.timers[i]);
+            }
+            deleteAt(table, i);
+        } else if (old != null && (i = find(old, key, h)) >= 0) {
+            previous = old.values[i];
+            if (old.expires[i] != 0) {
+                expiresCount--;
+                owner.cancelExpiry(old.timers[i]);
+            }
+            old.keys[i] = TOMBSTONE;
+            old.values[i] = null;
+            old.expires[i] = 0;
+            old.timers[i] = null;
+        } else {
+            return null;
+        }
+        size--;
+        if (old == null && table.capacity() > MIN_CAPACITY && size * 8L < table.capacity()) {
+            startRehash(table.capacity() / 2);
+        }
+        return previous;
+    }
+
+    // -1 when the key is missing or has no TTL
+    long expireAt(byte[] key) {
+        int h = hash(key);
+        int i = find(table, key, h);
+        if (i >= 0) {
+            return table.expires[i] == 0 ? -1 : table.expires[i];
+        }
+        if (old != null && (i = find(old, key, h)) >= 0) {
+            return old.expires[i] == 0 ? -1 : old.expires[i];
+        }
+        return -1;
+    }
+
+    // Sets (at > 0) or clears (at == 0) the deadline of an existing key, replacing its
+    // wheel entry. Returns the previous deadline, -1 for none; nothing happens when the
+    // key is missing.
+    long setExpire(byte[] key, long at) {
+        unshare();
+        int h = hash(key);
+        Table t = table;
+        int i = find(t, key, h);
+        if (i < 0 && old != null) {
+            t = old;
+            i = find(t, key, h);
+        }
+        if (i < 0) {
+            return -1;
+        }
+        long previous = t.expires[i];
+        if (previous == at) {
+            return previous == 0 ? -1 : previous;
+        }
+        if (previous != 0) {
+            owner.cancelExpiry(t.timers[i]);
+        }
+        t.expires[i] = at;
+        t.timers[i] = at == 0 ? null : owner.scheduleExpiry(t.keys[i], at);
+        if (previous == 0 && at != 0) {
+            expiresCount++;
+        } else if (previous != 0 && at == 0) {
+            expiresCount--;
+        }
+        return previous == 0 ? -1 : previous;
+    }
+
+    // A random key, or null when empty. Scans from a random slot to the next occupied
+    // one, which is what Redis' dictGetRandomKey does with buckets: slightly biased
+    // towards keys behind empty runs, fine for eviction sampling.
+    byte[] randomKey(int random) {
+        if (size == 0) {
+            return null;
+        }
+        Table first = table;
+        Table second = old;
+        // while the old table still holds most keys, look there first
+        if (old != null && rehashIndex < old.capacity() / 2) {
+            first = old;
+            second = table;
+        }
+        byte[] key = scanFrom(first, random);
+        if (key == null && second != null) {
+            key = scanFrom(second, random);
+        }
+        return key;
+    }
+
+    // Offers keys to the visitor, in no particular order, until it returns false. Must not
+    // be interleaved with writes.
+    void forEachKey(Predicate<byte[]> visitor) {
+        for (Table t : new Table[] {old, table}) {
+            if (t == null) {
+                continue;
+            }
+            for (byte[] key : t.keys) {
+                if (key != null && key != TOMBSTONE && !visitor.test(key)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Moves up to `steps` batches of slots to the new table; the expiry sweeper calls this
+    // so a resize also completes on an idle shard.
+    void rehash(int steps) {
+        for (int i = 0; i < steps && old != null; i++) {
+            rehashStep();
+        }
+    }
+
+    // Hands the current tables to a background save. Cheap: nothing is copied unless the
+    // dict is written to before releaseSnapshot().
+    Snapshot snapshot() {
+        shared = true;
+        return new Snapshot(table, old, size, expiresCount);
+    }
+
+    void releaseSnapshot() {
+        shared = false;
+    }
+
+    // Drops every key; the owner's accounting must start over from zero. A snapshot
+    // still reading the tables keeps them.
+    void clear() {
+        table = new Table(MIN_CAPACITY);
+        old = null;
+        size = 0;
+        expiresCount = 0;
+        shared = false;
+        owner.usedMemory += table.footprint();
+    }
+
+    // The pause described at the top: clones the slot arrays a snapshot reads.
+    private void unshare() {
+        if (!shared) {
+            return;
+        }
+        table = new Table(table);
+        if (old != null) {
+            old = new Table(old);
+        }
+        shared = false;
+    }
+
+    private static byte[] scanFrom(Table t, int random) {
+        for (int n = 0, i = random & t.mask; n < t.capacity(); n++, i = (i + 1) & t.mask) {
+            byte[] key = t.keys[i];
+            if (key != null && key != TOMBSTONE) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private static int find(Table t, byte[] key, int h) {
+        int i = h & t.mask;
+        while (true) {
+            byte[] k = t.keys[i];
+            if (k == null) {
+                return -1;
+            }
+            if (t.hashes[i] == h && k != TOMBSTONE && Arrays.equals(k, key)) {
+                return i;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    // The key must not be present. Only ever targets `table`, which holds no tombstones.
+    private static void insert(Table t, byte[] key, RedisObject value, long expire, TimingWheel.Entry<?> timer,
+            int h) {
+        int i = h & t.mask;
+        while (t.keys[i] != null) {
+            i = (i + 1) & t.mask;
+        }
+        t.keys[i] = key;
+        t.values[i] = value;
+        t.expires[i] = expire;
+        t.timers[i] = timer;
+        t.hashes[i] = h;
+    }
+
+    // Backward-shift deletion: pulls later entries of the probe chain into the hole, so
+    // the live table never needs tombstones.
+    private static void deleteAt(Table t, int hole) {
+        int j = hole;
+        while (true) {
+            j = (j + 1) & t.mask;
+            if (t.keys[j] == null) {
+                break;
+            }
+            int home = t.hashes[j] & t.mask;
+            // movable unless its home lies cyclically in (hole, j]
+            if (((j - home) & t.mask) >= ((j - hole) & t.mask)) {
+                t.keys[hole] = t.keys[j];
+                t.values[hole] = t.values[j];
+                t.expires[hole] = t.expires[j];
+                t.timers[hole] = t.timers[j];
+                t.hashes[hole] = t.hashes[j];
+                hole = j;
+            }
+        }
+        t.keys[hole] = null;
+        t.values[hole] = null;
+        t.expires[hole] = 0;
+        t.timers[hole] = null;
+    }
+
+    private void startRehash(int capacity) {
+        old = table;
+        table = new Table(capacity);
+        rehashIndex = 0;
+        owner.usedMemory += table.footprint();
+    }
+
+    private void rehashStep() {
+        // moving entries writes to both tables; a shared dict waits for its next write
+        if (old == null || shared) {
+            return;
+        }
+        int capacity = old.capacity();
+        // empty slots are cheap to skip but still bounded, as in Redis' dictRehash
+        int visitsLeft = REHASH_STEP * 10;
+        int moved = 0;
+        while (rehashIndex < capacity && moved < REHASH_STEP && visitsLeft-- > 0) {
+            int i = rehashIndex++;
+            byte[] key = old.keys[i];
+            if (key != null && key != TOMBSTONE) {
+                insert(table, key, old.values[i], old.expires[i], old.timers[i], old.hashes[i]);
+                old.keys[i] = TOMBSTONE;
+                old.values[i] = null;
+                old.timers[i] = null;
+                moved++;
+            }
+        }
+        if (rehashIndex == capacity) {
+            owner.usedMemory -= old.footprint();
+            old = null;
+        }
+    }
+}
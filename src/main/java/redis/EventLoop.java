@@ -0,0 +1,93 @@
+package redis;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// A single reactor thread. Every connection registered here is only ever touched by
+// this thread; other threads talk to it through execute().
+class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(this, channel, key));
+            } catch (ClosedChannelException e) {
+                // client went away before we got to it
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Connection connection = (Connection) key.attachment();
+                    if (connection == null || !key.isValid()) {
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        connection.handleWrite();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.handleRead();
+                    }
+                }
+                runTasks();
+            } catch (Exception e) {
+                Log.warning("Error in event loop: " + e);
+                if (Log.enabled(Log.DEBUG)) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.warning("Error in event loop task: " + e);
+                if (Log.enabled(Log.DEBUG)) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
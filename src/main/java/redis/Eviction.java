@@ -0,0 +1,252 @@
+package redis;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+// maxmemory enforcement. Instead of keeping every key on an LRU list, each RedisObject
+// carries a 24-bit clock and eviction samples a few random keys, keeping the best
+// candidates seen so far in a small pool, the approximation Redis itself uses
+// (evict.c). Candidates are scored so that a higher score means "evict first".
+final class Eviction {
+    enum Policy {
+        NOEVICTION("noeviction"),
+        ALLKEYS_LRU("allkeys-lru"),
+        ALLKEYS_LFU("allkeys-lfu"),
+        VOLATILE_TTL("volatile-ttl");
+
+        final String configName;
+
+        Policy(String configName) {
+            this.configName = configName;
+        }
+
+        static Policy parse(String name) {
+            for (Policy policy : values()) {
+                if (policy.configName.equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("unknown maxmemory-policy " + name);
+        }
+    }
+
+    private static final int CLOCK_MAX = (1 << 24) - 1;
+    private static final int LFU_INIT_VAL = 5;
+    private static final int LFU_LOG_FACTOR = 10;
+    // minutes it takes for an idle key's counter to drop by one
+    private static final int LFU_DECAY_MINUTES = 1;
+    private static final int POOL_SIZE = 16;
+    // consecutive fruitless sampling rounds before giving up with OOM
+    private static final int MAX_EMPTY_ROUNDS = 32;
+
+    static volatile long maxMemory;
+    static volatile Policy policy = Policy.NOEVICTION;
+    static volatile int samples = 5;
+
+    // One client evicts at a time; the others wait for it rather than evict too much.
+    // Shard locks are taken while holding it.
+    private static final ReentrantLock evicting = new ReentrantLock();
+    // Candidates from earlier rounds, best first. Guarded by `evicting`.
+    private static final byte[][] poolKeys = new byte[POOL_SIZE][];
+    private static final Shard[] poolShards = new Shard[POOL_SIZE];
+    private static final long[] poolScores = new long[POOL_SIZE];
+    private static int poolSize;
+
+    private Eviction() {
+    }
+
+    // Accepts plain bytes or a kb/mb/gb suffix, like redis.conf.
+    static long parseMemory(String value) {
+        String v = value.trim().toLowerCase();
+        long unit = 1;
+        if (v.endsWith("kb")) {
+            unit = 1024;
+        } else if (v.endsWith("mb")) {
+            unit = 1024 * 1024;
+        } else if (v.endsWith("gb")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        if (unit != 1) {
+            v = v.substring(0, v.length() - 2);
+        }
+        return Long.parseLong(v) * unit;
+    }
+
+    static boolean lfu() {
+        return policy == Policy.ALLKEYS_LFU;
+    }
+
+    // seconds, wrapped to 24 bits
+    private static int lruClock() {
+        return (int) (System.currentTimeMillis() / 1000) & CLOCK_MAX;
+    }
+
+    // minutes, wrapped to 16 bits
+    private static int lfuTime() {
+        return (int) (System.currentTimeMillis() / 60000) & 0xffff;
+    }
+
+    static int initialClock() {
+        return lfu() ? (lfuTime() << 8) | LFU_INIT_VAL : lruClock();
+    }
+
+    // Called on every access of a key.
+    static void touch(RedisObject value) {
+        if (lfu()) {
+            int counter = lfuDecayed(value.lru);
+            counter = lfuIncrement(counter);
+            value.lru = (lfuTime() << 8) | counter;
+        } else {
+            value.lru = lruClock();
+        }
+    }
+
+    private static int lfuDecayed(int lru) {
+        int last = lru >>> 8;
+        int counter = lru & 0xff;
+        int now = lfuTime();
+        int elapsed = now >= last ? now - last : 0xffff - last + now;
+        int periods = elapsed / LFU_DECAY_MINUTES;
+        return periods > counter ? 0 : counter - periods;
+    }
+
+    // Logarithmic counter: the more hits a key already has, the less likely a hit bumps it.
+    private static int lfuIncrement(int counter) {
+        if (counter == 255) {
+            return 255;
+        }
+        double r = ThreadLocalRandom.current().nextDouble();
+        double base = Math.max(0, counter - LFU_INIT_VAL);
+        double p = 1.0 / (base * LFU_LOG_FACTOR + 1);
+        return r < p ? counter + 1 : counter;
+    }
+
+    // Higher means a better eviction candidate, Long.MIN_VALUE means not evictable.
+    private static long score(Shard shard, byte[] key, RedisObject value) {
+        switch (policy) {
+            case ALLKEYS_LRU: {
+                int now = lruClock();
+                return now >= value.lru ? now - value.lru : CLOCK_MAX - value.lru + now;
+            }
+            case ALLKEYS_LFU:
+                return 255 - lfuDecayed(value.lru);
+            case VOLATILE_TTL: {
+                long at = shard.expireAt(key);
+                return at < 0 ? Long.MIN_VALUE : Long.MAX_VALUE - at;
+            }
+            default:
+                return Long.MIN_VALUE;
+        }
+    }
+
+    // Runs before commands that may grow the dataset. Evicts until the estimate is back
+    // under maxmemory; false means nothing could be evicted and the command must be
+    // refused with an OOM error.
+    static boolean freeMemoryIfNeeded() {
+        long max = maxMemory;
+        if (max <= 0 || Keyspace.usedMemory() <= max) {
+            return true;
+        }
+        if (policy == Policy.NOEVICTION) {
+            return false;
+        }
+        long started = System.nanoTime();
+        evicting.lock();
+        try {
+            int emptyRounds = 0;
+            while (Keyspace.usedMemory() > max) {
+                fillPool();
+                if (evictBest()) {
+                    emptyRounds = 0;
+                } else if (++emptyRounds >= MAX_EMPTY_ROUNDS) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            evicting.unlock();
+            LatencyMonitor.sample("eviction-cycle", (System.nanoTime() - started) / 1_000_000);
+        }
+    }
+
+    // Samples keys from a random shard into the pool. An empty shard passes the turn to
+    // the next one, so the round only comes back empty-handed when every shard is empty;
+    // with the keys in a few shards, picking empty ones must not add up to an OOM.
+    private static void fillPool() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int count = Keyspace.size();
+        int first = random.nextInt(count);
+        for (int n = 0; n < count; n++) {
+            Shard shard = Keyspace.shard((first + n) % count);
+            shard.lock.lock();
+            try {
+                for (int i = 0; i < samples; i++) {
+                    byte[] key = shard.randomKey(random.nextInt());
+                    if (key == null) {
+                        break;
+                    }
+                    long score = score(shard, key, shard.dict.get(key));
+                    if (score != Long.MIN_VALUE) {
+                        offer(shard, key, score);
+                    }
+                }
+                if (shard.dict.size() > 0) {
+                    return;
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    private static void offer(Shard shard, byte[] key, long score) {
+        for (int i = 0; i < poolSize; i++) {
+            if (poolShards[i] == shard && Arrays.equals(poolKeys[i], key)) {
+                return;
+            }
+        }
+        int at = poolSize;
+        while (at > 0 && poolScores[at - 1] < score) {
+            at--;
+        }
+        if (at == POOL_SIZE) {
+            return;
+        }
+        int last = Math.min(poolSize, POOL_SIZE - 1);
+        System.arraycopy(poolKeys, at, poolKeys, at + 1, last - at);
+        System.arraycopy(poolShards, at, poolShards, at + 1, last - at);
+        System.arraycopy(poolScores, at, poolScores, at + 1, last - at);
+        poolKeys[at] = key;
+        poolShards[at] = shard;
+        poolScores[at] = score;
+        if (poolSize < POOL_SIZE) {
+            poolSize++;
+        }
+    }
+
+    // Evicts the best pooled candidate that still exists.
+    private static boolean evictBest() {
+        while (poolSize > 0) {
+            byte[] key = poolKeys[0];
+            Shard shard = poolShards[0];
+            System.arraycopy(poolKeys, 1, poolKeys, 0, poolSize - 1);
+            System.arraycopy(poolShards, 1, poolShards, 0, poolSize - 1);
+            System.arraycopy(poolScores, 1, poolScores, 0, poolSize - 1);
+            poolSize--;
+            poolKeys[poolSize] = null;
+            poolShards[poolSize] = null;
+            shard.lock.lock();
+            try {
+                if (shard.delete(key)) {
+                    Propagation.feed(Propagation.DEL, key);
+                    Stats.evictedKeys.increment();
+                    return true;
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return false;
+    }
+}
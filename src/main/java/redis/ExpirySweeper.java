@@ -0,0 +1,48 @@
+package redis;
+
+// Background reclamation of expired keys, so keys nobody reads again still go away.
+// Every cycle walks the shards and lets each one fire its due timing-wheel entries in
+// small batches, releasing the shard lock between batches to keep client latency flat.
+// A replica fires none: its keys go when the leader's DEL arrives (see
+// Shard.expireIfNeeded).
+// It also drives pending table resizes forward, and samples the instantaneous rates INFO
+// reports.
+final class ExpirySweeper implements Runnable {
+    private static final long CYCLE_MS = 100;
+    private static final int BATCH = 200;
+    private static final int REHASH_STEPS = 100;
+
+    static void start() {
+        Thread thread = new Thread(new ExpirySweeper(), "expiry-sweeper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(CYCLE_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long started = System.nanoTime();
+            for (int i = 0; i < Keyspace.size(); i++) {
+                Shard shard = Keyspace.shard(i);
+                int fired;
+                do {
+                    shard.lock.lock();
+                    try {
+                        fired = MasterLink.isReplica() ? 0 : shard.expireDue(System.currentTimeMillis(), BATCH);
+                        // move an unfinished resize along even when no client touches the shard
+                        shard.dict.rehash(REHASH_STEPS);
+                    } finally {
+                        shard.lock.unlock();
+                    }
+                } while (fired == BATCH);
+            }
+            LatencyMonitor.sample("expire-cycle", (System.nanoTime() - started) / 1_000_000);
+            Stats.sample();
+        }
+    }
+}
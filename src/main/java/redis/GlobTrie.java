@@ -0,0 +1,324 @@
+package redis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Glob patterns, as PSUBSCRIBE takes them, compiled into one trie of tokens: a literal
+// byte, ? for any byte, * for any run and [...] for a class, with Redis' syntax (^
+// negates a class, a-z is a range, \ escapes). Patterns sharing a prefix share its
+// nodes, and a string is matched against all of them in a single pass that keeps the
+// set of nodes it could be at, so a publish costs the channel's length times the few
+// live states rather than one match per pattern, and stars cannot make it backtrack.
+// Not thread-safe.
+final class GlobTrie<V> {
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final class Node<V> {
+        // literal children, by byte in unsigned order
+        byte[] labels = EMPTY;
+        List<Node<V>> literals = new ArrayList<>();
+        // the '?' child, the '*' child and the class children
+        Node<V> any;
+        Node<V> star;
+        List<Node<V>> classes = new ArrayList<>();
+        // reached through '*', which goes on matching any byte here
+        boolean loops;
+        // reached through a class: its bytes and the pattern text that made it
+        long[] set;
+        byte[] setSource;
+        // the pattern ending here
+        V value;
+
+        // index of the literal child for b, or -(insertion point) - 1
+        int find(byte b) {
+            int lo = 0;
+            int hi = labels.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = Byte.compareUnsigned(labels[mid], b);
+                if (c < 0) {
+                    lo = mid + 1;
+                } else if (c > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -lo - 1;
+        }
+
+        boolean isEmpty() {
+            return value == null && labels.length == 0 && any == null && star == null && classes.isEmpty();
+        }
+    }
+
+    // One token of a compiled pattern.
+    private static final class Token {
+        static final int LITERAL = 0;
+        static final int ANY = 1;
+        static final int STAR = 2;
+        static final int CLASS = 3;
+
+        final int kind;
+        final byte literal;
+        final long[] set;
+        final byte[] source;
+
+        Token(int kind, byte literal, long[] set, byte[] source) {
+            this.kind = kind;
+            this.literal = literal;
+            this.set = set;
+            this.source = source;
+        }
+    }
+
+    private final Node<V> root = new Node<>();
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    V get(byte[] pattern) {
+        Node<V> node = root;
+        for (Token token : compile(pattern)) {
+            node = child(node, token, false);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node.value;
+    }
+
+    // Maps the pattern to value, returning the value it replaced.
+    V put(byte[] pattern, V value) {
+        Node<V> node = root;
+        for (Token token : compile(pattern)) {
+            node = child(node, token, true);
+        }
+        V previous = node.value;
+        node.value = value;
+        if (previous == null) {
+            size++;
+        }
+        return previous;
+    }
+
+    V remove(byte[] pattern) {
+        List<Token> tokens = compile(pattern);
+        // the path down, to prune the nodes left with nothing under them
+        List<Node<V>> path = new ArrayList<>(tokens.size() + 1);
+        Node<V> node = root;
+        path.add(node);
+        for (Token token : tokens) {
+            node = child(node, token, false);
+            if (node == null) {
+                return null;
+            }
+            path.add(node);
+        }
+        V previous = node.value;
+        if (previous == null) {
+            return null;
+        }
+        node.value = null;
+        size--;
+        for (int i = tokens.size() - 1; i >= 0 && path.get(i + 1).isEmpty(); i--) {
+            unlink(path.get(i), tokens.get(i));
+        }
+        return previous;
+    }
+
+    // Visits the value of every pattern s matches, each once.
+    void match(byte[] s, Consumer<V> visitor) {
+        if (s.length == 0) {
+            // as in Redis, where not even "*" matches nothing
+            if (root.value != null) {
+                visitor.accept(root.value);
+            }
+            return;
+        }
+        List<Node<V>> states = new ArrayList<>();
+        List<Node<V>> next = new ArrayList<>();
+        enter(states, root);
+        for (byte b : s) {
+            next.clear();
+            for (Node<V> node : states) {
+                if (node.loops) {
+                    enter(next, node);
+                }
+                int i = node.labels.length == 0 ? -1 : node.find(b);
+                if (i >= 0) {
+                    enter(next, node.literals.get(i));
+                }
+                if (node.any != null) {
+                    enter(next, node.any);
+                }
+                for (Node<V> c : node.classes) {
+                    if ((c.set[(b & 0xff) >>> 6] & 1L << (b & 63)) != 0) {
+                        enter(next, c);
+                    }
+                }
+            }
+            if (next.isEmpty()) {
+                return;
+            }
+            List<Node<V>> swap = states;
+            states = next;
+            next = swap;
+        }
+        for (Node<V> node : states) {
+            if (node.value != null) {
+                visitor.accept(node.value);
+            }
+        }
+    }
+
+    // Adds node to the states, and the '*' after it, which may match nothing.
+    private static <V> void enter(List<Node<V>> states, Node<V> node) {
+        // few states are live at once, a list beats a set
+        if (!states.contains(node)) {
+            states.add(node);
+            if (node.star != null) {
+                enter(states, node.star);
+            }
+        }
+    }
+
+    private static <V> Node<V> child(Node<V> node, Token token, boolean create) {
+        switch (token.kind) {
+            case Token.LITERAL: {
+                int i = node.find(token.literal);
+                if (i >= 0) {
+                    return node.literals.get(i);
+                }
+                if (!create) {
+                    return null;
+                }
+                i = -i - 1;
+                byte[] labels = new byte[node.labels.length + 1];
+                System.arraycopy(node.labels, 0, labels, 0, i);
+                System.arraycopy(node.labels, i, labels, i + 1, node.labels.length - i);
+                labels[i] = token.literal;
+                node.labels = labels;
+                Node<V> c = new Node<>();
+                node.literals.add(i, c);
+                return c;
+            }
+            case Token.ANY:
+                if (node.any == null && create) {
+                    node.any = new Node<>();
+                }
+                return node.any;
+            case Token.STAR:
+                if (node.star == null && create) {
+                    node.star = new Node<>();
+                    node.star.loops = true;
+                }
+                return node.star;
+            default:
+                for (Node<V> c : node.classes) {
+                    if (Arrays.equals(c.setSource, token.source)) {
+                        return c;
+                    }
+                }
+                if (!create) {
+                    return null;
+                }
+                Node<V> c = new Node<>();
+                c.set = token.set;
+                c.setSource = token.source;
+                node.classes.add(c);
+                return c;
+        }
+    }
+
+    private static <V> void unlink(Node<V> node, Token token) {
+        switch (token.kind) {
+            case Token.LITERAL: {
+                int i = node.find(token.literal);
+                byte[] labels = new byte[node.labels.length - 1];
+                System.arraycopy(node.labels, 0, labels, 0, i);
+                System.arraycopy(node.labels, i + 1, labels, i, labels.length - i);
+                node.labels = labels;
+                node.literals.remove(i);
+                break;
+            }
+            case Token.ANY:
+                node.any = null;
+                break;
+            case Token.STAR:
+                node.star = null;
+                break;
+            default:
+                node.classes.removeIf(c -> Arrays.equals(c.setSource, token.source));
+        }
+    }
+
+    // Tokens of a pattern, as Redis' stringmatchlen reads it: runs of '*' are one, an
+    // unterminated class takes the rest of the pattern, and a trailing lone '\' is
+    // itself.
+    private static List<Token> compile(byte[] p) {
+        List<Token> tokens = new ArrayList<>(p.length);
+        int i = 0;
+        while (i < p.length) {
+            byte b = p[i];
+            if (b == '*') {
+                if (tokens.isEmpty() || tokens.get(tokens.size() - 1).kind != Token.STAR) {
+                    tokens.add(new Token(Token.STAR, (byte) 0, null, null));
+                }
+                i++;
+            } else if (b == '?') {
+                tokens.add(new Token(Token.ANY, (byte) 0, null, null));
+                i++;
+            } else if (b == '\\' && i + 1 < p.length) {
+                tokens.add(new Token(Token.LITERAL, p[i + 1], null, null));
+                i += 2;
+            } else if (b == '[') {
+                int start = i++;
+                boolean not = i < p.length && p[i] == '^';
+                if (not) {
+                    i++;
+                }
+                long[] set = new long[4];
+                while (i < p.length && p[i] != ']') {
+                    if (p[i] == '\\' && i + 1 < p.length) {
+                        mark(set, p[++i] & 0xff, p[i] & 0xff);
+                    } else if (i + 2 < p.length && p[i + 1] == '-') {
+                        int from = p[i] & 0xff;
+                        int to = p[i + 2] & 0xff;
+                        mark(set, Math.min(from, to), Math.max(from, to));
+                        i += 2;
+                    } else {
+                        mark(set, p[i] & 0xff, p[i] & 0xff);
+                    }
+                    i++;
+                }
+                if (not) {
+                    for (int k = 0; k < set.length; k++) {
+                        set[k] = ~set[k];
+                    }
+                }
+                // past the ']', if there is one
+                i = Math.min(i + 1, p.length);
+                tokens.add(new Token(Token.CLASS, (byte) 0, set, Arrays.copyOfRange(p, start, i)));
+            } else {
+                tokens.add(new Token(Token.LITERAL, b, null, null));
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    private static void mark(long[] set, int from, int to) {
+        for (int c = from; c <= to; c++) {
+            set[c >>> 6] |= 1L << (c & 63);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package redis;
+
+import java.io.IOException;
+
+// A hash value. Small hashes are a Listpack of field, value, field, value...; one that
+// gets more than hash-max-listpack-entries fields, or a field or value longer than
+// hash-max-listpack-value bytes, is converted to a ByteMap for good, as Redis does.
+// Mutations go through here so the owning shard's memory estimate follows every change.
+final class HashObject extends RedisObject {
+    static volatile int maxListpackEntries = 128;
+    static volatile int maxListpackValue = 64;
+
+    interface EntryVisitor {
+        void accept(byte[] field, byte[] value) throws IOException;
+    }
+
+    private final Shard owner;
+    // owner.snapshotEpoch when created, see Shard.lookupForWrite
+    final int epoch;
+    // exactly one of the two is set
+    private Listpack packed;
+    private ByteMap table;
+
+    HashObject(Shard owner) {
+        this.owner = owner;
+        this.epoch = owner.snapshotEpoch;
+        packed = new Listpack();
+    }
+
+    private HashObject(HashObject from) {
+        owner = from.owner;
+        epoch = owner.snapshotEpoch;
+        packed = from.packed == null ? null : from.packed.copy();
+        table = from.table == null ? null : from.table.copy();
+    }
+
+    // A copy to modify while a background save still reads this one; accounted to the
+    // shard by the Shard.put that swaps it in.
+    @Override
+    HashObject copy() {
+        return new HashObject(this);
+    }
+
+    @Override
+    boolean predates(int snapshotEpoch) {
+        return epoch != snapshotEpoch;
+    }
+
+    int size() {
+        return packed != null ? packed.count() / 2 : table.size();
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    String encoding() {
+        return packed != null ? "listpack" : "hashtable";
+    }
+
+    // null when there is no such field
+    byte[] get(byte[] field) {
+        if (packed != null) {
+            int pos = packed.find(field, 2);
+            return pos < 0 ? null : packed.get(packed.next(pos));
+        }
+        int slot = table.slot(field);
+        return slot < 0 ? null : table.valueAt(slot);
+    }
+
+    // Sets field to value. Whether the field is new.
+    boolean set(byte[] field, byte[] value) {
+        long before = memoryUsage();
+        boolean added;
+        if (packed != null) {
+            int pos = packed.find(field, 2);
+            if (pos >= 0) {
+                packed.replace(packed.next(pos), value);
+                added = false;
+            } else {
+                packed.append(field);
+                packed.append(value);
+                added = true;
+            }
+            int limit = maxListpackValue;
+            if (packed.count() / 2 > maxListpackEntries || field.length > limit || value.length > limit) {
+                convert();
+            }
+        } else {
+            added = table.put(field, value);
+        }
+        owner.usedMemory += memoryUsage() - before;
+        return added;
+    }
+
+    boolean delete(byte[] field) {
+        long before = memoryUsage();
+        boolean deleted;
+        if (packed != null) {
+            int pos = packed.find(field, 2);
+            deleted = pos >= 0;
+            if (deleted) {
+                packed.remove(pos, 2);
+            }
+        } else {
+            deleted = table.remove(field);
+        }
+        owner.usedMemory += memoryUsage() - before;
+        return deleted;
+    }
+
+    void forEach(EntryVisitor visitor) throws IOException {
+        if (packed != null) {
+            for (int pos = 0; pos < packed.used(); ) {
+                int value = packed.next(pos);
+                visitor.accept(packed.get(pos), packed.get(value));
+                pos = packed.next(value);
+            }
+            return;
+        }
+        for (int i = 0; i < table.capacity(); i++) {
+            if (table.keyAt(i) != null) {
+                visitor.accept(table.keyAt(i), table.valueAt(i));
+            }
+        }
+    }
+
+    private void convert() {
+        ByteMap map = new ByteMap(true, false, packed.count() / 2);
+        for (int pos = 0; pos < packed.used(); ) {
+            int value = packed.next(pos);
+            map.put(packed.get(pos), packed.get(value));
+            pos = packed.next(value);
+        }
+        table = map;
+        packed = null;
+    }
+
+    @Override
+    long memoryUsage() {
+        // object and fields
+        return 32 + (packed != null ? packed.footprint() : table.footprint());
+    }
+}
@@ -0,0 +1,270 @@
+package redis;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+
+// INFO [section ...]. Without arguments, or with "default", every section but the
+// per-command ones; "all" and "everything" add those. Lines are "field:value" under
+// "# Section" headers, CRLF-separated, as clients parse them.
+final class Info {
+    private static final String[] DEFAULT = {"server", "clients", "memory", "persistence", "stats", "replication",
+            "cluster", "keyspace"};
+    private static final String[] ALL = {"server", "clients", "memory", "persistence", "stats", "replication",
+            "commandstats", "latencystats", "cluster", "keyspace"};
+    // what Redis reports in latencystats
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+
+    // how the server was started, set by Main
+    static volatile int port = 6379;
+    static volatile String ioMode = "nio";
+    static volatile int ioThreads;
+    static volatile int execThreads;
+
+    private Info() {
+    }
+
+    static String render(List<String> sections) {
+        String[] names = DEFAULT;
+        if (!sections.isEmpty()) {
+            names = sections.toArray(new String[0]);
+            if (sections.size() == 1 && (sections.get(0).equals("all") || sections.get(0).equals("everything"))) {
+                names = ALL;
+            } else if (sections.size() == 1 && sections.get(0).equals("default")) {
+                names = DEFAULT;
+            }
+        }
+        StringBuilder info = new StringBuilder();
+        for (String name : names) {
+            int before = info.length();
+            if (before > 0) {
+                info.append("\r\n");
+            }
+            if (!section(info, name)) {
+                info.setLength(before);
+            }
+        }
+        return info.toString();
+    }
+
+    // false for an unknown section
+    private static boolean section(StringBuilder info, String name) {
+        switch (name) {
+            case "server":
+                server(info);
+                return true;
+            case "clients":
+                header(info, "Clients");
+                field(info, "connected_clients", Stats.connectedClients.sum() - Replication.replicas().size());
+                field(info, "blocked_clients", Stats.blockedClients.sum());
+                return true;
+            case "memory":
+                memory(info);
+                return true;
+            case "persistence":
+                persistence(info);
+                return true;
+            case "stats":
+                stats(info);
+                return true;
+            case "replication":
+                replication(info);
+                return true;
+            case "commandstats":
+                commandStats(info);
+                return true;
+            case "latencystats":
+                latencyStats(info);
+                return true;
+            case "cluster":
+                header(info, "Cluster");
+                field(info, "cluster_enabled", Cluster.enabled ? 1 : 0);
+                return true;
+            case "keyspace":
+                header(info, "Keyspace");
+                long keys = Keyspace.keyCount();
+                if (keys > 0) {
+                    field(info, "db0", "keys=" + keys + ",expires=" + Keyspace.expiresCount() + ",avg_ttl=0");
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void server(StringBuilder info) {
+        long uptime = (System.currentTimeMillis() - Stats.startTime) / 1000;
+        header(info, "Server");
+        field(info, "redis_version", "7.2.0");
+        field(info, "redis_mode", Cluster.enabled ? "cluster" : "standalone");
+        field(info, "os", System.getProperty("os.name") + " " + System.getProperty("os.version") + " "
+                + System.getProperty("os.arch"));
+        field(info, "arch_bits", System.getProperty("os.arch").contains("64") ? 64 : 32);
+        field(info, "multiplexing_api", ioMode);
+        field(info, "java_version", System.getProperty("java.version"));
+        field(info, "process_id", ProcessHandle.current().pid());
+        field(info, "run_id", Replication.replid);
+        field(info, "tcp_port", port);
+        field(info, "server_time_usec", System.currentTimeMillis() * 1000);
+        field(info, "uptime_in_seconds", uptime);
+        field(info, "uptime_in_days", uptime / 86400);
+        field(info, "io_threads_active", ioThreads);
+        field(info, "executor_threads", execThreads);
+    }
+
+    private static void memory(StringBuilder info) {
+        long used = Keyspace.usedMemory();
+        long rss = rss();
+        Runtime runtime = Runtime.getRuntime();
+        header(info, "Memory");
+        // the dataset as estimated for maxmemory
+        field(info, "used_memory", used);
+        field(info, "used_memory_human", human(used));
+        if (rss >= 0) {
+            field(info, "used_memory_rss", rss);
+            field(info, "used_memory_rss_human", human(rss));
+        }
+        field(info, "value_storage", SlabAllocator.enabled ? "offheap" : "heap");
+        if (SlabAllocator.enabled) {
+            long reserved = Keyspace.offHeapReserved();
+            field(info, "offheap_reserved", reserved);
+            field(info, "offheap_reserved_human", human(reserved));
+            field(info, "offheap_used", Keyspace.offHeapUsed());
+        }
+        field(info, "jvm_heap_used", runtime.totalMemory() - runtime.freeMemory());
+        field(info, "jvm_heap_committed", runtime.totalMemory());
+        field(info, "jvm_heap_max", runtime.maxMemory());
+        field(info, "maxmemory", Eviction.maxMemory);
+        field(info, "maxmemory_human", human(Eviction.maxMemory));
+        field(info, "maxmemory_policy", Eviction.policy.configName);
+    }
+
+    private static void persistence(StringBuilder info) {
+        String snapshot = Keyspace.snapshotOwner();
+        header(info, "Persistence");
+        field(info, "loading", 0);
+        field(info, "rdb_bgsave_in_progress", "save".equals(snapshot) ? 1 : 0);
+        field(info, "rdb_last_save_time", Rdb.lastSave);
+        field(info, "rdb_last_bgsave_status", Rdb.lastBgsaveOk ? "ok" : "err");
+        field(info, "aof_enabled", Aof.isActive() ? 1 : 0);
+        field(info, "aof_rewrite_in_progress", "aof rewrite".equals(snapshot) ? 1 : 0);
+        field(info, "aof_last_bgrewrite_status", Aof.lastRewriteOk ? "ok" : "err");
+        if (Aof.isActive()) {
+            field(info, "aof_current_size", Aof.currentSize());
+            field(info, "aof_base_size", Aof.baseSize());
+        }
+    }
+
+    private static void stats(StringBuilder info) {
+        header(info, "Stats");
+        field(info, "total_connections_received", Stats.connectionsReceived.sum());
+        field(info, "total_commands_processed", Stats.commandsProcessed.sum());
+        field(info, "instantaneous_ops_per_sec", Stats.instantaneousOps());
+        field(info, "total_net_input_bytes", Stats.netInputBytes.sum());
+        field(info, "total_net_output_bytes", Stats.netOutputBytes.sum());
+        field(info, "instantaneous_input_kbps", String.format(Locale.ROOT, "%.2f", Stats.instantaneousInput() / 1024.0));
+        field(info, "instantaneous_output_kbps", String.format(Locale.ROOT, "%.2f", Stats.instantaneousOutput() / 1024.0));
+        field(info, "expired_keys", Stats.expiredKeys.sum());
+        field(info, "evicted_keys", Stats.evictedKeys.sum());
+        field(info, "keyspace_hits", Stats.keyspaceHits.sum());
+        field(info, "keyspace_misses", Stats.keyspaceMisses.sum());
+        field(info, "pubsub_channels", PubSub.channelCount());
+        field(info, "pubsub_patterns", PubSub.patternCount());
+        field(info, "client_output_buffer_limit_disconnections", Stats.outputLimitDisconnections.sum());
+    }
+
+    private static void replication(StringBuilder info) {
+        header(info, "Replication");
+        if (MasterLink.isReplica()) {
+            field(info, "role", "slave");
+            field(info, "master_host", MasterLink.host);
+            field(info, "master_port", MasterLink.port);
+            field(info, "master_link_status", MasterLink.state().equals("connected") ? "up" : "down");
+            field(info, "master_sync_in_progress", MasterLink.state().equals("sync") ? 1 : 0);
+            field(info, "slave_repl_offset", MasterLink.offset());
+            field(info, "slave_read_only", 1);
+        } else {
+            field(info, "role", "master");
+        }
+        List<Replication.Replica> replicas = Replication.replicas();
+        field(info, "connected_slaves", replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Replication.Replica replica = replicas.get(i);
+            field(info, "slave" + i, "ip=" + replica.host + ",port=" + replica.port + ",state=online,offset="
+                    + replica.acked);
+        }
+        field(info, "master_replid", Replication.replid);
+        field(info, "master_repl_offset", MasterLink.isReplica() ? MasterLink.offset() : Replication.offset());
+        field(info, "repl_backlog_active", Replication.hasBacklog() ? 1 : 0);
+        field(info, "repl_backlog_size", Replication.backlogSize);
+    }
+
+    private static void commandStats(StringBuilder info) {
+        header(info, "Commandstats");
+        for (CommandType command : CommandType.values()) {
+            LatencyHistogram h = CommandStats.histogram(command);
+            long rejected = CommandStats.rejectedCalls(command);
+            if (h.count() == 0 && rejected == 0) {
+                continue;
+            }
+            field(info, "cmdstat_" + command.lowerName, "calls=" + h.count() + ",usec=" + h.sum() / 1000
+                    + ",usec_per_call=" + String.format(Locale.ROOT, "%.2f", h.mean() / 1000)
+                    + ",rejected_calls=" + rejected);
+        }
+    }
+
+    private static void latencyStats(StringBuilder info) {
+        header(info, "Latencystats");
+        for (CommandType command : CommandType.values()) {
+            LatencyHistogram h = CommandStats.histogram(command);
+            if (h.count() == 0) {
+                continue;
+            }
+            StringBuilder value = new StringBuilder();
+            for (double p : PERCENTILES) {
+                if (value.length() > 0) {
+                    value.append(',');
+                }
+                value.append('p').append(p == (long) p ? Long.toString((long) p) : Double.toString(p)).append('=')
+                        .append(String.format(Locale.ROOT, "%.3f", h.percentile(p) / 1000.0));
+            }
+            field(info, "latency_percentiles_usec_" + command.lowerName, value.toString());
+        }
+    }
+
+    private static void header(StringBuilder info, String name) {
+        info.append("# ").append(name).append("\r\n");
+    }
+
+    private static void field(StringBuilder info, String name, Object value) {
+        info.append(name).append(':').append(value).append("\r\n");
+    }
+
+    // as Redis prints byte counts: 1.50M
+    static String human(long bytes) {
+        String[] units = {"B", "K", "M", "G", "T"};
+        double value = bytes;
+        int unit = 0;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return unit == 0 ? bytes + "B" : String.format(Locale.ROOT, "%.2f%s", value, units[unit]);
+    }
+
+    // The process' resident set from /proc, -1 where there is none.
+    private static long rss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,223 @@
+package redis;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicReference;
+
+// The set of shards. The shard count is a power of two so picking one is a mask of the
+// key's spread hash, or in cluster mode of its hash slot.
+final class Keyspace {
+    private static Shard[] shards = create(Runtime.getRuntime().availableProcessors() * 4);
+    private static int mask = shards.length - 1;
+    // What holds the current snapshot ("save", "aof rewrite"), null when none. Like
+    // Redis' single child process, one runs at a time.
+    private static final AtomicReference<String> snapshotOwner = new AtomicReference<>();
+
+    private Keyspace() {
+    }
+
+    // Must run before the server accepts connections, and once Cluster.enabled is set.
+    static void configure(int count) {
+        shards = create(count);
+        mask = shards.length - 1;
+    }
+
+    static Shard shard(byte[] key) {
+        if (Cluster.enabled) {
+            // a hash slot's keys stay together, so it can be counted and listed per shard
+            return shards[Cluster.slot(key) & mask];
+        }
+        // scrambled again so the bits picking the shard are independent of the low bits
+        // the shard's own table probes with
+        return shards[((Dict.hash(key) * 0x9e3779b9) >>> 16) & mask];
+    }
+
+    static Shard shard(int index) {
+        return shards[index];
+    }
+
+    // Cluster mode: the shard holding every key of the hash slot.
+    static Shard shardOfSlot(int slot) {
+        return shards[slot & mask];
+    }
+
+    // Locks both shards in index order, so two-key commands cannot deadlock each other.
+    static void lockPair(Shard a, Shard b) {
+        Shard first = a.index <= b.index ? a : b;
+        first.lock.lock();
+        if (b != a) {
+            (first == a ? b : a).lock.lock();
+        }
+    }
+
+    static void unlockPair(Shard a, Shard b) {
+        a.lock.unlock();
+        if (b != a) {
+            b.lock.unlock();
+        }
+    }
+
+    // Locks the shards of all the keys in index order, as lockPair does for two, and
+    // returns them, each once, for unlockAll.
+    static Shard[] lockAll(byte[][] keys) {
+        Shard[] locked = new Shard[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            locked[i] = shard(keys[i]);
+        }
+        Arrays.sort(locked, Comparator.comparingInt(shard -> shard.index));
+        int n = 0;
+        for (Shard shard : locked) {
+            if (n == 0 || locked[n - 1] != shard) {
+                locked[n++] = shard;
+            }
+        }
+        locked = Arrays.copyOf(locked, n);
+        for (Shard shard : locked) {
+            shard.lock.lock();
+        }
+        return locked;
+    }
+
+    // Every shard, locked in index order, for unlockAll.
+    static Shard[] lockAll() {
+        Shard[] all = shards;
+        for (Shard shard : all) {
+            shard.lock.lock();
+        }
+        return all;
+    }
+
+    static void unlockAll(Shard[] locked) {
+        for (int i = locked.length - 1; i >= 0; i--) {
+            locked[i].lock.unlock();
+        }
+    }
+
+    // Bytes of the shards' off-heap slabs, and of the blocks in use in them.
+    static long offHeapReserved() {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.offHeapReserved();
+        }
+        return total;
+    }
+
+    static long offHeapUsed() {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.offHeapUsed();
+        }
+        return total;
+    }
+
+    // Reserves the snapshot for owner. null on success, otherwise whoever holds it.
+    static String claimSnapshot(String owner) {
+        while (true) {
+            if (snapshotOwner.compareAndSet(null, owner)) {
+                return null;
+            }
+            String current = snapshotOwner.get();
+            if (current != null) {
+                return current;
+            }
+        }
+    }
+
+    // Whoever holds the snapshot, null when none.
+    static String snapshotOwner() {
+        return snapshotOwner.get();
+    }
+
+    static void unclaimSnapshot() {
+        snapshotOwner.set(null);
+    }
+
+    static Dict.Snapshot[] snapshot() {
+        return snapshot(null);
+    }
+
+    // Snapshots every shard at the same instant, for a save; atInstant, if given, runs at
+    // that instant too. All locks are held at once, taken in index order, but only long
+    // enough to flag each shard. The caller must have claimed the snapshot.
+    static Dict.Snapshot[] snapshot(Runnable atInstant) {
+        Shard[] all = shards;
+        Dict.Snapshot[] snapshots = new Dict.Snapshot[all.length];
+        for (Shard shard : all) {
+            shard.lock.lock();
+        }
+        try {
+            for (int i = 0; i < all.length; i++) {
+                snapshots[i] = all[i].snapshot();
+            }
+            if (atInstant != null) {
+                atInstant.run();
+            }
+        } finally {
+            for (Shard shard : all) {
+                shard.lock.unlock();
+            }
+        }
+        return snapshots;
+    }
+
+    // Empties every shard, as a replica does before loading its leader's snapshot.
+    static void clear() {
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                shard.clear();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    static int size() {
+        return shards.length;
+    }
+
+    static long keyCount() {
+        long total = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                total += shard.size();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return total;
+    }
+
+    static long expiresCount() {
+        long total = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                total += shard.expiresCount();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return total;
+    }
+
+    // Sum of the shards' estimates; racy but good enough for the maxmemory check.
+    static long usedMemory() {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.usedMemory;
+        }
+        return total;
+    }
+
+    private static Shard[] create(int count) {
+        // the next power of two, so a shard is picked by masking; 1 stays 1
+        int n = count <= 1 ? 1 : Integer.highestOneBit(count - 1) << 1;
+        Shard[] created = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            created[i] = new Shard(i);
+        }
+        return created;
+    }
+}
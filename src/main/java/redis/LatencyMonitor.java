@@ -0,0 +1,135 @@
+package redis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// LATENCY LATEST/HISTORY/RESET. With latency-monitor-threshold (ms) above 0, whatever
+// took at least that long is sampled under its event name:
+//   command          a command's execution
+//   expire-cycle     one pass of the expiry sweeper
+//   eviction-cycle   evicting down to maxmemory ahead of a command
+//   aof-write        writing a batch to the AOF
+//   aof-fsync        an fsync of the AOF
+// Each event keeps its last 160 samples, at most one per second (the worst of that
+// second), and its all-time worst. Below the threshold a sample is one compare.
+final class LatencyMonitor {
+    private static final int HISTORY = 160;
+
+    static volatile long thresholdMs;
+
+    private static final class Event {
+        final long[] times = new long[HISTORY];
+        final long[] latencies = new long[HISTORY];
+        // next slot to write; `count` of them used
+        int next;
+        int count;
+        long max;
+    }
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Map<String, Event> events = new LinkedHashMap<>();
+
+    private LatencyMonitor() {
+    }
+
+    static void sample(String event, long ms) {
+        long threshold = thresholdMs;
+        if (threshold > 0 && ms >= threshold) {
+            record(event, ms);
+        }
+    }
+
+    private static void record(String name, long ms) {
+        long now = System.currentTimeMillis() / 1000;
+        lock.lock();
+        try {
+            Event event = events.computeIfAbsent(name, k -> new Event());
+            int last = (event.next + HISTORY - 1) % HISTORY;
+            if (event.count > 0 && event.times[last] == now) {
+                event.latencies[last] = Math.max(event.latencies[last], ms);
+            } else {
+                event.times[event.next] = now;
+                event.latencies[event.next] = ms;
+                event.next = (event.next + 1) % HISTORY;
+                event.count = Math.min(HISTORY, event.count + 1);
+            }
+            event.max = Math.max(event.max, ms);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // LATENCY LATEST: event, time of its latest sample, that sample, the all-time worst.
+    static void latest(OutputBuffer out) {
+        List<Object[]> rows = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Map.Entry<String, Event> e : events.entrySet()) {
+                Event event = e.getValue();
+                int last = (event.next + HISTORY - 1) % HISTORY;
+                rows.add(new Object[] {e.getKey(), event.times[last], event.latencies[last], event.max});
+            }
+        } finally {
+            lock.unlock();
+        }
+        RespWriter.arrayHeader(out, rows.size());
+        for (Object[] row : rows) {
+            RespWriter.arrayHeader(out, 4);
+            RespWriter.bulk(out, (String) row[0]);
+            RespWriter.integer(out, (Long) row[1]);
+            RespWriter.integer(out, (Long) row[2]);
+            RespWriter.integer(out, (Long) row[3]);
+        }
+    }
+
+    // LATENCY HISTORY event: [time, latency] pairs, oldest first.
+    static void history(OutputBuffer out, String name) {
+        long[] times;
+        long[] latencies;
+        lock.lock();
+        try {
+            Event event = events.get(name);
+            int n = event == null ? 0 : event.count;
+            times = new long[n];
+            latencies = new long[n];
+            for (int i = 0; i < n; i++) {
+                int at = (event.next + HISTORY - n + i) % HISTORY;
+                times[i] = event.times[at];
+                latencies[i] = event.latencies[at];
+            }
+        } finally {
+            lock.unlock();
+        }
+        RespWriter.arrayHeader(out, times.length);
+        for (int i = 0; i < times.length; i++) {
+            RespWriter.arrayHeader(out, 2);
+            RespWriter.integer(out, times[i]);
+            RespWriter.integer(out, latencies[i]);
+        }
+    }
+
+    // LATENCY RESET [event ...]: all events when none are named. Returns how many were
+    // dropped.
+    static int reset(List<String> names) {
+        lock.lock();
+        try {
+            if (names.isEmpty()) {
+                int n = events.size();
+                events.clear();
+                return n;
+            }
+            int n = 0;
+            for (String name : names) {
+                if (events.remove(name) != null) {
+                    n++;
+                }
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
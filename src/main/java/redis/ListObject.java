@@ -0,0 +1,520 @@
+package redis;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// A list value, encoded like Redis' quicklist: a doubly linked chain of chunks, each a
+// byte[] of packed entries (see Listpack for their encoding), which can be walked from
+// either end.
+// A small element costs its payload plus two or three bytes instead of an object
+// header, an array header and a reference. Pushes and pops touch only an end chunk, and
+// index lookups skip whole chunks by their counts.
+// Mutations go through here so the owning shard's memory estimate follows every change.
+final class ListObject extends RedisObject {
+    // like list-max-listpack-size -2
+    static final int CHUNK_BYTES = 8 * 1024;
+    private static final int MIN_CHUNK_BYTES = 32;
+    // chunk node plus its array header
+    private static final int CHUNK_OVERHEAD = 40 + 16;
+
+    interface ElementVisitor {
+        void accept(byte[] buf, int offset, int length);
+    }
+
+    // forEachElement's visitor, which may write to a file
+    interface ElementSink {
+        void accept(byte[] buf, int offset, int length) throws IOException;
+    }
+
+    private static final class Chunk {
+        byte[] data;
+        // entries occupy data[head, tail)
+        int head;
+        int tail;
+        int count;
+        Chunk prev;
+        Chunk next;
+
+        Chunk(int capacity) {
+            data = new byte[capacity];
+        }
+
+        int used() {
+            return tail - head;
+        }
+    }
+
+    private final Shard owner;
+    // owner.snapshotEpoch when created; an older list may belong to a running save and is
+    // copied before being modified (see Shard.lookupForWrite)
+    final int epoch;
+    private Chunk first;
+    private Chunk last;
+    private int size;
+    private long bytes;
+    // chunk-local index of the entry found by the last locate()
+    private int located;
+
+    ListObject(Shard owner) {
+        this.owner = owner;
+        this.epoch = owner.snapshotEpoch;
+    }
+
+    // A deep copy, with the same footprint. It is not accounted to the shard here: the
+    // caller swaps it in for this list through Shard.put, which does.
+    @Override
+    ListObject copy() {
+        ListObject copy = new ListObject(owner);
+        for (Chunk c = first; c != null; c = c.next) {
+            Chunk d = new Chunk(c.data.length);
+            System.arraycopy(c.data, c.head, d.data, c.head, c.used());
+            d.head = c.head;
+            d.tail = c.tail;
+            d.count = c.count;
+            copy.linkAfter(copy.last, d);
+        }
+        copy.size = size;
+        copy.bytes = bytes;
+        return copy;
+    }
+
+    @Override
+    boolean predates(int snapshotEpoch) {
+        return epoch != snapshotEpoch;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void addFirst(byte[] element) {
+        addFirst(element, 0, element.length);
+    }
+
+    void addLast(byte[] element) {
+        addLast(element, 0, element.length);
+    }
+
+    // Pushes straight from a request buffer, no intermediate byte[].
+    void addFirst(byte[] src, int offset, int length) {
+        int need = Listpack.entrySize(length);
+        Chunk c = first;
+        if (c == null || c.used() + need > CHUNK_BYTES) {
+            c = newChunk(need);
+            c.head = c.tail = c.data.length;
+            linkBefore(first, c);
+        }
+        if (c.head < need) {
+            makeRoom(c, need, true);
+        }
+        c.head -= need;
+        Listpack.writeEntry(c.data, c.head, src, offset, length);
+        c.count++;
+        size++;
+    }
+
+    void addLast(byte[] src, int offset, int length) {
+        int need = Listpack.entrySize(length);
+        Chunk c = last;
+        if (c == null || c.used() + need > CHUNK_BYTES) {
+            c = newChunk(need);
+            linkAfter(last, c);
+        }
+        if (c.data.length - c.tail < need) {
+            makeRoom(c, need, false);
+        }
+        c.tail = Listpack.writeEntry(c.data, c.tail, src, offset, length);
+        c.count++;
+        size++;
+    }
+
+    byte[] pollFirst() {
+        Chunk c = first;
+        if (c == null) {
+            return null;
+        }
+        int length = Listpack.lengthAt(c.data, c.head);
+        int start = c.head + Listpack.varintSize(length);
+        byte[] element = Arrays.copyOfRange(c.data, start, start + length);
+        c.head += Listpack.entrySize(length);
+        removedFrom(c, 1);
+        return element;
+    }
+
+    byte[] pollLast() {
+        Chunk c = last;
+        if (c == null) {
+            return null;
+        }
+        int length = Listpack.lengthBefore(c.data, c.tail);
+        c.tail -= Listpack.entrySize(length);
+        int start = c.tail + Listpack.varintSize(length);
+        byte[] element = Arrays.copyOfRange(c.data, start, start + length);
+        removedFrom(c, 1);
+        return element;
+    }
+
+    // 0 <= index < size
+    byte[] get(int index) {
+        Chunk c = locate(index);
+        int pos = entryPos(c, located);
+        int length = Listpack.lengthAt(c.data, pos);
+        int start = pos + Listpack.varintSize(length);
+        return Arrays.copyOfRange(c.data, start, start + length);
+    }
+
+    // 0 <= index < size
+    void set(int index, byte[] value) {
+        Chunk c = locate(index);
+        int pos = entryPos(c, located);
+        int old = Listpack.entrySize(Listpack.lengthAt(c.data, pos));
+        replace(c, pos, old, value);
+    }
+
+    // Inserts value next to the first element equal to pivot. The new size, or -1 when
+    // there is no such element.
+    int insert(byte[] pivot, byte[] value, boolean before) {
+        for (Chunk c = first; c != null; c = c.next) {
+            for (int pos = c.head; pos < c.tail; pos = Listpack.nextEntry(c.data, pos)) {
+                if (Listpack.entryEquals(c.data, pos, pivot)) {
+                    insertAt(c, before ? pos : Listpack.nextEntry(c.data, pos), value);
+                    return size;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // LREM: removes up to |count| elements equal to value, from the head when count is
+    // positive, from the tail when negative, all of them when 0.
+    int remove(int count, byte[] value) {
+        int limit = count == 0 ? Integer.MAX_VALUE : Math.abs(count);
+        boolean fromHead = count >= 0;
+        int removed = 0;
+        Chunk c = fromHead ? first : last;
+        while (c != null && removed < limit) {
+            Chunk following = fromHead ? c.next : c.prev;
+            int n = fromHead ? compactForward(c, value, limit - removed) : compactBackward(c, value, limit - removed);
+            if (n > 0) {
+                removed += n;
+                removedFrom(c, n);
+            }
+            c = following;
+        }
+        return removed;
+    }
+
+    // LTRIM with normalized bounds: keeps [start, stop], which must be a valid range.
+    void trim(int start, int stop) {
+        dropFirst(start);
+        dropLast(size - (stop - start + 1));
+    }
+
+    // Hands the elements in [start, end] to the visitor without copying them out.
+    void forEach(int start, int end, ElementVisitor visitor) {
+        if (start > end) {
+            return;
+        }
+        Chunk c = locate(start);
+        int pos = entryPos(c, located);
+        for (int remaining = end - start + 1; remaining > 0; remaining--) {
+            if (pos == c.tail) {
+                c = c.next;
+                pos = c.head;
+            }
+            int length = Listpack.lengthAt(c.data, pos);
+            int v = Listpack.varintSize(length);
+            visitor.accept(c.data, pos + v, length);
+            pos += 2 * v + length;
+        }
+    }
+
+    // Every element, front to back. Unlike the ranged forEach it keeps no state in the
+    // list, so a background save can walk a list that clients are reading meanwhile.
+    void forEachElement(ElementSink visitor) throws IOException {
+        for (Chunk c = first; c != null; c = c.next) {
+            for (int pos = c.head; pos < c.tail; ) {
+                int length = Listpack.lengthAt(c.data, pos);
+                int v = Listpack.varintSize(length);
+                visitor.accept(c.data, pos + v, length);
+                pos += 2 * v + length;
+            }
+        }
+    }
+
+    @Override
+    long memoryUsage() {
+        // object and fields
+        return 40 + bytes;
+    }
+
+    // --- chunk maintenance
+
+    // The chunk holding the element at index, walking from the nearer end. Its
+    // chunk-local index is left in `located`.
+    private Chunk locate(int index) {
+        if (index < size / 2) {
+            Chunk c = first;
+            while (index >= c.count) {
+                index -= c.count;
+                c = c.next;
+            }
+            located = index;
+            return c;
+        }
+        int fromEnd = size - 1 - index;
+        Chunk c = last;
+        while (fromEnd >= c.count) {
+            fromEnd -= c.count;
+            c = c.prev;
+        }
+        located = c.count - 1 - fromEnd;
+        return c;
+    }
+
+    private static int entryPos(Chunk c, int k) {
+        if (k <= c.count / 2) {
+            int pos = c.head;
+            for (int i = 0; i < k; i++) {
+                pos = Listpack.nextEntry(c.data, pos);
+            }
+            return pos;
+        }
+        int pos = c.tail;
+        for (int i = c.count; i > k; i--) {
+            pos = Listpack.prevEntry(c.data, pos);
+        }
+        return pos;
+    }
+
+    private Chunk newChunk(int need) {
+        Chunk c = new Chunk(Math.max(need, MIN_CHUNK_BYTES));
+        account(CHUNK_OVERHEAD + c.data.length);
+        return c;
+    }
+
+    // Links c after `prev`, or as the first chunk when prev is null.
+    private void linkAfter(Chunk prev, Chunk c) {
+        Chunk next = prev == null ? first : prev.next;
+        c.prev = prev;
+        c.next = next;
+        if (prev == null) {
+            first = c;
+        } else {
+            prev.next = c;
+        }
+        if (next == null) {
+            last = c;
+        } else {
+            next.prev = c;
+        }
+    }
+
+    private void linkBefore(Chunk next, Chunk c) {
+        linkAfter(next == null ? last : next.prev, c);
+    }
+
+    private void unlink(Chunk c) {
+        if (c.prev == null) {
+            first = c.next;
+        } else {
+            c.prev.next = c.next;
+        }
+        if (c.next == null) {
+            last = c.prev;
+        } else {
+            c.next.prev = c.prev;
+        }
+        account(-(CHUNK_OVERHEAD + c.data.length));
+    }
+
+    private void removedFrom(Chunk c, int n) {
+        c.count -= n;
+        size -= n;
+        if (c.count == 0) {
+            unlink(c);
+        }
+    }
+
+    // Makes `need` bytes of room at the head or the tail of c, sliding its entries to the
+    // other end of the array, and growing the array when that is not enough.
+    private void makeRoom(Chunk c, int need, boolean atHead) {
+        int used = c.used();
+        int capacity = c.data.length;
+        if (used + need > capacity) {
+            capacity = Math.max(used + need, Math.min(CHUNK_BYTES, capacity * 2));
+        }
+        byte[] data = capacity == c.data.length ? c.data : new byte[capacity];
+        int head = atHead ? capacity - used : 0;
+        System.arraycopy(c.data, c.head, data, head, used);
+        if (data != c.data) {
+            account(capacity - c.data.length);
+            c.data = data;
+        }
+        c.head = head;
+        c.tail = head + used;
+    }
+
+    // Replaces the `remove` bytes at pos with the entry for value.
+    private void replace(Chunk c, int pos, int remove, byte[] value) {
+        int add = Listpack.entrySize(value.length);
+        int used = c.used() - remove + add;
+        if (c.head + used <= c.data.length) {
+            // slide what follows
+            System.arraycopy(c.data, pos + remove, c.data, pos + add, c.tail - pos - remove);
+            c.tail = c.head + used;
+        } else if (used <= c.data.length) {
+            // slide what precedes towards the front
+            int shift = c.head + used - c.data.length;
+            System.arraycopy(c.data, c.head, c.data, c.head - shift, pos - c.head);
+            System.arraycopy(c.data, pos + remove, c.data, pos - shift + add, c.tail - pos - remove);
+            c.head -= shift;
+            c.tail = c.data.length;
+            pos -= shift;
+        } else {
+            int capacity = Math.max(used, Math.min(CHUNK_BYTES, c.data.length * 2));
+            byte[] data = new byte[capacity];
+            System.arraycopy(c.data, c.head, data, 0, pos - c.head);
+            System.arraycopy(c.data, pos + remove, data, pos - c.head + add, c.tail - pos - remove);
+            account(capacity - c.data.length);
+            pos -= c.head;
+            c.data = data;
+            c.head = 0;
+            c.tail = used;
+        }
+        Listpack.writeEntry(c.data, pos, value, 0, value.length);
+    }
+
+    // Inserts value at entry position pos of c. A chunk that would outgrow CHUNK_BYTES is
+    // split at pos first, and the value joins whichever side has room.
+    private void insertAt(Chunk c, int pos, byte[] value) {
+        int need = Listpack.entrySize(value.length);
+        if (c.used() + need <= CHUNK_BYTES) {
+            replace(c, pos, 0, value);
+            c.count++;
+            size++;
+            return;
+        }
+        if (pos < c.tail) {
+            Chunk right = newChunk(c.tail - pos);
+            System.arraycopy(c.data, pos, right.data, 0, c.tail - pos);
+            right.tail = c.tail - pos;
+            for (int p = 0; p < right.tail; p = Listpack.nextEntry(right.data, p)) {
+                right.count++;
+            }
+            c.tail = pos;
+            c.count -= right.count;
+            linkAfter(c, right);
+        }
+        Chunk target;
+        if (c.count == 0 || c.used() + need <= CHUNK_BYTES) {
+            // (an emptied left half takes the value even when it is oversized)
+            target = c;
+        } else if (c.next != null && c.next.used() + need <= CHUNK_BYTES) {
+            target = c.next;
+            if (target.head < need) {
+                makeRoom(target, need, true);
+            }
+            target.head -= need;
+            Listpack.writeEntry(target.data, target.head, value, 0, value.length);
+            target.count++;
+            size++;
+            return;
+        } else {
+            target = newChunk(need);
+            linkAfter(c, target);
+        }
+        if (target.data.length - target.tail < need) {
+            makeRoom(target, need, false);
+        }
+        target.tail = Listpack.writeEntry(target.data, target.tail, value, 0, value.length);
+        target.count++;
+        size++;
+    }
+
+    // Drops up to `limit` entries equal to value, scanning from the head and sliding the
+    // kept ones down over the holes. Leaves the count to the caller.
+    private static int compactForward(Chunk c, byte[] value, int limit) {
+        byte[] d = c.data;
+        int read = c.head;
+        int write = c.head;
+        int removed = 0;
+        while (read < c.tail) {
+            int entry = Listpack.entrySize(Listpack.lengthAt(d, read));
+            if (removed < limit && Listpack.entryEquals(d, read, value)) {
+                removed++;
+            } else {
+                if (write != read) {
+                    System.arraycopy(d, read, d, write, entry);
+                }
+                write += entry;
+            }
+            read += entry;
+        }
+        c.tail = write;
+        return removed;
+    }
+
+    private static int compactBackward(Chunk c, byte[] value, int limit) {
+        byte[] d = c.data;
+        int read = c.tail;
+        int write = c.tail;
+        int removed = 0;
+        while (read > c.head) {
+            int start = Listpack.prevEntry(d, read);
+            if (removed < limit && Listpack.entryEquals(d, start, value)) {
+                removed++;
+            } else {
+                int entry = read - start;
+                write -= entry;
+                if (write != start) {
+                    System.arraycopy(d, start, d, write, entry);
+                }
+            }
+            read = start;
+        }
+        c.head = write;
+        return removed;
+    }
+
+    private void dropFirst(int n) {
+        while (n > 0) {
+            Chunk c = first;
+            if (c.count <= n) {
+                n -= c.count;
+                removedFrom(c, c.count);
+                continue;
+            }
+            for (int i = 0; i < n; i++) {
+                c.head = Listpack.nextEntry(c.data, c.head);
+            }
+            removedFrom(c, n);
+            return;
+        }
+    }
+
+    private void dropLast(int n) {
+        while (n > 0) {
+            Chunk c = last;
+            if (c.count <= n) {
+                n -= c.count;
+                removedFrom(c, c.count);
+                continue;
+            }
+            for (int i = 0; i < n; i++) {
+                c.tail = Listpack.prevEntry(c.data, c.tail);
+            }
+            removedFrom(c, n);
+            return;
+        }
+    }
+
+    private void account(long delta) {
+        bytes += delta;
+        owner.usedMemory += delta;
+    }
+}
@@ -0,0 +1,246 @@
+package redis;
+
+import java.util.Arrays;
+
+// Packed entries, as list chunks and small collections store them. An entry is its
+// length as a varint, the bytes, then the length again as a varint written backwards,
+// so the entries can be walked from either end (see ListObject).
+// An instance is a whole small collection in one byte[], like Redis' listpack: hashes,
+// sets and sorted sets start out as one and only turn into a hash table or skiplist
+// once they outgrow it. Lookups scan it, which over a hundred or so short entries in
+// one array is as quick as hashing and costs two or three bytes per entry instead of a
+// table slot and an array header. Positions handed out are byte offsets of entries;
+// iterate with `for (int p = 0; p < lp.used(); p = lp.next(p))`.
+final class Listpack {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private byte[] data;
+    // entries occupy data[0, used)
+    private int used;
+    private int count;
+
+    Listpack() {
+        data = new byte[INITIAL_CAPACITY];
+    }
+
+    private Listpack(Listpack from) {
+        data = Arrays.copyOf(from.data, from.data.length);
+        used = from.used;
+        count = from.count;
+    }
+
+    Listpack copy() {
+        return new Listpack(this);
+    }
+
+    int count() {
+        return count;
+    }
+
+    int used() {
+        return used;
+    }
+
+    int next(int pos) {
+        return nextEntry(data, pos);
+    }
+
+    // The entry bytes are data()[start(pos), start(pos) + length(pos)); valid until the
+    // next modification.
+    byte[] data() {
+        return data;
+    }
+
+    int start(int pos) {
+        return pos + varintSize(lengthAt(data, pos));
+    }
+
+    int length(int pos) {
+        return lengthAt(data, pos);
+    }
+
+    byte[] get(int pos) {
+        int start = start(pos);
+        return Arrays.copyOfRange(data, start, start + lengthAt(data, pos));
+    }
+
+    boolean equalsAt(int pos, byte[] value) {
+        return entryEquals(data, pos, value);
+    }
+
+    // Unsigned byte order, as Redis compares members.
+    int compareAt(int pos, byte[] value) {
+        int start = start(pos);
+        return Arrays.compareUnsigned(data, start, start + lengthAt(data, pos), value, 0, value.length);
+    }
+
+    // A score stored by encodeDouble.
+    double doubleAt(int pos) {
+        int p = start(pos);
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = bits << 8 | data[p + i] & 0xff;
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    static byte[] encodeDouble(double value) {
+        long bits = Double.doubleToLongBits(value);
+        byte[] b = new byte[8];
+        for (int i = 7; i >= 0; i--, bits >>>= 8) {
+            b[i] = (byte) bits;
+        }
+        return b;
+    }
+
+    // An unsigned number stored by encodeLong.
+    long longAt(int pos) {
+        int p = start(pos);
+        int n = lengthAt(data, pos);
+        long v = 0;
+        for (int i = 0; i < n; i++) {
+            v = v << 8 | data[p + i] & 0xff;
+        }
+        return v;
+    }
+
+    // Big endian without the leading zero bytes, so small numbers take one or two.
+    static byte[] encodeLong(long value) {
+        int n = (64 - Long.numberOfLeadingZeros(value) + 7) / 8;
+        byte[] b = new byte[n];
+        for (int i = n - 1; i >= 0; i--, value >>>= 8) {
+            b[i] = (byte) value;
+        }
+        return b;
+    }
+
+    // The first of every `stride`-th entry, counting from the first, that equals value;
+    // -1 when there is none. A stride of 2 searches the keys of key/value pairs.
+    int find(byte[] value, int stride) {
+        int pos = 0;
+        while (pos < used) {
+            if (entryEquals(data, pos, value)) {
+                return pos;
+            }
+            for (int i = 0; i < stride; i++) {
+                pos = nextEntry(data, pos);
+            }
+        }
+        return -1;
+    }
+
+    void append(byte[] value) {
+        insert(used, value);
+    }
+
+    // Inserts an entry at pos, which must be the position of an entry or used().
+    void insert(int pos, byte[] value) {
+        int need = entrySize(value.length);
+        if (used + need > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, used + need));
+        }
+        System.arraycopy(data, pos, data, pos + need, used - pos);
+        writeEntry(data, pos, value, 0, value.length);
+        used += need;
+        count++;
+    }
+
+    // Removes n entries starting at pos.
+    void remove(int pos, int n) {
+        int end = pos;
+        for (int i = 0; i < n; i++) {
+            end = nextEntry(data, end);
+        }
+        System.arraycopy(data, end, data, pos, used - end);
+        used -= end - pos;
+        count -= n;
+        if (data.length > INITIAL_CAPACITY && used < data.length / 4) {
+            data = Arrays.copyOf(data, Math.max(INITIAL_CAPACITY, used * 2));
+        }
+    }
+
+    void replace(int pos, byte[] value) {
+        int old = nextEntry(data, pos) - pos;
+        int need = entrySize(value.length);
+        if (used - old + need > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, used - old + need));
+        }
+        System.arraycopy(data, pos + old, data, pos + need, used - pos - old);
+        writeEntry(data, pos, value, 0, value.length);
+        used += need - old;
+    }
+
+    long footprint() {
+        // object and fields, array header and capacity
+        return 24 + 16 + data.length;
+    }
+
+    // --- entry encoding
+
+    static int varintSize(int n) {
+        int size = 1;
+        while (n >= 0x80) {
+            n >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int entrySize(int length) {
+        return 2 * varintSize(length) + length;
+    }
+
+    // Writes the entry at pos and returns the position after it.
+    static int writeEntry(byte[] data, int pos, byte[] src, int offset, int length) {
+        int v = varintSize(length);
+        int n = length;
+        for (int k = 0; k < v; k++, n >>>= 7) {
+            byte b = (byte) ((n & 0x7f) | (k < v - 1 ? 0x80 : 0));
+            data[pos + k] = b;
+            // mirrored, so reading back from the end meets the low bits first
+            data[pos + 2 * v + length - 1 - k] = b;
+        }
+        System.arraycopy(src, offset, data, pos + v, length);
+        return pos + 2 * v + length;
+    }
+
+    // Length of the entry starting at pos.
+    static int lengthAt(byte[] data, int pos) {
+        int n = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos++];
+            n |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return n;
+    }
+
+    // Length of the entry ending at end.
+    static int lengthBefore(byte[] data, int end) {
+        int n = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[--end];
+            n |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return n;
+    }
+
+    static int nextEntry(byte[] data, int pos) {
+        return pos + entrySize(lengthAt(data, pos));
+    }
+
+    static int prevEntry(byte[] data, int end) {
+        return end - entrySize(lengthBefore(data, end));
+    }
+
+    static boolean entryEquals(byte[] data, int pos, byte[] value) {
+        int length = lengthAt(data, pos);
+        int start = pos + varintSize(length);
+        return Arrays.equals(data, start, start + length, value, 0, value.length);
+    }
+}
@@ -0,0 +1,635 @@
+package redis;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// Load generator in the manner of redis-benchmark, for replaying a production traffic
+// shape against a local server before rolling a change out:
+//
+//   java -cp target/classes redis.LoadGenerator --clients 200 --pipeline 16 \
+//       --mix get=80,set=15,rpush=3,lpop=2 --keyspace 1000000 --distribution zipf --prefill \
+//       --duration 30
+//
+// Options (defaults in brackets):
+//   --host, --port          server [127.0.0.1:6379]
+//   --clients N             connections [50], spread over --threads selector threads [4]
+//   --pipeline N            requests each connection sends before waiting for the replies [1]
+//   --requests N            total requests [100000]; --duration S runs for S seconds instead
+//   --mix op=w,...          weighted mix of ping, set, get, rpush, lpop, blpop [get=50,set=50]
+//   --keyspace N            distinct keys [100000]; strings are key:<n>, lists list:<n>
+//   --distribution D        uniform or zipf[:theta] [uniform]; zipf's hot keys are hashed
+//                           over the keyspace so they land on different shards
+//   --value-size N          bytes per SET/RPUSH value [16]
+//   --blpop-timeout S       BLPOP's timeout in seconds [0.1]
+//   --prefill               SET every string key once before the run, so GETs hit
+//
+// Latency is taken per request from the moment its batch was written to the moment its
+// reply was read, as redis-benchmark does, into histograms per command, and reported as
+// percentiles alongside the throughput.
+final class LoadGenerator {
+    enum Op {
+        PING, SET, GET, RPUSH, LPOP, BLPOP;
+
+        final byte[] name = name().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static final byte[] STRING_PREFIX = "key:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LIST_PREFIX = "list:".getBytes(StandardCharsets.US_ASCII);
+    private static final int PREFILL_BATCH = 1000;
+
+    private String host = "127.0.0.1";
+    private int port = 6379;
+    private int clients = 50;
+    private int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private int pipeline = 1;
+    private long requests = 100_000;
+    private double duration;
+    private String mix = "get=50,set=50";
+    private int keyspace = 100_000;
+    private String distribution = "uniform";
+    private int valueSize = 16;
+    private String blpopTimeout = "0.1";
+    private boolean prefill;
+
+    // the mix as cumulative weights
+    private Op[] ops;
+    private int[] cumulative;
+    private Zipf zipf;
+    private byte[] value;
+    private byte[] timeout;
+    // deadline for --duration, 0 when running a request count
+    private volatile long deadline;
+    private final LongAdder completed = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        String error = generator.configure(args);
+        if (error != null) {
+            System.out.println(error);
+            return;
+        }
+        generator.run();
+    }
+
+    private String configure(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--host":
+                        host = args[++i];
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--clients":
+                        clients = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--pipeline":
+                        pipeline = Integer.parseInt(args[++i]);
+                        break;
+                    case "--requests":
+                        requests = Long.parseLong(args[++i]);
+                        break;
+                    case "--duration":
+                        duration = Double.parseDouble(args[++i]);
+                        break;
+                    case "--mix":
+                        mix = args[++i];
+                        break;
+                    case "--keyspace":
+                        keyspace = Integer.parseInt(args[++i]);
+                        break;
+                    case "--distribution":
+                        distribution = args[++i];
+                        break;
+                    case "--value-size":
+                        valueSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--blpop-timeout":
+                        blpopTimeout = args[++i];
+                        break;
+                    case "--prefill":
+                        prefill = true;
+                        break;
+                    default:
+                        return "Unknown option: " + args[i];
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return "Bad or missing option value: " + e.getMessage();
+        }
+        if (clients < 1 || threads < 1 || pipeline < 1 || keyspace < 1 || valueSize < 0) {
+            return "--clients, --threads, --pipeline and --keyspace must be positive";
+        }
+        threads = Math.min(threads, clients);
+
+        String[] entries = mix.split(",");
+        ops = new Op[entries.length];
+        cumulative = new int[entries.length];
+        int total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String[] parts = entries[i].split("=");
+            try {
+                ops[i] = Op.valueOf(parts[0].trim().toUpperCase());
+                total += parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            } catch (IllegalArgumentException e) {
+                return "Bad --mix entry: " + entries[i];
+            }
+            cumulative[i] = total;
+        }
+        if (total <= 0) {
+            return "--mix weights must add up to more than 0";
+        }
+
+        if (distribution.startsWith("zipf")) {
+            double theta = 0.99;
+            try {
+                if (distribution.startsWith("zipf:")) {
+                    theta = Double.parseDouble(distribution.substring(5));
+                }
+            } catch (NumberFormatException e) {
+                theta = -1;
+            }
+            if (!(theta > 0) || theta == 1) {
+                return "zipf theta must be positive and not 1";
+            }
+            zipf = new Zipf(keyspace, theta);
+        } else if (!distribution.equals("uniform")) {
+            return "Unknown distribution: " + distribution;
+        }
+        value = "x".repeat(valueSize).getBytes(StandardCharsets.US_ASCII);
+        timeout = blpopTimeout.getBytes(StandardCharsets.US_ASCII);
+        return null;
+    }
+
+    private void run() throws IOException, InterruptedException {
+        System.out.printf("%d clients, %d threads, pipeline %d, %d keys (%s), %d-byte values, mix %s%n",
+                clients, threads, pipeline, keyspace, zipf == null ? "uniform" : "zipf " + zipf.theta, valueSize, mix);
+        if (prefill) {
+            long started = System.nanoTime();
+            prefill();
+            System.out.printf("prefilled %d keys in %.2f s%n", keyspace, (System.nanoTime() - started) / 1e9);
+        }
+
+        List<Worker> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            // connections and requests dealt out as evenly as they go
+            int conns = clients / threads + (t < clients % threads ? 1 : 0);
+            workers.add(new Worker(t, conns));
+        }
+        long perClient = requests / clients;
+        long extra = requests % clients;
+        int c = 0;
+        for (Worker worker : workers) {
+            for (Conn conn : worker.conns) {
+                conn.remaining = duration > 0 ? Long.MAX_VALUE : perClient + (c++ < extra ? 1 : 0);
+            }
+        }
+
+        long started = System.nanoTime();
+        if (duration > 0) {
+            deadline = started + (long) (duration * 1e9);
+        }
+        List<Thread> running = new ArrayList<>();
+        for (Worker worker : workers) {
+            Thread thread = new Thread(worker, "load-" + worker.id);
+            thread.start();
+            running.add(thread);
+        }
+        long lastCount = 0;
+        long lastAt = started;
+        for (Thread thread : running) {
+            while (thread.isAlive()) {
+                thread.join(1000);
+                long now = System.nanoTime();
+                if (now - lastAt >= 1_000_000_000L) {
+                    long count = completed.sum();
+                    System.out.printf("  %.0f s: %d requests, %.0f ops/s%n", (now - started) / 1e9, count,
+                            (count - lastCount) / ((now - lastAt) / 1e9));
+                    lastCount = count;
+                    lastAt = now;
+                }
+            }
+        }
+        long finished = started;
+        for (Worker worker : workers) {
+            finished = Math.max(finished, worker.finishedAt);
+        }
+        double seconds = (finished - started) / 1e9;
+
+        LatencyHistogram[] byOp = new LatencyHistogram[Op.values().length];
+        long[] errors = new long[byOp.length];
+        LatencyHistogram all = new LatencyHistogram();
+        for (int i = 0; i < byOp.length; i++) {
+            byOp[i] = new LatencyHistogram();
+            for (Worker worker : workers) {
+                byOp[i].add(worker.latencies[i]);
+                errors[i] += worker.errors[i];
+            }
+            all.add(byOp[i]);
+        }
+        for (Worker worker : workers) {
+            if (worker.failure != null) {
+                System.out.println("worker " + worker.id + " failed: " + worker.failure.getMessage());
+            }
+        }
+        System.out.printf("%n%d requests in %.2f s, %.0f ops/s%n%n", all.count(), seconds, all.count() / seconds);
+        System.out.printf("%-8s %10s %8s %10s %9s %9s %9s %9s %9s%n", "command", "requests", "errors", "ops/s",
+                "avg ms", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        long allErrors = 0;
+        for (Op op : Op.values()) {
+            if (byOp[op.ordinal()].count() > 0) {
+                report(op.name(), byOp[op.ordinal()], errors[op.ordinal()], seconds);
+                allErrors += errors[op.ordinal()];
+            }
+        }
+        report("ALL", all, allErrors, seconds);
+    }
+
+    private static void report(String name, LatencyHistogram h, long errors, double seconds) {
+        System.out.printf("%-8s %10d %8d %10.0f %9.3f %9.3f %9.3f %9.3f %9.3f%n", name, h.count(), errors,
+                h.count() / seconds, h.mean() / 1e6, h.percentile(50) / 1e6, h.percentile(99) / 1e6,
+                h.percentile(99.9) / 1e6, h.max() / 1e6);
+    }
+
+    // SETs every string key, pipelined over one connection.
+    private void prefill() throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+            ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+            ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+            for (int from = 0; from < keyspace; from += PREFILL_BATCH) {
+                int n = Math.min(PREFILL_BATCH, keyspace - from);
+                for (int i = from; i < from + n; i++) {
+                    out = encode(out, Op.SET, i);
+                }
+                out.flip();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                out.clear();
+                // one +OK line each
+                for (int lines = n; lines > 0; ) {
+                    in.clear();
+                    if (channel.read(in) < 0) {
+                        throw new IOException("server closed the connection");
+                    }
+                    for (int i = 0; i < in.position(); i++) {
+                        if (in.get(i) == '\n') {
+                            lines--;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // One connection: a batch of up to `pipeline` requests is outstanding at a time.
+    private static final class Conn {
+        final SocketChannel channel;
+        ByteBuffer out = ByteBuffer.allocate(16 * 1024);
+        ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+        final Op[] pending;
+        int sent;
+        int received;
+        long batchStarted;
+        long remaining;
+
+        Conn(SocketChannel channel, int pipeline) {
+            this.channel = channel;
+            this.pending = new Op[pipeline];
+        }
+    }
+
+    // A selector thread driving its share of the connections, with histograms of its own.
+    private final class Worker implements Runnable {
+        final int id;
+        final List<Conn> conns = new ArrayList<>();
+        final LatencyHistogram[] latencies = new LatencyHistogram[Op.values().length];
+        final long[] errors = new long[Op.values().length];
+        final SplittableRandom random;
+        final Selector selector;
+        int active;
+        IOException failure;
+        long finishedAt;
+
+        Worker(int id, int connections) throws IOException {
+            this.id = id;
+            this.random = new SplittableRandom(0x5eed + id);
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+            }
+            selector = Selector.open();
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.configureBlocking(false);
+                Conn conn = new Conn(channel, pipeline);
+                channel.register(selector, SelectionKey.OP_READ, conn);
+                conns.add(conn);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Conn conn : conns) {
+                    if (startBatch(conn)) {
+                        active++;
+                    }
+                }
+                while (active > 0) {
+                    selector.select(100);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Conn conn = (Conn) key.attachment();
+                        if (key.isWritable()) {
+                            flush(conn, key);
+                        }
+                        if (key.isReadable() && readReplies(conn) && !startBatch(conn)) {
+                            active--;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                finishedAt = System.nanoTime();
+                for (Conn conn : conns) {
+                    try {
+                        conn.channel.close();
+                    } catch (IOException e) {
+                        // going away anyway
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // same
+                }
+            }
+        }
+
+        // Sends the next batch; false when this connection is done.
+        private boolean startBatch(Conn conn) throws IOException {
+            if (conn.remaining == 0 || (deadline != 0 && System.nanoTime() >= deadline)) {
+                return false;
+            }
+            int n = (int) Math.min(pipeline, conn.remaining);
+            conn.remaining -= n;
+            conn.out.clear();
+            for (int i = 0; i < n; i++) {
+                Op op = pickOp();
+                conn.pending[i] = op;
+                conn.out = encode(conn.out, op, pickKey());
+            }
+            conn.out.flip();
+            conn.sent = n;
+            conn.received = 0;
+            conn.batchStarted = System.nanoTime();
+            flush(conn, conn.channel.keyFor(selector));
+            return true;
+        }
+
+        private void flush(Conn conn, SelectionKey key) throws IOException {
+            conn.channel.write(conn.out);
+            key.interestOps(conn.out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        // Takes in whatever replies arrived; true once the whole batch is answered.
+        private boolean readReplies(Conn conn) throws IOException {
+            if (!conn.in.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(conn.in.capacity() * 2);
+                conn.in.flip();
+                conn.in = bigger.put(conn.in);
+            }
+            if (conn.channel.read(conn.in) < 0) {
+                throw new IOException("server closed a connection");
+            }
+            long now = System.nanoTime();
+            byte[] a = conn.in.array();
+            int p = 0;
+            int limit = conn.in.position();
+            int end;
+            while (conn.received < conn.sent && (end = skipReply(a, p, limit)) >= 0) {
+                Op op = conn.pending[conn.received++];
+                latencies[op.ordinal()].record(now - conn.batchStarted);
+                if (a[p] == '-') {
+                    errors[op.ordinal()]++;
+                }
+                p = end;
+            }
+            conn.in.flip().position(p);
+            conn.in.compact();
+            if (conn.received < conn.sent) {
+                return false;
+            }
+            completed.add(conn.sent);
+            return true;
+        }
+
+        private Op pickOp() {
+            int r = random.nextInt(cumulative[cumulative.length - 1]);
+            for (int i = 0; ; i++) {
+                if (r < cumulative[i]) {
+                    return ops[i];
+                }
+            }
+        }
+
+        private int pickKey() {
+            if (zipf == null) {
+                return random.nextInt(keyspace);
+            }
+            // spread the hot ranks over the keyspace, so not all of them share a shard
+            long rank = zipf.next(random);
+            return (int) Long.remainderUnsigned(rank * 0x9e3779b97f4a7c15L, keyspace);
+        }
+    }
+
+    private ByteBuffer encode(ByteBuffer out, Op op, int key) {
+        int needed = 64 + op.name.length + value.length + timeout.length;
+        if (out.remaining() < needed) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + needed));
+            out.flip();
+            out = bigger.put(out);
+        }
+        switch (op) {
+            case PING:
+                arrayHeader(out, 1);
+                bulk(out, op.name);
+                break;
+            case GET:
+                arrayHeader(out, 2);
+                bulk(out, op.name);
+                key(out, STRING_PREFIX, key);
+                break;
+            case SET:
+                arrayHeader(out, 3);
+                bulk(out, op.name);
+                key(out, STRING_PREFIX, key);
+                bulk(out, value);
+                break;
+            case RPUSH:
+                arrayHeader(out, 3);
+                bulk(out, op.name);
+                key(out, LIST_PREFIX, key);
+                bulk(out, value);
+                break;
+            case LPOP:
+                arrayHeader(out, 2);
+                bulk(out, op.name);
+                key(out, LIST_PREFIX, key);
+                break;
+            case BLPOP:
+                arrayHeader(out, 3);
+                bulk(out, op.name);
+                key(out, LIST_PREFIX, key);
+                bulk(out, timeout);
+                break;
+        }
+        return out;
+    }
+
+    private static void arrayHeader(ByteBuffer out, int n) {
+        out.put((byte) '*');
+        decimal(out, n);
+        out.put((byte) '\r').put((byte) '\n');
+    }
+
+    private static void bulk(ByteBuffer out, byte[] data) {
+        out.put((byte) '$');
+        decimal(out, data.length);
+        out.put((byte) '\r').put((byte) '\n').put(data).put((byte) '\r').put((byte) '\n');
+    }
+
+    // prefix followed by n in decimal, as one bulk string
+    private static void key(ByteBuffer out, byte[] prefix, int n) {
+        out.put((byte) '$');
+        decimal(out, prefix.length + digits(n));
+        out.put((byte) '\r').put((byte) '\n').put(prefix);
+        decimal(out, n);
+        out.put((byte) '\r').put((byte) '\n');
+    }
+
+    private static void decimal(ByteBuffer out, int n) {
+        int d = digits(n);
+        int at = out.position() + d;
+        for (int i = at - 1; i >= out.position(); i--) {
+            out.put(i, (byte) ('0' + n % 10));
+            n /= 10;
+        }
+        out.position(at);
+    }
+
+    private static int digits(int n) {
+        int d = 1;
+        while (n >= 10) {
+            n /= 10;
+            d++;
+        }
+        return d;
+    }
+
+    // End of the reply starting at p, or -1 if it has not all arrived.
+    private static int skipReply(byte[] a, int p, int limit) {
+        int eol = lineEnd(a, p, limit);
+        if (eol < 0) {
+            return -1;
+        }
+        switch (a[p]) {
+            case '$': {
+                int length = parseInt(a, p + 1, eol);
+                if (length < 0) {
+                    return eol + 2;
+                }
+                int end = eol + 2 + length + 2;
+                return end <= limit ? end : -1;
+            }
+            case '*': {
+                int count = parseInt(a, p + 1, eol);
+                int q = eol + 2;
+                for (int i = 0; i < count; i++) {
+                    q = skipReply(a, q, limit);
+                    if (q < 0) {
+                        return -1;
+                    }
+                }
+                return q;
+            }
+            default:
+                return eol + 2;
+        }
+    }
+
+    private static int lineEnd(byte[] a, int p, int limit) {
+        for (int i = p; i + 1 < limit; i++) {
+            if (a[i] == '\r' && a[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int parseInt(byte[] a, int from, int to) {
+        boolean negative = a[from] == '-';
+        int n = 0;
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            n = n * 10 + (a[i] - '0');
+        }
+        return negative ? -n : n;
+    }
+
+    // Zipfian ranks over [0, n), rank 0 the most popular, by the method of Gray et al.,
+    // "Quickly Generating Billion-Record Synthetic Databases" (as YCSB generates them).
+    private static final class Zipf {
+        final long n;
+        final double theta;
+        final double alpha;
+        final double zetan;
+        final double eta;
+
+        Zipf(long n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            this.alpha = 1 / (1 - theta);
+            this.zetan = zeta(n, theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        }
+
+        long next(SplittableRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + Math.pow(0.5, theta)) {
+                return 1;
+            }
+            return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+    }
+}
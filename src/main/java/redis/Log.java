@@ -0,0 +1,81 @@
+package redis;
+
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+// Server log on stdout, one line per message in Redis' format:
+//
+//   4242:M 18 Oct 2026 11:25:17.123 * Ready to accept connections
+//
+// pid, role (M leader, S replica), time, then the level's mark: '.' debug, '-' verbose,
+// '*' notice, '#' warning. Messages under `level` are dropped after one compare; where
+// building the message costs something, callers check enabled() first so a disabled
+// level costs nothing at all.
+final class Log {
+    static final int DEBUG = 0;
+    static final int VERBOSE = 1;
+    static final int NOTICE = 2;
+    static final int WARNING = 3;
+    static final int NOTHING = 4;
+
+    private static final String[] NAMES = {"debug", "verbose", "notice", "warning", "nothing"};
+    private static final char[] MARKS = {'.', '-', '*', '#'};
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm:ss.SSS", Locale.ENGLISH);
+    private static final long PID = ProcessHandle.current().pid();
+    private static final PrintStream out = System.out;
+
+    // loglevel
+    static volatile int level = NOTICE;
+
+    private Log() {
+    }
+
+    static boolean enabled(int messageLevel) {
+        return messageLevel >= level;
+    }
+
+    static void debug(String message) {
+        if (DEBUG >= level) {
+            write(DEBUG, message);
+        }
+    }
+
+    static void verbose(String message) {
+        if (VERBOSE >= level) {
+            write(VERBOSE, message);
+        }
+    }
+
+    static void notice(String message) {
+        if (NOTICE >= level) {
+            write(NOTICE, message);
+        }
+    }
+
+    static void warning(String message) {
+        if (WARNING >= level) {
+            write(WARNING, message);
+        }
+    }
+
+    // -1 for an unknown name
+    static int parseLevel(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static String levelName() {
+        return NAMES[level];
+    }
+
+    private static void write(int messageLevel, String message) {
+        char role = MasterLink.isReplica() ? 'S' : 'M';
+        out.println(PID + ":" + role + " " + TIME.format(LocalDateTime.now()) + " " + MARKS[messageLevel] + " " + message);
+    }
+}
@@ -0,0 +1,208 @@
+package redis;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class Main {
+  public static void main(String[] args){
+    int port = 6379;
+    // "nio" multiplexes every client over a few selector threads, "threads" is the
+    // original thread-per-connection loop and "virtual" the same loop on virtual
+    // threads, which park instead of holding an OS thread while a client is idle or
+    // blocked in BLPOP.
+    String ioMode = "nio";
+    int ioThreads = Runtime.getRuntime().availableProcessors();
+    // nio only: with N > 0 the event loops just do the protocol work and N executor
+    // threads run the commands (see CommandExecutor)
+    int execThreads = 0;
+    // 0 keeps Keyspace's default
+    int shards = 0;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--port":
+          port = Integer.parseInt(args[++i]);
+          break;
+        case "--replicaof": {
+          // "host port" as one argument, as Redis' config file has it, or as two
+          String[] leader = args[++i].trim().split("\\s+");
+          MasterLink.host = leader[0];
+          MasterLink.port = Integer.parseInt(leader.length > 1 ? leader[1] : args[++i]);
+          break;
+        }
+        case "--repl-backlog-size":
+          Replication.backlogSize = Eviction.parseMemory(args[++i]);
+          break;
+        case "--io":
+          ioMode = args[++i];
+          break;
+        case "--io-threads":
+          ioThreads = Integer.parseInt(args[++i]);
+          break;
+        case "--exec-threads":
+          execThreads = Integer.parseInt(args[++i]);
+          break;
+        case "--shards":
+          shards = Integer.parseInt(args[++i]);
+          break;
+        case "--maxmemory":
+          Eviction.maxMemory = Eviction.parseMemory(args[++i]);
+          break;
+        case "--maxmemory-policy":
+          Eviction.policy = Eviction.Policy.parse(args[++i]);
+          break;
+        case "--maxmemory-samples":
+          Eviction.samples = Integer.parseInt(args[++i]);
+          break;
+        case "--dir":
+          Rdb.dir = args[++i];
+          break;
+        case "--dbfilename":
+          Rdb.dbfilename = args[++i];
+          break;
+        case "--appendonly":
+          Aof.enabled = args[++i].equalsIgnoreCase("yes");
+          break;
+        case "--appendfilename":
+          Aof.filename = args[++i];
+          break;
+        case "--appendfsync":
+          Aof.fsync = Aof.Fsync.parse(args[++i]);
+          break;
+        case "--auto-aof-rewrite-percentage":
+          Aof.autoRewritePercentage = Integer.parseInt(args[++i]);
+          break;
+        case "--auto-aof-rewrite-min-size":
+          Aof.autoRewriteMinSize = Eviction.parseMemory(args[++i]);
+          break;
+        case "--loglevel": {
+          int level = Log.parseLevel(args[++i]);
+          if (level < 0) {
+            Log.warning("Invalid loglevel: " + args[i]);
+          } else {
+            Log.level = level;
+          }
+          break;
+        }
+        case "--slowlog-log-slower-than":
+          SlowLog.slowerThanMicros = Long.parseLong(args[++i]);
+          break;
+        case "--slowlog-max-len":
+          SlowLog.maxLen = Integer.parseInt(args[++i]);
+          break;
+        case "--latency-monitor-threshold":
+          LatencyMonitor.thresholdMs = Long.parseLong(args[++i]);
+          break;
+        case "--client-output-buffer-limit":
+          OutputLimits.set(OutputLimits.parse(args[++i]));
+          break;
+        case "--storage":
+          // "heap" or "offheap": where string values keep their bytes (see SlabAllocator)
+          SlabAllocator.enabled = args[++i].equalsIgnoreCase("offheap");
+          break;
+        case "--cluster-enabled":
+          Cluster.enabled = args[++i].equalsIgnoreCase("yes");
+          break;
+        case "--cluster-config-file":
+          Cluster.configFile = args[++i];
+          break;
+        case "--cluster-announce-ip":
+          Cluster.announceIp = args[++i];
+          break;
+        case "--cluster-node-timeout":
+          Cluster.nodeTimeoutMs = Long.parseLong(args[++i]);
+          break;
+        default:
+          Log.warning("Unknown option: " + args[i]);
+      }
+    }
+    // after the loop: a shard sizes its per-slot key counts by Cluster.enabled, which a
+    // later --cluster-enabled may still set
+    if (shards > 0) {
+      Keyspace.configure(shards);
+    }
+    CommandStats.configure(!ioMode.equals("nio") ? Runtime.getRuntime().availableProcessors()
+        : execThreads > 0 ? execThreads : ioThreads);
+
+    try {
+      long started = System.currentTimeMillis();
+      // with appendonly on, the AOF is the source of truth; the RDB file only seeds a
+      // log that does not exist yet
+      long keys = Aof.enabled ? Aof.load() : -1;
+      boolean seeded = keys < 0 && Aof.enabled;
+      if (keys < 0) {
+        keys = Rdb.load();
+      }
+      if (keys > 0) {
+        Log.notice("DB loaded from disk: " + keys + " keys in " + (System.currentTimeMillis() - started) + " ms");
+      }
+      if (Aof.enabled) {
+        Aof.start();
+        if (seeded && keys > 0) {
+          Aof.rewrite();
+        }
+      }
+      if (Cluster.enabled) {
+        Cluster.start(port);
+      }
+    } catch (IOException e) {
+      Log.warning("Error loading data from disk: " + e.getMessage());
+      System.exit(1);
+    }
+
+    ExpirySweeper.start();
+    Blocking.startTimer();
+    if (MasterLink.isReplica()) {
+      MasterLink.listeningPort = port;
+      MasterLink.start();
+    }
+    Info.port = port;
+    Info.ioMode = ioMode;
+    Info.ioThreads = ioMode.equals("nio") ? ioThreads : 0;
+    Info.execThreads = ioMode.equals("nio") ? execThreads : 0;
+    Log.notice("Ready to accept connections on port " + port + " (io " + ioMode + ")");
+
+    if (ioMode.equals("nio")) {
+      if (execThreads > 0) {
+        CommandExecutor.start(execThreads);
+      }
+      try {
+        new NioServer(port, ioThreads).run();
+      } catch (IOException e) {
+        Log.warning("IOException: " + e.getMessage());
+      }
+      return;
+    }
+
+       ServerSocket serverSocket = null;
+       Socket clientSocket = null;
+       try {
+         // a deep accept queue, as the NIO server has, for bursts of connects
+         serverSocket = new ServerSocket(port, 1024);
+         // Since the tester restarts your program quite often, setting SO_REUSEADDR
+         // ensures that we don't run into 'Address already in use' errors
+         serverSocket.setReuseAddress(true);
+         // Wait for connection from client.
+
+        while (true) {
+          clientSocket = serverSocket.accept();
+          if (ioMode.equals("virtual")) {
+            Thread.ofVirtual().name("client").start(new ClientHandler(clientSocket));
+          } else {
+            Thread clientThread = new Thread(new ClientHandler(clientSocket));
+            clientThread.start();
+          }
+        }
+       } catch (IOException e) {
+         Log.warning("IOException: " + e.getMessage());
+       } finally {
+         try {
+           if (clientSocket != null) {
+             clientSocket.close();
+           }
+         } catch (IOException e) {
+           Log.warning("IOException: " + e.getMessage());
+         }
+       }
+  }
+}
@@ -0,0 +1,235 @@
+package redis;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+// Follower side of replication (--replicaof). One thread keeps a connection to the
+// leader: it runs the handshake, loads the leader's snapshot after a full resync, then
+// applies the leader's stream like a replayed AOF, counting its bytes so that after a
+// reconnect PSYNC asks for exactly what is missing. Clients of a replica may only read.
+final class MasterLink {
+    private static final long RETRY_MS = 1000;
+    private static final int ACK_INTERVAL_MS = 1000;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    // null unless this server is a replica
+    static volatile String host;
+    static volatile int port;
+    // the port this server listens on, announced to the leader
+    static volatile int listeningPort = 6379;
+
+    // The leader's stream and how much of it has been applied; kept across reconnects.
+    private static volatile String replid = "?";
+    private static volatile long offset = -1;
+    private static volatile String state = "connect";
+    // the thread applying the leader's stream
+    private static volatile Thread thread;
+
+    private MasterLink() {
+    }
+
+    static boolean isReplica() {
+        return host != null;
+    }
+
+    // Whether the caller applies the leader's stream, which sees keys the leader has not
+    // expired yet, rather than serving a client of this replica.
+    static boolean isApplying() {
+        return Thread.currentThread() == thread;
+    }
+
+    static long offset() {
+        return offset;
+    }
+
+    // As ROLE reports it: connect, connecting, sync or connected.
+    static String state() {
+        return state;
+    }
+
+    static void start() {
+        thread = new Thread(MasterLink::run, "replication");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void run() {
+        while (true) {
+            state = "connecting";
+            Log.notice("Connecting to MASTER " + host + ":" + port);
+            try (Socket socket = new Socket(host, port)) {
+                socket.setTcpNoDelay(true);
+                sync(socket);
+            } catch (IOException e) {
+                Log.warning("Error condition on socket for SYNC: " + e.getMessage());
+            }
+            state = "connect";
+            try {
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void sync(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        // read mode
+        ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
+
+        send(out, "PING");
+        expect(readLine(in, buf), "+PONG");
+        send(out, "REPLCONF", "listening-port", Integer.toString(listeningPort));
+        expect(readLine(in, buf), "+OK");
+        send(out, "REPLCONF", "capa", "psync2");
+        expect(readLine(in, buf), "+OK");
+        send(out, "PSYNC", replid, Long.toString(offset < 0 ? -1 : offset + 1));
+        String reply = readLine(in, buf);
+        state = "sync";
+        if (reply.startsWith("+FULLRESYNC ")) {
+            String[] parts = reply.split(" ");
+            String header = readLine(in, buf);
+            if (parts.length != 3 || !header.startsWith("$")) {
+                throw new ProtocolException("bad full resync header");
+            }
+            byte[] image = readFully(in, buf, Integer.parseInt(header.substring(1)));
+            Log.notice("MASTER <-> REPLICA sync: Loading DB in memory, " + image.length + " bytes");
+            Keyspace.clear();
+            long keys = RdbLoader.load(Channels.newChannel(new ByteArrayInputStream(image)));
+            replid = parts[1];
+            offset = Long.parseLong(parts[2]);
+            Log.notice("MASTER <-> REPLICA sync: Finished with success, " + keys + " keys");
+            // the old log describes a dataset that is gone
+            if (Aof.isActive()) {
+                String error = Aof.rewrite();
+                if (error != null) {
+                    Log.warning("Could not rewrite the AOF after the resync: " + error);
+                }
+            }
+        } else if (reply.startsWith("+CONTINUE")) {
+            String[] parts = reply.split(" ");
+            if (parts.length > 1) {
+                replid = parts[1];
+            }
+            Log.notice("MASTER <-> REPLICA sync: Master accepted a Partial Resynchronization");
+        } else {
+            throw new ProtocolException("unexpected reply to PSYNC: " + reply);
+        }
+        state = "connected";
+        stream(socket, in, out, buf);
+    }
+
+    // Applies the leader's writes until the connection drops, acknowledging the offset
+    // every second and whenever the leader asks (REPLCONF GETACK).
+    private static void stream(Socket socket, InputStream in, OutputStream out, ByteBuffer buf) throws IOException {
+        ClientHandler client = ClientHandler.forReplay();
+        OutputBuffer replies = new OutputBuffer(OutputStream.nullOutputStream());
+        RespParser parser = new RespParser();
+        socket.setSoTimeout(ACK_INTERVAL_MS);
+        long lastAck = 0;
+        while (true) {
+            int before = buf.position();
+            while (parser.parse(buf)) {
+                RespCommand cmd = parser.command();
+                if (cmd.argc() > 1 && cmd.is(0, "REPLCONF") && cmd.is(1, "GETACK")) {
+                    // the offset up to, not including, the GETACK itself
+                    ack(out);
+                } else {
+                    client.dispatch(cmd, replies);
+                    replies.flush();
+                }
+                offset += buf.position() - before;
+                before = buf.position();
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastAck >= ACK_INTERVAL_MS) {
+                ack(out);
+                lastAck = now;
+            }
+            buf.compact();
+            if (!buf.hasRemaining()) {
+                buf = ClientHandler.grow(buf, parser.frameBytesNeeded());
+            }
+            try {
+                int n = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                if (n < 0) {
+                    throw new EOFException("connection closed by master");
+                }
+                buf.position(buf.position() + n);
+            } catch (SocketTimeoutException e) {
+                // idle; the next round acknowledges
+            }
+            buf.flip();
+        }
+    }
+
+    private static void ack(OutputStream out) throws IOException {
+        send(out, "REPLCONF", "ACK", Long.toString(offset));
+    }
+
+    // Blocking request/reply helpers, also used by Cluster's gossip and MIGRATE. Arguments
+    // are ASCII.
+    static void send(OutputStream out, String... argv) throws IOException {
+        StringBuilder request = new StringBuilder().append('*').append(argv.length).append("\r\n");
+        for (String arg : argv) {
+            request.append('$').append(arg.length()).append("\r\n").append(arg).append("\r\n");
+        }
+        out.write(request.toString().getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static void expect(String reply, String expected) throws IOException {
+        if (!reply.equals(expected)) {
+            throw new ProtocolException("unexpected reply from master: " + reply);
+        }
+    }
+
+    // One CRLF-terminated line, without the CRLF.
+    static String readLine(InputStream in, ByteBuffer buf) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            while (buf.hasRemaining()) {
+                char c = (char) (buf.get() & 0xff);
+                if (c == '\n' && line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                    line.setLength(line.length() - 1);
+                    return line.toString();
+                }
+                line.append(c);
+            }
+            fill(in, buf);
+        }
+    }
+
+    static byte[] readFully(InputStream in, ByteBuffer buf, int length) throws IOException {
+        byte[] data = new byte[length];
+        int have = Math.min(length, buf.remaining());
+        buf.get(data, 0, have);
+        while (have < length) {
+            int n = in.read(data, have, length - have);
+            if (n < 0) {
+                throw new EOFException("connection closed during the transfer");
+            }
+            have += n;
+        }
+        return data;
+    }
+
+    private static void fill(InputStream in, ByteBuffer buf) throws IOException {
+        buf.clear();
+        int n = in.read(buf.array(), buf.arrayOffset(), buf.capacity());
+        if (n < 0) {
+            throw new EOFException("connection closed by peer");
+        }
+        buf.position(n).flip();
+    }
+}
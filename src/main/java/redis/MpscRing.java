@@ -0,0 +1,66 @@
+package redis;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded lock-free queue for many producers and one consumer, after Dmitry Vyukov's
+// bounded MPMC queue: each slot carries a sequence number telling producers when it is
+// free and the consumer when it is filled, so neither side ever takes a lock. Producers
+// claim a slot with one CAS on the tail; the consumer owns the head outright.
+final class MpscRing<T> {
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // consumer only
+    private long head;
+
+    MpscRing(int capacity) {
+        int n = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        items = new AtomicReferenceArray<>(n);
+        sequences = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++) {
+            sequences.set(i, i);
+        }
+        mask = n - 1;
+    }
+
+    // false when the ring is full
+    boolean offer(T item) {
+        while (true) {
+            long t = tail.get();
+            int i = (int) t & mask;
+            long seq = sequences.get(i);
+            if (seq == t) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    items.lazySet(i, item);
+                    // publishes the item to the consumer
+                    sequences.set(i, t + 1);
+                    return true;
+                }
+            } else if (seq < t) {
+                return false;
+            }
+            // another producer took the slot; retry with the new tail
+        }
+    }
+
+    // null when empty
+    T poll() {
+        int i = (int) head & mask;
+        if (sequences.get(i) != head + 1) {
+            return null;
+        }
+        T item = items.get(i);
+        items.lazySet(i, null);
+        // hands the slot back to producers one lap later
+        sequences.set(i, head + mask + 1);
+        head++;
+        return item;
+    }
+
+    boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+}
@@ -0,0 +1,43 @@
+package redis;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// Non-blocking server: the calling thread accepts connections and hands each one to
+// one of a fixed set of event loops, which then own the socket for its whole life.
+class NioServer {
+    private final int port;
+    private final EventLoop[] loops;
+    private int next;
+
+    NioServer(int port, int ioThreads) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("io-" + i);
+        }
+    }
+
+    void run() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            // Since the tester restarts your program quite often, setting SO_REUSEADDR
+            // ensures that we don't run into 'Address already in use' errors
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(new InetSocketAddress(port), 1024);
+            while (true) {
+                SocketChannel channel = server.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.register(channel);
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package redis;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reply accumulator for one client. Handlers write into it as an OutputStream; the owner
+// decides when the batch goes out, normally once per drained read buffer, as a single
+// gathering write over all filled chunks. Chunks are recycled, so a steady pipelined
+// client does not allocate here. Bytes other clients get too, a published message, can
+// be queued by reference instead (writeShared).
+final class OutputBuffer extends OutputStream {
+    static final int CHUNK_SIZE = 16 * 1024;
+    // below this, copying into the current chunk is cheaper than a chunk of its own
+    private static final int SHARE_MIN = 512;
+    private static final int MAX_SPARE_CHUNKS = 4;
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+    // Every chunk is kept in write mode: bytes [0, position) are queued. The first
+    // `headOffset` bytes of the first chunk have already been sent.
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private final ArrayDeque<ByteBuffer> spare = new ArrayDeque<>();
+    private ByteBuffer[] gather = new ByteBuffer[4];
+    private int headOffset;
+    private long size;
+    // Where flush() drains to in blocking mode; null when the event loop drives writes.
+    private final OutputStream sink;
+
+    OutputBuffer() {
+        this(null);
+    }
+
+    OutputBuffer(OutputStream sink) {
+        this.sink = sink;
+    }
+
+    long size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void write(int b) {
+        tail(1).put((byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        size += len;
+        while (len > 0) {
+            ByteBuffer chunk = tail(1);
+            int n = Math.min(len, chunk.remaining());
+            chunk.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    // Copies bytes of an off-heap value straight into the chunks.
+    void write(MemorySegment src, long offset, int len) {
+        size += len;
+        while (len > 0) {
+            ByteBuffer chunk = tail(1);
+            int n = Math.min(len, chunk.remaining());
+            MemorySegment.copy(src, ValueLayout.JAVA_BYTE, offset, chunk.array(), chunk.arrayOffset() + chunk.position(), n);
+            chunk.position(chunk.position() + n);
+            offset += n;
+            len -= n;
+        }
+    }
+
+    // Queues data without copying it, as a read-only chunk of its own that is dropped
+    // rather than recycled once sent. data must not change afterwards. Small data, and
+    // anything for a blocking sink, which writes straight through, is copied as usual.
+    void writeShared(byte[] data) {
+        if (data.length < SHARE_MIN || sink != null) {
+            write(data, 0, data.length);
+            return;
+        }
+        // in write mode and full, so nothing is ever appended to it
+        ByteBuffer shared = ByteBuffer.wrap(data).asReadOnlyBuffer();
+        shared.position(shared.limit());
+        chunks.add(shared);
+        size += data.length;
+    }
+
+    // Writes the decimal digits of v straight into the chunk, no String in between.
+    void writeDecimal(long v) {
+        if (v == Long.MIN_VALUE) {
+            write(MIN_LONG, 0, MIN_LONG.length);
+            return;
+        }
+        ByteBuffer chunk = tail(20);
+        int begin = chunk.position();
+        if (v < 0) {
+            chunk.put((byte) '-');
+            v = -v;
+        }
+        int start = chunk.position();
+        do {
+            chunk.put((byte) ('0' + v % 10));
+            v /= 10;
+        } while (v != 0);
+        // digits went in backwards
+        byte[] a = chunk.array();
+        for (int i = chunk.arrayOffset() + start, j = chunk.arrayOffset() + chunk.position() - 1; i < j; i++, j--) {
+            byte t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+        size += chunk.position() - begin;
+    }
+
+    // Encodes s as UTF-8 directly into the chunks.
+    void writeUtf8(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            ByteBuffer chunk = tail(4);
+            int before = chunk.position();
+            if (c < 0x80) {
+                chunk.put((byte) c);
+            } else if (c < 0x800) {
+                chunk.put((byte) (0xc0 | (c >> 6)));
+                chunk.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                chunk.put((byte) (0xf0 | (cp >> 18)));
+                chunk.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                chunk.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                chunk.put((byte) (0x80 | (cp & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, same replacement String.getBytes would use
+                chunk.put((byte) '?');
+            } else {
+                chunk.put((byte) (0xe0 | (c >> 12)));
+                chunk.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                chunk.put((byte) (0x80 | (c & 0x3f)));
+            }
+            size += chunk.position() - before;
+        }
+    }
+
+    // Last chunk with at least `needed` free bytes (needed must not exceed CHUNK_SIZE).
+    ByteBuffer tail(int needed) {
+        ByteBuffer last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (last == null || last.remaining() < needed) {
+            last = spare.isEmpty() ? ByteBuffer.allocate(CHUNK_SIZE) : spare.poll();
+            chunks.add(last);
+        }
+        return last;
+    }
+
+    // Sends as much as the channel accepts in one gathering write. Returns true once
+    // everything queued has been written.
+    boolean writeTo(GatheringByteChannel channel) throws IOException {
+        int n = chunks.size();
+        if (n == 0) {
+            return true;
+        }
+        if (gather.length < n) {
+            gather = new ByteBuffer[Math.max(n, gather.length * 2)];
+        }
+        for (int i = 0; i < n; i++) {
+            ByteBuffer chunk = chunks.get(i);
+            chunk.flip();
+            if (i == 0) {
+                chunk.position(headOffset);
+            }
+            gather[i] = chunk;
+        }
+        long written = channel.write(gather, 0, n);
+        size -= written;
+        Stats.netOutputBytes.add(written);
+        int drained = 0;
+        while (drained < n && !gather[drained].hasRemaining()) {
+            drained++;
+        }
+        if (drained < n) {
+            headOffset = gather[drained].position();
+        } else {
+            headOffset = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            ByteBuffer chunk = gather[i];
+            gather[i] = null;
+            // back to write mode
+            chunk.position(chunk.limit()).limit(chunk.capacity());
+        }
+        for (int i = 0; i < drained; i++) {
+            recycle(chunks.get(i));
+        }
+        chunks.subList(0, drained).clear();
+        return chunks.isEmpty();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (sink == null || size == 0) {
+            return;
+        }
+        for (int i = 0; i < chunks.size(); i++) {
+            ByteBuffer chunk = chunks.get(i);
+            int from = i == 0 ? headOffset : 0;
+            sink.write(chunk.array(), chunk.arrayOffset() + from, chunk.position() - from);
+            recycle(chunk);
+        }
+        chunks.clear();
+        headOffset = 0;
+        size = 0;
+        sink.flush();
+    }
+
+    private void recycle(ByteBuffer chunk) {
+        if (chunk.isReadOnly()) {
+            // shared, see writeShared
+            return;
+        }
+        chunk.clear();
+        if (spare.size() < MAX_SPARE_CHUNKS) {
+            spare.add(chunk);
+        }
+    }
+}
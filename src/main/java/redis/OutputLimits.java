@@ -0,0 +1,99 @@
+package redis;
+
+// client-output-buffer-limit: how far unsent replies may pile up for a client before
+// it is disconnected. Each class of client has a hard limit, which disconnects at once,
+// and a soft limit, which only does once the client has stayed over it for soft-seconds
+// on end; 0 turns either off. Defaults and syntax are Redis':
+//   normal 0 0 0 replica 256mb 64mb 60 pubsub 32mb 8mb 60
+// A normal client seldom gets near its limit anyway: past Connection.PAUSE_OUTPUT the
+// connection stops taking requests until the client reads. Limits are for the output
+// nothing can pause, a single huge reply or a stream pushed at a client.
+final class OutputLimits {
+    enum Kind {
+        NORMAL("normal"),
+        REPLICA("slave"),
+        PUBSUB("pubsub");
+
+        final String configName;
+
+        Kind(String configName) {
+            this.configName = configName;
+        }
+
+        static Kind parse(String name) {
+            if (name.equalsIgnoreCase("replica")) {
+                return REPLICA;
+            }
+            for (Kind kind : values()) {
+                if (kind.configName.equalsIgnoreCase(name)) {
+                    return kind;
+                }
+            }
+            throw new IllegalArgumentException("unknown client class " + name);
+        }
+    }
+
+    static final class Limit {
+        final long hard;
+        final long soft;
+        final int softSeconds;
+
+        Limit(long hard, long soft, int softSeconds) {
+            this.hard = hard;
+            this.soft = soft;
+            this.softSeconds = softSeconds;
+        }
+    }
+
+    // by Kind ordinal, replaced whole on every change
+    private static volatile Limit[] limits = {
+            new Limit(0, 0, 0),
+            new Limit(256L * 1024 * 1024, 64L * 1024 * 1024, 60),
+            new Limit(32L * 1024 * 1024, 8L * 1024 * 1024, 60),
+    };
+
+    private OutputLimits() {
+    }
+
+    static Limit of(Kind kind) {
+        return limits[kind.ordinal()];
+    }
+
+    // "<class> <hard> <soft> <soft-seconds>" repeated, into the limits to set(); classes
+    // left out keep theirs.
+    static Limit[] parse(String value) {
+        String[] parts = value.trim().split("\\s+");
+        if (parts.length % 4 != 0) {
+            throw new IllegalArgumentException("wrong number of arguments");
+        }
+        Limit[] updated = limits.clone();
+        for (int i = 0; i < parts.length; i += 4) {
+            Kind kind = Kind.parse(parts[i]);
+            long hard = Eviction.parseMemory(parts[i + 1]);
+            long soft = Eviction.parseMemory(parts[i + 2]);
+            int softSeconds = Integer.parseInt(parts[i + 3]);
+            if (hard < 0 || soft < 0 || softSeconds < 0) {
+                throw new IllegalArgumentException("negative limit");
+            }
+            updated[kind.ordinal()] = new Limit(hard, soft, softSeconds);
+        }
+        return updated;
+    }
+
+    static void set(Limit[] updated) {
+        limits = updated;
+    }
+
+    static String configValue() {
+        StringBuilder value = new StringBuilder();
+        for (Kind kind : Kind.values()) {
+            Limit limit = of(kind);
+            if (value.length() > 0) {
+                value.append(' ');
+            }
+            value.append(kind.configName).append(' ').append(limit.hard).append(' ').append(limit.soft).append(' ')
+                    .append(limit.softSeconds);
+        }
+        return value.toString();
+    }
+}
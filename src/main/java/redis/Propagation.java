@@ -0,0 +1,213 @@
+package redis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Where changes to the dataset leave the server: the AOF and the replication stream.
+// Every change is fed as the command that reproduces it (a relative TTL becomes
+// PEXPIREAT, a served BLPOP an LPOP, an expired or evicted key a DEL), under the shard
+// lock of the keys involved, so both see each key's commands in the order they ran.
+// The command is encoded once, into a per-thread buffer, and each consumer only copies
+// the bytes under its own lock. The changes of an EXEC are collected and go out as
+// one MULTI ... EXEC block, so a replica or an AOF load applies them all or none.
+final class Propagation {
+    // command names of the propagated forms
+    static final byte[] SET = ascii("SET");
+    static final byte[] PXAT = ascii("PXAT");
+    static final byte[] KEEPTTL = ascii("KEEPTTL");
+    static final byte[] DEL = ascii("DEL");
+    static final byte[] PEXPIREAT = ascii("PEXPIREAT");
+    static final byte[] LPUSH = ascii("LPUSH");
+    static final byte[] RPUSH = ascii("RPUSH");
+    static final byte[] LPOP = ascii("LPOP");
+    static final byte[] RPOP = ascii("RPOP");
+    static final byte[] LMOVE = ascii("LMOVE");
+    static final byte[] LEFT = ascii("LEFT");
+    static final byte[] RIGHT = ascii("RIGHT");
+    static final byte[] RESTORE = ascii("RESTORE");
+    static final byte[] REPLACE = ascii("REPLACE");
+    static final byte[] ABSTTL = ascii("ABSTTL");
+    static final byte[] XADD = ascii("XADD");
+    static final byte[] XTRIM = ascii("XTRIM");
+    static final byte[] MAXLEN = ascii("MAXLEN");
+    static final byte[] XGROUP = ascii("XGROUP");
+    static final byte[] CREATE = ascii("CREATE");
+    static final byte[] MKSTREAM = ascii("MKSTREAM");
+    static final byte[] SETID = ascii("SETID");
+    static final byte[] CREATECONSUMER = ascii("CREATECONSUMER");
+    static final byte[] XCLAIM = ascii("XCLAIM");
+    static final byte[] XACK = ascii("XACK");
+    static final byte[] ZERO = ascii("0");
+    static final byte[] TIME = ascii("TIME");
+    static final byte[] RETRYCOUNT = ascii("RETRYCOUNT");
+    static final byte[] FORCE = ascii("FORCE");
+    static final byte[] JUSTID = ascii("JUSTID");
+    static final byte[] LASTID = ascii("LASTID");
+
+    private static final byte[] MULTI = ascii("*1\r\n$5\r\nMULTI\r\n");
+    private static final byte[] EXEC = ascii("*1\r\n$4\r\nEXEC\r\n");
+
+    private static final int INITIAL_BUFFER = 1024;
+    private static final ThreadLocal<Encoder> ENCODER = ThreadLocal.withInitial(Encoder::new);
+
+    // RESP multi-bulk encoding of one command.
+    private static final class Encoder {
+        byte[] buf = new byte[INITIAL_BUFFER];
+        int size;
+        // between beginTransaction() and endTransaction(): the commands so far
+        Encoder transaction;
+        int transactionCommands;
+        boolean collecting;
+
+        void header(int argc) {
+            size = 0;
+            ensure(1 + 11 + 2);
+            buf[size++] = '*';
+            decimal(argc);
+        }
+
+        void argument(byte[] src, int offset, int length) {
+            ensure(1 + 11 + 2 + length + 2);
+            buf[size++] = '$';
+            decimal(length);
+            System.arraycopy(src, offset, buf, size, length);
+            size += length;
+            buf[size++] = '\r';
+            buf[size++] = '\n';
+        }
+
+        void raw(byte[] src, int length) {
+            ensure(length);
+            System.arraycopy(src, 0, buf, size, length);
+            size += length;
+        }
+
+        private void decimal(int n) {
+            int start = size;
+            do {
+                buf[size++] = (byte) ('0' + n % 10);
+                n /= 10;
+            } while (n > 0);
+            for (int i = start, j = size - 1; i < j; i++, j--) {
+                byte t = buf[i];
+                buf[i] = buf[j];
+                buf[j] = t;
+            }
+            buf[size++] = '\r';
+            buf[size++] = '\n';
+        }
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+            }
+        }
+
+        // a one-off huge command should not pin its buffer to the thread
+        void trim() {
+            if (buf.length > 64 * INITIAL_BUFFER) {
+                buf = new byte[INITIAL_BUFFER];
+            }
+        }
+    }
+
+    private Propagation() {
+    }
+
+    static byte[] decimal(long n) {
+        return ascii(Long.toString(n));
+    }
+
+    // Propagates a command exactly as the client sent it.
+    static void feed(RespCommand cmd) {
+        if (!wanted()) {
+            return;
+        }
+        Encoder e = ENCODER.get();
+        e.header(cmd.argc());
+        for (int i = 0; i < cmd.argc(); i++) {
+            e.argument(cmd.array(), cmd.offset(i), cmd.length(i));
+        }
+        deliver(e);
+    }
+
+    // Sends a command that changes nothing to the replicas only, as PUBLISH is.
+    static void feedReplicas(RespCommand cmd) {
+        if (!Replication.hasBacklog()) {
+            return;
+        }
+        Encoder e = ENCODER.get();
+        e.header(cmd.argc());
+        for (int i = 0; i < cmd.argc(); i++) {
+            e.argument(cmd.array(), cmd.offset(i), cmd.length(i));
+        }
+        Replication.append(e.buf, e.size);
+        e.trim();
+    }
+
+    static void feed(byte[]... argv) {
+        if (!wanted()) {
+            return;
+        }
+        Encoder e = ENCODER.get();
+        e.header(argv.length);
+        for (byte[] arg : argv) {
+            e.argument(arg, 0, arg.length);
+        }
+        deliver(e);
+    }
+
+    private static boolean wanted() {
+        return Aof.isActive() || Replication.hasBacklog();
+    }
+
+    // Until endTransaction(), this thread's changes are collected instead of sent.
+    static void beginTransaction() {
+        Encoder e = ENCODER.get();
+        if (e.transaction == null) {
+            e.transaction = new Encoder();
+        }
+        e.transaction.size = 0;
+        e.transactionCommands = 0;
+        e.collecting = true;
+    }
+
+    // Sends what the transaction changed, with a single append to each consumer. One
+    // command needs no MULTI around it.
+    static void endTransaction() {
+        Encoder e = ENCODER.get();
+        e.collecting = false;
+        Encoder t = e.transaction;
+        if (e.transactionCommands == 0 || !wanted()) {
+            t.trim();
+            return;
+        }
+        e.size = 0;
+        if (e.transactionCommands > 1) {
+            e.raw(MULTI, MULTI.length);
+        }
+        e.raw(t.buf, t.size);
+        if (e.transactionCommands > 1) {
+            e.raw(EXEC, EXEC.length);
+        }
+        t.size = 0;
+        t.trim();
+        deliver(e);
+    }
+
+    private static void deliver(Encoder e) {
+        if (e.collecting) {
+            e.transaction.raw(e.buf, e.size);
+            e.transactionCommands++;
+            e.trim();
+            return;
+        }
+        Aof.append(e.buf, e.size);
+        Replication.append(e.buf, e.size);
+        e.trim();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,200 @@
+package redis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Publish/subscribe: who listens on which channel or pattern. Each client also keeps
+// its own subscriptions (see ClientHandler), which decide what is registered here.
+// A published message is RESP-encoded once, into a byte[] every subscriber's output
+// then shares instead of copying (OutputBuffer.writeShared), so fanning out to tens of
+// thousands of clients costs a reference and a queued task each. The array is never
+// written again and goes away with the last output holding it, which is all the
+// reference counting it needs. pmessage carries the pattern, so that is encoded once
+// per matching pattern. Patterns live in a GlobTrie, matched in one pass per publish.
+// Patterns spelled differently can compile to the same trie node ("news*" and
+// "news**", "\a" and "a"); they are still distinct subscriptions, as in Redis, so a
+// node holds every pattern reaching it and `byText` finds one by its exact bytes.
+// Publishes share a read lock; only (un)subscribing takes the write lock.
+final class PubSub {
+    private static final byte[] MESSAGE = ascii("message");
+    private static final byte[] PMESSAGE = ascii("pmessage");
+
+    private static final class Pattern {
+        final byte[] pattern;
+        final Set<ClientHandler> subscribers = new LinkedHashSet<>();
+
+        Pattern(byte[] pattern) {
+            this.pattern = pattern;
+        }
+    }
+
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private static final Map<ByteBuffer, Set<ClientHandler>> channels = new HashMap<>();
+    private static final Map<ByteBuffer, Pattern> byText = new HashMap<>();
+    private static final GlobTrie<List<Pattern>> patterns = new GlobTrie<>();
+
+    private PubSub() {
+    }
+
+    static void subscribe(byte[] channel, ClientHandler client) {
+        lock.writeLock().lock();
+        try {
+            channels.computeIfAbsent(ByteBuffer.wrap(channel), k -> new LinkedHashSet<>()).add(client);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    static void unsubscribe(byte[] channel, ClientHandler client) {
+        ByteBuffer name = ByteBuffer.wrap(channel);
+        lock.writeLock().lock();
+        try {
+            Set<ClientHandler> subscribers = channels.get(name);
+            if (subscribers != null && subscribers.remove(client) && subscribers.isEmpty()) {
+                channels.remove(name);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    static void psubscribe(byte[] pattern, ClientHandler client) {
+        lock.writeLock().lock();
+        try {
+            Pattern p = byText.get(ByteBuffer.wrap(pattern));
+            if (p == null) {
+                p = new Pattern(pattern);
+                byText.put(ByteBuffer.wrap(pattern), p);
+                List<Pattern> spellings = patterns.get(pattern);
+                if (spellings == null) {
+                    spellings = new ArrayList<>(1);
+                    patterns.put(pattern, spellings);
+                }
+                spellings.add(p);
+            }
+            p.subscribers.add(client);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    static void punsubscribe(byte[] pattern, ClientHandler client) {
+        lock.writeLock().lock();
+        try {
+            Pattern p = byText.get(ByteBuffer.wrap(pattern));
+            if (p != null && p.subscribers.remove(client) && p.subscribers.isEmpty()) {
+                byText.remove(ByteBuffer.wrap(pattern));
+                List<Pattern> spellings = patterns.get(pattern);
+                spellings.remove(p);
+                if (spellings.isEmpty()) {
+                    patterns.remove(pattern);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Hands the message to every subscriber of the channel and of each pattern matching
+    // it; returns how many deliveries that made, as PUBLISH replies. The subscribers are
+    // taken under the lock and pushed to after it: a thread-per-connection subscriber
+    // is written to directly, and may itself be waiting for the lock to subscribe.
+    static long publish(byte[] channel, byte[] message) {
+        List<byte[]> encoded = new ArrayList<>();
+        List<ClientHandler[]> targets = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Set<ClientHandler> subscribers = channels.get(ByteBuffer.wrap(channel));
+            if (subscribers != null) {
+                encoded.add(encode(MESSAGE, channel, message));
+                targets.add(subscribers.toArray(new ClientHandler[0]));
+            }
+            if (!patterns.isEmpty()) {
+                patterns.match(channel, spellings -> {
+                    for (Pattern p : spellings) {
+                        encoded.add(encode(PMESSAGE, p.pattern, channel, message));
+                        targets.add(p.subscribers.toArray(new ClientHandler[0]));
+                    }
+                });
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        long receivers = 0;
+        for (int i = 0; i < targets.size(); i++) {
+            byte[] shared = encoded.get(i);
+            for (ClientHandler client : targets.get(i)) {
+                client.push(shared);
+            }
+            receivers += targets.get(i).length;
+        }
+        return receivers;
+    }
+
+    static int channelCount() {
+        lock.readLock().lock();
+        try {
+            return channels.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static int patternCount() {
+        lock.readLock().lock();
+        try {
+            return byText.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // A RESP array of bulk strings.
+    private static byte[] encode(byte[]... parts) {
+        int size = 1 + digits(parts.length) + 2;
+        for (byte[] part : parts) {
+            size += 1 + digits(part.length) + 2 + part.length + 2;
+        }
+        byte[] out = new byte[size];
+        int p = header(out, 0, '*', parts.length);
+        for (byte[] part : parts) {
+            p = header(out, p, '$', part.length);
+            System.arraycopy(part, 0, out, p, part.length);
+            p += part.length;
+            out[p++] = '\r';
+            out[p++] = '\n';
+        }
+        return out;
+    }
+
+    private static int header(byte[] out, int p, char type, int n) {
+        out[p++] = (byte) type;
+        for (int i = digits(n) - 1, v = n; i >= 0; i--, v /= 10) {
+            out[p + i] = (byte) ('0' + v % 10);
+        }
+        p += digits(n);
+        out[p++] = '\r';
+        out[p++] = '\n';
+        return p;
+    }
+
+    private static int digits(int n) {
+        int d = 1;
+        while (n >= 10) {
+            n /= 10;
+            d++;
+        }
+        return d;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
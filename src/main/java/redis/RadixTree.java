@@ -0,0 +1,301 @@
+package redis;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+// An ordered map over fixed-length byte[] keys, as Redis' rax: a radix tree whose edges
+// are compressed to the run of bytes a subtree shares, so a lookup compares at most the
+// key's own bytes whatever the size, and in-order neighbours (floor, ceiling) come for
+// free. Streams index their entry blocks and their pending entries with it, keyed by
+// StreamId.key(), big endian so byte order is ID order. Every key must have the same
+// length, so values only ever sit in leaves. Not thread-safe.
+final class RadixTree<V> {
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final class Node<V> {
+        // the bytes of the edge leading here
+        byte[] prefix;
+        // first byte of each child's prefix, in unsigned order, and the children
+        byte[] labels = EMPTY;
+        Node<V>[] children;
+        // leaves only
+        byte[] key;
+        V value;
+
+        Node(byte[] prefix) {
+            this.prefix = prefix;
+        }
+
+        boolean isLeaf() {
+            return key != null;
+        }
+
+        // index of the child starting with b, or -(insertion point) - 1
+        int find(byte b) {
+            int lo = 0;
+            int hi = labels.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = Byte.compareUnsigned(labels[mid], b);
+                if (c < 0) {
+                    lo = mid + 1;
+                } else if (c > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -lo - 1;
+        }
+
+        // generic arrays can't be created directly; every element put in is a Node<V>
+        @SuppressWarnings("unchecked")
+        static <V> Node<V>[] newArray(int length) {
+            return (Node<V>[]) new Node<?>[length];
+        }
+
+        void addChild(int at, Node<V> child) {
+            int n = labels.length;
+            byte[] l = new byte[n + 1];
+            Node<V>[] c = newArray(n + 1);
+            System.arraycopy(labels, 0, l, 0, at);
+            System.arraycopy(labels, at, l, at + 1, n - at);
+            if (n > 0) {
+                System.arraycopy(children, 0, c, 0, at);
+                System.arraycopy(children, at, c, at + 1, n - at);
+            }
+            l[at] = child.prefix[0];
+            c[at] = child;
+            labels = l;
+            children = c;
+        }
+
+        void removeChild(int at) {
+            int n = labels.length;
+            byte[] l = new byte[n - 1];
+            Node<V>[] c = newArray(n - 1);
+            System.arraycopy(labels, 0, l, 0, at);
+            System.arraycopy(labels, at + 1, l, at, n - at - 1);
+            System.arraycopy(children, 0, c, 0, at);
+            System.arraycopy(children, at + 1, c, at, n - at - 1);
+            labels = l;
+            children = n == 1 ? null : c;
+        }
+    }
+
+    private final Node<V> root = new Node<>(EMPTY);
+    private int size;
+    private long nodes = 1;
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Rough heap footprint of the nodes, for the owner's memory estimate.
+    long footprint() {
+        return nodes * 64;
+    }
+
+    V get(byte[] key) {
+        Node<V> node = root;
+        int pos = 0;
+        while (!node.isLeaf()) {
+            if (node.labels.length == 0) {
+                return null;
+            }
+            int i = node.find(key[pos]);
+            if (i < 0) {
+                return null;
+            }
+            Node<V> child = node.children[i];
+            if (!Arrays.equals(child.prefix, 0, child.prefix.length, key, pos, pos + child.prefix.length)) {
+                return null;
+            }
+            pos += child.prefix.length;
+            node = child;
+        }
+        return node.value;
+    }
+
+    // Maps key to value, returning the value it replaced.
+    V put(byte[] key, V value) {
+        Node<V> node = root;
+        int pos = 0;
+        while (true) {
+            if (node.isLeaf()) {
+                V previous = node.value;
+                node.value = value;
+                return previous;
+            }
+            int i = node.labels.length == 0 ? -1 : node.find(key[pos]);
+            if (i < 0) {
+                node.addChild(-i - 1, leaf(key, pos, value));
+                size++;
+                return null;
+            }
+            Node<V> child = node.children[i];
+            byte[] prefix = child.prefix;
+            int common = 0;
+            while (common < prefix.length && prefix[common] == key[pos + common]) {
+                common++;
+            }
+            if (common < prefix.length) {
+                // the key leaves the edge midway: split it there
+                Node<V> split = new Node<>(Arrays.copyOf(prefix, common));
+                child.prefix = Arrays.copyOfRange(prefix, common, prefix.length);
+                split.addChild(0, child);
+                Node<V> leaf = leaf(key, pos + common, value);
+                split.addChild(-split.find(leaf.prefix[0]) - 1, leaf);
+                node.children[i] = split;
+                nodes++;
+                size++;
+                return null;
+            }
+            pos += common;
+            node = child;
+        }
+    }
+
+    private Node<V> leaf(byte[] key, int from, V value) {
+        Node<V> leaf = new Node<>(Arrays.copyOfRange(key, from, key.length));
+        leaf.key = key;
+        leaf.value = value;
+        nodes++;
+        return leaf;
+    }
+
+    V remove(byte[] key) {
+        // the path down, to merge an inner node left with one child into it
+        Node<V>[] path = Node.newArray(key.length + 1);
+        int[] indexes = new int[key.length + 1];
+        int depth = 0;
+        Node<V> node = root;
+        int pos = 0;
+        while (!node.isLeaf()) {
+            if (node.labels.length == 0) {
+                return null;
+            }
+            int i = node.find(key[pos]);
+            if (i < 0) {
+                return null;
+            }
+            Node<V> child = node.children[i];
+            if (!Arrays.equals(child.prefix, 0, child.prefix.length, key, pos, pos + child.prefix.length)) {
+                return null;
+            }
+            path[depth] = node;
+            indexes[depth++] = i;
+            pos += child.prefix.length;
+            node = child;
+        }
+        Node<V> parent = path[depth - 1];
+        parent.removeChild(indexes[depth - 1]);
+        nodes--;
+        size--;
+        if (parent != root && parent.labels.length == 1) {
+            Node<V> only = parent.children[0];
+            byte[] merged = Arrays.copyOf(parent.prefix, parent.prefix.length + only.prefix.length);
+            System.arraycopy(only.prefix, 0, merged, parent.prefix.length, only.prefix.length);
+            only.prefix = merged;
+            path[depth - 2].children[indexes[depth - 2]] = only;
+            nodes--;
+        }
+        return node.value;
+    }
+
+    V first() {
+        return isEmpty() ? null : edge(root, false).value;
+    }
+
+    V last() {
+        return isEmpty() ? null : edge(root, true).value;
+    }
+
+    // The value of the smallest key >= key, null when there is none.
+    V ceiling(byte[] key) {
+        Node<V> leaf = ceiling(root, key, 0);
+        return leaf == null ? null : leaf.value;
+    }
+
+    // The value of the largest key <= key, null when there is none.
+    V floor(byte[] key) {
+        Node<V> leaf = floor(root, key, 0);
+        return leaf == null ? null : leaf.value;
+    }
+
+    // Visits the values in key order. The tree must not change meanwhile.
+    void forEach(Consumer<V> visitor) {
+        forEach(root, visitor);
+    }
+
+    private static <V> void forEach(Node<V> node, Consumer<V> visitor) {
+        if (node.isLeaf()) {
+            visitor.accept(node.value);
+            return;
+        }
+        for (int i = 0; i < node.labels.length; i++) {
+            forEach(node.children[i], visitor);
+        }
+    }
+
+    // node's path so far equals key[0, pos)
+    private static <V> Node<V> ceiling(Node<V> node, byte[] key, int pos) {
+        if (node.isLeaf()) {
+            return node;
+        }
+        int i = node.labels.length == 0 ? -1 : node.find(key[pos]);
+        if (i >= 0) {
+            Node<V> child = node.children[i];
+            int c = Arrays.compareUnsigned(child.prefix, 0, child.prefix.length, key, pos, pos + child.prefix.length);
+            if (c > 0) {
+                return edge(child, false);
+            }
+            if (c == 0) {
+                Node<V> found = ceiling(child, key, pos + child.prefix.length);
+                if (found != null) {
+                    return found;
+                }
+            }
+            i++;
+        } else {
+            i = -i - 1;
+        }
+        return i < node.labels.length ? edge(node.children[i], false) : null;
+    }
+
+    private static <V> Node<V> floor(Node<V> node, byte[] key, int pos) {
+        if (node.isLeaf()) {
+            return node;
+        }
+        int i = node.labels.length == 0 ? -1 : node.find(key[pos]);
+        if (i >= 0) {
+            Node<V> child = node.children[i];
+            int c = Arrays.compareUnsigned(child.prefix, 0, child.prefix.length, key, pos, pos + child.prefix.length);
+            if (c < 0) {
+                return edge(child, true);
+            }
+            if (c == 0) {
+                Node<V> found = floor(child, key, pos + child.prefix.length);
+                if (found != null) {
+                    return found;
+                }
+            }
+            i--;
+        } else {
+            i = -i - 2;
+        }
+        return i >= 0 ? edge(node.children[i], true) : null;
+    }
+
+    // The leftmost or rightmost leaf under node.
+    private static <V> Node<V> edge(Node<V> node, boolean last) {
+        while (!node.isLeaf()) {
+            node = node.children[last ? node.labels.length - 1 : 0];
+        }
+        return node;
+    }
+}
@@ -0,0 +1,459 @@
+package redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Snapshot persistence in Redis' RDB format: SAVE, BGSAVE and loading at startup.
+// There is no fork() to get a frozen copy of the dataset, so a save takes a snapshot of
+// every shard at one instant (see Shard.snapshot) and dumps it while writers carry on;
+// whatever they modify meanwhile is copied first, as the kernel would copy pages.
+// Strings, lists, hashes, sets, sorted sets and expiry times are written, each in the
+// plain encoding every Redis since 2.x loads; the loader takes the packed ones too.
+// Streams have no plain encoding and are written as Redis 5 does, in listpacks.
+final class Rdb {
+    // 9 is what Redis 5 and 6 write; nothing this server emits needs anything newer
+    static final int VERSION = 9;
+
+    static final int TYPE_STRING = 0;
+    static final int TYPE_LIST = 1;
+    static final int TYPE_SET = 2;
+    static final int TYPE_ZSET = 3;
+    static final int TYPE_HASH = 4;
+    static final int TYPE_ZSET_2 = 5;
+    static final int TYPE_SET_INTSET = 11;
+    static final int TYPE_ZSET_ZIPLIST = 12;
+    static final int TYPE_HASH_ZIPLIST = 13;
+    static final int TYPE_LIST_QUICKLIST = 14;
+    static final int TYPE_STREAM_LISTPACKS = 15;
+    static final int TYPE_HASH_LISTPACK = 16;
+    static final int TYPE_ZSET_LISTPACK = 17;
+    static final int TYPE_LIST_QUICKLIST_2 = 18;
+    static final int TYPE_STREAM_LISTPACKS_2 = 19;
+    static final int TYPE_SET_LISTPACK = 20;
+    static final int TYPE_STREAM_LISTPACKS_3 = 21;
+
+    // flags of a stream entry in its listpack
+    static final int STREAM_ITEM_DELETED = 1;
+    static final int STREAM_ITEM_SAME_FIELDS = 2;
+
+    static final int OPCODE_IDLE = 0xf8;
+    static final int OPCODE_FREQ = 0xf9;
+    static final int OPCODE_AUX = 0xfa;
+    static final int OPCODE_RESIZEDB = 0xfb;
+    static final int OPCODE_EXPIRETIME_MS = 0xfc;
+    static final int OPCODE_EXPIRETIME = 0xfd;
+    static final int OPCODE_SELECTDB = 0xfe;
+    static final int OPCODE_EOF = 0xff;
+
+    static volatile String dir = ".";
+    static volatile String dbfilename = "dump.rdb";
+    // unix seconds of the last successful save, or of startup
+    static volatile long lastSave = System.currentTimeMillis() / 1000;
+    // whether the last BGSAVE went through, for INFO
+    static volatile boolean lastBgsaveOk = true;
+
+    private Rdb() {
+    }
+
+    static Path file() {
+        return Paths.get(dir, dbfilename);
+    }
+
+    // SAVE: the same dump as BGSAVE, on the calling thread. null once saved, otherwise
+    // why it could not start.
+    static String save() throws IOException {
+        String busy = Keyspace.claimSnapshot("save");
+        if (busy != null) {
+            return busyError(busy);
+        }
+        try {
+            dump(Keyspace.snapshot());
+        } finally {
+            Keyspace.unclaimSnapshot();
+        }
+        return null;
+    }
+
+    // BGSAVE: the point in time is now, the writing happens on a thread of its own. null
+    // when started, otherwise why it could not.
+    static String backgroundSave() {
+        String busy = Keyspace.claimSnapshot("save");
+        if (busy != null) {
+            return busyError(busy);
+        }
+        Dict.Snapshot[] snapshots = Keyspace.snapshot();
+        Thread thread = new Thread(() -> {
+            try {
+                dump(snapshots);
+                lastBgsaveOk = true;
+                Log.notice("Background saving terminated with success");
+            } catch (IOException e) {
+                lastBgsaveOk = false;
+                Log.warning("Background saving error: " + e.getMessage());
+            } finally {
+                Keyspace.unclaimSnapshot();
+            }
+        }, "rdb-bgsave");
+        thread.start();
+        return null;
+    }
+
+    static String busyError(String owner) {
+        return owner.equals("aof rewrite") ? "ERR Background append only file rewriting in progress"
+                : "ERR Background save already in progress";
+    }
+
+    // Loads the configured file if there is one. Returns the number of keys loaded.
+    static long load() throws IOException {
+        Path path = file();
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return RdbLoader.load(channel);
+        }
+    }
+
+    // Writes the snapshots to a temporary file and renames it over the configured one,
+    // so a crash mid-save never leaves a truncated dump behind.
+    private static void dump(Dict.Snapshot[] snapshots) throws IOException {
+        Path target = file();
+        Path temp = target.resolveSibling("temp-" + ProcessHandle.current().pid() + ".rdb");
+        long now = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(channel, snapshots);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastSave = now / 1000;
+    }
+
+    // Writes the snapshots as one RDB image and syncs it. Each shard is released as soon
+    // as it has been written, ending its copy-on-write early; all of them are released
+    // on return, whatever happened. Also writes the preamble of a rewritten AOF and the
+    // image a replica loads on a full resync.
+    static void write(WritableByteChannel channel, Dict.Snapshot[] snapshots) throws IOException {
+        long now = System.currentTimeMillis();
+        try {
+            RdbWriter out = new RdbWriter(channel);
+            writeHeader(out, snapshots, now);
+            Dict.EntryVisitor entries = (key, value, expireAt) -> writeEntry(out, key, value, expireAt, now);
+            for (int i = 0; i < snapshots.length; i++) {
+                snapshots[i].forEach(entries);
+                release(Keyspace.shard(i));
+            }
+            out.writeByte(OPCODE_EOF);
+            out.finish();
+        } finally {
+            // after a failure the shards not reached yet are still frozen
+            for (int i = 0; i < snapshots.length; i++) {
+                release(Keyspace.shard(i));
+            }
+        }
+    }
+
+    private static void release(Shard shard) {
+        shard.lock.lock();
+        try {
+            shard.releaseSnapshot();
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    private static void writeHeader(RdbWriter out, Dict.Snapshot[] snapshots, long now) throws IOException {
+        byte[] magic = String.format("REDIS%04d", VERSION).getBytes();
+        out.writeBytes(magic, 0, magic.length);
+        writeAux(out, "redis-ver", "7.2.0");
+        writeAux(out, "redis-bits", "64");
+        writeAux(out, "ctime", Long.toString(now / 1000));
+        writeAux(out, "used-mem", Long.toString(Keyspace.usedMemory()));
+        long keys = 0;
+        long expires = 0;
+        for (Dict.Snapshot snapshot : snapshots) {
+            keys += snapshot.size;
+            expires += snapshot.expiresCount;
+        }
+        out.writeByte(OPCODE_SELECTDB);
+        out.writeLength(0);
+        out.writeByte(OPCODE_RESIZEDB);
+        out.writeLength(keys);
+        out.writeLength(expires);
+    }
+
+    private static void writeAux(RdbWriter out, String name, String value) throws IOException {
+        out.writeByte(OPCODE_AUX);
+        out.writeString(name);
+        out.writeString(value);
+    }
+
+    private static void writeEntry(RdbWriter out, byte[] key, RedisObject value, long expireAt, long now) throws IOException {
+        if (expireAt >= 0) {
+            if (expireAt <= now) {
+                // already dead, just not reclaimed yet
+                return;
+            }
+            out.writeByte(OPCODE_EXPIRETIME_MS);
+            out.writeLongLE(expireAt);
+        }
+        out.writeByte(type(value));
+        out.writeString(key);
+        writeValue(out, value);
+    }
+
+    // DUMP's payload: the value as an RDB entry would have it without the key, then the
+    // RDB version as two bytes and the CRC-64 of all that, both little endian. RESTORE
+    // takes it back through RdbLoader.decode.
+    static byte[] dump(RedisObject value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RdbWriter out = new RdbWriter(Channels.newChannel(bytes));
+        out.writeByte(type(value));
+        writeValue(out, value);
+        out.writeByte(VERSION);
+        out.writeByte(0);
+        out.finish();
+        return bytes.toByteArray();
+    }
+
+    private static int type(RedisObject value) {
+        if (value instanceof StringObject) {
+            return TYPE_STRING;
+        } else if (value instanceof ListObject) {
+            return TYPE_LIST;
+        } else if (value instanceof HashObject) {
+            return TYPE_HASH;
+        } else if (value instanceof SetObject) {
+            return TYPE_SET;
+        } else if (value instanceof StreamObject) {
+            return TYPE_STREAM_LISTPACKS;
+        }
+        return TYPE_ZSET_2;
+    }
+
+    private static void writeValue(RdbWriter out, RedisObject value) throws IOException {
+        if (value instanceof StringObject) {
+            ((StringObject) value).writeTo(out);
+        } else if (value instanceof ListObject) {
+            ListObject list = (ListObject) value;
+            out.writeLength(list.size());
+            list.forEachElement(out::writeString);
+        } else if (value instanceof HashObject) {
+            HashObject hash = (HashObject) value;
+            out.writeLength(hash.size());
+            hash.forEach((field, v) -> {
+                out.writeString(field);
+                out.writeString(v);
+            });
+        } else if (value instanceof SetObject) {
+            SetObject set = (SetObject) value;
+            out.writeLength(set.size());
+            set.forEach(out::writeString);
+        } else if (value instanceof StreamObject) {
+            writeStream(out, (StreamObject) value);
+        } else {
+            ZSetObject zset = (ZSetObject) value;
+            out.writeLength(zset.size());
+            zset.forEach((member, score) -> {
+                out.writeString(member);
+                out.writeLongLE(Double.doubleToLongBits(score));
+            });
+        }
+    }
+
+    // The blocks keyed by master ID, each as a Redis stream listpack; the length and last
+    // ID; then every group with its pending entries, and its consumers with theirs.
+    private static void writeStream(RdbWriter out, StreamObject stream) throws IOException {
+        out.writeLength(stream.blockCount());
+        stream.forEachBlock((master, masterFields, entries) -> {
+            out.writeString(master.key());
+            out.writeString(streamListpack(master, masterFields, entries));
+        });
+        out.writeLength(stream.length());
+        out.writeLength(stream.lastId().ms);
+        out.writeLength(stream.lastId().seq);
+        List<StreamObject.Group> groups = new ArrayList<>();
+        stream.groups().forEach(groups::add);
+        out.writeLength(groups.size());
+        for (StreamObject.Group group : groups) {
+            out.writeString(group.name);
+            out.writeLength(group.lastDelivered.ms);
+            out.writeLength(group.lastDelivered.seq);
+            List<StreamObject.Pending> pending = new ArrayList<>();
+            group.pending.forEach(pending::add);
+            out.writeLength(pending.size());
+            for (StreamObject.Pending p : pending) {
+                byte[] id = p.id.key();
+                out.writeBytes(id, 0, id.length);
+                out.writeLongLE(p.deliveryTime);
+                out.writeLength(p.deliveryCount);
+            }
+            out.writeLength(group.consumers.size());
+            for (StreamObject.Consumer consumer : group.consumers.values()) {
+                out.writeString(consumer.name);
+                out.writeLongLE(consumer.seenTime);
+                pending.clear();
+                consumer.pending.forEach(pending::add);
+                out.writeLength(pending.size());
+                for (StreamObject.Pending p : pending) {
+                    byte[] id = p.id.key();
+                    out.writeBytes(id, 0, id.length);
+                }
+            }
+        }
+    }
+
+    // One block in the layout of Redis' t_stream.c: a master entry (count, deleted, the
+    // field names, 0), then per entry its flags, ID deltas, the values alone when the
+    // fields are the master's or else the field count and pairs, and the number of
+    // listpack entries it took, for walking backwards.
+    private static byte[] streamListpack(StreamId master, byte[][] masterFields, List<StreamObject.Entry> entries) {
+        RedisListpack lp = new RedisListpack();
+        lp.addInt(entries.size());
+        lp.addInt(0);
+        lp.addInt(masterFields.length);
+        for (byte[] field : masterFields) {
+            lp.addString(field);
+        }
+        lp.addInt(0);
+        for (StreamObject.Entry entry : entries) {
+            int n = entry.fields.length / 2;
+            boolean same = n == masterFields.length;
+            for (int i = 0; same && i < n; i++) {
+                same = Arrays.equals(masterFields[i], entry.fields[2 * i]);
+            }
+            lp.addInt(same ? STREAM_ITEM_SAME_FIELDS : 0);
+            lp.addInt(entry.id.ms - master.ms);
+            lp.addInt(entry.id.seq - master.seq);
+            if (same) {
+                for (int i = 0; i < n; i++) {
+                    lp.addString(entry.fields[2 * i + 1]);
+                }
+                lp.addInt(3 + n);
+            } else {
+                lp.addInt(n);
+                for (byte[] b : entry.fields) {
+                    lp.addString(b);
+                }
+                lp.addInt(4 + 2 * n);
+            }
+        }
+        return lp.finish();
+    }
+
+    // Builds a listpack in Redis' own encoding (see RdbLoader.readListpack), which is not
+    // the one Listpack keeps in memory.
+    private static final class RedisListpack {
+        private byte[] buf = new byte[256];
+        // past the header, written by finish()
+        private int size = 6;
+        private int count;
+
+        void addInt(long v) {
+            int start = size;
+            if (v >= 0 && v <= 127) {
+                put(v, 1);
+            } else if (v >= -4096 && v <= 4095) {
+                ensure(2);
+                buf[size++] = (byte) (0xc0 | (v >> 8) & 0x1f);
+                buf[size++] = (byte) v;
+            } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+                put(0xf1, 1);
+                put(v, 2);
+            } else if (v >= -(1 << 23) && v < 1 << 23) {
+                put(0xf2, 1);
+                put(v, 3);
+            } else if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+                put(0xf3, 1);
+                put(v, 4);
+            } else {
+                put(0xf4, 1);
+                put(v, 8);
+            }
+            backlen(size - start);
+        }
+
+        void addString(byte[] s) {
+            int start = size;
+            if (s.length < 64) {
+                put(0x80 | s.length, 1);
+            } else if (s.length < 4096) {
+                put(0xe0 | s.length >> 8, 1);
+                put(s.length & 0xff, 1);
+            } else {
+                put(0xf0, 1);
+                put(s.length, 4);
+            }
+            ensure(s.length);
+            System.arraycopy(s, 0, buf, size, s.length);
+            size += s.length;
+            backlen(size - start);
+        }
+
+        // the entry's length, 7 bits a byte, so it reads back from the end
+        private void backlen(int l) {
+            if (l <= 127) {
+                put(l, 1);
+            } else if (l < 16383) {
+                put(l >> 7, 1);
+                put(l & 127 | 128, 1);
+            } else if (l < 2097151) {
+                put(l >> 14, 1);
+                put(l >> 7 & 127 | 128, 1);
+                put(l & 127 | 128, 1);
+            } else if (l < 268435455) {
+                put(l >> 21, 1);
+                put(l >> 14 & 127 | 128, 1);
+                put(l >> 7 & 127 | 128, 1);
+                put(l & 127 | 128, 1);
+            } else {
+                put(l >> 28, 1);
+                put(l >> 21 & 127 | 128, 1);
+                put(l >> 14 & 127 | 128, 1);
+                put(l >> 7 & 127 | 128, 1);
+                put(l & 127 | 128, 1);
+            }
+            count++;
+        }
+
+        // little endian
+        private void put(long v, int bytes) {
+            ensure(bytes);
+            for (int i = 0; i < bytes; i++, v >>= 8) {
+                buf[size++] = (byte) v;
+            }
+        }
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+            }
+        }
+
+        byte[] finish() {
+            put(0xff, 1);
+            byte[] lp = Arrays.copyOf(buf, size);
+            for (int i = 0; i < 4; i++) {
+                lp[i] = (byte) (size >> 8 * i);
+            }
+            // the count saturates, readers then walk the entries
+            int n = Math.min(count, 65535);
+            lp[4] = (byte) n;
+            lp[5] = (byte) (n >> 8);
+            return lp;
+        }
+    }
+}
@@ -0,0 +1,888 @@
+package redis;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Reads an RDB file into the keyspace at startup, or a leader's image into a replica, and
+// decodes RESTORE's payloads. The format can only be decoded front to back, so one
+// thread parses while workers, each owning a fixed subset of the shards, build the
+// values and insert them in parallel; the parser only hands over raw bytes.
+// Understands the string, list, hash, set, sorted set and stream encodings of Redis 2.x
+// through 7.x files.
+final class RdbLoader {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int BATCH = 1024;
+    private static final int QUEUE_DEPTH = 4;
+    // a list node stored as a single element rather than a packed listpack
+    private static final int QUICKLIST_NODE_PLAIN = 1;
+
+    // A decoded hash, set or sorted set: `items` are field, value... for a hash and the
+    // members otherwise, with their scores alongside for a sorted set.
+    private static final class Collection {
+        final int type;
+        final byte[][] items;
+        final double[] scores;
+
+        Collection(int type, byte[][] items, double[] scores) {
+            this.type = type;
+            this.items = items;
+            this.scores = scores;
+        }
+    }
+
+    // A decoded stream: its live entries in order, its last ID, and its groups.
+    private static final class StreamValue {
+        final List<StreamObject.Entry> entries = new ArrayList<>();
+        StreamId lastId;
+        final List<GroupValue> groups = new ArrayList<>();
+    }
+
+    private static final class GroupValue {
+        final byte[] name;
+        final StreamId lastDelivered;
+        // delivery time and count of each pending ID, by StreamId.key()
+        final Map<ByteBuffer, long[]> pending = new HashMap<>();
+        final List<ConsumerValue> consumers = new ArrayList<>();
+
+        GroupValue(byte[] name, StreamId lastDelivered) {
+            this.name = name;
+            this.lastDelivered = lastDelivered;
+        }
+    }
+
+    private static final class ConsumerValue {
+        final byte[] name;
+        final long seenTime;
+        // StreamId.key() of its pending entries
+        final List<byte[]> pending = new ArrayList<>();
+
+        ConsumerValue(byte[] name, long seenTime) {
+            this.name = name;
+            this.seenTime = seenTime;
+        }
+    }
+
+    // Decoded entries for one worker. A value is a byte[] for strings, a byte[][] of
+    // elements for lists, a StreamValue for streams and a Collection for the rest.
+    private static final class Batch {
+        final byte[][] keys = new byte[BATCH][];
+        final Object[] values = new Object[BATCH];
+        final long[] expires = new long[BATCH];
+        int size;
+    }
+
+    private static final Batch END = new Batch();
+
+    // null when decoding a DUMP payload, which is all in `buf`
+    private final ReadableByteChannel channel;
+    // read mode; bytes before crcFrom are already in the checksum
+    private final ByteBuffer buf;
+    private int crcFrom;
+    private long crc;
+    // set by readLength() when it read a special string encoding instead of a length
+    private boolean encoded;
+
+    private final int workerCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, Keyspace.size()));
+    private final List<BlockingQueue<Batch>> queues = new ArrayList<>();
+    private final Batch[] pending = new Batch[workerCount];
+    private volatile RuntimeException workerFailure;
+
+    private RdbLoader(ReadableByteChannel channel) {
+        this.channel = channel;
+        buf = ByteBuffer.allocate(BUFFER_SIZE);
+        buf.flip();
+    }
+
+    private RdbLoader(ByteBuffer payload) {
+        channel = null;
+        buf = payload;
+    }
+
+    // Loads the RDB image at the channel's position and leaves the channel right after
+    // it, where an AOF continues with commands. Returns the number of keys loaded.
+    static long load(FileChannel channel) throws IOException {
+        RdbLoader loader = new RdbLoader(channel);
+        long loaded = loader.run();
+        channel.position(channel.position() - loader.buf.remaining());
+        return loaded;
+    }
+
+    // Loads an RDB image that is all the channel holds.
+    static long load(ReadableByteChannel channel) throws IOException {
+        return new RdbLoader(channel).run();
+    }
+
+    // The value of a DUMP payload, in the form store() takes; null when its version or
+    // checksum is wrong, or it does not decode to exactly one value.
+    static Object decode(byte[] payload) {
+        int n = payload.length - 10;
+        if (n < 1) {
+            return null;
+        }
+        int version = (payload[n] & 0xff) | (payload[n + 1] & 0xff) << 8;
+        long crc = 0;
+        for (int shift = 0; shift < 64; shift += 8) {
+            crc |= (long) (payload[n + 2 + shift / 8] & 0xff) << shift;
+        }
+        if (version > 12 || Crc64.update(0, payload, 0, n + 2) != crc) {
+            return null;
+        }
+        RdbLoader loader = new RdbLoader(ByteBuffer.wrap(payload, 0, n));
+        try {
+            Object value = loader.readValue(loader.readByte());
+            return loader.buf.hasRemaining() ? null : value;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private long run() throws IOException {
+        Thread[] workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+            queues.add(queue);
+            pending[i] = new Batch();
+            workers[i] = new Thread(() -> insertAll(queue), "rdb-load-" + i);
+            workers[i].start();
+        }
+        long loaded;
+        try {
+            loaded = parse();
+        } finally {
+            for (int i = 0; i < workerCount; i++) {
+                if (pending[i].size > 0) {
+                    hand(i, pending[i]);
+                }
+                hand(i, END);
+            }
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while loading");
+                }
+            }
+        }
+        if (workerFailure != null) {
+            throw workerFailure;
+        }
+        return loaded;
+    }
+
+    private long parse() throws IOException {
+        require(9);
+        byte[] magic = new byte[9];
+        buf.get(magic);
+        String header = new String(magic, StandardCharsets.US_ASCII);
+        if (!header.startsWith("REDIS")) {
+            throw new IOException("not an RDB file");
+        }
+        int version;
+        try {
+            version = Integer.parseInt(header.substring(5));
+        } catch (NumberFormatException e) {
+            throw new IOException("bad RDB version " + header.substring(5));
+        }
+        if (version < 1 || version > 12) {
+            throw new IOException("can't handle RDB format version " + version);
+        }
+        long now = System.currentTimeMillis();
+        long loaded = 0;
+        long expireAt = -1;
+        while (true) {
+            int type = readByte();
+            switch (type) {
+                case Rdb.OPCODE_EXPIRETIME_MS:
+                    expireAt = readLongLE();
+                    continue;
+                case Rdb.OPCODE_EXPIRETIME:
+                    expireAt = (readIntLE() & 0xffffffffL) * 1000;
+                    continue;
+                case Rdb.OPCODE_FREQ:
+                    readByte();
+                    continue;
+                case Rdb.OPCODE_IDLE:
+                    readLength();
+                    continue;
+                case Rdb.OPCODE_AUX:
+                    readString();
+                    readString();
+                    continue;
+                case Rdb.OPCODE_RESIZEDB:
+                    readLength();
+                    readLength();
+                    continue;
+                case Rdb.OPCODE_SELECTDB:
+                    // a single keyspace; every database loads into it
+                    readLength();
+                    continue;
+                case Rdb.OPCODE_EOF:
+                    verifyChecksum(version);
+                    return loaded;
+                default:
+                    break;
+            }
+            byte[] key = readString();
+            Object value = readValue(type);
+            if (expireAt < 0 || expireAt > now) {
+                add(key, value, expireAt);
+                loaded++;
+            }
+            expireAt = -1;
+        }
+    }
+
+    private Object readValue(int type) throws IOException {
+        switch (type) {
+            case Rdb.TYPE_STRING:
+                return readString();
+            case Rdb.TYPE_LIST: {
+                byte[][] elements = new byte[checkedLength()][];
+                for (int i = 0; i < elements.length; i++) {
+                    elements[i] = readString();
+                }
+                return elements;
+            }
+            case Rdb.TYPE_LIST_QUICKLIST:
+            case Rdb.TYPE_LIST_QUICKLIST_2: {
+                List<byte[]> elements = new ArrayList<>();
+                int nodes = checkedLength();
+                for (int i = 0; i < nodes; i++) {
+                    if (type == Rdb.TYPE_LIST_QUICKLIST) {
+                        readZiplist(readString(), elements);
+                    } else if (readLength() == QUICKLIST_NODE_PLAIN) {
+                        elements.add(readString());
+                    } else {
+                        readListpack(readString(), elements);
+                    }
+                }
+                return elements.toArray(new byte[0][]);
+            }
+            case Rdb.TYPE_SET: {
+                byte[][] members = new byte[checkedLength()][];
+                for (int i = 0; i < members.length; i++) {
+                    members[i] = readString();
+                }
+                return new Collection(Rdb.TYPE_SET, members, null);
+            }
+            case Rdb.TYPE_SET_INTSET:
+                return new Collection(Rdb.TYPE_SET, readIntset(readString()), null);
+            case Rdb.TYPE_SET_LISTPACK: {
+                List<byte[]> members = new ArrayList<>();
+                readListpack(readString(), members);
+                return new Collection(Rdb.TYPE_SET, members.toArray(new byte[0][]), null);
+            }
+            case Rdb.TYPE_HASH: {
+                byte[][] items = new byte[2 * checkedLength()][];
+                for (int i = 0; i < items.length; i++) {
+                    items[i] = readString();
+                }
+                return new Collection(Rdb.TYPE_HASH, items, null);
+            }
+            case Rdb.TYPE_HASH_ZIPLIST:
+            case Rdb.TYPE_HASH_LISTPACK: {
+                List<byte[]> items = new ArrayList<>();
+                if (type == Rdb.TYPE_HASH_ZIPLIST) {
+                    readZiplist(readString(), items);
+                } else {
+                    readListpack(readString(), items);
+                }
+                return new Collection(Rdb.TYPE_HASH, items.toArray(new byte[0][]), null);
+            }
+            case Rdb.TYPE_ZSET:
+            case Rdb.TYPE_ZSET_2: {
+                int n = checkedLength();
+                byte[][] members = new byte[n][];
+                double[] scores = new double[n];
+                for (int i = 0; i < n; i++) {
+                    members[i] = readString();
+                    scores[i] = type == Rdb.TYPE_ZSET_2 ? Double.longBitsToDouble(readLongLE()) : readStringScore();
+                }
+                return new Collection(Rdb.TYPE_ZSET_2, members, scores);
+            }
+            case Rdb.TYPE_ZSET_ZIPLIST:
+            case Rdb.TYPE_ZSET_LISTPACK: {
+                List<byte[]> items = new ArrayList<>();
+                if (type == Rdb.TYPE_ZSET_ZIPLIST) {
+                    readZiplist(readString(), items);
+                } else {
+                    readListpack(readString(), items);
+                }
+                byte[][] members = new byte[items.size() / 2][];
+                double[] scores = new double[members.length];
+                for (int i = 0; i < members.length; i++) {
+                    members[i] = items.get(2 * i);
+                    scores[i] = parseScore(items.get(2 * i + 1));
+                }
+                return new Collection(Rdb.TYPE_ZSET_2, members, scores);
+            }
+            case Rdb.TYPE_STREAM_LISTPACKS:
+            case Rdb.TYPE_STREAM_LISTPACKS_2:
+            case Rdb.TYPE_STREAM_LISTPACKS_3:
+                return readStream(type);
+            default:
+                throw new IOException("unsupported RDB value type " + type);
+        }
+    }
+
+    // Blocks keyed by master ID, the length and last ID, then the groups. The later
+    // types add the first and maximal deleted IDs and entries-added counter, each group's
+    // entries-read counter and each consumer's active time, none of which is kept here.
+    private StreamValue readStream(int type) throws IOException {
+        StreamValue stream = new StreamValue();
+        int nodes = checkedLength();
+        List<byte[]> items = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            byte[] master = readString();
+            if (master.length != 16) {
+                throw new IOException("bad stream node key in RDB file");
+            }
+            items.clear();
+            readListpack(readString(), items);
+            readStreamNode(StreamId.ofKey(master), items, stream.entries);
+        }
+        // the length is that of the entries read
+        readLength();
+        stream.lastId = new StreamId(readLength(), readLength());
+        if (type != Rdb.TYPE_STREAM_LISTPACKS) {
+            for (int i = 0; i < 5; i++) {
+                readLength();
+            }
+        }
+        int groups = checkedLength();
+        for (int g = 0; g < groups; g++) {
+            GroupValue group = new GroupValue(readString(), new StreamId(readLength(), readLength()));
+            if (type != Rdb.TYPE_STREAM_LISTPACKS) {
+                readLength();
+            }
+            int pending = checkedLength();
+            for (int i = 0; i < pending; i++) {
+                byte[] id = new byte[16];
+                readFully(id);
+                long deliveryTime = readLongLE();
+                group.pending.put(ByteBuffer.wrap(id), new long[] {deliveryTime, readLength()});
+            }
+            int consumers = checkedLength();
+            for (int c = 0; c < consumers; c++) {
+                ConsumerValue consumer = new ConsumerValue(readString(), readLongLE());
+                if (type == Rdb.TYPE_STREAM_LISTPACKS_3) {
+                    readLongLE();
+                }
+                int owned = checkedLength();
+                for (int i = 0; i < owned; i++) {
+                    byte[] id = new byte[16];
+                    readFully(id);
+                    consumer.pending.add(id);
+                }
+                group.consumers.add(consumer);
+            }
+            stream.groups.add(group);
+        }
+        return stream;
+    }
+
+    // One stream listpack: the master entry (count, deleted, field count, fields, 0),
+    // then the entries as Rdb.streamListpack writes them; deleted ones are dropped.
+    private static void readStreamNode(StreamId master, List<byte[]> items, List<StreamObject.Entry> entries) throws IOException {
+        try {
+            int p = 2;
+            int masterCount = (int) number(items.get(p++));
+            byte[][] masterFields = items.subList(p, p + masterCount).toArray(new byte[0][]);
+            p += masterCount + 1;
+            while (p < items.size()) {
+                int flags = (int) number(items.get(p++));
+                long ms = master.ms + number(items.get(p++));
+                long seq = master.seq + number(items.get(p++));
+                byte[][] fields;
+                if ((flags & Rdb.STREAM_ITEM_SAME_FIELDS) != 0) {
+                    fields = new byte[2 * masterCount][];
+                    for (int i = 0; i < masterCount; i++) {
+                        fields[2 * i] = masterFields[i];
+                        fields[2 * i + 1] = items.get(p++);
+                    }
+                } else {
+                    fields = new byte[2 * (int) number(items.get(p++))][];
+                    for (int i = 0; i < fields.length; i++) {
+                        fields[i] = items.get(p++);
+                    }
+                }
+                // the entry's own listpack count
+                p++;
+                if ((flags & Rdb.STREAM_ITEM_DELETED) == 0) {
+                    entries.add(new StreamObject.Entry(new StreamId(ms, seq), fields));
+                }
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("corrupt stream listpack in RDB file");
+        }
+    }
+
+    // An integer listpack entry, which readListpack hands out in decimal.
+    private static long number(byte[] b) {
+        return Long.parseLong(new String(b, StandardCharsets.US_ASCII));
+    }
+
+    private void add(byte[] key, Object value, long expireAt) {
+        int worker = Keyspace.shard(key).index % workerCount;
+        Batch batch = pending[worker];
+        batch.keys[batch.size] = key;
+        batch.values[batch.size] = value;
+        batch.expires[batch.size] = expireAt;
+        if (++batch.size == BATCH) {
+            hand(worker, batch);
+            pending[worker] = new Batch();
+        }
+    }
+
+    private void hand(int worker, Batch batch) {
+        try {
+            queues.get(worker).put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while loading");
+        }
+    }
+
+    // Worker loop. After a failure it keeps draining so the parser never blocks on it.
+    private void insertAll(BlockingQueue<Batch> queue) {
+        while (true) {
+            Batch batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch == END) {
+                return;
+            }
+            if (workerFailure != null) {
+                continue;
+            }
+            try {
+                for (int i = 0; i < batch.size; i++) {
+                    insert(batch.keys[i], batch.values[i], batch.expires[i]);
+                }
+            } catch (RuntimeException e) {
+                workerFailure = e;
+            }
+        }
+    }
+
+    private static void insert(byte[] key, Object value, long expireAt) {
+        Shard shard = Keyspace.shard(key);
+        shard.lock.lock();
+        try {
+            store(shard, key, value, expireAt);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // Stores a decoded value, for a key that does not exist; also RESTORE's. The shard's
+    // lock must be held.
+    static void store(Shard shard, byte[] key, Object value, long expireAt) {
+        // collections are put in empty and filled there, so each element is accounted
+        // to the shard once
+        if (value instanceof byte[]) {
+            shard.put(key, StringObject.of(shard, (byte[]) value));
+        } else if (value instanceof byte[][]) {
+            ListObject list = new ListObject(shard);
+            shard.put(key, list);
+            for (byte[] element : (byte[][]) value) {
+                list.addLast(element);
+            }
+        } else if (value instanceof StreamValue) {
+            insertStream(shard, key, (StreamValue) value);
+        } else {
+            insertCollection(shard, key, (Collection) value);
+        }
+        if (expireAt >= 0) {
+            shard.setExpire(key, expireAt);
+        }
+    }
+
+    private static void insertCollection(Shard shard, byte[] key, Collection value) {
+        byte[][] items = value.items;
+        if (value.type == Rdb.TYPE_HASH) {
+            HashObject hash = new HashObject(shard);
+            shard.put(key, hash);
+            for (int i = 0; i + 1 < items.length; i += 2) {
+                hash.set(items[i], items[i + 1]);
+            }
+        } else if (value.type == Rdb.TYPE_SET) {
+            SetObject set = new SetObject(shard);
+            shard.put(key, set);
+            for (byte[] member : items) {
+                set.add(member);
+            }
+        } else {
+            ZSetObject zset = new ZSetObject(shard);
+            shard.put(key, zset);
+            for (int i = 0; i < items.length; i++) {
+                zset.add(items[i], value.scores[i]);
+            }
+        }
+    }
+
+    private static void insertStream(Shard shard, byte[] key, StreamValue value) {
+        StreamObject stream = new StreamObject(shard);
+        shard.put(key, stream);
+        for (StreamObject.Entry entry : value.entries) {
+            stream.append(entry.id, entry.fields);
+        }
+        stream.setLastId(value.lastId);
+        for (GroupValue g : value.groups) {
+            StreamObject.Group group = stream.createGroup(g.name, g.lastDelivered);
+            if (group == null) {
+                continue;
+            }
+            for (ConsumerValue c : g.consumers) {
+                StreamObject.Consumer consumer = stream.consumer(group, c.name, c.seenTime, null);
+                for (byte[] id : c.pending) {
+                    long[] delivery = g.pending.get(ByteBuffer.wrap(id));
+                    if (delivery != null) {
+                        stream.addPending(group, consumer, StreamId.ofKey(id), delivery[0], delivery[1]);
+                    }
+                }
+            }
+        }
+    }
+
+    // --- primitives
+
+    // Makes n bytes readable; n must not exceed the buffer.
+    private void require(int n) throws IOException {
+        if (buf.remaining() >= n) {
+            return;
+        }
+        if (channel == null) {
+            throw new EOFException("unexpected end of RDB payload");
+        }
+        crc = Crc64.update(crc, buf.array(), crcFrom, buf.position() - crcFrom);
+        buf.compact();
+        while (buf.position() < n) {
+            if (channel.read(buf) < 0) {
+                throw new EOFException("unexpected end of RDB file");
+            }
+        }
+        buf.flip();
+        crcFrom = 0;
+    }
+
+    private int readByte() throws IOException {
+        require(1);
+        return buf.get() & 0xff;
+    }
+
+    private void readFully(byte[] dst) throws IOException {
+        int offset = 0;
+        while (offset < dst.length) {
+            require(1);
+            int n = Math.min(buf.remaining(), dst.length - offset);
+            buf.get(dst, offset, n);
+            offset += n;
+        }
+    }
+
+    private long readLongLE() throws IOException {
+        require(8);
+        long n = 0;
+        for (int shift = 0; shift < 64; shift += 8) {
+            n |= (long) (buf.get() & 0xff) << shift;
+        }
+        return n;
+    }
+
+    private int readIntLE() throws IOException {
+        return readByte() | readByte() << 8 | readByte() << 16 | readByte() << 24;
+    }
+
+    private long readLength() throws IOException {
+        int b = readByte();
+        encoded = false;
+        switch (b >>> 6) {
+            case 0:
+                return b & 0x3f;
+            case 1:
+                return (b & 0x3f) << 8 | readByte();
+            case 2:
+                if (b == 0x80) {
+                    require(4);
+                    return buf.getInt() & 0xffffffffL;
+                }
+                if (b == 0x81) {
+                    require(8);
+                    return buf.getLong();
+                }
+                throw new IOException("unknown RDB length encoding " + b);
+            default:
+                encoded = true;
+                return b & 0x3f;
+        }
+    }
+
+    private int checkedLength() throws IOException {
+        long n = readLength();
+        if (encoded || n > Integer.MAX_VALUE - 8) {
+            throw new IOException("bad RDB length " + n);
+        }
+        return (int) n;
+    }
+
+    // A string in any of its encodings: raw, an integer, or LZF compressed.
+    private byte[] readString() throws IOException {
+        long n = readLength();
+        if (!encoded) {
+            if (n > Integer.MAX_VALUE - 8) {
+                throw new IOException("RDB string too long: " + n);
+            }
+            byte[] s = new byte[(int) n];
+            readFully(s);
+            return s;
+        }
+        switch ((int) n) {
+            case 0:
+                return ascii((byte) readByte());
+            case 1:
+                return ascii((short) (readByte() | readByte() << 8));
+            case 2:
+                return ascii(readIntLE());
+            case 3: {
+                int compressed = checkedLength();
+                int length = checkedLength();
+                byte[] in = new byte[compressed];
+                readFully(in);
+                return lzfDecompress(in, length);
+            }
+            default:
+                throw new IOException("unknown RDB string encoding " + n);
+        }
+    }
+
+    // A score of the old TYPE_ZSET: a length byte, with 253 to 255 standing for nan, inf
+    // and -inf, then as many ASCII characters.
+    private double readStringScore() throws IOException {
+        int length = readByte();
+        switch (length) {
+            case 253:
+                return Double.NaN;
+            case 254:
+                return Double.POSITIVE_INFINITY;
+            case 255:
+                return Double.NEGATIVE_INFINITY;
+            default:
+                byte[] s = new byte[length];
+                readFully(s);
+                return parseScore(s);
+        }
+    }
+
+    private static double parseScore(byte[] s) throws IOException {
+        String text = new String(s, StandardCharsets.US_ASCII);
+        switch (text.toLowerCase()) {
+            case "inf":
+            case "+inf":
+                return Double.POSITIVE_INFINITY;
+            case "-inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                try {
+                    return Double.parseDouble(text);
+                } catch (NumberFormatException e) {
+                    throw new IOException("bad sorted set score in RDB file: " + text);
+                }
+        }
+    }
+
+    private void verifyChecksum(int version) throws IOException {
+        crc = Crc64.update(crc, buf.array(), crcFrom, buf.position() - crcFrom);
+        crcFrom = buf.position();
+        if (version < 5) {
+            return;
+        }
+        long expected = readLongLE();
+        // 0 means the file was written with rdbchecksum off
+        if (expected != 0 && expected != crc) {
+            throw new IOException("wrong RDB checksum");
+        }
+    }
+
+    private static byte[] ascii(long n) {
+        return Long.toString(n).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] lzfDecompress(byte[] in, int length) throws IOException {
+        byte[] out = new byte[length];
+        int ip = 0;
+        int op = 0;
+        try {
+            while (ip < in.length) {
+                int ctrl = in[ip++] & 0xff;
+                if (ctrl < 32) {
+                    // a run of ctrl + 1 literal bytes
+                    System.arraycopy(in, ip, out, op, ctrl + 1);
+                    ip += ctrl + 1;
+                    op += ctrl + 1;
+                    continue;
+                }
+                // a back reference, which may overlap what it produces
+                int len = ctrl >>> 5;
+                if (len == 7) {
+                    len += in[ip++] & 0xff;
+                }
+                int ref = op - ((ctrl & 0x1f) << 8) - (in[ip++] & 0xff) - 1;
+                for (int end = op + len + 2; op < end; ) {
+                    out[op++] = out[ref++];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("corrupt LZF string in RDB file");
+        }
+        if (op != length) {
+            throw new IOException("corrupt LZF string in RDB file");
+        }
+        return out;
+    }
+
+    // --- packed list nodes
+
+    // Redis 7 listpack: a header, entries each followed by its backwards length, 0xff.
+    private static void readListpack(byte[] lp, List<byte[]> elements) throws IOException {
+        try {
+            int pos = 6;
+            while ((lp[pos] & 0xff) != 0xff) {
+                int start = pos;
+                int b = lp[pos] & 0xff;
+                if (b < 0x80) {
+                    elements.add(ascii(b));
+                    pos += 1;
+                } else if (b < 0xc0) {
+                    int len = b & 0x3f;
+                    elements.add(Arrays.copyOfRange(lp, pos + 1, pos + 1 + len));
+                    pos += 1 + len;
+                } else if (b < 0xe0) {
+                    int v = (b & 0x1f) << 8 | lp[pos + 1] & 0xff;
+                    elements.add(ascii(v >= 1 << 12 ? v - (1 << 13) : v));
+                    pos += 2;
+                } else if (b < 0xf0) {
+                    int len = (b & 0x0f) << 8 | lp[pos + 1] & 0xff;
+                    elements.add(Arrays.copyOfRange(lp, pos + 2, pos + 2 + len));
+                    pos += 2 + len;
+                } else if (b == 0xf0) {
+                    int len = (int) littleEndian(lp, pos + 1, 4);
+                    elements.add(Arrays.copyOfRange(lp, pos + 5, pos + 5 + len));
+                    pos += 5 + len;
+                } else if (b >= 0xf1 && b <= 0xf4) {
+                    int bytes = b == 0xf1 ? 2 : b == 0xf2 ? 3 : b == 0xf3 ? 4 : 8;
+                    long v = littleEndian(lp, pos + 1, bytes);
+                    // sign-extend
+                    v = v << (64 - 8 * bytes) >> (64 - 8 * bytes);
+                    elements.add(ascii(v));
+                    pos += 1 + bytes;
+                } else {
+                    throw new IOException("bad listpack entry encoding " + b);
+                }
+                int entry = pos - start;
+                pos += entry <= 127 ? 1 : entry < 16383 ? 2 : entry < 2097151 ? 3 : entry < 268435455 ? 4 : 5;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("corrupt listpack in RDB file");
+        }
+    }
+
+    // An intset: the integer width and count as 32-bit little endian, then the integers.
+    private static byte[][] readIntset(byte[] is) throws IOException {
+        try {
+            int width = (int) littleEndian(is, 0, 4);
+            int count = (int) littleEndian(is, 4, 4);
+            if (width != 2 && width != 4 && width != 8) {
+                throw new IOException("bad intset encoding " + width);
+            }
+            byte[][] members = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                long v = littleEndian(is, 8 + i * width, width);
+                v = v << (64 - 8 * width) >> (64 - 8 * width);
+                members[i] = ascii(v);
+            }
+            return members;
+        } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("corrupt intset in RDB file");
+        }
+    }
+
+    // Redis 3.2 to 6 ziplist: a header, entries each preceded by the previous entry's
+    // length, 0xff.
+    private static void readZiplist(byte[] zl, List<byte[]> elements) throws IOException {
+        try {
+            int pos = 10;
+            while ((zl[pos] & 0xff) != 0xff) {
+                pos += (zl[pos] & 0xff) == 0xfe ? 5 : 1;
+                int b = zl[pos] & 0xff;
+                switch (b >>> 6) {
+                    case 0: {
+                        int len = b & 0x3f;
+                        elements.add(Arrays.copyOfRange(zl, pos + 1, pos + 1 + len));
+                        pos += 1 + len;
+                        continue;
+                    }
+                    case 1: {
+                        int len = (b & 0x3f) << 8 | zl[pos + 1] & 0xff;
+                        elements.add(Arrays.copyOfRange(zl, pos + 2, pos + 2 + len));
+                        pos += 2 + len;
+                        continue;
+                    }
+                    case 2: {
+                        int len = (zl[pos + 1] & 0xff) << 24 | (zl[pos + 2] & 0xff) << 16 | (zl[pos + 3] & 0xff) << 8 | zl[pos + 4] & 0xff;
+                        elements.add(Arrays.copyOfRange(zl, pos + 5, pos + 5 + len));
+                        pos += 5 + len;
+                        continue;
+                    }
+                    default:
+                        break;
+                }
+                int bytes;
+                switch (b) {
+                    case 0xc0: bytes = 2; break;
+                    case 0xd0: bytes = 4; break;
+                    case 0xe0: bytes = 8; break;
+                    case 0xf0: bytes = 3; break;
+                    case 0xfe: bytes = 1; break;
+                    default:
+                        if (b >= 0xf1 && b <= 0xfd) {
+                            // immediate 0..12
+                            elements.add(ascii((b & 0x0f) - 1));
+                            pos += 1;
+                            continue;
+                        }
+                        throw new IOException("bad ziplist entry encoding " + b);
+                }
+                long v = littleEndian(zl, pos + 1, bytes);
+                v = v << (64 - 8 * bytes) >> (64 - 8 * bytes);
+                elements.add(ascii(v));
+                pos += 1 + bytes;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("corrupt ziplist in RDB file");
+        }
+    }
+
+    private static long littleEndian(byte[] b, int pos, int bytes) {
+        long v = 0;
+        for (int i = 0; i < bytes; i++) {
+            v |= (long) (b[pos + i] & 0xff) << (8 * i);
+        }
+        return v;
+    }
+}
@@ -0,0 +1,128 @@
+package redis;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Streams RDB primitives into a file (or a replica's in-memory image) through one
+// reusable buffer, keeping the running checksum as the buffer is flushed.
+final class RdbWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private final ByteBuffer wrapped = ByteBuffer.wrap(buf);
+    private int pos;
+    private long crc;
+
+    RdbWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    void writeByte(int b) throws IOException {
+        if (pos == BUFFER_SIZE) {
+            flush();
+        }
+        buf[pos++] = (byte) b;
+    }
+
+    void writeBytes(byte[] src, int offset, int length) throws IOException {
+        if (length > BUFFER_SIZE - pos) {
+            flush();
+            if (length > BUFFER_SIZE) {
+                // large values go straight to the channel
+                crc = Crc64.update(crc, src, offset, length);
+                writeFully(ByteBuffer.wrap(src, offset, length));
+                return;
+            }
+        }
+        System.arraycopy(src, offset, buf, pos, length);
+        pos += length;
+    }
+
+    // Redis' length encoding: 6 bits, 14 bits, or a marker byte and 32/64 bits big endian.
+    void writeLength(long n) throws IOException {
+        if (n < 1 << 6) {
+            writeByte((int) n);
+        } else if (n < 1 << 14) {
+            writeByte(0x40 | (int) (n >>> 8));
+            writeByte((int) n);
+        } else if (n <= 0xffffffffL) {
+            writeByte(0x80);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                writeByte((int) (n >>> shift));
+            }
+        } else {
+            writeByte(0x81);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((int) (n >>> shift));
+            }
+        }
+    }
+
+    void writeString(byte[] src, int offset, int length) throws IOException {
+        writeLength(length);
+        writeBytes(src, offset, length);
+    }
+
+    // A string held off-heap, copied through the buffer.
+    void writeString(MemorySegment src, long offset, int length) throws IOException {
+        writeLength(length);
+        while (length > 0) {
+            if (pos == BUFFER_SIZE) {
+                flush();
+            }
+            int n = Math.min(length, BUFFER_SIZE - pos);
+            MemorySegment.copy(src, ValueLayout.JAVA_BYTE, offset, buf, pos, n);
+            pos += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    void writeString(byte[] src) throws IOException {
+        writeString(src, 0, src.length);
+    }
+
+    void writeString(String s) throws IOException {
+        writeString(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // little endian, as RDB stores expiry times
+    void writeLongLE(long n) throws IOException {
+        for (int shift = 0; shift < 64; shift += 8) {
+            writeByte((int) (n >>> shift));
+        }
+    }
+
+    // Appends the checksum of everything written so far and syncs the file, if it is one.
+    void finish() throws IOException {
+        flush();
+        long checksum = crc;
+        writeLongLE(checksum);
+        flush();
+        if (channel instanceof FileChannel) {
+            ((FileChannel) channel).force(true);
+        }
+    }
+
+    private void flush() throws IOException {
+        if (pos == 0) {
+            return;
+        }
+        crc = Crc64.update(crc, buf, 0, pos);
+        wrapped.clear().limit(pos);
+        writeFully(wrapped);
+        pos = 0;
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package redis;
+
+// Header shared by every stored value, the counterpart of Redis' robj. `lru` holds the
+// eviction clock: the last access time for LRU policies, or the access-minute and
+// logarithmic counter for LFU (see Eviction).
+abstract class RedisObject {
+    int lru;
+
+    RedisObject() {
+        lru = Eviction.initialClock();
+    }
+
+    // Rough heap footprint of the value itself, in bytes.
+    abstract long memoryUsage();
+
+    // Values modified in place: whether this one was created before the given snapshot
+    // and so may be read by a running save, in which case a command modifies a copy()
+    // instead (see Shard.lookupForWrite). Values that are only ever replaced keep these.
+    boolean predates(int snapshotEpoch) {
+        return false;
+    }
+
+    RedisObject copy() {
+        throw new UnsupportedOperationException();
+    }
+}
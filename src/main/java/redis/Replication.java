@@ -0,0 +1,335 @@
+package redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Leader side of replication. Everything propagated (see Propagation) is also appended
+// to the replication stream, numbered by byte offset since the first replica attached.
+// The stream lives in one ring buffer that doubles as Redis' backlog and as every
+// replica's output buffer: it keeps the last repl-backlog-size bytes for replicas that
+// reconnect (PSYNC continues from their offset) plus whatever an attached replica has
+// not been sent yet. Appending is a copy under the ring's lock; each replica has a
+// thread of its own that ships whatever piled up since its last write in one go, so
+// neither the writing clients nor the event loops ever wait for a replica.
+// A replica that cannot continue gets a full resync: a snapshot taken as for BGSAVE,
+// serialized to RDB in memory and sent ahead of the stream from the snapshot's offset.
+final class Replication {
+    // how much of the stream is kept for a partial resync
+    static volatile long backlogSize = 1024 * 1024;
+    // The ring is one array, so a replica further behind than this is dropped whatever
+    // client-output-buffer-limit allows.
+    private static final long MAX_RING = Integer.MAX_VALUE - 8;
+    private static final int CHUNK = 64 * 1024;
+    private static final long SNAPSHOT_RETRY_MS = 100;
+
+    // The connection a replica is fed through.
+    interface Link {
+        // Returns once the socket has taken the bytes.
+        void send(byte[] data, int length) throws IOException;
+
+        // May be called from any thread.
+        void close();
+    }
+
+    static final class Replica {
+        final Link link;
+        final String host;
+        // the port it listens on, from REPLCONF listening-port
+        final int port;
+        // last offset the replica reported applying (REPLCONF ACK)
+        volatile long acked;
+        // offset of the next byte to send; under `lock`
+        private long sent;
+        private boolean dropped;
+        // since when its lag has been over the soft limit, -1 when it is not; under `lock`
+        private long overSoftLimitSince = -1;
+
+        private Replica(Link link, String host, int port) {
+            this.link = link;
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    // The name of this server's stream; a replica can only continue a stream of the
+    // same name.
+    static final String replid = randomId();
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Condition grown = lock.newCondition();
+    // Stream bytes [start, offset), at index offset % ring.length. Null until the first
+    // replica attaches; nothing is recorded before that.
+    private static byte[] ring;
+    private static volatile boolean recording;
+    private static long start;
+    private static long offset;
+    private static final List<Replica> replicas = new ArrayList<>();
+    // replica threads waiting for the stream to grow
+    private static int waiting;
+
+    private Replication() {
+    }
+
+    static boolean hasBacklog() {
+        return recording;
+    }
+
+    static void append(byte[] src, int length) {
+        if (!recording) {
+            return;
+        }
+        lock.lock();
+        try {
+            makeRoom(length);
+            put(offset, src, length);
+            offset += length;
+            if (waiting > 0) {
+                grown.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static long offset() {
+        lock.lock();
+        try {
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static List<Replica> replicas() {
+        lock.lock();
+        try {
+            return new ArrayList<>(replicas);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // PSYNC from a replica; requestedOffset is the first byte it is missing, -1 for
+    // none. Continues the stream from there when the ring still holds it, otherwise
+    // starts with a full resync. Replies on the link, from the replica's own thread.
+    static Replica attach(Link link, String host, int port, String requestedId, long requestedOffset) {
+        Replica replica = new Replica(link, host, port);
+        boolean partial;
+        lock.lock();
+        try {
+            long from = requestedOffset - 1;
+            partial = recording && requestedId.equals(replid) && from >= start && from <= offset;
+            if (partial) {
+                replica.sent = from;
+                replicas.add(replica);
+            }
+        } finally {
+            lock.unlock();
+        }
+        Thread thread = new Thread(() -> serve(replica, partial), "replica-" + host + ":" + port);
+        thread.setDaemon(true);
+        thread.start();
+        return replica;
+    }
+
+    private static void serve(Replica replica, boolean partial) {
+        String name = replica.host + ":" + replica.port;
+        try {
+            if (partial) {
+                byte[] reply = ascii("+CONTINUE " + replid + "\r\n");
+                replica.link.send(reply, reply.length);
+                Log.notice("Partial resynchronization request from " + name + " accepted");
+            } else {
+                Log.notice("Starting full resync with replica " + name);
+                fullSync(replica);
+                Log.notice("Synchronization with replica " + name + " succeeded");
+            }
+            byte[] chunk = new byte[CHUNK];
+            int n;
+            while ((n = next(replica, chunk)) > 0) {
+                replica.link.send(chunk, n);
+            }
+        } catch (IOException e) {
+            Log.warning("Connection with replica " + name + " lost: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            detach(replica);
+            replica.link.close();
+        }
+    }
+
+    private static void fullSync(Replica replica) throws IOException, InterruptedException {
+        // one snapshot at a time, as Redis runs one child; wait out a save or rewrite
+        while (Keyspace.claimSnapshot("replication") != null) {
+            Thread.sleep(SNAPSHOT_RETRY_MS);
+        }
+        long[] at = new long[1];
+        byte[] image;
+        try {
+            Dict.Snapshot[] snapshots = Keyspace.snapshot(() -> {
+                // from here on the ring keeps everything the replica has not been sent
+                lock.lock();
+                try {
+                    if (ring == null) {
+                        ring = new byte[(int) Math.min(backlogSize, MAX_RING)];
+                        recording = true;
+                    }
+                    at[0] = offset;
+                    replica.sent = offset;
+                    replicas.add(replica);
+                } finally {
+                    lock.unlock();
+                }
+            });
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            Rdb.write(Channels.newChannel(buffer), snapshots);
+            image = buffer.toByteArray();
+        } finally {
+            Keyspace.unclaimSnapshot();
+        }
+        byte[] header = ascii("+FULLRESYNC " + replid + " " + at[0] + "\r\n$" + image.length + "\r\n");
+        replica.link.send(header, header.length);
+        replica.link.send(image, image.length);
+    }
+
+    // Waits for stream bytes the replica has not been sent and copies up to a chunk of
+    // them. -1 once the replica was dropped.
+    private static int next(Replica replica, byte[] chunk) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!replica.dropped && replica.sent == offset) {
+                waiting++;
+                try {
+                    grown.await();
+                } finally {
+                    waiting--;
+                }
+            }
+            if (replica.dropped) {
+                return -1;
+            }
+            int n = (int) Math.min(chunk.length, offset - replica.sent);
+            get(replica.sent, chunk, n);
+            replica.sent += n;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The replica's connection is gone; its thread stops.
+    static void detach(Replica replica) {
+        lock.lock();
+        try {
+            replica.dropped = true;
+            replicas.remove(replica);
+            shrinkIfIdle();
+            grown.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Under `lock`. Lets go of what neither the backlog nor any replica needs any more,
+    // and grows the ring rather than overwrite what they do.
+    private static void makeRoom(int length) {
+        long end = offset + length;
+        long keepFrom = Math.max(start, Math.min(offset, end - backlogSize));
+        for (int i = replicas.size() - 1; i >= 0; i--) {
+            Replica replica = replicas.get(i);
+            if (overOutputLimit(replica, end - replica.sent)) {
+                Log.warning("Replica " + replica.host + ":" + replica.port
+                        + " dropped for overcoming the output buffer limit");
+                Stats.outputLimitDisconnections.increment();
+                replica.dropped = true;
+                replicas.remove(i);
+                replica.link.close();
+                grown.signalAll();
+            } else {
+                keepFrom = Math.min(keepFrom, replica.sent);
+            }
+        }
+        start = keepFrom;
+        if (end - start > ring.length) {
+            resize((int) Math.min(MAX_RING, Math.max(ring.length * 2L, end - start)));
+        }
+    }
+
+    // Under `lock`. Whether `lag` unsent bytes put the replica past
+    // client-output-buffer-limit replica, as ClientHandler.overOutputLimit judges a
+    // client's unsent replies.
+    private static boolean overOutputLimit(Replica replica, long lag) {
+        OutputLimits.Limit limit = OutputLimits.of(OutputLimits.Kind.REPLICA);
+        if (lag > MAX_RING || limit.hard > 0 && lag >= limit.hard) {
+            return true;
+        }
+        if (limit.soft > 0 && lag >= limit.soft) {
+            long now = System.currentTimeMillis();
+            if (replica.overSoftLimitSince < 0) {
+                replica.overSoftLimitSince = now;
+            }
+            return now - replica.overSoftLimitSince > limit.softSeconds * 1000L;
+        }
+        replica.overSoftLimitSince = -1;
+        return false;
+    }
+
+    // A ring grown for a lagging replica goes back to the backlog size once unused.
+    private static void shrinkIfIdle() {
+        if (ring == null || ring.length <= backlogSize) {
+            return;
+        }
+        long keepFrom = Math.max(start, offset - backlogSize);
+        for (Replica replica : replicas) {
+            keepFrom = Math.min(keepFrom, replica.sent);
+        }
+        if ((offset - keepFrom) * 4 < ring.length) {
+            start = keepFrom;
+            resize((int) Math.max(backlogSize, (offset - start) * 2));
+        }
+    }
+
+    private static void resize(int capacity) {
+        byte[] bigger = new byte[capacity];
+        int length = (int) (offset - start);
+        byte[] live = new byte[length];
+        get(start, live, length);
+        ring = bigger;
+        put(start, live, length);
+    }
+
+    private static void put(long at, byte[] src, int length) {
+        int i = (int) (at % ring.length);
+        int first = Math.min(length, ring.length - i);
+        System.arraycopy(src, 0, ring, i, first);
+        System.arraycopy(src, first, ring, 0, length - first);
+    }
+
+    private static void get(long at, byte[] dst, int length) {
+        int i = (int) (at % ring.length);
+        int first = Math.min(length, ring.length - i);
+        System.arraycopy(ring, i, dst, 0, first);
+        System.arraycopy(ring, 0, dst, first, length - first);
+    }
+
+    private static String randomId() {
+        SecureRandom random = new SecureRandom();
+        StringBuilder id = new StringBuilder(40);
+        for (int i = 0; i < 40; i++) {
+            id.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return id.toString();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
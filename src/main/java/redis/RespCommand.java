@@ -0,0 +1,146 @@
+package redis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// One parsed request. Arguments are not copied out of the read buffer: each one is an
+// (offset, length) window into it, so the view is only valid until the buffer is compacted.
+// Handlers copy what they keep (keys via string(), values via bytes()).
+final class RespCommand {
+    private byte[] array;
+    private int base;
+    private int argc;
+    private int[] offsets = new int[8];
+    private int[] lengths = new int[8];
+
+    void reset(int argc) {
+        this.argc = argc;
+        if (offsets.length < argc) {
+            offsets = new int[argc];
+            lengths = new int[argc];
+        }
+    }
+
+    // offset is relative to the start of the frame, which may still move while it is partial
+    void setArg(int index, int offset, int length) {
+        offsets[index] = offset;
+        lengths[index] = length;
+    }
+
+    void bind(byte[] array, int base) {
+        this.array = array;
+        this.base = base;
+    }
+
+    // A copy that owns its bytes, for handing the request to another thread.
+    RespCommand copy() {
+        RespCommand copy = new RespCommand();
+        copy.reset(argc);
+        int total = 0;
+        for (int i = 0; i < argc; i++) {
+            total += lengths[i];
+        }
+        copy.array = new byte[total];
+        for (int i = 0, p = 0; i < argc; p += lengths[i], i++) {
+            System.arraycopy(array, offset(i), copy.array, p, lengths[i]);
+            copy.setArg(i, p, lengths[i]);
+        }
+        return copy;
+    }
+
+    int argc() {
+        return argc;
+    }
+
+    byte[] array() {
+        return array;
+    }
+
+    int offset(int i) {
+        return base + offsets[i];
+    }
+
+    int length(int i) {
+        return lengths[i];
+    }
+
+    String string(int i) {
+        return new String(array, offset(i), lengths[i], StandardCharsets.UTF_8);
+    }
+
+    byte[] bytes(int i) {
+        int from = offset(i);
+        return Arrays.copyOfRange(array, from, from + lengths[i]);
+    }
+
+    // Parses a signed decimal argument straight from the buffer.
+    long longValue(int i) {
+        int p = offset(i);
+        int end = p + lengths[i];
+        if (p == end) {
+            throw new NumberFormatException("empty");
+        }
+        boolean negative = array[p] == '-';
+        if (negative && ++p == end) {
+            throw new NumberFormatException("-");
+        }
+        long value = 0;
+        for (; p < end; p++) {
+            int d = array[p] - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException("not a digit");
+            }
+            if (value > (Long.MAX_VALUE - d) / 10) {
+                throw new NumberFormatException("overflow");
+            }
+            value = value * 10 + d;
+        }
+        return negative ? -value : value;
+    }
+
+    double doubleValue(int i) {
+        return Double.parseDouble(new String(array, offset(i), lengths[i], StandardCharsets.US_ASCII));
+    }
+
+    // A score or increment as Redis takes it: a decimal or "inf", "+inf", "-inf" in any
+    // case, never NaN. Java's own extras (hex, "1d", surrounding spaces) are refused.
+    double scoreValue(int i) {
+        String s = new String(array, offset(i), lengths[i], StandardCharsets.US_ASCII);
+        String lower = s.toLowerCase();
+        if (lower.equals("inf") || lower.equals("+inf")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (lower.equals("-inf")) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        for (int k = 0; k < s.length(); k++) {
+            char c = s.charAt(k);
+            if (!(c >= '0' && c <= '9' || c == '.' || c == '-' || c == '+' || c == 'e' || c == 'E')) {
+                throw new NumberFormatException(s);
+            }
+        }
+        double value = Double.parseDouble(s);
+        if (Double.isNaN(value)) {
+            throw new NumberFormatException(s);
+        }
+        return value;
+    }
+
+    // Case-insensitive match against an upper-case ASCII keyword, e.g. is(3, "PX").
+    boolean is(int i, String keyword) {
+        if (lengths[i] != keyword.length()) {
+            return false;
+        }
+        int p = offset(i);
+        for (int k = 0; k < keyword.length(); k++) {
+            int b = array[p + k];
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            }
+            if (b != keyword.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,186 @@
+package redis;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+// Incremental RESP2 request decoder. parse() is handed the read buffer (in read mode,
+// positioned at the start of the next request) and either consumes one whole request or
+// leaves the position untouched and remembers how far it got, so a frame that arrives in
+// several reads is not rescanned from the start. Bulk lengths are honoured, so arguments
+// may contain CR/LF or any other bytes.
+final class RespParser {
+    private static final int MAX_INLINE = 64 * 1024;
+    private static final int MAX_BULK = 512 * 1024 * 1024;
+    private static final int MAX_ARGS = 1024 * 1024;
+
+    private final RespCommand command = new RespCommand();
+    // progress inside the current frame, all relative to its first byte
+    private int scanned;
+    private int argc = -1;
+    private int argIndex;
+    private int bulkLength = -1;
+
+    RespCommand command() {
+        return command;
+    }
+
+    // Bytes the current partial frame needs in total, or 0 when unknown.
+    int frameBytesNeeded() {
+        return bulkLength < 0 ? 0 : scanned + bulkLength + 2;
+    }
+
+    boolean parse(ByteBuffer buffer) throws ProtocolException {
+        byte[] a = buffer.array();
+        while (true) {
+            int base = buffer.arrayOffset() + buffer.position();
+            int limit = buffer.arrayOffset() + buffer.limit();
+            int p = base + scanned;
+
+            if (argc < 0) {
+                if (p >= limit) {
+                    return false;
+                }
+                if (a[base] != '*') {
+                    int before = buffer.position();
+                    if (parseInline(buffer, a, base, limit)) {
+                        return true;
+                    }
+                    if (buffer.position() == before) {
+                        return false;
+                    }
+                    // an empty line, skipped as Redis does
+                    continue;
+                }
+                int eol = findLineEnd(a, p, limit);
+                if (eol < 0) {
+                    if (limit - base > MAX_INLINE) {
+                        throw new ProtocolException("too big mbulk count string");
+                    }
+                    return false;
+                }
+                int count = parseLength(a, base + 1, eol);
+                if (count > MAX_ARGS || count < -1) {
+                    throw new ProtocolException("invalid multibulk length");
+                }
+                if (count <= 0) {
+                    // "*0" and "*-1" are no-ops, move on to whatever follows
+                    buffer.position(eol + 2 - buffer.arrayOffset());
+                    continue;
+                }
+                argc = count;
+                command.reset(count);
+                p = eol + 2;
+                scanned = p - base;
+            }
+
+            while (argIndex < argc) {
+                if (bulkLength < 0) {
+                    if (p >= limit) {
+                        return false;
+                    }
+                    if (a[p] != '$') {
+                        throw new ProtocolException("expected '$', got '" + (char) a[p] + "'");
+                    }
+                    int eol = findLineEnd(a, p, limit);
+                    if (eol < 0) {
+                        return false;
+                    }
+                    int length = parseLength(a, p + 1, eol);
+                    if (length < 0 || length > MAX_BULK) {
+                        throw new ProtocolException("invalid bulk length");
+                    }
+                    bulkLength = length;
+                    p = eol + 2;
+                    scanned = p - base;
+                }
+                if (limit - p < bulkLength + 2) {
+                    return false;
+                }
+                if (a[p + bulkLength] != '\r' || a[p + bulkLength + 1] != '\n') {
+                    throw new ProtocolException("bulk length mismatch");
+                }
+                command.setArg(argIndex++, p - base, bulkLength);
+                p += bulkLength + 2;
+                scanned = p - base;
+                bulkLength = -1;
+            }
+
+            command.bind(a, base);
+            buffer.position(p - buffer.arrayOffset());
+            scanned = 0;
+            argc = -1;
+            argIndex = 0;
+            return true;
+        }
+    }
+
+    // Telnet-style "PING\r\n" / "SET k v\n" requests, split on spaces. An empty line is
+    // consumed with false returned, like an incomplete one but for the moved position.
+    private boolean parseInline(ByteBuffer buffer, byte[] a, int base, int limit) throws ProtocolException {
+        int end = -1;
+        for (int i = base; i < limit; i++) {
+            if (a[i] == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (limit - base > MAX_INLINE) {
+                throw new ProtocolException("too big inline request");
+            }
+            return false;
+        }
+        int lineEnd = end > base && a[end - 1] == '\r' ? end - 1 : end;
+        int count = 0;
+        for (int i = base; i < lineEnd; ) {
+            while (i < lineEnd && a[i] == ' ') i++;
+            if (i == lineEnd) break;
+            while (i < lineEnd && a[i] != ' ') i++;
+            count++;
+        }
+        if (count == 0) {
+            // consumed, but no command: the caller moves on
+            buffer.position(end + 1 - buffer.arrayOffset());
+            return false;
+        }
+        command.reset(count);
+        int index = 0;
+        for (int i = base; i < lineEnd; ) {
+            while (i < lineEnd && a[i] == ' ') i++;
+            if (i == lineEnd) break;
+            int start = i;
+            while (i < lineEnd && a[i] != ' ') i++;
+            command.setArg(index++, start - base, i - start);
+        }
+        command.bind(a, base);
+        buffer.position(end + 1 - buffer.arrayOffset());
+        return true;
+    }
+
+    private static int findLineEnd(byte[] a, int from, int limit) {
+        for (int i = from; i < limit - 1; i++) {
+            if (a[i] == '\r' && a[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // A decimal that must fit an int, checked before every digit is added.
+    private static int parseLength(byte[] a, int from, int to) throws ProtocolException {
+        boolean negative = from < to && a[from] == '-';
+        int start = negative ? from + 1 : from;
+        if (start == to) {
+            throw new ProtocolException("invalid length");
+        }
+        int value = 0;
+        for (int i = start; i < to; i++) {
+            int d = a[i] - '0';
+            if (d < 0 || d > 9 || value > (Integer.MAX_VALUE - d) / 10) {
+                throw new ProtocolException("invalid length");
+            }
+            value = value * 10 + d;
+        }
+        return negative ? -value : value;
+    }
+}
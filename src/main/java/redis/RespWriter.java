@@ -0,0 +1,181 @@
+package redis;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// RESP2 reply encoding. Frequent replies are encoded once up front (the same idea as the
+// shared objects in Redis' server.c) and everything else is written field by field into
+// the client's OutputBuffer, so building a reply never goes through a String.
+final class RespWriter {
+    static final byte[] OK = ascii("+OK\r\n");
+    static final byte[] PONG = ascii("+PONG\r\n");
+    static final byte[] QUEUED = ascii("+QUEUED\r\n");
+    static final byte[] NULL_BULK = ascii("$-1\r\n");
+    static final byte[] NULL_ARRAY = ascii("*-1\r\n");
+    static final byte[] EMPTY_ARRAY = ascii("*0\r\n");
+    static final byte[] CRLF = ascii("\r\n");
+
+    static final byte[] ERR_UNKNOWN_COMMAND = ascii("-ERR unknown command\r\n");
+    static final byte[] ERR_SYNTAX = ascii("-ERR syntax error\r\n");
+    static final byte[] ERR_NOT_INTEGER = ascii("-ERR value is not an integer or out of range\r\n");
+    static final byte[] ERR_INVALID_TIMEOUT = ascii("-ERR invalid timeout\r\n");
+    static final byte[] ERR_WRONGTYPE = ascii("-WRONGTYPE Operation against a key holding the wrong kind of value\r\n");
+    static final byte[] ERR_OOM = ascii("-OOM command not allowed when used memory > 'maxmemory'.\r\n");
+    static final byte[] ERR_READONLY = ascii("-READONLY You can't write against a read only replica.\r\n");
+    static final byte[] ERR_NOT_FLOAT = ascii("-ERR value is not a valid float\r\n");
+
+    private static final int SHARED_INTEGERS = 10000;
+    private static final int SHARED_HEADERS = 32;
+    private static final byte[][] INTEGERS = new byte[SHARED_INTEGERS][];
+    private static final byte[][] BULK_HEADERS = new byte[SHARED_HEADERS][];
+    private static final byte[][] ARRAY_HEADERS = new byte[SHARED_HEADERS][];
+
+    static {
+        for (int i = 0; i < SHARED_INTEGERS; i++) {
+            INTEGERS[i] = ascii(":" + i + "\r\n");
+        }
+        for (int i = 0; i < SHARED_HEADERS; i++) {
+            BULK_HEADERS[i] = ascii("$" + i + "\r\n");
+            ARRAY_HEADERS[i] = ascii("*" + i + "\r\n");
+        }
+    }
+
+    private RespWriter() {
+    }
+
+    static void integer(OutputBuffer out, long n) {
+        if (n >= 0 && n < SHARED_INTEGERS) {
+            out.write(INTEGERS[(int) n]);
+            return;
+        }
+        out.write(':');
+        out.writeDecimal(n);
+        out.write(CRLF);
+    }
+
+    static void arrayHeader(OutputBuffer out, int n) {
+        if (n < SHARED_HEADERS) {
+            out.write(ARRAY_HEADERS[n]);
+            return;
+        }
+        out.write('*');
+        out.writeDecimal(n);
+        out.write(CRLF);
+    }
+
+    static void bulk(OutputBuffer out, byte[] value) {
+        bulk(out, value, 0, value.length);
+    }
+
+    static void bulk(OutputBuffer out, byte[] value, int offset, int length) {
+        bulkHeader(out, length);
+        out.write(value, offset, length);
+        out.write(CRLF);
+    }
+
+    static void bulk(OutputBuffer out, MemorySegment value, long offset, int length) {
+        bulkHeader(out, length);
+        out.write(value, offset, length);
+        out.write(CRLF);
+    }
+
+    // The header carries the UTF-8 byte count, not the char count.
+    static void bulk(OutputBuffer out, String value) {
+        bulkHeader(out, utf8Length(value));
+        out.writeUtf8(value);
+        out.write(CRLF);
+    }
+
+    static void bulkHeader(OutputBuffer out, int length) {
+        if (length < SHARED_HEADERS) {
+            out.write(BULK_HEADERS[length]);
+            return;
+        }
+        out.write('$');
+        out.writeDecimal(length);
+        out.write(CRLF);
+    }
+
+    // A score as a bulk string, the way Redis prints doubles: integral values without a
+    // fraction, "inf"/"-inf", otherwise the shortest digits that read back the same.
+    static void score(OutputBuffer out, double value) {
+        bulk(out, formatScore(value));
+    }
+
+    static String formatScore(double value) {
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "inf" : "-inf";
+        }
+        if (value == (long) value && Math.abs(value) < 1L << 53) {
+            return Long.toString((long) value);
+        }
+        String s = Double.toString(value);
+        int e = s.indexOf('E');
+        if (e < 0) {
+            return s;
+        }
+        // 1.5E-7 -> 1.5e-07, as C's %g writes exponents
+        String mantissa = s.substring(0, e);
+        if (mantissa.endsWith(".0")) {
+            mantissa = mantissa.substring(0, mantissa.length() - 2);
+        }
+        int exponent = Integer.parseInt(s.substring(e + 1));
+        return mantissa + (exponent < 0 ? "e-" : "e+") + (Math.abs(exponent) < 10 ? "0" : "") + Math.abs(exponent);
+    }
+
+    // Stream entries as XRANGE and XREAD return them: [id, [field, value, ...]] each,
+    // with a null array of fields for an ID whose entry is gone.
+    static void streamEntries(OutputBuffer out, List<StreamObject.Entry> entries) {
+        arrayHeader(out, entries.size());
+        for (StreamObject.Entry entry : entries) {
+            arrayHeader(out, 2);
+            bulk(out, entry.id.toBytes());
+            if (entry.fields == null) {
+                out.write(NULL_ARRAY);
+                continue;
+            }
+            arrayHeader(out, entry.fields.length);
+            for (byte[] b : entry.fields) {
+                bulk(out, b);
+            }
+        }
+    }
+
+    static void simple(OutputBuffer out, String value) {
+        out.write('+');
+        out.writeUtf8(value);
+        out.write(CRLF);
+    }
+
+    // message without the leading '-', e.g. "ERR no such key"
+    static void error(OutputBuffer out, String message) {
+        out.write('-');
+        out.writeUtf8(message);
+        out.write(CRLF);
+    }
+
+    static int utf8Length(String s) {
+        int n = s.length();
+        int length = n;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    // 4 bytes for the pair of chars
+                    length += 2;
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    length += 2;
+                }
+            } else if (c >= 0x80) {
+                length += 1;
+            }
+        }
+        return length;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
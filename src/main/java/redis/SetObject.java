@@ -0,0 +1,246 @@
+package redis;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// A set value, with Redis' three encodings: a sorted long[] while every member is an
+// integer (intset, up to set-max-intset-entries), a Listpack of members while it is
+// small, and a keys-only ByteMap past set-max-listpack-entries members or a member over
+// set-max-listpack-value bytes. Encodings only ever move towards the hash table.
+// Mutations go through here so the owning shard's memory estimate follows every change.
+final class SetObject extends RedisObject {
+    static volatile int maxIntsetEntries = 512;
+    static volatile int maxListpackEntries = 128;
+    static volatile int maxListpackValue = 64;
+
+    interface MemberVisitor {
+        void accept(byte[] member) throws IOException;
+    }
+
+    private final Shard owner;
+    // owner.snapshotEpoch when created, see Shard.lookupForWrite
+    final int epoch;
+    // exactly one of the three is set; ints[0, intCount) is sorted
+    private long[] ints;
+    private int intCount;
+    private Listpack packed;
+    private ByteMap table;
+
+    SetObject(Shard owner) {
+        this.owner = owner;
+        this.epoch = owner.snapshotEpoch;
+        ints = new long[4];
+    }
+
+    private SetObject(SetObject from) {
+        owner = from.owner;
+        epoch = owner.snapshotEpoch;
+        ints = from.ints == null ? null : from.ints.clone();
+        intCount = from.intCount;
+        packed = from.packed == null ? null : from.packed.copy();
+        table = from.table == null ? null : from.table.copy();
+    }
+
+    // A copy to modify while a background save still reads this one; accounted to the
+    // shard by the Shard.put that swaps it in.
+    @Override
+    SetObject copy() {
+        return new SetObject(this);
+    }
+
+    @Override
+    boolean predates(int snapshotEpoch) {
+        return epoch != snapshotEpoch;
+    }
+
+    int size() {
+        if (ints != null) {
+            return intCount;
+        }
+        return packed != null ? packed.count() : table.size();
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    String encoding() {
+        if (ints != null) {
+            return "intset";
+        }
+        return packed != null ? "listpack" : "hashtable";
+    }
+
+    boolean contains(byte[] member) {
+        if (ints != null) {
+            long v = parseInt(member);
+            return v != Long.MIN_VALUE && Arrays.binarySearch(ints, 0, intCount, v) >= 0;
+        }
+        if (packed != null) {
+            return packed.find(member, 1) >= 0;
+        }
+        return table.slot(member) >= 0;
+    }
+
+    // Whether the member is new.
+    boolean add(byte[] member) {
+        long before = memoryUsage();
+        boolean added = addMember(member);
+        owner.usedMemory += memoryUsage() - before;
+        return added;
+    }
+
+    private boolean addMember(byte[] member) {
+        if (ints != null) {
+            long v = parseInt(member);
+            if (v != Long.MIN_VALUE) {
+                int i = Arrays.binarySearch(ints, 0, intCount, v);
+                if (i >= 0) {
+                    return false;
+                }
+                if (intCount < maxIntsetEntries) {
+                    i = -i - 1;
+                    if (intCount == ints.length) {
+                        ints = Arrays.copyOf(ints, intCount * 2);
+                    }
+                    System.arraycopy(ints, i, ints, i + 1, intCount - i);
+                    ints[i] = v;
+                    intCount++;
+                    return true;
+                }
+            }
+            convertInts(member);
+        }
+        if (packed != null) {
+            if (packed.find(member, 1) >= 0) {
+                return false;
+            }
+            if (packed.count() < maxListpackEntries && member.length <= maxListpackValue) {
+                packed.append(member);
+                return true;
+            }
+            convertPacked();
+        }
+        if (table.slot(member) >= 0) {
+            return false;
+        }
+        table.add(member);
+        return true;
+    }
+
+    boolean remove(byte[] member) {
+        long before = memoryUsage();
+        boolean removed;
+        if (ints != null) {
+            long v = parseInt(member);
+            int i = v == Long.MIN_VALUE ? -1 : Arrays.binarySearch(ints, 0, intCount, v);
+            removed = i >= 0;
+            if (removed) {
+                System.arraycopy(ints, i + 1, ints, i, intCount - i - 1);
+                intCount--;
+                if (ints.length > 4 && intCount < ints.length / 4) {
+                    ints = Arrays.copyOf(ints, Math.max(4, intCount * 2));
+                }
+            }
+        } else if (packed != null) {
+            int pos = packed.find(member, 1);
+            removed = pos >= 0;
+            if (removed) {
+                packed.remove(pos, 1);
+            }
+        } else {
+            removed = table.remove(member);
+        }
+        owner.usedMemory += memoryUsage() - before;
+        return removed;
+    }
+
+    void forEach(MemberVisitor visitor) throws IOException {
+        if (ints != null) {
+            for (int i = 0; i < intCount; i++) {
+                visitor.accept(Long.toString(ints[i]).getBytes(StandardCharsets.US_ASCII));
+            }
+        } else if (packed != null) {
+            for (int pos = 0; pos < packed.used(); pos = packed.next(pos)) {
+                visitor.accept(packed.get(pos));
+            }
+        } else {
+            for (int i = 0; i < table.capacity(); i++) {
+                if (table.keyAt(i) != null) {
+                    visitor.accept(table.keyAt(i));
+                }
+            }
+        }
+    }
+
+    // Out of the intset, for a member that is not an integer or one too many. Straight to
+    // the hash table when the set would not fit a listpack anyway, as Redis does.
+    private void convertInts(byte[] incoming) {
+        if (intCount + 1 <= maxListpackEntries && incoming.length <= maxListpackValue) {
+            packed = new Listpack();
+            for (int i = 0; i < intCount; i++) {
+                packed.append(Long.toString(ints[i]).getBytes(StandardCharsets.US_ASCII));
+            }
+        } else {
+            table = new ByteMap(false, false, intCount + 1);
+            for (int i = 0; i < intCount; i++) {
+                table.add(Long.toString(ints[i]).getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        ints = null;
+        intCount = 0;
+    }
+
+    private void convertPacked() {
+        ByteMap map = new ByteMap(false, false, packed.count() + 1);
+        for (int pos = 0; pos < packed.used(); pos = packed.next(pos)) {
+            map.add(packed.get(pos));
+        }
+        table = map;
+        packed = null;
+    }
+
+    // The member as an intset stores it, Long.MIN_VALUE when it is not the canonical
+    // decimal of a long (no sign but '-', no leading zeros, no "-0"), which has to stay
+    // a string to round-trip. Long.MIN_VALUE itself is left out of intsets for that.
+    static long parseInt(byte[] member) {
+        int n = member.length;
+        if (n == 0 || n > 20) {
+            return Long.MIN_VALUE;
+        }
+        boolean negative = member[0] == '-';
+        int i = negative ? 1 : 0;
+        if (i == n || (member[i] == '0' && (n > i + 1 || negative))) {
+            return Long.MIN_VALUE;
+        }
+        long v = 0;
+        for (; i < n; i++) {
+            int d = member[i] - '0';
+            if (d < 0 || d > 9) {
+                return Long.MIN_VALUE;
+            }
+            // accumulate negatively, which has room for every long but MIN_VALUE
+            if (v < (Long.MIN_VALUE + d) / 10) {
+                return Long.MIN_VALUE;
+            }
+            v = v * 10 - d;
+        }
+        if (!negative) {
+            if (v == Long.MIN_VALUE) {
+                return Long.MIN_VALUE;
+            }
+            v = -v;
+        }
+        return v;
+    }
+
+    @Override
+    long memoryUsage() {
+        // object and fields
+        if (ints != null) {
+            return 40 + 16 + 8L * ints.length;
+        }
+        return 40 + (packed != null ? packed.footprint() : table.footprint());
+    }
+}
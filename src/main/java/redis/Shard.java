@@ -0,0 +1,381 @@
+package redis;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// One partition of the keyspace. Nothing in it is thread-safe on its own, every access
+// goes through `lock`; keys hash to a fixed shard, so commands on unrelated keys never
+// contend. Callers keep the critical section to the table operations and encode replies
+// after unlocking.
+final class Shard {
+    private static final long WHEEL_TICK_MS = 10;
+    // the key's own byte[] header; its table slot is accounted with the table
+    private static final int KEY_OVERHEAD = 16;
+
+    final int index;
+    final ReentrantLock lock = new ReentrantLock();
+    // Estimated bytes held by this shard. Written under `lock`, read without it when
+    // checking maxmemory.
+    volatile long usedMemory;
+    // Every key, whatever its type, with its TTL. Keys and values are raw bytes so
+    // binary payloads round-trip untouched.
+    final Dict dict = new Dict(this);
+    // Clients blocked in BLPOP, XREAD & co. on each key, oldest first (see Blocking). Keyed by
+    // ByteBuffer wrappers, which compare by content.
+    final Map<ByteBuffer, LinkedHashSet<Blocking.Waiter>> blockedClients = new HashMap<>();
+    // The keys some client WATCHes, each with a version that every change to the key
+    // bumps (see touch). Only watched keys have one, so a write to any other key costs
+    // an isEmpty().
+    private final Map<ByteBuffer, Watched> watched = new HashMap<>();
+    // Indexes keys with a TTL by deadline so the sweeper finds due keys without scanning.
+    // The dict keeps each key's entry and cancels it when the TTL changes or the key goes.
+    private final TimingWheel<byte[]> wheel = new TimingWheel<>(WHEEL_TICK_MS, System.currentTimeMillis());
+    // Bumped by every snapshot; while `snapshotting`, collections from an earlier epoch
+    // are still referenced by the save and get copied on their first write.
+    int snapshotEpoch;
+    private boolean snapshotting;
+    // Off-heap string storage, created on first use with --storage offheap. Blocks of
+    // values a running save may still read are freed once it is done.
+    private SlabAllocator slabs;
+    private final List<StringObject> deferredFrees = new ArrayList<>();
+    // Cluster mode: keys per hash slot, for COUNTKEYSINSLOT and to spare GETKEYSINSLOT
+    // a scan of the shard when the slot is empty. Every key of a slot is in one shard.
+    private final int[] slotKeys = Cluster.enabled ? new int[Cluster.SLOTS] : null;
+    private long sweepNow;
+    private final Consumer<byte[]> expireFromWheel = this::expireFromWheel;
+
+    static final class Watched {
+        long version;
+        int watchers;
+    }
+
+    Shard(int index) {
+        this.index = index;
+    }
+
+    // All methods below require `lock` to be held.
+
+    // Looks a key up for a command that reads it: drops it if it expired, records the
+    // access for the eviction policy, and counts a keyspace hit or miss.
+    RedisObject lookup(byte[] key, long now) {
+        RedisObject value = find(key, now);
+        (value != null ? Stats.keyspaceHits : Stats.keyspaceMisses).increment();
+        return value;
+    }
+
+    // lookup() for a command that is about to modify the value in place. Writes are not
+    // hits or misses, as in Redis.
+    RedisObject lookupForWrite(byte[] key, long now) {
+        RedisObject value = find(key, now);
+        if (value != null) {
+            // the caller may still not change it, WATCH errs on the safe side
+            touch(key);
+        }
+        if (snapshotting && value != null && value.predates(snapshotEpoch)) {
+            value = value.copy();
+            put(key, value);
+        }
+        return value;
+    }
+
+    private RedisObject find(byte[] key, long now) {
+        expireIfNeeded(key, now);
+        RedisObject value = dict.get(key);
+        if (value != null && expiredOnReplica(key, now)) {
+            return null;
+        }
+        if (value != null) {
+            Eviction.touch(value);
+        }
+        return value;
+    }
+
+    // Stores value under key, replacing whatever was there. The TTL is left alone.
+    void put(byte[] key, RedisObject value) {
+        touch(key);
+        RedisObject old = dict.put(key, value);
+        if (old != null) {
+            release(old);
+            usedMemory -= old.memoryUsage();
+            value.lru = old.lru;
+        } else {
+            usedMemory += KEY_OVERHEAD + key.length;
+            if (slotKeys != null) {
+                slotKeys[Cluster.slot(key)]++;
+            }
+        }
+        Eviction.touch(value);
+        usedMemory += value.memoryUsage();
+    }
+
+    // The list stored at key, created empty if the key does not exist. null if the key
+    // holds another type.
+    ListObject listForWrite(byte[] key, long now) {
+        RedisObject value = lookupForWrite(key, now);
+        if (value == null) {
+            ListObject list = new ListObject(this);
+            put(key, list);
+            return list;
+        }
+        return value instanceof ListObject ? (ListObject) value : null;
+    }
+
+    // As listForWrite, for the other collections.
+    HashObject hashForWrite(byte[] key, long now) {
+        RedisObject value = lookupForWrite(key, now);
+        if (value == null) {
+            HashObject hash = new HashObject(this);
+            put(key, hash);
+            return hash;
+        }
+        return value instanceof HashObject ? (HashObject) value : null;
+    }
+
+    SetObject setForWrite(byte[] key, long now) {
+        RedisObject value = lookupForWrite(key, now);
+        if (value == null) {
+            SetObject set = new SetObject(this);
+            put(key, set);
+            return set;
+        }
+        return value instanceof SetObject ? (SetObject) value : null;
+    }
+
+    ZSetObject zsetForWrite(byte[] key, long now) {
+        RedisObject value = lookupForWrite(key, now);
+        if (value == null) {
+            ZSetObject zset = new ZSetObject(this);
+            put(key, zset);
+            return zset;
+        }
+        return value instanceof ZSetObject ? (ZSetObject) value : null;
+    }
+
+    StreamObject streamForWrite(byte[] key, long now) {
+        RedisObject value = lookupForWrite(key, now);
+        if (value == null) {
+            StreamObject stream = new StreamObject(this);
+            put(key, stream);
+            return stream;
+        }
+        return value instanceof StreamObject ? (StreamObject) value : null;
+    }
+
+    // Lazy half of expiration: called before a key is looked at. A replica leaves the
+    // delete to its leader, whose DEL follows any PERSIST or EXPIRE that came first: on
+    // its own clock it could drop a key the leader just kept. Its clients still see the
+    // key as gone, see expiredOnReplica().
+    void expireIfNeeded(byte[] key, long now) {
+        if (!dict.hasExpires() || MasterLink.isReplica()) {
+            return;
+        }
+        long at = dict.expireAt(key);
+        if (at >= 0 && at <= now) {
+            delete(key);
+            Propagation.feed(Propagation.DEL, key);
+            Stats.expiredKeys.increment();
+        }
+    }
+
+    boolean exists(byte[] key) {
+        return dict.get(key) != null && !expiredOnReplica(key, System.currentTimeMillis());
+    }
+
+    // A key past its deadline that a replica keeps until the leader's DEL, as missing to
+    // anyone but the leader's stream.
+    private boolean expiredOnReplica(byte[] key, long now) {
+        if (!dict.hasExpires() || !MasterLink.isReplica() || MasterLink.isApplying()) {
+            return false;
+        }
+        long at = dict.expireAt(key);
+        return at >= 0 && at <= now;
+    }
+
+    boolean delete(byte[] key) {
+        RedisObject old = dict.remove(key);
+        if (old == null) {
+            return false;
+        }
+        touch(key);
+        release(old);
+        usedMemory -= KEY_OVERHEAD + key.length + old.memoryUsage();
+        if (slotKeys != null) {
+            slotKeys[Cluster.slot(key)]--;
+        }
+        return true;
+    }
+
+    // WATCH key: registers one more watcher, whose EXEC compares the version it sees now
+    // with the one it finds then.
+    Watched watch(byte[] key) {
+        Watched w = watched.computeIfAbsent(ByteBuffer.wrap(key), k -> new Watched());
+        w.watchers++;
+        return w;
+    }
+
+    void unwatch(byte[] key, Watched w) {
+        if (--w.watchers == 0) {
+            watched.remove(ByteBuffer.wrap(key));
+        }
+    }
+
+    private void touch(byte[] key) {
+        if (!watched.isEmpty()) {
+            Watched w = watched.get(ByteBuffer.wrap(key));
+            if (w != null) {
+                w.version++;
+            }
+        }
+    }
+
+    int countKeysInSlot(int slot) {
+        return slotKeys == null ? 0 : slotKeys[slot];
+    }
+
+    // Up to `count` keys of the hash slot, which must map to this shard.
+    List<byte[]> keysInSlot(int slot, int count) {
+        List<byte[]> keys = new ArrayList<>();
+        int wanted = Math.min(count, countKeysInSlot(slot));
+        if (wanted > 0) {
+            dict.forEachKey(key -> {
+                if (Cluster.slot(key) == slot) {
+                    keys.add(key);
+                }
+                return keys.size() < wanted;
+            });
+        }
+        return keys;
+    }
+
+    SlabAllocator slabs() {
+        if (slabs == null) {
+            slabs = new SlabAllocator();
+        }
+        return slabs;
+    }
+
+    // 0 without off-heap storage
+    long offHeapReserved() {
+        SlabAllocator s = slabs;
+        return s == null ? 0 : s.reserved();
+    }
+
+    long offHeapUsed() {
+        SlabAllocator s = slabs;
+        return s == null ? 0 : s.used();
+    }
+
+    // Frees the off-heap block of a value that was just replaced or deleted. One from
+    // before the current snapshot may still be read by the save, like any value it holds,
+    // so it waits for releaseSnapshot().
+    private void release(RedisObject old) {
+        if (!(old instanceof StringObject) || !((StringObject) old).offHeap()) {
+            return;
+        }
+        StringObject s = (StringObject) old;
+        if (snapshotting && s.epoch != snapshotEpoch) {
+            deferredFrees.add(s);
+        } else {
+            s.free();
+        }
+    }
+
+    int size() {
+        return dict.size();
+    }
+
+    int expiresCount() {
+        return dict.expiresCount();
+    }
+
+    // A random key, or null when the shard is empty.
+    byte[] randomKey(int random) {
+        return dict.randomKey(random);
+    }
+
+    void setExpire(byte[] key, long at) {
+        touch(key);
+        dict.setExpire(key, at);
+    }
+
+    // Dict's side of the wheel: queues a key's deadline, and drops it again.
+    TimingWheel.Entry<byte[]> scheduleExpiry(byte[] key, long at) {
+        return wheel.add(at, key);
+    }
+
+    void cancelExpiry(TimingWheel.Entry<?> timer) {
+        wheel.cancel(timer);
+    }
+
+    boolean persist(byte[] key) {
+        if (dict.setExpire(key, 0) < 0) {
+            return false;
+        }
+        touch(key);
+        return true;
+    }
+
+    // -1 when the key has no TTL
+    long expireAt(byte[] key) {
+        return dict.expireAt(key);
+    }
+
+    // Active half of expiration: evicts up to `limit` keys whose deadline passed. Returns the
+    // number of wheel entries processed; limit means there may be more.
+    int expireDue(long now, int limit) {
+        sweepNow = now;
+        return wheel.advance(now, limit, expireFromWheel);
+    }
+
+    // Empties the shard, timer wheel included.
+    void clear() {
+        for (Watched w : watched.values()) {
+            w.version++;
+        }
+        usedMemory = 0;
+        dict.clear();
+        wheel.clear();
+        if (slotKeys != null) {
+            Arrays.fill(slotKeys, 0);
+        }
+        // a save may still read the old values, which keep their allocator alive
+        if (slabs != null) {
+            slabs = new SlabAllocator();
+            deferredFrees.clear();
+        }
+    }
+
+    // Freezes the current contents for a background save. Writers carry on: the dict
+    // copies its tables on the next write and collections are copied one by one as they
+    // are modified, until releaseSnapshot().
+    Dict.Snapshot snapshot() {
+        snapshotEpoch++;
+        snapshotting = true;
+        return dict.snapshot();
+    }
+
+    void releaseSnapshot() {
+        snapshotting = false;
+        dict.releaseSnapshot();
+        for (StringObject s : deferredFrees) {
+            s.free();
+        }
+        deferredFrees.clear();
+    }
+
+    private void expireFromWheel(byte[] key) {
+        long at = dict.expireAt(key);
+        if (at >= 0 && at <= sweepNow) {
+            delete(key);
+            Propagation.feed(Propagation.DEL, key);
+            Stats.expiredKeys.increment();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package redis;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+
+// Off-heap storage for string values (--storage offheap): the bytes live in native
+// MemorySegment slabs and a StringObject keeps only a handle, so a large cache costs the
+// heap one small object per value instead of that plus its byte[], and the collector
+// has that much less to copy and scan.
+// Like jemalloc's small bins, a block is rounded up to a size class, four per power of
+// two from 16 bytes, and each class carves its blocks out of its own slabs; freed blocks
+// go on the class' free list for the next value of that class. Values too big for the
+// largest class get a segment of their own, released by the GC once dropped. Slabs are
+// never returned: like a malloc heap, the footprint stays at its high-water mark.
+// One allocator per shard, used under the shard's lock.
+final class SlabAllocator {
+    // set by Main before the server starts
+    static volatile boolean enabled;
+
+    private static final int MIN_CLASS = 16;
+    private static final int MAX_CLASS = 64 * 1024;
+    // small, as every shard has slabs of every class it has seen
+    private static final long SLAB_SIZE = 64 * 1024;
+    private static final int[] CLASS_SIZES;
+
+    static {
+        int[] sizes = new int[64];
+        int n = 0;
+        for (int size = MIN_CLASS; size <= MAX_CLASS; size <<= 1) {
+            // 16, 20, 24, 28, 32, 40, 48, 56, 64, ...
+            for (int step = 0; step < 4 && size + step * (size / 4) <= MAX_CLASS; step++) {
+                sizes[n++] = size + step * (size / 4);
+            }
+        }
+        CLASS_SIZES = Arrays.copyOf(sizes, n);
+    }
+
+    // Handles are the segment's index in `segments` in the high half and the block's
+    // offset in it in the low half.
+    private MemorySegment[] segments = new MemorySegment[16];
+    private int segmentCount;
+    // indexes in `segments` freed by dedicated segments, for reuse
+    private int[] freeIndexes = new int[4];
+    private int freeIndexCount;
+    // per class: the slab being carved and how far, and the freed blocks
+    private final int[] current = new int[CLASS_SIZES.length];
+    private final long[] carved = new long[CLASS_SIZES.length];
+    private final long[][] freeBlocks = new long[CLASS_SIZES.length][];
+    private final int[] freeCounts = new int[CLASS_SIZES.length];
+    // bytes in slabs and dedicated segments, and in blocks handed out; read unlocked by INFO
+    private volatile long reserved;
+    private volatile long used;
+
+    SlabAllocator() {
+        Arrays.fill(current, -1);
+    }
+
+    // The block a value of `length` bytes takes: its class size, or the length itself
+    // for a dedicated segment.
+    static long blockSize(int length) {
+        int c = sizeClass(length);
+        return c < 0 ? length : CLASS_SIZES[c];
+    }
+
+    // -1 past the largest class
+    private static int sizeClass(int length) {
+        if (length > MAX_CLASS) {
+            return -1;
+        }
+        int c = Arrays.binarySearch(CLASS_SIZES, Math.max(length, MIN_CLASS));
+        return c >= 0 ? c : -c - 1;
+    }
+
+    // Copies the value into a new block and returns its handle.
+    long allocate(byte[] value) {
+        long handle = allocate(value.length);
+        MemorySegment.copy(value, 0, segment(handle), ValueLayout.JAVA_BYTE, offset(handle), value.length);
+        return handle;
+    }
+
+    private long allocate(int length) {
+        int c = sizeClass(length);
+        if (c < 0) {
+            MemorySegment own = Arena.ofAuto().allocate(length, 1);
+            reserved += length;
+            used += length;
+            return (long) addSegment(own) << 32;
+        }
+        int size = CLASS_SIZES[c];
+        used += size;
+        if (freeCounts[c] > 0) {
+            return freeBlocks[c][--freeCounts[c]];
+        }
+        if (current[c] < 0 || carved[c] + size > segments[current[c]].byteSize()) {
+            long slabSize = Math.max(SLAB_SIZE - SLAB_SIZE % size, 4L * size);
+            MemorySegment slab = Arena.ofAuto().allocate(slabSize, 8);
+            reserved += slab.byteSize();
+            current[c] = addSegment(slab);
+            carved[c] = 0;
+        }
+        long handle = (long) current[c] << 32 | carved[c];
+        carved[c] += size;
+        return handle;
+    }
+
+    // Returns the block of a value of `length` bytes for reuse. The handle must not be
+    // read again.
+    void free(long handle, int length) {
+        int c = sizeClass(length);
+        if (c < 0) {
+            int index = (int) (handle >>> 32);
+            segments[index] = null;
+            if (freeIndexCount == freeIndexes.length) {
+                freeIndexes = Arrays.copyOf(freeIndexes, freeIndexCount * 2);
+            }
+            freeIndexes[freeIndexCount++] = index;
+            reserved -= length;
+            used -= length;
+            return;
+        }
+        long[] blocks = freeBlocks[c];
+        if (blocks == null) {
+            blocks = freeBlocks[c] = new long[16];
+        } else if (freeCounts[c] == blocks.length) {
+            blocks = freeBlocks[c] = Arrays.copyOf(blocks, blocks.length * 2);
+        }
+        blocks[freeCounts[c]++] = handle;
+        used -= CLASS_SIZES[c];
+    }
+
+    private int addSegment(MemorySegment segment) {
+        int index;
+        if (freeIndexCount > 0) {
+            index = freeIndexes[--freeIndexCount];
+        } else {
+            if (segmentCount == segments.length) {
+                segments = Arrays.copyOf(segments, segmentCount * 2);
+            }
+            index = segmentCount++;
+        }
+        segments[index] = segment;
+        return index;
+    }
+
+    MemorySegment segment(long handle) {
+        return segments[(int) (handle >>> 32)];
+    }
+
+    static long offset(long handle) {
+        return handle & 0xffffffffL;
+    }
+
+    long reserved() {
+        return reserved;
+    }
+
+    long used() {
+        return used;
+    }
+}
@@ -0,0 +1,126 @@
+package redis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+
+// SLOWLOG: the latest slowlog-max-len commands that ran for at least
+// slowlog-log-slower-than microseconds (negative turns it off, 0 logs everything),
+// newest first. Arguments are cut down as Redis does, at most 32 of them and 128 bytes
+// each, so a huge RPUSH does not pin its payload here. Only slow commands get past the
+// threshold compare to the lock.
+final class SlowLog {
+    private static final int MAX_ARGC = 32;
+    private static final int MAX_ARG_LENGTH = 128;
+
+    static volatile long slowerThanMicros = 10_000;
+    static volatile int maxLen = 128;
+
+    private static final class Entry {
+        final long id;
+        final long time;
+        final long micros;
+        final byte[][] args;
+        final String client;
+
+        Entry(long id, long time, long micros, byte[][] args, String client) {
+            this.id = id;
+            this.time = time;
+            this.micros = micros;
+            this.args = args;
+            this.client = client;
+        }
+    }
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    // newest first
+    private static final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private static long nextId;
+
+    private SlowLog() {
+    }
+
+    static boolean isSlow(long nanos) {
+        long threshold = slowerThanMicros;
+        return threshold >= 0 && nanos / 1000 >= threshold;
+    }
+
+    static void add(RespCommand cmd, long nanos, String client) {
+        int argc = Math.min(cmd.argc(), MAX_ARGC);
+        byte[][] args = new byte[argc][];
+        for (int i = 0; i < argc; i++) {
+            if (i == MAX_ARGC - 1 && cmd.argc() > MAX_ARGC) {
+                args[i] = ascii("... (" + (cmd.argc() - MAX_ARGC + 1) + " more arguments)");
+            } else if (cmd.length(i) > MAX_ARG_LENGTH) {
+                byte[] more = ascii("... (" + (cmd.length(i) - MAX_ARG_LENGTH) + " more bytes)");
+                args[i] = Arrays.copyOfRange(cmd.array(), cmd.offset(i), cmd.offset(i) + MAX_ARG_LENGTH + more.length);
+                System.arraycopy(more, 0, args[i], MAX_ARG_LENGTH, more.length);
+            } else {
+                args[i] = cmd.bytes(i);
+            }
+        }
+        lock.lock();
+        try {
+            entries.addFirst(new Entry(nextId++, System.currentTimeMillis() / 1000, nanos / 1000, args, client));
+            while (entries.size() > Math.max(0, maxLen)) {
+                entries.removeLast();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // SLOWLOG GET [count]: the newest `count` entries, all of them for a negative count.
+    static void get(OutputBuffer out, long count) {
+        Entry[] newest;
+        lock.lock();
+        try {
+            int n = count < 0 ? entries.size() : (int) Math.min(count, entries.size());
+            newest = new Entry[n];
+            Iterator<Entry> it = entries.iterator();
+            for (int i = 0; i < n; i++) {
+                newest[i] = it.next();
+            }
+        } finally {
+            lock.unlock();
+        }
+        RespWriter.arrayHeader(out, newest.length);
+        for (Entry entry : newest) {
+            RespWriter.arrayHeader(out, 6);
+            RespWriter.integer(out, entry.id);
+            RespWriter.integer(out, entry.time);
+            RespWriter.integer(out, entry.micros);
+            RespWriter.arrayHeader(out, entry.args.length);
+            for (byte[] arg : entry.args) {
+                RespWriter.bulk(out, arg);
+            }
+            RespWriter.bulk(out, entry.client);
+            // client name, which this server does not have
+            RespWriter.bulk(out, "");
+        }
+    }
+
+    static int length() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static void reset() {
+        lock.lock();
+        try {
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,103 @@
+package redis;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Server-wide counters for INFO. They are bumped from every client thread at once, so
+// each is a LongAdder, which spreads concurrent increments over cells of its own instead
+// of every thread contending on one cache line; reading one sums the cells.
+final class Stats {
+    // instantaneous_* rates average the last SAMPLES samples, taken every cycle of
+    // the expiry sweeper, as Redis' serverCron does
+    private static final int SAMPLES = 16;
+
+    static final long startTime = System.currentTimeMillis();
+
+    static final LongAdder connectedClients = new LongAdder();
+    static final LongAdder blockedClients = new LongAdder();
+    static final LongAdder connectionsReceived = new LongAdder();
+    static final LongAdder commandsProcessed = new LongAdder();
+    static final LongAdder netInputBytes = new LongAdder();
+    static final LongAdder netOutputBytes = new LongAdder();
+    static final LongAdder expiredKeys = new LongAdder();
+    static final LongAdder evictedKeys = new LongAdder();
+    static final LongAdder keyspaceHits = new LongAdder();
+    static final LongAdder keyspaceMisses = new LongAdder();
+    static final LongAdder outputLimitDisconnections = new LongAdder();
+
+    // rates per second of commands, input and output bytes, sampled by the sweeper only
+    private static final ReentrantLock samplesLock = new ReentrantLock();
+    private static final long[][] samples = new long[3][SAMPLES];
+    private static final long[] lastTotals = new long[3];
+    private static long lastSampleAt = System.nanoTime();
+    private static int sampleIndex;
+
+    private Stats() {
+    }
+
+    static void clientConnected() {
+        connectionsReceived.increment();
+        connectedClients.increment();
+    }
+
+    static void clientDisconnected() {
+        connectedClients.decrement();
+    }
+
+    // Called periodically from one thread.
+    static void sample() {
+        long now = System.nanoTime();
+        long elapsed = Math.max(1, now - lastSampleAt);
+        long[] totals = {commandsProcessed.sum(), netInputBytes.sum(), netOutputBytes.sum()};
+        samplesLock.lock();
+        try {
+            for (int i = 0; i < totals.length; i++) {
+                // a RESETSTAT in between makes the difference negative
+                samples[i][sampleIndex] = Math.max(0, totals[i] - lastTotals[i]) * 1_000_000_000L / elapsed;
+                lastTotals[i] = totals[i];
+            }
+            sampleIndex = (sampleIndex + 1) % SAMPLES;
+        } finally {
+            samplesLock.unlock();
+        }
+        lastSampleAt = now;
+    }
+
+    static long instantaneousOps() {
+        return average(0);
+    }
+
+    static long instantaneousInput() {
+        return average(1);
+    }
+
+    static long instantaneousOutput() {
+        return average(2);
+    }
+
+    private static long average(int metric) {
+        long sum = 0;
+        samplesLock.lock();
+        try {
+            for (long s : samples[metric]) {
+                sum += s;
+            }
+        } finally {
+            samplesLock.unlock();
+        }
+        return sum / SAMPLES;
+    }
+
+    // CONFIG RESETSTAT: the counters, not the gauges.
+    static void reset() {
+        connectionsReceived.reset();
+        commandsProcessed.reset();
+        netInputBytes.reset();
+        netOutputBytes.reset();
+        expiredKeys.reset();
+        evictedKeys.reset();
+        keyspaceHits.reset();
+        keyspaceMisses.reset();
+        outputLimitDisconnections.reset();
+    }
+}
@@ -0,0 +1,110 @@
+package redis;
+
+import java.nio.charset.StandardCharsets;
+
+// A stream entry ID: milliseconds and a sequence number, both unsigned 64-bit, ordered
+// by milliseconds then sequence. Written "ms-seq".
+final class StreamId implements Comparable<StreamId> {
+    static final StreamId MIN = new StreamId(0, 0);
+    static final StreamId MAX = new StreamId(-1, -1);
+
+    final long ms;
+    final long seq;
+
+    StreamId(long ms, long seq) {
+        this.ms = ms;
+        this.seq = seq;
+    }
+
+    // The next ID, null past MAX.
+    StreamId next() {
+        if (seq != -1) {
+            return new StreamId(ms, seq + 1);
+        }
+        return ms == -1 ? null : new StreamId(ms + 1, 0);
+    }
+
+    // The previous ID, null before MIN.
+    StreamId previous() {
+        if (seq != 0) {
+            return new StreamId(ms, seq - 1);
+        }
+        return ms == 0 ? null : new StreamId(ms - 1, -1);
+    }
+
+    // 16 bytes, big endian, so the bytes sort as the IDs do (see RadixTree).
+    byte[] key() {
+        byte[] key = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            key[i] = (byte) (ms >>> (56 - 8 * i));
+            key[8 + i] = (byte) (seq >>> (56 - 8 * i));
+        }
+        return key;
+    }
+
+    static StreamId ofKey(byte[] key) {
+        long ms = 0;
+        long seq = 0;
+        for (int i = 0; i < 8; i++) {
+            ms = ms << 8 | key[i] & 0xff;
+            seq = seq << 8 | key[8 + i] & 0xff;
+        }
+        return new StreamId(ms, seq);
+    }
+
+    // "ms-seq", or "ms" with the sequence defaulting to defaultSeq. null when malformed.
+    static StreamId parse(byte[] s, long defaultSeq) {
+        int dash = -1;
+        for (int i = 0; i < s.length; i++) {
+            if (s[i] == '-') {
+                dash = i;
+                break;
+            }
+        }
+        try {
+            if (dash < 0) {
+                return new StreamId(parseUnsigned(s, 0, s.length), defaultSeq);
+            }
+            return new StreamId(parseUnsigned(s, 0, dash), parseUnsigned(s, dash + 1, s.length));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long parseUnsigned(byte[] s, int from, int to) {
+        if (from == to || to - from > 20) {
+            throw new NumberFormatException();
+        }
+        for (int i = from; i < to; i++) {
+            if (s[i] < '0' || s[i] > '9') {
+                throw new NumberFormatException();
+            }
+        }
+        return Long.parseUnsignedLong(new String(s, from, to - from, StandardCharsets.US_ASCII));
+    }
+
+    byte[] toBytes() {
+        return toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public int compareTo(StreamId other) {
+        int c = Long.compareUnsigned(ms, other.ms);
+        return c != 0 ? c : Long.compareUnsigned(seq, other.seq);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof StreamId && ((StreamId) o).ms == ms && ((StreamId) o).seq == seq;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(ms) * 31 + Long.hashCode(seq);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toUnsignedString(ms) + "-" + Long.toUnsignedString(seq);
+    }
+}
@@ -0,0 +1,588 @@
+package redis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A stream value: an append-only log of entries, each an ID and field/value pairs, and
+// the consumer groups reading it. As in Redis' t_stream.c the entries are packed into
+// blocks of up to stream-node-max-entries entries or stream-node-max-bytes bytes, each a
+// Listpack whose entries store their ID as a delta from the block's master ID and leave
+// out the field names when they are those of the block's first entry, which is the
+// usual case of producers always sending the same fields. A RadixTree maps master IDs
+// to blocks, so a range read seeks straight to the block holding its start instead of
+// walking from the head; each group's pending entries are indexed the same way.
+// Only the head is ever trimmed and only the tail appended to.
+// Mutations go through here so the owning shard's memory estimate follows every change.
+final class StreamObject extends RedisObject {
+    static volatile int maxNodeEntries = 100;
+    static volatile int maxNodeBytes = 4096;
+
+    // an entry's first listpack entry; the only flag is that it uses the master fields
+    private static final byte[] FLAGS_NONE = {0};
+    private static final byte[] FLAGS_SAME_FIELDS = {2};
+    // a pending entry, its two tree leaves and their share of inner nodes
+    private static final int PENDING_BYTES = 200;
+
+    // An entry as read out of a block: fields is field, value, field, value... and is
+    // null for an ID still pending in a group but trimmed from the stream since.
+    static final class Entry {
+        final StreamId id;
+        final byte[][] fields;
+
+        Entry(StreamId id, byte[][] fields) {
+            this.id = id;
+            this.fields = fields;
+        }
+    }
+
+    // Entries packed as: flags, ms delta, seq delta, then either the values alone
+    // (FLAGS_SAME_FIELDS) or the field count and field, value pairs.
+    private static final class Block {
+        final StreamId master;
+        final byte[][] masterFields;
+        Listpack entries = new Listpack();
+        int count;
+
+        Block(StreamId master, byte[][] masterFields) {
+            this.master = master;
+            this.masterFields = masterFields;
+        }
+
+        Block copy() {
+            Block block = new Block(master, masterFields);
+            block.entries = entries.copy();
+            block.count = count;
+            return block;
+        }
+
+        long footprint() {
+            long n = 48 + entries.footprint();
+            for (byte[] field : masterFields) {
+                n += 16 + field.length;
+            }
+            return n;
+        }
+
+        // The ID of the entry at pos.
+        StreamId idAt(int pos) {
+            int p = entries.next(pos);
+            long ms = master.ms + entries.longAt(p);
+            return new StreamId(ms, master.seq + entries.longAt(entries.next(p)));
+        }
+
+        // Listpack entries the entry at pos takes.
+        int pieces(int pos) {
+            if (entries.data()[entries.start(pos)] == FLAGS_SAME_FIELDS[0]) {
+                return 3 + masterFields.length;
+            }
+            int p = entries.next(entries.next(entries.next(pos)));
+            return 4 + 2 * (int) entries.longAt(p);
+        }
+
+        int skip(int pos) {
+            for (int n = pieces(pos); n > 0; n--) {
+                pos = entries.next(pos);
+            }
+            return pos;
+        }
+
+        Entry entryAt(int pos) {
+            boolean same = entries.data()[entries.start(pos)] == FLAGS_SAME_FIELDS[0];
+            StreamId id = idAt(pos);
+            int p = entries.next(entries.next(entries.next(pos)));
+            byte[][] fields;
+            if (same) {
+                fields = new byte[2 * masterFields.length][];
+                for (int i = 0; i < masterFields.length; i++, p = entries.next(p)) {
+                    fields[2 * i] = masterFields[i];
+                    fields[2 * i + 1] = entries.get(p);
+                }
+            } else {
+                fields = new byte[2 * (int) entries.longAt(p)][];
+                p = entries.next(p);
+                for (int i = 0; i < fields.length; i++, p = entries.next(p)) {
+                    fields[i] = entries.get(p);
+                }
+            }
+            return new Entry(id, fields);
+        }
+    }
+
+    static final class Group {
+        final byte[] name;
+        StreamId lastDelivered;
+        // delivered but not acknowledged, by ID
+        final RadixTree<Pending> pending = new RadixTree<>();
+        final Map<ByteBuffer, Consumer> consumers = new LinkedHashMap<>();
+
+        Group(byte[] name, StreamId lastDelivered) {
+            this.name = name;
+            this.lastDelivered = lastDelivered;
+        }
+    }
+
+    static final class Consumer {
+        final byte[] name;
+        // unix ms of its last read or claim
+        long seenTime;
+        // its share of the group's pending entries
+        final RadixTree<Pending> pending = new RadixTree<>();
+
+        Consumer(byte[] name, long seenTime) {
+            this.name = name;
+            this.seenTime = seenTime;
+        }
+    }
+
+    static final class Pending {
+        final StreamId id;
+        Consumer consumer;
+        // unix ms of the last delivery
+        long deliveryTime;
+        long deliveryCount;
+
+        Pending(StreamId id, Consumer consumer, long deliveryTime, long deliveryCount) {
+            this.id = id;
+            this.consumer = consumer;
+            this.deliveryTime = deliveryTime;
+            this.deliveryCount = deliveryCount;
+        }
+    }
+
+    private final Shard owner;
+    // owner.snapshotEpoch when created, see Shard.lookupForWrite
+    final int epoch;
+    // blocks by master ID; the last one takes the appends
+    private final RadixTree<Block> blocks = new RadixTree<>();
+    private Block tail;
+    private long length;
+    // the highest ID ever added, which trimming does not lower
+    private StreamId lastId = StreamId.MIN;
+    private final Map<ByteBuffer, Group> groups = new LinkedHashMap<>();
+    // footprints of the blocks, and of the groups with their consumers and pending entries
+    private long blockBytes;
+    private long groupBytes;
+
+    StreamObject(Shard owner) {
+        this.owner = owner;
+        this.epoch = owner.snapshotEpoch;
+    }
+
+    private StreamObject(StreamObject from) {
+        owner = from.owner;
+        epoch = owner.snapshotEpoch;
+        from.blocks.forEach(block -> blocks.put(block.master.key(), block.copy()));
+        tail = blocks.last();
+        length = from.length;
+        lastId = from.lastId;
+        blockBytes = from.blockBytes;
+        groupBytes = from.groupBytes;
+        for (Group group : from.groups.values()) {
+            Group g = new Group(group.name, group.lastDelivered);
+            for (Consumer consumer : group.consumers.values()) {
+                g.consumers.put(ByteBuffer.wrap(consumer.name), new Consumer(consumer.name, consumer.seenTime));
+            }
+            group.pending.forEach(p -> {
+                Consumer c = g.consumers.get(ByteBuffer.wrap(p.consumer.name));
+                Pending copy = new Pending(p.id, c, p.deliveryTime, p.deliveryCount);
+                byte[] key = p.id.key();
+                g.pending.put(key, copy);
+                c.pending.put(key, copy);
+            });
+            groups.put(ByteBuffer.wrap(g.name), g);
+        }
+    }
+
+    // A copy to modify while a background save still reads this one; accounted to the
+    // shard by the Shard.put that swaps it in.
+    @Override
+    StreamObject copy() {
+        return new StreamObject(this);
+    }
+
+    @Override
+    boolean predates(int snapshotEpoch) {
+        return epoch != snapshotEpoch;
+    }
+
+    long length() {
+        return length;
+    }
+
+    StreamId lastId() {
+        return lastId;
+    }
+
+    // Only ever raises it: a loaded stream's last ID may be above its last entry's,
+    // which was trimmed since.
+    void setLastId(StreamId id) {
+        if (id.compareTo(lastId) > 0) {
+            lastId = id;
+        }
+    }
+
+    // Appends an entry; id must be above lastId(). fields is field, value, ...
+    void append(StreamId id, byte[][] fields) {
+        long before = memoryUsage();
+        int n = fields.length / 2;
+        if (tail == null || tail.count >= maxNodeEntries || tail.entries.used() >= maxNodeBytes) {
+            byte[][] names = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                names[i] = fields[2 * i];
+            }
+            tail = new Block(id, names);
+            blocks.put(id.key(), tail);
+            blockBytes += tail.footprint();
+        }
+        blockBytes -= tail.footprint();
+        Listpack lp = tail.entries;
+        boolean same = tail.masterFields.length == n;
+        for (int i = 0; same && i < n; i++) {
+            same = Arrays.equals(tail.masterFields[i], fields[2 * i]);
+        }
+        lp.append(same ? FLAGS_SAME_FIELDS : FLAGS_NONE);
+        lp.append(Listpack.encodeLong(id.ms - tail.master.ms));
+        lp.append(Listpack.encodeLong(id.seq - tail.master.seq));
+        if (same) {
+            for (int i = 0; i < n; i++) {
+                lp.append(fields[2 * i + 1]);
+            }
+        } else {
+            lp.append(Listpack.encodeLong(n));
+            for (byte[] field : fields) {
+                lp.append(field);
+            }
+        }
+        tail.count++;
+        blockBytes += tail.footprint();
+        length++;
+        lastId = id;
+        owner.usedMemory += memoryUsage() - before;
+    }
+
+    // Drops the oldest entries until at most maxLen are left. An approximate trim only
+    // drops whole blocks, leaving less than one block's worth over, which spares the
+    // rewrite of the head block. Returns the number of entries dropped.
+    long trim(long maxLen, boolean approximate) {
+        long before = memoryUsage();
+        long removed = 0;
+        while (length > maxLen) {
+            Block head = blocks.first();
+            if (length - head.count >= maxLen) {
+                blocks.remove(head.master.key());
+                blockBytes -= head.footprint();
+                length -= head.count;
+                removed += head.count;
+                if (head == tail) {
+                    tail = null;
+                }
+                continue;
+            }
+            if (approximate) {
+                break;
+            }
+            // the rest comes off the front of the head block, which keeps its master ID
+            int drop = (int) (length - maxLen);
+            int pieces = 0;
+            for (int i = 0, pos = 0; i < drop; i++) {
+                int n = head.pieces(pos);
+                for (int k = 0; k < n; k++) {
+                    pos = head.entries.next(pos);
+                }
+                pieces += n;
+            }
+            blockBytes -= head.footprint();
+            head.entries.remove(0, pieces);
+            head.count -= drop;
+            blockBytes += head.footprint();
+            length -= drop;
+            removed += drop;
+        }
+        owner.usedMemory += memoryUsage() - before;
+        return removed;
+    }
+
+    // Entries with start <= ID <= end in ID order, at most count of them unless count
+    // is 0 or less.
+    List<Entry> range(StreamId start, StreamId end, long count) {
+        List<Entry> out = new ArrayList<>();
+        if (start.compareTo(end) > 0) {
+            return out;
+        }
+        Block block = blocks.floor(start.key());
+        if (block == null) {
+            block = blocks.first();
+        }
+        while (block != null) {
+            Listpack lp = block.entries;
+            for (int pos = 0; pos < lp.used(); pos = block.skip(pos)) {
+                StreamId id = block.idAt(pos);
+                if (id.compareTo(start) < 0) {
+                    continue;
+                }
+                if (id.compareTo(end) > 0) {
+                    return out;
+                }
+                out.add(block.entryAt(pos));
+                if (out.size() == count) {
+                    return out;
+                }
+            }
+            StreamId after = block.master.next();
+            block = after == null ? null : blocks.ceiling(after.key());
+        }
+        return out;
+    }
+
+    // As range(), from end down to start.
+    List<Entry> reverseRange(StreamId end, StreamId start, long count) {
+        List<Entry> out = new ArrayList<>();
+        if (start.compareTo(end) > 0) {
+            return out;
+        }
+        Block block = blocks.floor(end.key());
+        while (block != null) {
+            // listpack entries only link forwards whole, so a block is decoded and walked
+            // backwards; it is small and the next one is a tree seek away
+            List<Entry> entries = new ArrayList<>(block.count);
+            for (int pos = 0; pos < block.entries.used(); pos = block.skip(pos)) {
+                entries.add(block.entryAt(pos));
+            }
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                Entry entry = entries.get(i);
+                if (entry.id.compareTo(end) > 0) {
+                    continue;
+                }
+                if (entry.id.compareTo(start) < 0) {
+                    return out;
+                }
+                out.add(entry);
+                if (out.size() == count) {
+                    return out;
+                }
+            }
+            StreamId before = block.master.previous();
+            block = before == null ? null : blocks.floor(before.key());
+        }
+        return out;
+    }
+
+    // The entry with this ID, null when there is none (any more).
+    Entry get(StreamId id) {
+        List<Entry> found = range(id, id, 1);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    // Visits the blocks in order for RDB: their master ID and field names, and entries.
+    interface BlockVisitor {
+        void accept(StreamId master, byte[][] masterFields, List<Entry> entries) throws IOException;
+    }
+
+    void forEachBlock(BlockVisitor visitor) throws IOException {
+        List<Block> all = new ArrayList<>(blocks.size());
+        blocks.forEach(all::add);
+        for (Block block : all) {
+            List<Entry> entries = new ArrayList<>(block.count);
+            for (int pos = 0; pos < block.entries.used(); pos = block.skip(pos)) {
+                entries.add(block.entryAt(pos));
+            }
+            visitor.accept(block.master, block.masterFields, entries);
+        }
+    }
+
+    int blockCount() {
+        return blocks.size();
+    }
+
+    // --- consumer groups
+
+    Group group(byte[] name) {
+        return groups.get(ByteBuffer.wrap(name));
+    }
+
+    // In creation order.
+    Iterable<Group> groups() {
+        return groups.values();
+    }
+
+    // null when a group of that name exists
+    Group createGroup(byte[] name, StreamId lastDelivered) {
+        ByteBuffer key = ByteBuffer.wrap(name);
+        if (groups.containsKey(key)) {
+            return null;
+        }
+        Group group = new Group(name, lastDelivered);
+        groups.put(key, group);
+        groupBytes += 96 + name.length;
+        owner.usedMemory += 96 + name.length;
+        return group;
+    }
+
+    boolean destroyGroup(byte[] name) {
+        long before = memoryUsage();
+        Group group = groups.remove(ByteBuffer.wrap(name));
+        if (group == null) {
+            return false;
+        }
+        groupBytes -= 96 + name.length + (long) group.pending.size() * PENDING_BYTES;
+        for (Consumer consumer : group.consumers.values()) {
+            groupBytes -= 64 + consumer.name.length;
+        }
+        owner.usedMemory += memoryUsage() - before;
+        return true;
+    }
+
+    Consumer consumer(Group group, byte[] name) {
+        return group.consumers.get(ByteBuffer.wrap(name));
+    }
+
+    // The consumer, created if it does not exist, which `created` then reports.
+    Consumer consumer(Group group, byte[] name, long now, boolean[] created) {
+        ByteBuffer key = ByteBuffer.wrap(name);
+        Consumer consumer = group.consumers.get(key);
+        if (consumer == null) {
+            consumer = new Consumer(name, now);
+            group.consumers.put(key, consumer);
+            groupBytes += 64 + name.length;
+            owner.usedMemory += 64 + name.length;
+            if (created != null) {
+                created[0] = true;
+            }
+        }
+        return consumer;
+    }
+
+    // The consumer a read or claim is for, created and the creation propagated if need be.
+    Consumer consumerFor(byte[] key, Group group, byte[] name, long now) {
+        boolean[] created = {false};
+        Consumer consumer = consumer(group, name, now, created);
+        if (created[0]) {
+            Propagation.feed(Propagation.XGROUP, Propagation.CREATECONSUMER, key, group.name, name);
+        }
+        return consumer;
+    }
+
+    // Deletes the consumer and its pending entries; returns how many it had, -1 when
+    // there was no such consumer.
+    long deleteConsumer(Group group, byte[] name) {
+        Consumer consumer = group.consumers.remove(ByteBuffer.wrap(name));
+        if (consumer == null) {
+            return -1;
+        }
+        long pending = consumer.pending.size();
+        consumer.pending.forEach(p -> group.pending.remove(p.id.key()));
+        long freed = 64 + name.length + pending * PENDING_BYTES;
+        groupBytes -= freed;
+        owner.usedMemory -= freed;
+        return pending;
+    }
+
+    // XREADGROUP's read of new entries: those after the group's last delivered one, at
+    // most count unless count is 0 or less, delivered to the named consumer, created if
+    // need be. They become its pending entries unless noack. Fed to the AOF and replicas
+    // as what it did, since the entries read depend on timing: an XCLAIM ... FORCE per
+    // pending entry, which carries the group's new last ID, or an XGROUP SETID, and an
+    // XGROUP CREATECONSUMER for a new consumer.
+    List<Entry> readGroup(byte[] key, Group group, byte[] consumerName, long count, boolean noack, long now) {
+        Consumer consumer = consumerFor(key, group, consumerName, now);
+        StreamId from = group.lastDelivered.next();
+        List<Entry> entries = from == null ? new ArrayList<>() : range(from, StreamId.MAX, count);
+        consumer.seenTime = now;
+        if (entries.isEmpty()) {
+            return entries;
+        }
+        group.lastDelivered = entries.get(entries.size() - 1).id;
+        if (noack) {
+            Propagation.feed(Propagation.XGROUP, Propagation.SETID, key, group.name, group.lastDelivered.toBytes());
+            return entries;
+        }
+        for (Entry entry : entries) {
+            Pending p = group.pending.get(entry.id.key());
+            if (p != null) {
+                // delivered before a SETID moved the group back: it changes hands
+                assign(p, consumer);
+                p.deliveryTime = now;
+                p.deliveryCount = 1;
+            } else {
+                p = addPending(group, consumer, entry.id, now, 1);
+            }
+            feedClaim(key, group, p);
+        }
+        return entries;
+    }
+
+    // The propagated form of a pending entry's delivery, as Redis writes it.
+    static void feedClaim(byte[] key, Group group, Pending p) {
+        Propagation.feed(Propagation.XCLAIM, key, group.name, p.consumer.name, Propagation.ZERO, p.id.toBytes(),
+                Propagation.TIME, Propagation.decimal(p.deliveryTime),
+                Propagation.RETRYCOUNT, Propagation.decimal(p.deliveryCount),
+                Propagation.FORCE, Propagation.JUSTID, Propagation.LASTID, group.lastDelivered.toBytes());
+    }
+
+    // The consumer's pending entries from start on, at most count unless 0 or less, for
+    // a read of its history; each counts as delivered once more.
+    List<Entry> readPending(Consumer consumer, StreamId start, long count, long now) {
+        List<Entry> entries = new ArrayList<>();
+        for (Pending p = consumer.pending.ceiling(start.key()); p != null; p = higher(consumer.pending, p.id)) {
+            Entry entry = get(p.id);
+            entries.add(entry != null ? entry : new Entry(p.id, null));
+            p.deliveryTime = now;
+            p.deliveryCount++;
+            if (entries.size() == count) {
+                break;
+            }
+        }
+        consumer.seenTime = now;
+        return entries;
+    }
+
+    // The pending entry after id, in a group's or consumer's tree.
+    static Pending higher(RadixTree<Pending> pending, StreamId id) {
+        StreamId next = id.next();
+        return next == null ? null : pending.ceiling(next.key());
+    }
+
+    boolean ack(Group group, StreamId id) {
+        byte[] key = id.key();
+        Pending p = group.pending.remove(key);
+        if (p == null) {
+            return false;
+        }
+        p.consumer.pending.remove(key);
+        groupBytes -= PENDING_BYTES;
+        owner.usedMemory -= PENDING_BYTES;
+        return true;
+    }
+
+    Pending addPending(Group group, Consumer consumer, StreamId id, long deliveryTime, long deliveryCount) {
+        Pending p = new Pending(id, consumer, deliveryTime, deliveryCount);
+        byte[] key = id.key();
+        group.pending.put(key, p);
+        consumer.pending.put(key, p);
+        groupBytes += PENDING_BYTES;
+        owner.usedMemory += PENDING_BYTES;
+        return p;
+    }
+
+    // Hands a pending entry to another consumer of its group.
+    void assign(Pending p, Consumer consumer) {
+        if (p.consumer == consumer) {
+            return;
+        }
+        byte[] key = p.id.key();
+        p.consumer.pending.remove(key);
+        consumer.pending.put(key, p);
+        p.consumer = consumer;
+    }
+
+    @Override
+    long memoryUsage() {
+        // object and fields
+        return 64 + blocks.footprint() + blockBytes + groupBytes;
+    }
+}
@@ -0,0 +1,89 @@
+package redis;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+// A string value: its bytes on the heap, or with --storage offheap a handle to a block of
+// the shard's SlabAllocator. An off-heap block is only valid while the value is stored,
+// so its bytes are read under the shard lock and the shard frees the block when the
+// value is replaced or deleted (see Shard.release).
+final class StringObject extends RedisObject {
+    // null when the bytes are off-heap
+    private final byte[] value;
+    private final SlabAllocator slabs;
+    private final long handle;
+    private final int length;
+    // owner.snapshotEpoch when created: a running save may still read an older block
+    final int epoch;
+
+    StringObject(byte[] value) {
+        this.value = value;
+        this.slabs = null;
+        this.handle = 0;
+        this.length = value.length;
+        this.epoch = 0;
+    }
+
+    private StringObject(SlabAllocator slabs, byte[] value, int epoch) {
+        this.value = null;
+        this.slabs = slabs;
+        this.handle = slabs.allocate(value);
+        this.length = value.length;
+        this.epoch = epoch;
+    }
+
+    // A value to store in shard, off-heap when that storage is enabled.
+    static StringObject of(Shard shard, byte[] value) {
+        return SlabAllocator.enabled ? new StringObject(shard.slabs(), value, shard.snapshotEpoch) : new StringObject(value);
+    }
+
+    boolean offHeap() {
+        return value == null;
+    }
+
+    int length() {
+        return length;
+    }
+
+    // The bytes, copied out when off-heap.
+    byte[] bytes() {
+        if (value != null) {
+            return value;
+        }
+        byte[] copy = new byte[length];
+        MemorySegment.copy(slabs.segment(handle), ValueLayout.JAVA_BYTE, SlabAllocator.offset(handle), copy, 0, length);
+        return copy;
+    }
+
+    // The value as a bulk reply, straight from the block when off-heap.
+    void writeBulk(OutputBuffer out) {
+        if (value != null) {
+            RespWriter.bulk(out, value);
+        } else {
+            RespWriter.bulk(out, slabs.segment(handle), SlabAllocator.offset(handle), length);
+        }
+    }
+
+    void writeTo(RdbWriter out) throws IOException {
+        if (value != null) {
+            out.writeString(value);
+        } else {
+            out.writeString(slabs.segment(handle), SlabAllocator.offset(handle), length);
+        }
+    }
+
+    void free() {
+        slabs.free(handle, length);
+    }
+
+    @Override
+    long memoryUsage() {
+        if (value != null) {
+            // object header + field, array header + payload
+            return 16 + 16 + value.length;
+        }
+        // object header + fields, the block
+        return 40 + SlabAllocator.blockSize(length);
+    }
+}
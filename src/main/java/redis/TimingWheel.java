@@ -0,0 +1,186 @@
+package redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Hierarchical timing wheel in the style of the Linux kernel timers: LEVELS wheels of
+// 64 slots, level l slots spanning 64^l ticks. Adding is O(1); advancing touches only the
+// slots whose ticks passed, cascading a coarse slot down when its span comes up.
+// Not thread-safe, the owner serializes access. add() hands back the Entry, which the
+// owner keeps to cancel() it in O(1) when the deadline changes or no longer applies, so
+// nothing lingers until a deadline that is gone.
+final class TimingWheel<T> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 6;
+    private static final long MAX_SPAN = 1L << (SLOT_BITS * LEVELS);
+
+    // A queued item, linked both ways into the list of its slot.
+    static final class Entry<T> {
+        private final long tick;
+        private final T item;
+        private Entry<T> prev;
+        private Entry<T> next;
+        // where it is queued; level -1 once fired or cancelled
+        private int level = -1;
+        private int slot;
+
+        private Entry(long tick, T item) {
+            this.tick = tick;
+            this.item = item;
+        }
+    }
+
+    private final long tickMs;
+    private final List<Entry<T>[]> wheels = new ArrayList<>(LEVELS);
+    // last tick fully processed
+    private long current;
+    private int size;
+
+    TimingWheel(long tickMs, long nowMs) {
+        this.tickMs = tickMs;
+        this.current = nowMs / tickMs;
+        for (int level = 0; level < LEVELS; level++) {
+            wheels.add(newSlots());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Entry<T>[] newSlots() {
+        return (Entry<T>[]) new Entry<?>[SLOTS];
+    }
+
+    int size() {
+        return size;
+    }
+
+    Entry<T> add(long deadlineMs, T item) {
+        // round up so nothing fires early
+        long tick = (deadlineMs + tickMs - 1) / tickMs;
+        Entry<T> entry = new Entry<>(tick, item);
+        insert(entry, current + 1);
+        size++;
+        return entry;
+    }
+
+    // Takes the entry out unless it already fired or was cancelled. It must come from
+    // this wheel.
+    void cancel(Entry<?> entry) {
+        if (entry.level < 0) {
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        Entry<T> e = (Entry<T>) entry;
+        unlink(e);
+        size--;
+    }
+
+    // Drops every entry, as when the owner's items are all gone at once.
+    void clear() {
+        for (Entry<T>[] slots : wheels) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                for (Entry<T> e = slots[slot]; e != null; e = e.next) {
+                    e.level = -1;
+                }
+                slots[slot] = null;
+            }
+        }
+        size = 0;
+    }
+
+    // Places the entry relative to `base`, the next tick to be processed.
+    private void insert(Entry<T> entry, long base) {
+        long delta = entry.tick - base;
+        long tick = entry.tick;
+        if (delta < 0) {
+            // already due
+            tick = base;
+            delta = 0;
+        } else if (delta >= MAX_SPAN) {
+            tick = base + MAX_SPAN - 1;
+            delta = MAX_SPAN - 1;
+        }
+        int level = 0;
+        while (delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        link(entry, level, (int) ((tick >>> (SLOT_BITS * level)) & MASK));
+    }
+
+    private void link(Entry<T> entry, int level, int slot) {
+        Entry<T>[] slots = wheels.get(level);
+        entry.level = level;
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = slots[slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        slots[slot] = entry;
+    }
+
+    private void unlink(Entry<T> entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            wheels.get(entry.level)[entry.slot] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.level = -1;
+    }
+
+    // Fires every item due at nowMs, at most `limit` of them. Returns how many fired; when
+    // that equals limit there may be more and the caller should come back.
+    int advance(long nowMs, int limit, Consumer<T> expired) {
+        long target = nowMs / tickMs;
+        int fired = 0;
+        List<T> due = new ArrayList<>();
+        while (current < target) {
+            long tick = current + 1;
+            // cascade coarser slots whose span starts at this tick
+            for (int level = 1; level < LEVELS; level++) {
+                if ((tick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                Entry<T>[] slots = wheels.get(level);
+                int slot = (int) ((tick >>> (SLOT_BITS * level)) & MASK);
+                Entry<T> e = slots[slot];
+                slots[slot] = null;
+                while (e != null) {
+                    Entry<T> next = e.next;
+                    insert(e, tick);
+                    e = next;
+                }
+            }
+            // Due entries are unlinked before any callback runs: a callback may cancel
+            // or add entries, this slot's included.
+            Entry<T> e = wheels.get(0)[(int) (tick & MASK)];
+            while (e != null && fired < limit) {
+                Entry<T> next = e.next;
+                if (e.tick <= tick) {
+                    unlink(e);
+                    size--;
+                    fired++;
+                    due.add(e.item);
+                }
+                e = next;
+            }
+            for (T item : due) {
+                expired.accept(item);
+            }
+            due.clear();
+            if (fired >= limit) {
+                // this tick may still hold due items; redo it next time
+                return fired;
+            }
+            current = tick;
+        }
+        return fired;
+    }
+}
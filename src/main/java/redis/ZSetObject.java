@@ -0,0 +1,494 @@
+package redis;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+// A sorted set value, ordered by score, then member bytes. Small ones are a Listpack of
+// member, score, member, score... kept in that order, the score as 8 bytes (see
+// Listpack.encodeDouble). Past zset-max-listpack-entries members, or a member over
+// zset-max-listpack-value bytes, it becomes Redis' skiplist plus a member -> score
+// ByteMap, for good.
+// The skiplist keeps the span of every link, the number of members it skips, so ranks
+// are found in O(log n) on the way down like lookups. Nodes are kept lean for sets of
+// millions: a quarter of them reach level 2, so the level-0 link is a field and only
+// the rest have arrays, and level-0 spans are always 1 and not stored.
+// Mutations go through here so the owning shard's memory estimate follows every change.
+final class ZSetObject extends RedisObject {
+    static volatile int maxListpackEntries = 128;
+    static volatile int maxListpackValue = 64;
+
+    private static final int MAX_LEVEL = 32;
+    // object header and fields
+    private static final int NODE_BYTES = 40;
+
+    interface EntryVisitor {
+        void accept(byte[] member, double score) throws IOException;
+    }
+
+    private static final class Node {
+        final byte[] member;
+        final double score;
+        Node backward;
+        Node next;
+        // links and spans of levels 1 and up, null for a level-1 node
+        final Node[] upper;
+        final int[] spans;
+
+        Node(byte[] member, double score, int level) {
+            this.member = member;
+            this.score = score;
+            upper = level > 1 ? new Node[level - 1] : null;
+            spans = level > 1 ? new int[level - 1] : null;
+        }
+
+        int level() {
+            return upper == null ? 1 : upper.length + 1;
+        }
+
+        Node forward(int i) {
+            return i == 0 ? next : upper[i - 1];
+        }
+
+        void setForward(int i, Node node) {
+            if (i == 0) {
+                next = node;
+            } else {
+                upper[i - 1] = node;
+            }
+        }
+
+        int span(int i) {
+            return i == 0 ? 1 : spans[i - 1];
+        }
+
+        void setSpan(int i, int span) {
+            if (i > 0) {
+                spans[i - 1] = span;
+            }
+        }
+
+        // ordered before (score, member)
+        boolean before(double score, byte[] member) {
+            return this.score < score || (this.score == score && Arrays.compareUnsigned(this.member, member) < 0);
+        }
+    }
+
+    private final Shard owner;
+    // owner.snapshotEpoch when created, see Shard.lookupForWrite
+    final int epoch;
+    // either packed, or the skiplist with its table
+    private Listpack packed;
+    private ByteMap table;
+    private Node header;
+    private Node tail;
+    private int level;
+    private int length;
+    // skiplist nodes and their arrays, the members are counted by the table
+    private long nodeBytes;
+
+    ZSetObject(Shard owner) {
+        this.owner = owner;
+        this.epoch = owner.snapshotEpoch;
+        packed = new Listpack();
+    }
+
+    // A copy to modify while a background save still reads this one; accounted to the
+    // shard by the Shard.put that swaps it in.
+    @Override
+    ZSetObject copy() {
+        ZSetObject copy = new ZSetObject(owner);
+        if (packed != null) {
+            copy.packed = packed.copy();
+        } else {
+            copy.packed = null;
+            copy.table = table.copy();
+            copy.copySkiplist(this);
+        }
+        return copy;
+    }
+
+    // Rebuilds from's skiplist node for node in one pass, O(n) under the shard lock where
+    // inserting every member again was O(n log n). Nodes keep their levels and spans;
+    // last[i] is the copy still waiting for its level-i link.
+    private void copySkiplist(ZSetObject from) {
+        header = new Node(null, 0, MAX_LEVEL);
+        System.arraycopy(from.header.spans, 0, header.spans, 0, MAX_LEVEL - 1);
+        Node[] last = new Node[MAX_LEVEL];
+        Arrays.fill(last, header);
+        Node previous = null;
+        for (Node x = from.header.next; x != null; x = x.next) {
+            int nodeLevel = x.level();
+            Node c = new Node(x.member, x.score, nodeLevel);
+            if (nodeLevel > 1) {
+                System.arraycopy(x.spans, 0, c.spans, 0, nodeLevel - 1);
+            }
+            for (int i = 0; i < nodeLevel; i++) {
+                last[i].setForward(i, c);
+                last[i] = c;
+            }
+            c.backward = previous;
+            previous = c;
+        }
+        tail = previous;
+        level = from.level;
+        length = from.length;
+        nodeBytes = from.nodeBytes;
+    }
+
+    @Override
+    boolean predates(int snapshotEpoch) {
+        return epoch != snapshotEpoch;
+    }
+
+    int size() {
+        return packed != null ? packed.count() / 2 : length;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    String encoding() {
+        return packed != null ? "listpack" : "skiplist";
+    }
+
+    // NaN when member is not in the set.
+    double score(byte[] member) {
+        if (packed != null) {
+            int pos = packed.find(member, 2);
+            return pos < 0 ? Double.NaN : packed.doubleAt(packed.next(pos));
+        }
+        int slot = table.slot(member);
+        return slot < 0 ? Double.NaN : table.scoreAt(slot);
+    }
+
+    // Adds member or moves it to score. Whether it is new.
+    boolean add(byte[] member, double score) {
+        long before = memoryUsage();
+        boolean added;
+        if (packed != null) {
+            int pos = packed.find(member, 2);
+            added = pos < 0;
+            if (!added) {
+                if (packed.doubleAt(packed.next(pos)) == score) {
+                    return false;
+                }
+                packed.remove(pos, 2);
+            }
+            if (packed.count() / 2 >= maxListpackEntries || member.length > maxListpackValue) {
+                convert();
+                addToSkiplist(member, score);
+            } else {
+                insertPacked(member, score);
+            }
+        } else {
+            added = addToSkiplist(member, score);
+        }
+        owner.usedMemory += memoryUsage() - before;
+        return added;
+    }
+
+    private boolean addToSkiplist(byte[] member, double score) {
+        int slot = table.slot(member);
+        if (slot >= 0) {
+            double old = table.scoreAt(slot);
+            if (old != score) {
+                // the node keeps the member array the table holds
+                byte[] stored = table.keyAt(slot);
+                delete(stored, old);
+                insert(stored, score);
+                table.setScore(slot, score);
+            }
+            return false;
+        }
+        slot = table.add(member);
+        table.setScore(slot, score);
+        insert(member, score);
+        return true;
+    }
+
+    private void insertPacked(byte[] member, double score) {
+        int pos = 0;
+        while (pos < packed.used()) {
+            int s = packed.next(pos);
+            double other = packed.doubleAt(s);
+            if (other > score || (other == score && packed.compareAt(pos, member) > 0)) {
+                break;
+            }
+            pos = packed.next(s);
+        }
+        packed.insert(pos, member);
+        packed.insert(packed.next(pos), Listpack.encodeDouble(score));
+    }
+
+    boolean remove(byte[] member) {
+        long before = memoryUsage();
+        boolean removed;
+        if (packed != null) {
+            int pos = packed.find(member, 2);
+            removed = pos >= 0;
+            if (removed) {
+                packed.remove(pos, 2);
+            }
+        } else {
+            int slot = table.slot(member);
+            removed = slot >= 0;
+            if (removed) {
+                delete(member, table.scoreAt(slot));
+                table.removeAt(slot);
+            }
+        }
+        owner.usedMemory += memoryUsage() - before;
+        return removed;
+    }
+
+    // 0-based rank in ascending order, -1 when member is not in the set.
+    long rank(byte[] member) {
+        if (packed != null) {
+            int rank = 0;
+            for (int pos = 0; pos < packed.used(); pos = packed.next(packed.next(pos))) {
+                if (packed.equalsAt(pos, member)) {
+                    return rank;
+                }
+                rank++;
+            }
+            return -1;
+        }
+        int slot = table.slot(member);
+        if (slot < 0) {
+            return -1;
+        }
+        double score = table.scoreAt(slot);
+        long rank = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            Node f;
+            while ((f = x.forward(i)) != null
+                    && (f.score < score || (f.score == score && Arrays.compareUnsigned(f.member, member) <= 0))) {
+                rank += x.span(i);
+                x = f;
+            }
+        }
+        return rank - 1;
+    }
+
+    // The number of members scored below min, or at most min when exclusive: the rank
+    // of the first one a range from min takes in.
+    int firstRankAtLeast(double min, boolean exclusive) {
+        if (packed != null) {
+            int rank = 0;
+            for (int pos = 0; pos < packed.used(); pos = packed.next(packed.next(pos))) {
+                double score = packed.doubleAt(packed.next(pos));
+                if (exclusive ? score > min : score >= min) {
+                    break;
+                }
+                rank++;
+            }
+            return rank;
+        }
+        int rank = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            Node f;
+            while ((f = x.forward(i)) != null && (exclusive ? f.score <= min : f.score < min)) {
+                rank += x.span(i);
+                x = f;
+            }
+        }
+        return rank;
+    }
+
+    // The rank of the last member scored at most max, or below it when exclusive; -1
+    // when there is none.
+    int lastRankAtMost(double max, boolean exclusive) {
+        // members up to max are those not above it
+        if (packed != null) {
+            int rank = 0;
+            for (int pos = 0; pos < packed.used(); pos = packed.next(packed.next(pos))) {
+                double score = packed.doubleAt(packed.next(pos));
+                if (exclusive ? score >= max : score > max) {
+                    break;
+                }
+                rank++;
+            }
+            return rank - 1;
+        }
+        int rank = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            Node f;
+            while ((f = x.forward(i)) != null && (exclusive ? f.score < max : f.score <= max)) {
+                rank += x.span(i);
+                x = f;
+            }
+        }
+        return rank - 1;
+    }
+
+    // Visits ranks start to end, both in [0, size()) and start <= end; counted from the
+    // highest score when reverse.
+    void range(int start, int end, boolean reverse, EntryVisitor visitor) throws IOException {
+        int n = end - start + 1;
+        if (packed != null) {
+            int[] positions = new int[packed.count() / 2];
+            int count = 0;
+            for (int pos = 0; pos < packed.used(); pos = packed.next(packed.next(pos))) {
+                positions[count++] = pos;
+            }
+            for (int i = 0; i < n; i++) {
+                int pos = positions[reverse ? count - 1 - start - i : start + i];
+                visitor.accept(packed.get(pos), packed.doubleAt(packed.next(pos)));
+            }
+            return;
+        }
+        Node x = nodeAt(reverse ? length - start : start + 1);
+        for (int i = 0; i < n; i++, x = reverse ? x.backward : x.next) {
+            visitor.accept(x.member, x.score);
+        }
+    }
+
+    void forEach(EntryVisitor visitor) throws IOException {
+        if (!isEmpty()) {
+            range(0, size() - 1, false, visitor);
+        }
+    }
+
+    private void convert() {
+        table = new ByteMap(false, true, packed.count() / 2 + 1);
+        initSkiplist();
+        for (int pos = 0; pos < packed.used(); ) {
+            int s = packed.next(pos);
+            byte[] member = packed.get(pos);
+            double score = packed.doubleAt(s);
+            table.setScore(table.add(member), score);
+            insert(member, score);
+            pos = packed.next(s);
+        }
+        packed = null;
+    }
+
+    // --- skiplist, as in Redis' t_zset.c with ranks 1-based
+
+    private void initSkiplist() {
+        header = new Node(null, 0, MAX_LEVEL);
+        level = 1;
+        nodeBytes = nodeSize(MAX_LEVEL);
+    }
+
+    private static long nodeSize(int level) {
+        // two arrays of level - 1 with their headers
+        return level > 1 ? NODE_BYTES + 2 * (16 + 4L * (level - 1)) : NODE_BYTES;
+    }
+
+    private static int randomLevel() {
+        int level = 1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (level < MAX_LEVEL && random.nextInt(4) == 0) {
+            level++;
+        }
+        return level;
+    }
+
+    private void insert(byte[] member, double score) {
+        Node[] update = new Node[MAX_LEVEL];
+        int[] rank = new int[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            Node f;
+            while ((f = x.forward(i)) != null && f.before(score, member)) {
+                rank[i] += x.span(i);
+                x = f;
+            }
+            update[i] = x;
+        }
+        int nodeLevel = randomLevel();
+        if (nodeLevel > level) {
+            for (int i = level; i < nodeLevel; i++) {
+                rank[i] = 0;
+                update[i] = header;
+                header.setSpan(i, length);
+            }
+            level = nodeLevel;
+        }
+        x = new Node(member, score, nodeLevel);
+        for (int i = 0; i < nodeLevel; i++) {
+            x.setForward(i, update[i].forward(i));
+            update[i].setForward(i, x);
+            x.setSpan(i, update[i].span(i) - (rank[0] - rank[i]));
+            update[i].setSpan(i, rank[0] - rank[i] + 1);
+        }
+        for (int i = nodeLevel; i < level; i++) {
+            update[i].setSpan(i, update[i].span(i) + 1);
+        }
+        x.backward = update[0] == header ? null : update[0];
+        if (x.next != null) {
+            x.next.backward = x;
+        } else {
+            tail = x;
+        }
+        length++;
+        nodeBytes += nodeSize(nodeLevel);
+    }
+
+    private void delete(byte[] member, double score) {
+        Node[] update = new Node[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            Node f;
+            while ((f = x.forward(i)) != null && f.before(score, member)) {
+                x = f;
+            }
+            update[i] = x;
+        }
+        x = x.next;
+        if (x == null || x.score != score || !Arrays.equals(x.member, member)) {
+            return;
+        }
+        for (int i = 0; i < level; i++) {
+            if (update[i].forward(i) == x) {
+                update[i].setSpan(i, update[i].span(i) + x.span(i) - 1);
+                update[i].setForward(i, x.forward(i));
+            } else {
+                update[i].setSpan(i, update[i].span(i) - 1);
+            }
+        }
+        if (x.next != null) {
+            x.next.backward = x.backward;
+        } else {
+            tail = x.backward;
+        }
+        while (level > 1 && header.forward(level - 1) == null) {
+            level--;
+        }
+        length--;
+        nodeBytes -= nodeSize(x.level());
+    }
+
+    // The node of 1-based rank.
+    private Node nodeAt(int rank) {
+        if (rank == length) {
+            return tail;
+        }
+        int traversed = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            Node f;
+            while ((f = x.forward(i)) != null && traversed + x.span(i) <= rank) {
+                traversed += x.span(i);
+                x = f;
+            }
+            if (traversed == rank) {
+                return x;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    long memoryUsage() {
+        // object and fields
+        return 56 + (packed != null ? packed.footprint() : table.footprint() + nodeBytes);
+    }
+}
@@ -0,0 +1,139 @@
+package redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class DictTest {
+    private static byte[] key(int n) {
+        return ("key:" + n).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static StringObject value(int n) {
+        return new StringObject(("v" + n).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertMatches(Map<Integer, StringObject> model, Map<Integer, Long> deadlines, Dict dict,
+            int keySpace) {
+        assertEquals(model.size(), dict.size());
+        assertEquals(deadlines.size(), dict.expiresCount());
+        for (int n = 0; n < keySpace; n++) {
+            StringObject expected = model.get(n);
+            if (expected == null) {
+                assertNull(dict.get(key(n)));
+                assertEquals(-1, dict.expireAt(key(n)));
+            } else {
+                assertEquals(expected, dict.get(key(n)));
+                long at = deadlines.getOrDefault(n, -1L);
+                assertEquals(at, dict.expireAt(key(n)));
+            }
+        }
+        Set<String> keys = new HashSet<>();
+        dict.forEachKey(k -> keys.add(new String(k, StandardCharsets.UTF_8)));
+        Set<String> expectedKeys = new HashSet<>();
+        for (int n : model.keySet()) {
+            expectedKeys.add("key:" + n);
+        }
+        assertEquals(expectedKeys, keys);
+    }
+
+    // Grows to a few thousand keys and shrinks back, so puts, removes and TTL changes land
+    // while the table is being rehashed either way; every key must stay reachable with its
+    // value and deadline.
+    @Test
+    void writesDuringRehashKeepEveryKey() {
+        Dict dict = new Shard(0).dict;
+        Map<Integer, StringObject> model = new HashMap<>();
+        Map<Integer, Long> deadlines = new HashMap<>();
+        Random random = new Random(10);
+        int keySpace = 4000;
+        for (int round = 0; round < 6; round++) {
+            // even rounds mostly put, odd rounds mostly remove
+            int putPercent = round % 2 == 0 ? 80 : 15;
+            for (int i = 0; i < 6000; i++) {
+                int n = random.nextInt(keySpace);
+                int op = random.nextInt(100);
+                if (op < putPercent) {
+                    StringObject v = value(i);
+                    assertEquals(model.put(n, v), dict.put(key(n), v));
+                } else if (op < 90) {
+                    deadlines.remove(n);
+                    assertEquals(model.remove(n), dict.remove(key(n)));
+                } else if (model.containsKey(n)) {
+                    long at = op < 95 ? 1_000_000_000_000L + i : 0;
+                    Long previous = at == 0 ? deadlines.remove(n) : deadlines.put(n, at);
+                    assertEquals(previous == null ? -1 : previous, dict.setExpire(key(n), at));
+                }
+                assertEquals(model.size(), dict.size());
+                int probe = random.nextInt(keySpace);
+                assertEquals(model.get(probe), dict.get(key(probe)));
+            }
+            assertMatches(model, deadlines, dict, keySpace);
+        }
+    }
+
+    // A snapshot taken in the middle of a rehash goes on seeing what the dict held then,
+    // whatever is put, overwritten or removed afterwards.
+    @Test
+    void snapshotKeepsItsContentsWhileTheDictChanges() throws IOException {
+        Dict dict = new Shard(0).dict;
+        Map<Integer, StringObject> model = new HashMap<>();
+        // the 97th key pushes the 128-slot table past 3/4 and starts a rehash
+        for (int n = 0; n < 97; n++) {
+            StringObject v = value(n);
+            dict.put(key(n), v);
+            model.put(n, v);
+        }
+        dict.setExpire(key(5), 2_000_000_000_000L);
+        Map<String, StringObject> expected = new HashMap<>();
+        for (Map.Entry<Integer, StringObject> e : model.entrySet()) {
+            expected.put("key:" + e.getKey(), e.getValue());
+        }
+
+        Dict.Snapshot snapshot = dict.snapshot();
+        Map<Integer, Long> deadlines = new HashMap<>();
+        deadlines.put(5, 2_000_000_000_000L);
+        Random random = new Random(11);
+        for (int i = 0; i < 3000; i++) {
+            int n = random.nextInt(400);
+            if (random.nextInt(3) == 0) {
+                dict.remove(key(n));
+                model.remove(n);
+                deadlines.remove(n);
+            } else {
+                StringObject v = value(1000 + i);
+                dict.put(key(n), v);
+                model.put(n, v);
+                if (random.nextInt(10) == 0) {
+                    dict.setExpire(key(n), 3_000_000_000_000L + i);
+                    deadlines.put(n, 3_000_000_000_000L + i);
+                }
+            }
+        }
+
+        assertEquals(97, snapshot.size);
+        assertEquals(1, snapshot.expiresCount);
+        Map<String, StringObject> seen = new HashMap<>();
+        Map<String, Long> seenDeadlines = new HashMap<>();
+        snapshot.forEach((key, value, expireAt) -> {
+            String k = new String(key, StandardCharsets.UTF_8);
+            seen.put(k, (StringObject) value);
+            if (expireAt >= 0) {
+                seenDeadlines.put(k, expireAt);
+            }
+        });
+        assertEquals(expected, seen);
+        assertEquals(Map.of("key:5", 2_000_000_000_000L), seenDeadlines);
+
+        dict.releaseSnapshot();
+        assertMatches(model, deadlines, dict, 400);
+    }
+}
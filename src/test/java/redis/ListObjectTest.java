@@ -0,0 +1,163 @@
+package redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class ListObjectTest {
+    // padding lengths: a one-byte length prefix, a two-byte one, and elements big enough
+    // that two or three fill a chunk
+    private static final int[] PADDING = {0, 5, 200, 3000};
+
+    // One of a few distinct tags, padded, so LINSERT pivots and LREM values hit often.
+    private static String element(Random random) {
+        char tag = (char) ('a' + random.nextInt(4));
+        return tag + "x".repeat(PADDING[random.nextInt(PADDING.length)]);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] b) {
+        return b == null ? null : new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> contents(ListObject list) {
+        List<String> out = new ArrayList<>();
+        list.forEach(0, list.size() - 1, (buf, offset, length) ->
+                out.add(new String(buf, offset, length, StandardCharsets.UTF_8)));
+        return out;
+    }
+
+    // What the shard was charged for the list must be what the list says it uses.
+    private static void assertAccounted(Shard shard, long base, ListObject list) {
+        assertEquals(list.memoryUsage() - 40, shard.usedMemory - base);
+    }
+
+    @Test
+    void pushesAndPopsMatchADeque() {
+        Shard shard = new Shard(0);
+        long base = shard.usedMemory;
+        ListObject list = new ListObject(shard);
+        ArrayDeque<String> model = new ArrayDeque<>();
+        Random random = new Random(9);
+        for (int i = 0; i < 20000; i++) {
+            int op = random.nextInt(10);
+            // pushes win until the list spans many chunks, then it drains again
+            boolean grow = (i / 5000) % 2 == 0;
+            if (op < (grow ? 6 : 3)) {
+                String e = element(random);
+                if (random.nextBoolean()) {
+                    list.addFirst(bytes(e));
+                    model.addFirst(e);
+                } else {
+                    list.addLast(bytes(e));
+                    model.addLast(e);
+                }
+            } else if (op < 8) {
+                assertEquals(model.pollFirst(), string(list.pollFirst()));
+            } else {
+                assertEquals(model.pollLast(), string(list.pollLast()));
+            }
+            assertEquals(model.size(), list.size());
+            if (i % 500 == 0) {
+                assertEquals(new ArrayList<>(model), contents(list));
+                assertAccounted(shard, base, list);
+            }
+        }
+        while (!model.isEmpty()) {
+            assertEquals(model.pollFirst(), string(list.pollFirst()));
+        }
+        assertNull(list.pollFirst());
+        assertNull(list.pollLast());
+        assertAccounted(shard, base, list);
+        assertEquals(0, list.memoryUsage() - 40);
+    }
+
+    // LINSERT into full chunks splits them, LREM and LTRIM empty and unlink them; the
+    // list must read the same as the model through all of it, by index and end to end.
+    @Test
+    void insertRemoveTrimAndSetMatchAList() {
+        Shard shard = new Shard(0);
+        long base = shard.usedMemory;
+        ListObject list = new ListObject(shard);
+        List<String> model = new ArrayList<>();
+        Random random = new Random(10);
+        for (int i = 0; i < 8000; i++) {
+            int op = random.nextInt(100);
+            if (op < 25 || model.isEmpty()) {
+                String e = element(random);
+                list.addLast(bytes(e));
+                model.add(e);
+            } else if (op < 55) {
+                String pivot = random.nextInt(5) == 0 ? "missing" : model.get(random.nextInt(model.size()));
+                String value = element(random);
+                boolean before = random.nextBoolean();
+                int at = model.indexOf(pivot);
+                if (at >= 0) {
+                    model.add(before ? at : at + 1, value);
+                }
+                assertEquals(at < 0 ? -1 : model.size(), list.insert(bytes(pivot), bytes(value), before));
+            } else if (op < 70) {
+                String value = model.get(random.nextInt(model.size()));
+                int count = random.nextInt(5) - 2;
+                assertEquals(removeFromModel(model, count, value), list.remove(count, bytes(value)));
+            } else if (op < 75) {
+                int start = random.nextInt(model.size());
+                int stop = start + random.nextInt(model.size() - start);
+                // mostly shave a little off each end, so the list does not collapse
+                if (random.nextInt(4) != 0) {
+                    start = Math.min(start, 2);
+                    stop = Math.max(stop, model.size() - 3);
+                }
+                list.trim(start, stop);
+                model = new ArrayList<>(model.subList(start, stop + 1));
+            } else if (op < 90) {
+                int index = random.nextInt(model.size());
+                String value = element(random);
+                list.set(index, bytes(value));
+                model.set(index, value);
+            } else {
+                int index = random.nextInt(model.size());
+                assertEquals(model.get(index), string(list.get(index)));
+            }
+            assertEquals(model.size(), list.size());
+            if (i % 200 == 0) {
+                assertEquals(model, contents(list));
+                assertAccounted(shard, base, list);
+            }
+        }
+        assertEquals(model, contents(list));
+        assertAccounted(shard, base, list);
+    }
+
+    // LREM semantics: |count| matches from the head when positive, from the tail when
+    // negative, every match for 0.
+    private static int removeFromModel(List<String> model, int count, String value) {
+        int limit = count == 0 ? Integer.MAX_VALUE : Math.abs(count);
+        int removed = 0;
+        if (count < 0) {
+            Collections.reverse(model);
+        }
+        for (int i = 0; i < model.size() && removed < limit; ) {
+            if (model.get(i).equals(value)) {
+                model.remove(i);
+                removed++;
+            } else {
+                i++;
+            }
+        }
+        if (count < 0) {
+            Collections.reverse(model);
+        }
+        return removed;
+    }
+}
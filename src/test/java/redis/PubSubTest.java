@@ -0,0 +1,76 @@
+package redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class PubSubTest {
+    // A subscriber that keeps what is pushed to it instead of writing a socket.
+    private static final class Recorder extends ClientHandler {
+        final List<String> messages = new ArrayList<>();
+
+        Recorder() {
+            super((Socket) null);
+        }
+
+        @Override
+        void push(byte[] message) {
+            messages.add(new String(message, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String pmessage(String pattern, String channel, String message) {
+        return "*4\r\n$8\r\npmessage\r\n$" + pattern.length() + "\r\n" + pattern + "\r\n$" + channel.length() + "\r\n"
+                + channel + "\r\n$" + message.length() + "\r\n" + message + "\r\n";
+    }
+
+    // "news*" and "news**" compile to the same trie node, yet are two subscriptions.
+    @Test
+    void patternsWithTheSameTokensAreSeparateSubscriptions() {
+        Recorder client = new Recorder();
+        PubSub.psubscribe(bytes("news*"), client);
+        PubSub.psubscribe(bytes("news**"), client);
+        try {
+            assertEquals(2, PubSub.patternCount());
+            assertEquals(2, PubSub.publish(bytes("news1"), bytes("hi")));
+            assertEquals(List.of(pmessage("news*", "news1", "hi"), pmessage("news**", "news1", "hi")), client.messages);
+
+            client.messages.clear();
+            PubSub.punsubscribe(bytes("news**"), client);
+            assertEquals(1, PubSub.patternCount());
+            assertEquals(1, PubSub.publish(bytes("news1"), bytes("hi")));
+            assertEquals(List.of(pmessage("news*", "news1", "hi")), client.messages);
+        } finally {
+            PubSub.punsubscribe(bytes("news*"), client);
+            PubSub.punsubscribe(bytes("news**"), client);
+        }
+        assertEquals(0, PubSub.patternCount());
+        assertEquals(0, PubSub.publish(bytes("news1"), bytes("hi")));
+    }
+
+    // Each subscriber hears the pattern as it spelled it, not as whoever came first did.
+    @Test
+    void pmessageCarriesEachSubscribersSpelling() {
+        Recorder escaped = new Recorder();
+        Recorder plain = new Recorder();
+        PubSub.psubscribe(bytes("\\a"), escaped);
+        PubSub.psubscribe(bytes("a"), plain);
+        try {
+            assertEquals(2, PubSub.publish(bytes("a"), bytes("m")));
+            assertEquals(List.of(pmessage("\\a", "a", "m")), escaped.messages);
+            assertEquals(List.of(pmessage("a", "a", "m")), plain.messages);
+        } finally {
+            PubSub.punsubscribe(bytes("\\a"), escaped);
+            PubSub.punsubscribe(bytes("a"), plain);
+        }
+        assertEquals(0, PubSub.patternCount());
+    }
+}
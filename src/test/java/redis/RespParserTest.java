@@ -0,0 +1,57 @@
+package redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class RespParserTest {
+    private static ByteBuffer buffer(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void bulkLengthPastIntIsRejected() {
+        // 4294967300 wrapped to 4 when it was narrowed from a long
+        assertThrows(ProtocolException.class, () -> new RespParser().parse(buffer("*1\r\n$4294967300\r\nPING\r\n")));
+        assertThrows(ProtocolException.class, () -> new RespParser().parse(buffer("*1\r\n$2147483648\r\nPING\r\n")));
+    }
+
+    @Test
+    void multibulkCountPastIntIsRejected() {
+        assertThrows(ProtocolException.class, () -> new RespParser().parse(buffer("*4294967297\r\n$4\r\nPING\r\n")));
+    }
+
+    @Test
+    void negativeLengthsOtherThanMinusOneAreRejected() {
+        assertThrows(ProtocolException.class, () -> new RespParser().parse(buffer("*-2\r\n")));
+        assertThrows(ProtocolException.class, () -> new RespParser().parse(buffer("*1\r\n$-1\r\n")));
+        assertThrows(ProtocolException.class, () -> new RespParser().parse(buffer("*1\r\n$-\r\n")));
+    }
+
+    @Test
+    void nullMultibulkIsSkipped() throws ProtocolException {
+        RespParser parser = new RespParser();
+        assertTrue(parser.parse(buffer("*-1\r\n*1\r\n$4\r\nPING\r\n")));
+        assertEquals("PING", parser.command().string(0));
+    }
+
+    @Test
+    void emptyInlineLinesAreSkipped() throws ProtocolException {
+        RespParser parser = new RespParser();
+        ByteBuffer in = buffer("\r\n\r\nPING\r\n");
+        assertTrue(parser.parse(in));
+        assertEquals(1, parser.command().argc());
+        assertEquals("PING", parser.command().string(0));
+        assertFalse(parser.parse(in));
+
+        ByteBuffer blank = buffer("\r\n");
+        assertFalse(parser.parse(blank));
+        assertEquals(0, blank.remaining());
+    }
+}
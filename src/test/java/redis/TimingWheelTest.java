@@ -0,0 +1,119 @@
+package redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+    // Deadlines either side of where each level's span starts (64, 64^2, 64^3, 64^4
+    // ticks), so entries cascade down through every level before they fire.
+    @Test
+    void firesAtItsDeadlineAcrossLevels() {
+        long[] deadlines = {1, 2, 63, 64, 65, 127, 128, 4095, 4096, 4097, 70000, 262143, 262144, 262145,
+                16777215, 16777216, 16777217, 20000000};
+        TimingWheel<Long> wheel = new TimingWheel<>(1, 0);
+        for (long d : deadlines) {
+            wheel.add(d, d);
+        }
+        assertEquals(deadlines.length, wheel.size());
+        List<Long> fired = new ArrayList<>();
+        for (int i = 0; i < deadlines.length; i++) {
+            long d = deadlines[i];
+            wheel.advance(d - 1, Integer.MAX_VALUE, fired::add);
+            assertEquals(i, fired.size());
+            wheel.advance(d, Integer.MAX_VALUE, fired::add);
+            assertEquals(i + 1, fired.size());
+            assertEquals(d, (long) fired.get(i));
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    // Random adds, cancels and advances by uneven strides, against a map of what is still
+    // pending: each advance fires exactly the live entries whose deadline has come.
+    @Test
+    void matchesAModelUnderRandomAddsAndCancels() {
+        Random random = new Random(6);
+        long now = 1_000_000;
+        TimingWheel<Integer> wheel = new TimingWheel<>(1, now);
+        Map<Integer, Long> pending = new HashMap<>();
+        Map<Integer, TimingWheel.Entry<Integer>> entries = new HashMap<>();
+        List<Integer> cancelled = new ArrayList<>();
+        int next = 0;
+        for (int round = 0; round < 3000; round++) {
+            for (int i = random.nextInt(8); i > 0; i--) {
+                // mostly near, some past a level boundary or two
+                long delay = 1 + (random.nextInt(4) == 0 ? random.nextInt(300000) : random.nextInt(5000));
+                int id = next++;
+                entries.put(id, wheel.add(now + delay, id));
+                pending.put(id, now + delay);
+            }
+            if (!pending.isEmpty() && random.nextInt(3) == 0) {
+                List<Integer> ids = new ArrayList<>(pending.keySet());
+                int id = ids.get(random.nextInt(ids.size()));
+                wheel.cancel(entries.get(id));
+                pending.remove(id);
+                cancelled.add(id);
+            }
+            // a cancel after the entry fired or was cancelled changes nothing
+            if (!cancelled.isEmpty()) {
+                wheel.cancel(entries.get(cancelled.get(random.nextInt(cancelled.size()))));
+            }
+            assertEquals(pending.size(), wheel.size());
+
+            now += random.nextInt(4) == 0 ? random.nextInt(20000) : random.nextInt(200);
+            List<Integer> expected = new ArrayList<>();
+            for (Map.Entry<Integer, Long> e : pending.entrySet()) {
+                if (e.getValue() <= now) {
+                    expected.add(e.getKey());
+                }
+            }
+            List<Integer> fired = new ArrayList<>();
+            assertEquals(expected.size(), wheel.advance(now, Integer.MAX_VALUE, fired::add));
+            Collections.sort(expected);
+            Collections.sort(fired);
+            assertEquals(expected, fired);
+            for (int id : fired) {
+                pending.remove(id);
+                cancelled.add(id);
+            }
+        }
+    }
+
+    // advance() stops at its limit and the next call picks up the rest of the tick.
+    @Test
+    void limitLeavesTheRestForTheNextCall() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(1, 0);
+        for (int i = 0; i < 5; i++) {
+            wheel.add(10, i);
+        }
+        wheel.add(11, 5);
+        List<Integer> fired = new ArrayList<>();
+        assertEquals(2, wheel.advance(10, 2, fired::add));
+        assertEquals(4, wheel.size());
+        assertEquals(2, wheel.advance(10, 2, fired::add));
+        assertEquals(1, wheel.advance(10, 2, fired::add));
+        assertEquals(0, wheel.advance(10, 2, fired::add));
+        assertEquals(1, wheel.size());
+        assertEquals(1, wheel.advance(11, 2, fired::add));
+        Collections.sort(fired);
+        assertEquals(List.of(0, 1, 2, 3, 4, 5), fired);
+    }
+
+    // A deadline between ticks rounds up: nothing fires early.
+    @Test
+    void deadlinesRoundUpToWholeTicks() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 0);
+        wheel.add(15, "a");
+        List<String> fired = new ArrayList<>();
+        assertEquals(0, wheel.advance(15, Integer.MAX_VALUE, fired::add));
+        assertEquals(0, wheel.advance(19, Integer.MAX_VALUE, fired::add));
+        assertEquals(1, wheel.advance(20, Integer.MAX_VALUE, fired::add));
+        assertEquals(List.of("a"), fired);
+    }
+}